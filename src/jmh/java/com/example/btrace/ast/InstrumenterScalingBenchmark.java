@@ -0,0 +1,84 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.trace.TraceSymbols;
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrumentation time against the size of the source: a generated class whose one method has
+ * {@code statements} statements, cycling through declarations, assignments, array and list
+ * writes, an if with a traced body and a loop. Time per statement should stay flat as the method
+ * grows.
+ *
+ * Run with {@code mvn -Pjmh verify -Djmh.args=".*InstrumenterScaling.*"}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumenterScalingBenchmark {
+
+    @Param({"1000", "2500", "5000", "10000"})
+    public int statements;
+
+    private String sourceCode;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder source = new StringBuilder()
+            .append("import java.util.*;\n\n")
+            .append("public class Generated {\n")
+            .append("    int[] counts = new int[8];\n")
+            .append("    List<Integer> history = new ArrayList<>();\n\n")
+            .append("    public int run(int n) {\n")
+            .append("        int sum = 0;\n");
+        for (int i = 0; i < statements; i++) {
+            switch (i % 6) {
+                case 0:
+                    source.append("        int v").append(i).append(" = n + ").append(i).append(";\n");
+                    break;
+                case 1:
+                    source.append("        sum += v").append(i - 1).append(";\n");
+                    break;
+                case 2:
+                    source.append("        counts[").append(i % 8).append("] = sum;\n");
+                    break;
+                case 3:
+                    source.append("        history.add(sum);\n");
+                    break;
+                case 4:
+                    source.append("        if (sum > ").append(i).append(") sum = 0;\n");
+                    break;
+                default:
+                    source.append("        for (int j = 0; j < 2; j++) { sum++; }\n");
+            }
+        }
+        sourceCode = source.append("        return sum;\n    }\n}\n").toString();
+    }
+
+    @Benchmark
+    public TraceSymbols instrument(FreshUnit unit) {
+        ASTInstrumenter instrumenter = new ASTInstrumenter();
+        unit.cu.accept(instrumenter, null);
+        return instrumenter.getSymbols();
+    }
+
+    /**
+     * A freshly parsed unit for every call, since instrumentation rewrites it in place
+     */
+    @State(Scope.Thread)
+    public static class FreshUnit {
+        CompilationUnit cu;
+
+        @Setup(Level.Invocation)
+        public void parse(InstrumenterScalingBenchmark benchmark) {
+            cu = new JavaParser().parse(benchmark.sourceCode).getResult()
+                .orElseThrow(() -> new IllegalStateException("Generated source does not parse"));
+        }
+    }
+}
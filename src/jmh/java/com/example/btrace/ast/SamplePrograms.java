@@ -0,0 +1,148 @@
+package com.example.btrace.ast;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Programs the benchmarks trace: the request samples checked in at the repository root
+ * ({@code test-examples.json}, {@code test-mysqrt.json}, {@code test-removeElement.json}) plus
+ * synthetic workloads with a large loop and deep recursion.
+ *
+ * Sample files are read from the directory in the {@code btrace.samples} system property,
+ * by default the working directory (the project root when run through the jmh profile).
+ */
+final class SamplePrograms {
+
+    /** Sample names, usable as a benchmark {@code @Param} */
+    static final String PALINDROME = "palindrome";
+    static final String FIBONACCI = "fibonacci";
+    static final String ARRAY_SUM = "arraySum";
+    static final String STRING_REVERSER = "stringReverser";
+    static final String MY_SQRT = "mySqrt";
+    static final String REMOVE_ELEMENT = "removeElement";
+    static final String LARGE_LOOP = "largeLoop";
+    static final String DEEP_RECURSION = "deepRecursion";
+
+    private SamplePrograms() {}
+
+    static Sample load(String name) throws IOException {
+        Sample sample = all().get(name);
+        if (sample == null) {
+            throw new IllegalArgumentException("Unknown sample program: " + name);
+        }
+        return sample;
+    }
+
+    private static Map<String, Sample> all() throws IOException {
+        Path dir = Paths.get(System.getProperty("btrace.samples", "."));
+        Map<String, Sample> samples = new LinkedHashMap<>();
+
+        List<Sample> examples = read(dir.resolve("test-examples.json"));
+        samples.put(PALINDROME, examples.get(0));
+        samples.put(FIBONACCI, examples.get(1));
+        samples.put(ARRAY_SUM, examples.get(2));
+        samples.put(STRING_REVERSER, examples.get(3));
+        samples.put(MY_SQRT, read(dir.resolve("test-mysqrt.json")).get(0));
+        samples.put(REMOVE_ELEMENT, read(dir.resolve("test-removeElement.json")).get(0));
+
+        samples.put(LARGE_LOOP, new Sample("LargeLoop", "main",
+            "public class LargeLoop {\n"
+                + "    public static void main(String[] args) {\n"
+                + "        int[] counts = new int[64];\n"
+                + "        long sum = 0;\n"
+                + "        for (int i = 0; i < 20000; i++) {\n"
+                + "            int bucket = i % counts.length;\n"
+                + "            counts[bucket]++;\n"
+                + "            sum += bucket;\n"
+                + "        }\n"
+                + "        System.out.println(sum);\n"
+                + "    }\n"
+                + "}\n",
+            Collections.<String>emptyList()));
+        samples.put(DEEP_RECURSION, new Sample("DeepRecursion", "main",
+            "public class DeepRecursion {\n"
+                + "    static int depth(int n) {\n"
+                + "        if (n == 0) {\n"
+                + "            return 0;\n"
+                + "        }\n"
+                + "        int below = depth(n - 1);\n"
+                + "        return below + 1;\n"
+                + "    }\n"
+                + "\n"
+                + "    public static void main(String[] args) {\n"
+                + "        int total = 0;\n"
+                + "        for (int i = 0; i < 5; i++) {\n"
+                + "            total += depth(1000);\n"
+                + "        }\n"
+                + "        System.out.println(total);\n"
+                + "    }\n"
+                + "}\n",
+            Collections.<String>emptyList()));
+        return samples;
+    }
+
+    /** A sample file holds one request or an array of them */
+    private static List<Sample> read(Path file) throws IOException {
+        JsonElement root;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            root = JsonParser.parseReader(reader);
+        }
+        JsonArray requests;
+        if (root.isJsonArray()) {
+            requests = root.getAsJsonArray();
+        } else {
+            requests = new JsonArray();
+            requests.add(root);
+        }
+        List<Sample> samples = new ArrayList<>();
+        for (JsonElement element : requests) {
+            JsonObject request = element.getAsJsonObject();
+            List<String> inputs = new ArrayList<>();
+            if (request.has("testInputs")) {
+                for (JsonElement input : request.getAsJsonArray("testInputs")) {
+                    inputs.add(input.getAsString());
+                }
+            }
+            samples.add(new Sample(request.get("className").getAsString(), request.get("methodName").getAsString(),
+                                   request.get("sourceCode").getAsString(), inputs));
+        }
+        return samples;
+    }
+
+    /**
+     * One program; with test inputs it runs through the batch harness, otherwise through its own main
+     */
+    static class Sample {
+        private final String className;
+        private final String methodName;
+        private final String sourceCode;
+        private final List<String> testInputs;
+
+        Sample(String className, String methodName, String sourceCode, List<String> testInputs) {
+            this.className = className;
+            this.methodName = methodName;
+            this.sourceCode = sourceCode;
+            this.testInputs = testInputs;
+        }
+
+        // Getters
+        String getClassName() { return className; }
+        String getMethodName() { return methodName; }
+        String getSourceCode() { return sourceCode; }
+        List<String> getTestInputs() { return testInputs; }
+    }
+}
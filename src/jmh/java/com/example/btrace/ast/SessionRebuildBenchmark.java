@@ -0,0 +1,82 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.cache.CompiledArtifact;
+import com.example.btrace.compiler.InMemoryCompiler;
+import com.example.btrace.metrics.StageTimings;
+import com.example.btrace.metrics.TraceMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-running after a one-line edit against the size of the program: a generated program of
+ * {@code classes} classes with ten methods each, where the edit toggles an extra statement in one
+ * method of the middle class. {@code edit} rebuilds it within a {@link TraceSession} and should stay
+ * flat as the program grows; {@code fullBuild} parses, instruments and compiles everything again.
+ *
+ * Run with {@code mvn -Pjmh verify -Djmh.args=".*SessionRebuild.*"}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionRebuildBenchmark {
+
+    private static final int METHODS = 10;
+
+    @Param({"5", "50", "200"})
+    public int classes;
+
+    private final String[] sources = new String[2];
+    private final TraceMetrics metrics = new TraceMetrics();
+    private TraceSession session;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StringBuilder source = new StringBuilder("import java.util.*;\n\n")
+            .append("public class Main {\n")
+            .append("    public static void main(String[] args) {\n")
+            .append("        int total = 0;\n");
+        for (int c = 0; c < classes; c++) {
+            source.append("        total += new C").append(c).append("().m0(3);\n");
+        }
+        source.append("        System.out.println(total);\n    }\n}\n");
+        for (int c = 0; c < classes; c++) {
+            source.append("\nclass C").append(c).append(" {\n")
+                .append("    List<Integer> seen = new ArrayList<>();\n");
+            for (int m = 0; m < METHODS; m++) {
+                source.append("\n    int m").append(m).append("(int n) {\n")
+                    .append("        int sum = n;\n")
+                    .append("        for (int i = 0; i < n; i++) {\n")
+                    .append("            sum += i * ").append(m).append(";\n")
+                    .append("            seen.add(sum);\n")
+                    .append("        }\n")
+                    .append("        return ").append(m + 1 < METHODS ? "m" + (m + 1) + "(n) + " : "").append("sum;\n")
+                    .append("    }\n");
+            }
+            source.append("}\n");
+        }
+        sources[0] = source.toString();
+        String target = "class C" + classes / 2 + " {";
+        int at = sources[0].indexOf("seen.add(sum);", sources[0].indexOf(target));
+        sources[1] = sources[0].substring(0, at) + "sum--;\n            " + sources[0].substring(at);
+
+        session = new TraceSession(new InMemoryCompiler());
+        session.build("Main", sources[0], new StageTimings(metrics));
+    }
+
+    @Benchmark
+    public CompiledArtifact edit() throws Exception {
+        next ^= 1;
+        return session.build("Main", sources[next], new StageTimings(metrics));
+    }
+
+    @Benchmark
+    public CompiledArtifact fullBuild() throws Exception {
+        next ^= 1;
+        return new TraceSession(new InMemoryCompiler()).build("Main", sources[next], new StageTimings(metrics));
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.ast.SamplePrograms.Sample;
+import com.example.btrace.compiler.InMemoryCompiler;
+import com.example.btrace.compiler.InMemoryCompiler.CompilationResult;
+import com.example.btrace.executor.WorkerPool;
+import com.example.btrace.executor.WorkerPool.ExecutionResult;
+import com.example.btrace.executor.WorkerPool.OutputConsumer;
+import com.example.btrace.runtime.TraceOptions;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceDecoder;
+import com.example.btrace.trace.TraceSymbols;
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent in each stage of a trace request, per sample program (see {@link SamplePrograms}):
+ * parsing, instrumentation, printing the instrumented source, in-memory compilation, running the
+ * job on a warm worker JVM, decoding the recorded trace records into events, and writing the
+ * events as JSON.
+ *
+ * Run with {@code mvn -Pjmh verify}; results are written to {@code target/jmh-result.json}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TracePipelineBenchmark {
+
+    @Param({
+        SamplePrograms.PALINDROME, SamplePrograms.FIBONACCI, SamplePrograms.ARRAY_SUM,
+        SamplePrograms.STRING_REVERSER, SamplePrograms.MY_SQRT, SamplePrograms.REMOVE_ELEMENT,
+        SamplePrograms.LARGE_LOOP, SamplePrograms.DEEP_RECURSION
+    })
+    public String sample;
+
+    private final InMemoryCompiler compiler = new InMemoryCompiler();
+    private WorkerPool workerPool;
+
+    private String sourceCode;
+    private CompilationUnit instrumented;
+    private TraceSymbols symbols;
+    private Map<String, String> sources;
+    private String mainClass;
+    private String[] args;
+    private Map<String, byte[]> classes;
+    private List<byte[]> traceChunks;
+    private TraceData decoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Sample program = SamplePrograms.load(sample);
+        sourceCode = program.getSourceCode();
+
+        CompilationUnit cu = parse(sourceCode);
+        sources = new LinkedHashMap<>();
+        if (program.getTestInputs().isEmpty()) {
+            mainClass = program.getClassName();
+            args = new String[0];
+        } else {
+            BatchHarness harness = BatchHarness.generate(cu, program.getClassName(), program.getMethodName(),
+                                                         program.getTestInputs());
+            sources.put(harness.getClassName(), harness.getSource());
+            mainClass = harness.getClassName();
+            args = new String[program.getTestInputs().size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(i);
+            }
+        }
+        ASTInstrumenter instrumenter = new ASTInstrumenter();
+        cu.accept(instrumenter, null);
+        instrumented = cu;
+        symbols = instrumenter.getSymbols();
+        sources.put(program.getClassName(), cu.toString());
+
+        CompilationResult compilation = compiler.compile(sources);
+        if (!compilation.isSuccess()) {
+            throw new IllegalStateException("Sample " + sample + " does not compile: " + compilation.getErrors());
+        }
+        classes = compilation.getClasses();
+
+        workerPool = new WorkerPool(1, Integer.MAX_VALUE, 60_000,
+                                    Arrays.asList("-Xss16m", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1"));
+        RecordingConsumer recording = new RecordingConsumer();
+        ExecutionResult execution = run(recording);
+        if (!execution.isCompleted()) {
+            throw new IllegalStateException("Sample " + sample + " did not run: " + execution.getMessage());
+        }
+        traceChunks = recording.chunks;
+        decoded = decode();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        workerPool.close();
+    }
+
+    @Benchmark
+    public CompilationUnit parse() {
+        return parse(sourceCode);
+    }
+
+    @Benchmark
+    public TraceSymbols instrument(FreshUnit unit) {
+        ASTInstrumenter instrumenter = new ASTInstrumenter();
+        unit.cu.accept(instrumenter, null);
+        return instrumenter.getSymbols();
+    }
+
+    @Benchmark
+    public String print() {
+        return instrumented.toString();
+    }
+
+    @Benchmark
+    public CompilationResult compile() {
+        return compiler.compile(sources);
+    }
+
+    @Benchmark
+    public long execute() throws Exception {
+        CountingConsumer counting = new CountingConsumer();
+        run(counting);
+        return counting.bytes;
+    }
+
+    @Benchmark
+    public TraceData decode() {
+        TraceDecoder decoder = new TraceDecoder(symbols);
+        TraceData events = new TraceData();
+        for (byte[] chunk : traceChunks) {
+            decoder.decode(chunk, 0, chunk.length, events, Integer.MAX_VALUE);
+        }
+        return events;
+    }
+
+    @Benchmark
+    public int serialize() throws IOException {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < decoded.size(); i++) {
+            decoded.writeJson(i, json);
+            json.append('\n');
+        }
+        return json.length();
+    }
+
+    private ExecutionResult run(OutputConsumer consumer) throws Exception {
+        // Untraced-loop sampling and budgets off, so every sample is traced in full
+        return workerPool.execute(
+            new WorkerPool.Job(mainClass, classes).withArgs(args).withOptions(TraceOptions.defaults()), consumer);
+    }
+
+    private static CompilationUnit parse(String sourceCode) {
+        return new JavaParser().parse(sourceCode).getResult()
+            .orElseThrow(() -> new IllegalStateException("Sample does not parse"));
+    }
+
+    /**
+     * A freshly parsed unit for every call, since instrumentation rewrites it in place
+     */
+    @State(Scope.Thread)
+    public static class FreshUnit {
+        CompilationUnit cu;
+
+        @Setup(Level.Invocation)
+        public void parse(TracePipelineBenchmark benchmark) {
+            cu = TracePipelineBenchmark.parse(benchmark.sourceCode);
+        }
+    }
+
+    /** Keeps the trace records of one run for the decode benchmark */
+    private static class RecordingConsumer implements OutputConsumer {
+        final List<byte[]> chunks = new ArrayList<>();
+
+        @Override
+        public boolean onOutput(byte[] chunk, int offset, int length) {
+            return true;
+        }
+
+        @Override
+        public boolean onTrace(byte[] chunk, int offset, int length) {
+            chunks.add(Arrays.copyOfRange(chunk, offset, offset + length));
+            return true;
+        }
+    }
+
+    private static class CountingConsumer implements OutputConsumer {
+        long bytes;
+
+        @Override
+        public boolean onOutput(byte[] chunk, int offset, int length) {
+            bytes += length;
+            return true;
+        }
+
+        @Override
+        public boolean onTrace(byte[] chunk, int offset, int length) {
+            bytes += length;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.btrace.tracer;
+
+import com.example.btrace.trace.TraceData;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsing multi-megabyte BTrace output: {@link BTraceEventParser} fed 8 KB chunks the way the
+ * engine's client reader does, against the regex parser the BTrace proof of concept used
+ * ({@code TraceController.parseTrace}), which split the whole output into lines and built a map
+ * per event.
+ *
+ * The output is generated: a recursive method with two arguments, each call printing its entry,
+ * arguments, a few line events and its return, as the generated script does.
+ *
+ * Run with {@code mvn -Pjmh verify -Djmh.args=".*BTraceEventParser.*"}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BTraceEventParserBenchmark {
+
+    private static final int CHUNK = 8192;
+
+    private static final BTraceEventParser.Listener IGNORE = new BTraceEventParser.Listener() {
+        @Override
+        public void onAttached() {
+        }
+
+        @Override
+        public void onFinished() {
+        }
+    };
+
+    /** Size of the output in megabytes */
+    @Param({"1", "16"})
+    public int megabytes;
+
+    private byte[] output;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder out = new StringBuilder("EVENT:ATTACHED\n");
+        long limit = megabytes * 1024L * 1024L;
+        Random random = new Random(1);
+        int depth = 0;
+        while (out.length() < limit) {
+            if (depth < 20 && random.nextInt(3) > 0) {
+                out.append("EVENT:CALL;METHOD:search;LINE:12\n");
+                out.append("EVENT:ARG;NAME:target;VALUE:").append(random.nextInt(100_000)).append('\n');
+                out.append("EVENT:ARG;NAME:label;VALUE:node-").append(random.nextInt(1000)).append('\n');
+                for (int line = 13; line < 17; line++) {
+                    out.append("EVENT:LINE;LINE:").append(line).append('\n');
+                }
+                depth++;
+            } else if (depth > 0) {
+                out.append("EVENT:RETURN;METHOD:search;VALUE:").append(random.nextBoolean()).append('\n');
+                depth--;
+            }
+        }
+        out.append("EVENT:FINISHED\n");
+        output = out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int streaming() {
+        BTraceEventParser parser = new BTraceEventParser(new TraceData(Long.MAX_VALUE), Integer.MAX_VALUE, IGNORE);
+        for (int offset = 0; offset < output.length; offset += CHUNK) {
+            parser.accept(output, offset, Math.min(CHUNK, output.length - offset));
+        }
+        return parser.finish().size();
+    }
+
+    @Benchmark
+    public int regex() {
+        return parseTrace(new String(output, StandardCharsets.UTF_8)).size();
+    }
+
+    /** The proof of concept's parser, unchanged */
+    private static List<Map<String, Object>> parseTrace(String rawTrace) {
+        List<Map<String, Object>> events = new ArrayList<>();
+        Pattern pattern = Pattern.compile("EVENT:(\\w+);(.*)");
+        Pattern kvPattern = Pattern.compile("(\\w+):([^;]+)");
+
+        for (String line : rawTrace.split("\n")) {
+            Matcher matcher = pattern.matcher(line.trim());
+            if (matcher.matches()) {
+                Map<String, Object> event = new HashMap<>();
+                String type = matcher.group(1);
+                String data = matcher.group(2);
+                event.put("type", type);
+
+                Matcher kvMatcher = kvPattern.matcher(data);
+                while (kvMatcher.find()) {
+                    String key = kvMatcher.group(1).toLowerCase();
+                    String value = kvMatcher.group(2);
+                    Object parsedValue;
+                    if (value.matches("-?\\d+")) {
+                        parsedValue = Long.parseLong(value);
+                    } else if (value.equals("true") || value.equals("false")) {
+                        parsedValue = Boolean.parseBoolean(value);
+                    } else {
+                        parsedValue = value;
+                    }
+                    event.put(key, parsedValue);
+                }
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
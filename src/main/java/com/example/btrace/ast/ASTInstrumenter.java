@@ -0,0 +1,487 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.trace.TraceSymbols;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.nodeTypes.NodeWithBody;
+import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.PrimitiveType;
+import com.github.javaparser.ast.type.Type;
+import com.github.javaparser.ast.visitor.ModifierVisitor;
+import com.github.javaparser.ast.visitor.Visitable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * AST Visitor that instruments code with tracing calls.
+ * Inserted calls go to the precompiled {@code Tracer} runtime and pass symbol ids
+ * defined in the visitor's {@link TraceSymbols}; nothing is added to the user's class.
+ *
+ * Every method and constructor body becomes
+ * {@code int $traceDepth = Tracer.enter(id); Tracer.arg(...); try { body } finally { Tracer.unwind(id, $traceDepth); }}
+ * and each {@code return expr} becomes {@code return Tracer.ret(expr, id)}, so calls,
+ * arguments, return values and exceptional exits are traced for all user methods.
+ *
+ * Element writes ({@code a[i] = v}, {@code a[i]++}, {@code list.add(v)}, {@code list.set(i, v)},
+ * {@code map.put(k, v)}) are followed by a call that reads the one written element back, so
+ * their cost does not depend on the container's size. Only writes whose container and
+ * index can be evaluated again without side effects are traced this way.
+ *
+ * Loops become {@code { Tracer.loopEnter(id); try { loop } finally { Tracer.loopExit(id); } }}
+ * with {@code Tracer.loopIteration(id)} first in the body, so the runtime can stop tracing a
+ * loop after its iteration budget and report the rest as one range.
+ *
+ * Instrumentation is one pass, linear in the size of the tree: the enclosing method and
+ * statement list are carried down the traversal rather than looked up through parents, trace
+ * calls for a statement are placed into its list by index once the whole list is visited, and
+ * method bodies move into their try block as a whole.
+ */
+class ASTInstrumenter extends ModifierVisitor<Void> {
+
+    private static final String TRACER = "com.example.btrace.runtime.Tracer";
+    private static final String DEPTH_VARIABLE = "$traceDepth";
+
+    private final TraceSymbols symbols;
+    // Locals declared so far in the innermost method or constructor
+    private Set<String> tracedVariables = new HashSet<>();
+    // Innermost enclosing method; null inside lambdas, whose returns belong to the lambda
+    private final Deque<MethodContext> methods = new ArrayDeque<>();
+    // Labeled loops whose enter/exit calls go around the label, so continue/break label still work
+    private final Map<Statement, Integer> labeledLoops = new IdentityHashMap<>();
+    // Element of the list being visited, and the trace calls to place after it in that list
+    private Node listElement;
+    private NodeList<Statement> following;
+
+    ASTInstrumenter() {
+        this(new TraceSymbols());
+    }
+
+    /**
+     * Instruments with ids appended to an existing table, to re-instrument one method of a
+     * program whose other methods keep their ids
+     */
+    ASTInstrumenter(TraceSymbols symbols) {
+        this.symbols = symbols;
+    }
+
+    TraceSymbols getSymbols() {
+        return symbols;
+    }
+
+    @Override
+    public Visitable visit(MethodDeclaration method, Void arg) {
+        if (!method.getBody().isPresent()) {
+            return super.visit(method, arg);
+        }
+        int id = symbols.define(TraceSymbols.METHOD, method.getNameAsString(), lineOf(method));
+        methods.push(new MethodContext(id, method.getType()));
+        Set<String> outerVariables = tracedVariables;
+        tracedVariables = new HashSet<>();
+        Visitable result = super.visit(method, arg);
+        tracedVariables = outerVariables;
+        methods.pop();
+
+        BlockStmt body = method.getBody().get();
+        method.setBody(new BlockStmt()); // Detach before the body moves into the try block
+        method.setBody(traceCall(id, method, body));
+        return result;
+    }
+
+    @Override
+    public Visitable visit(ConstructorDeclaration constructor, Void arg) {
+        int id = symbols.define(TraceSymbols.METHOD, constructor.getNameAsString(), lineOf(constructor));
+        methods.push(new MethodContext(id, null));
+        Set<String> outerVariables = tracedVariables;
+        tracedVariables = new HashSet<>();
+        Visitable result = super.visit(constructor, arg);
+        tracedVariables = outerVariables;
+        methods.pop();
+
+        // this(...) / super(...) must stay the first statement
+        BlockStmt body = constructor.getBody();
+        Statement explicit = null;
+        if (body.getStatements().isNonEmpty() && body.getStatement(0) instanceof ExplicitConstructorInvocationStmt) {
+            explicit = body.getStatements().remove(0);
+        }
+        constructor.setBody(new BlockStmt());
+        BlockStmt traced = traceCall(id, constructor, body);
+        if (explicit != null) {
+            traced.getStatements().addFirst(explicit);
+        }
+        constructor.setBody(traced);
+        return result;
+    }
+
+    @Override
+    public Visitable visit(LambdaExpr lambda, Void arg) {
+        methods.push(MethodContext.NONE);
+        Visitable result = super.visit(lambda, arg);
+        methods.pop();
+        return result;
+    }
+
+    @Override
+    public Visitable visit(ReturnStmt stmt, Void arg) {
+        super.visit(stmt, arg);
+        MethodContext method = methods.peek();
+        if (method != null && method != MethodContext.NONE && stmt.getExpression().isPresent()) {
+            Expression value = stmt.getExpression().get();
+            if (method.returnType != null && method.returnType.isPrimitiveType()) {
+                // Pin the overload to the declared type, e.g. a constant returned from a byte method
+                value = new CastExpr(method.returnType.clone(), new EnclosedExpr(value));
+            }
+            stmt.setExpression(new MethodCallExpr(new NameExpr(TRACER), "ret",
+                NodeList.nodeList(value, new IntegerLiteralExpr(String.valueOf(method.id)))));
+        }
+        return stmt;
+    }
+
+    @Override
+    public Visitable visit(ForStmt loop, Void arg) {
+        super.visit(loop, arg);
+        return traceLoop(loop, "for");
+    }
+
+    @Override
+    public Visitable visit(ForEachStmt loop, Void arg) {
+        super.visit(loop, arg);
+        return traceLoop(loop, "for");
+    }
+
+    @Override
+    public Visitable visit(WhileStmt loop, Void arg) {
+        super.visit(loop, arg);
+        return traceLoop(loop, "while");
+    }
+
+    @Override
+    public Visitable visit(DoStmt loop, Void arg) {
+        super.visit(loop, arg);
+        return traceLoop(loop, "do");
+    }
+
+    @Override
+    public Visitable visit(LabeledStmt labeled, Void arg) {
+        super.visit(labeled, arg);
+        Integer loop = labeledLoops.remove(labeled.getStatement());
+        return loop != null ? enclose(labeled, loop) : labeled;
+    }
+
+    @Override
+    public Visitable visit(VariableDeclarationExpr varDecl, Void arg) {
+        // Track declared variables
+        for (VariableDeclarator var : varDecl.getVariables()) {
+            tracedVariables.add(var.getNameAsString());
+        }
+        return super.visit(varDecl, arg);
+    }
+
+    /**
+     * Visits every element of a list, then applies the changes in one go: replacements by index
+     * and the trace calls collected for each statement right after it, working back from the
+     * end so the indices of the elements before stay valid. The default implementation finds
+     * every element again by a scan of the list, which is quadratic in long method bodies.
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Visitable visit(NodeList list, Void arg) {
+        if (list.isEmpty()) {
+            return list;
+        }
+        Node[] elements = (Node[]) list.toArray(new Node[0]);
+        Node[] results = new Node[elements.length];
+        NodeList<Statement>[] traces = new NodeList[elements.length];
+        Node outerElement = listElement;
+        NodeList<Statement> outerFollowing = following;
+        for (int i = 0; i < elements.length; i++) {
+            listElement = elements[i];
+            following = null;
+            results[i] = (Node) elements[i].accept(this, arg);
+            traces[i] = following;
+        }
+        listElement = outerElement;
+        following = outerFollowing;
+
+        for (int i = elements.length - 1; i >= 0; i--) {
+            if (traces[i] != null) {
+                list.addAll(i + 1, traces[i]);
+            }
+            if (results[i] == null) {
+                list.remove(i);
+            } else if (results[i] != elements[i]) {
+                list.set(i, results[i]);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public Visitable visit(ExpressionStmt stmt, Void arg) {
+        boolean listed = listElement == stmt;
+        Expression expr = stmt.getExpression();
+        int line = lineOf(stmt);
+        NodeList<Statement> traces = new NodeList<>();
+
+        // Handle variable assignments
+        if (expr instanceof VariableDeclarationExpr) {
+            VariableDeclarationExpr varDecl = (VariableDeclarationExpr) expr;
+            for (VariableDeclarator var : varDecl.getVariables()) {
+                if (var.getInitializer().isPresent()) {
+                    // Add trace call after variable declaration
+                    traces.add(traceVariable(var.getNameAsString(), line));
+                }
+            }
+        } else if (expr instanceof AssignExpr) {
+            AssignExpr assignment = (AssignExpr) expr;
+            if (assignment.getTarget() instanceof NameExpr) {
+                String varName = ((NameExpr) assignment.getTarget()).getNameAsString();
+                if (tracedVariables.contains(varName)) {
+                    // Add trace call after assignment
+                    traces.add(traceVariable(varName, line));
+                }
+            } else if (assignment.getTarget() instanceof ArrayAccessExpr && !hasSideEffects(assignment.getValue())) {
+                traceElement((ArrayAccessExpr) assignment.getTarget(), line, traces);
+            }
+        } else if (expr instanceof UnaryExpr && ((UnaryExpr) expr).getExpression() instanceof ArrayAccessExpr) {
+            // a[i]++, --a[i], ...
+            traceElement((ArrayAccessExpr) ((UnaryExpr) expr).getExpression(), line, traces);
+        } else if (expr instanceof MethodCallExpr) {
+            traceCollectionWrite((MethodCallExpr) expr, line, traces);
+        }
+
+        super.visit(stmt, arg);
+        return insertAfter(stmt, listed, traces);
+    }
+
+    /**
+     * {@code Tracer.element(array, index, site)} after a store into {@code array[index]}
+     */
+    private void traceElement(ArrayAccessExpr target, int line, NodeList<Statement> traces) {
+        if (isPure(target.getName()) && isPure(target.getIndex())) {
+            int site = symbols.define(TraceSymbols.ELEMENT, target.getName().toString(), line);
+            traces.add(tracerCall("element", target.getName().clone(), target.getIndex().clone(), literal(site)));
+        }
+    }
+
+    /**
+     * Element-level traces for the common list and map writes; anything else (inserting in the
+     * middle, remove, clear, ...) shows up when the collection is next referenced, since its
+     * contents are sent again once its size no longer matches the traced one
+     */
+    private void traceCollectionWrite(MethodCallExpr call, int line, NodeList<Statement> traces) {
+        Expression scope = call.getScope().orElse(null);
+        if (scope == null || !isPure(scope)) {
+            return;
+        }
+        NodeList<Expression> args = call.getArguments();
+        String method = call.getNameAsString();
+        Statement trace = null;
+        if (method.equals("add") && args.size() == 1) {
+            trace = tracerCall("appended", scope.clone(), literal(elementSite(scope, line)));
+        } else if (method.equals("set") && args.size() == 2 && isPure(args.get(0))) {
+            trace = tracerCall("element", scope.clone(), args.get(0).clone(), literal(elementSite(scope, line)));
+        } else if ((method.equals("put") || method.equals("putIfAbsent") || method.equals("merge"))
+                && args.size() >= 2 && isPure(args.get(0))) {
+            trace = tracerCall("put", scope.clone(), args.get(0).clone(), literal(elementSite(scope, line)));
+        }
+        if (trace != null) {
+            traces.add(trace);
+        }
+    }
+
+    private int elementSite(Expression container, int line) {
+        return symbols.define(TraceSymbols.ELEMENT, container.toString(), line);
+    }
+
+    /**
+     * Whether evaluating the expression again yields the same value and changes nothing:
+     * names, literals, field and array reads and arithmetic over them
+     */
+    private static boolean isPure(Expression expr) {
+        if (expr instanceof NameExpr || expr instanceof LiteralExpr || expr instanceof ThisExpr) {
+            return true;
+        }
+        if (expr instanceof FieldAccessExpr) {
+            return isPure(((FieldAccessExpr) expr).getScope());
+        }
+        if (expr instanceof ArrayAccessExpr) {
+            ArrayAccessExpr access = (ArrayAccessExpr) expr;
+            return isPure(access.getName()) && isPure(access.getIndex());
+        }
+        if (expr instanceof EnclosedExpr) {
+            return isPure(((EnclosedExpr) expr).getInner());
+        }
+        if (expr instanceof CastExpr) {
+            return isPure(((CastExpr) expr).getExpression());
+        }
+        if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            return isPure(binary.getLeft()) && isPure(binary.getRight());
+        }
+        if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            return isIncrementFree(unary) && isPure(unary.getExpression());
+        }
+        return false;
+    }
+
+    private static boolean isIncrementFree(UnaryExpr unary) {
+        switch (unary.getOperator()) {
+            case PREFIX_INCREMENT:
+            case PREFIX_DECREMENT:
+            case POSTFIX_INCREMENT:
+            case POSTFIX_DECREMENT:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Whether the expression assigns or increments anything, which could move the index of
+     * the element being written before it is read back
+     */
+    private static boolean hasSideEffects(Expression expr) {
+        if (expr instanceof AssignExpr || (expr instanceof UnaryExpr && !isIncrementFree((UnaryExpr) expr))) {
+            return true;
+        }
+        for (Node child : expr.getChildNodes()) {
+            if (child instanceof Expression && hasSideEffects((Expression) child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts the loop's iterations and brackets the loop with enter/exit calls
+     * @return the node that replaces the loop in its parent
+     */
+    private <T extends Statement & NodeWithBody<?>> Statement traceLoop(T loop, String keyword) {
+        int id = symbols.define(TraceSymbols.LOOP, keyword, lineOf(loop));
+        Statement body = loop.getBody();
+        loop.setBody(new BlockStmt()); // Detach before the body moves
+        BlockStmt counted = body instanceof BlockStmt ? (BlockStmt) body : new BlockStmt(NodeList.nodeList(body));
+        counted.getStatements().addFirst(tracerCall("loopIteration", literal(id)));
+        loop.setBody(counted);
+        if (loop.getParentNode().orElse(null) instanceof LabeledStmt) {
+            labeledLoops.put(loop, id);
+            return loop;
+        }
+        return enclose(loop, id);
+    }
+
+    /**
+     * {@code { Tracer.loopEnter(id); try { loop } finally { Tracer.loopExit(id); } }}; the exit
+     * runs however the loop is left (break, return, exception, labeled jump)
+     */
+    private static BlockStmt enclose(Statement loop, int id) {
+        BlockStmt wrapper = takePlaceOf(loop);
+        BlockStmt exit = new BlockStmt(NodeList.nodeList(tracerCall("loopExit", literal(id))));
+        TryStmt guarded = new TryStmt(new BlockStmt(NodeList.nodeList(loop)), new NodeList<>(), exit);
+        wrapper.setStatements(NodeList.nodeList(tracerCall("loopEnter", literal(id)), guarded));
+        return wrapper;
+    }
+
+    /**
+     * An empty block put where the statement is, so the statement itself can move into it. The
+     * parent then already holds the block the visitor returns, and does not detach the statement
+     * again when it sets it; copying it instead would copy every nested loop once per level.
+     */
+    private static BlockStmt takePlaceOf(Statement stmt) {
+        BlockStmt block = new BlockStmt();
+        stmt.replace(block);
+        return block;
+    }
+
+    /**
+     * Wraps a method body: enter and arguments first, then the body in try/finally so
+     * void returns and exceptions also leave the frame
+     * @param body the detached body, which becomes the try block
+     */
+    private BlockStmt traceCall(int id, CallableDeclaration<?> callable, BlockStmt body) {
+        NodeList<Statement> statements = new NodeList<>();
+        VariableDeclarationExpr depth = new VariableDeclarationExpr(PrimitiveType.intType(), DEPTH_VARIABLE);
+        depth.getVariable(0).setInitializer(tracerCall("enter", literal(id)).getExpression());
+        statements.add(new ExpressionStmt(depth));
+        for (Parameter parameter : callable.getParameters()) {
+            String name = parameter.getNameAsString();
+            int argument = symbols.define(TraceSymbols.ARGUMENT, name, lineOf(parameter));
+            statements.add(tracerCall("arg", literal(argument), new NameExpr(name)));
+        }
+        BlockStmt unwind = new BlockStmt(NodeList.nodeList(
+            tracerCall("unwind", literal(id), new NameExpr(DEPTH_VARIABLE))));
+        statements.add(new TryStmt(body, new NodeList<>(), unwind));
+        return new BlockStmt(statements);
+    }
+
+    private static IntegerLiteralExpr literal(int value) {
+        return new IntegerLiteralExpr(String.valueOf(value));
+    }
+
+    private ExpressionStmt traceVariable(String varName, int line) {
+        int id = symbols.define(TraceSymbols.VARIABLE, varName, line);
+        return tracerCall("var", literal(id), new NameExpr(varName));
+    }
+
+    private static ExpressionStmt tracerCall(String method, Expression... args) {
+        MethodCallExpr call = new MethodCallExpr(new NameExpr(TRACER), method);
+        for (Expression argument : args) {
+            call.addArgument(argument);
+        }
+        return new ExpressionStmt(call);
+    }
+
+    /**
+     * Places trace calls right after a statement. In a block or switch case they are handed to
+     * the enclosing list, which inserts them once it is visited; a statement that is the body of
+     * an if/loop is replaced by a new block holding it and the traces.
+     *
+     * @param listed whether the statement is an element of the list being visited
+     * @return the node that replaces {@code stmt} in its parent
+     */
+    private Statement insertAfter(Statement stmt, boolean listed, NodeList<Statement> traces) {
+        if (traces.isEmpty()) {
+            return stmt;
+        }
+        if (listed) {
+            following = traces;
+            return stmt;
+        }
+        BlockStmt block = takePlaceOf(stmt);
+        NodeList<Statement> statements = NodeList.nodeList(stmt);
+        statements.addAll(traces);
+        block.setStatements(statements);
+        return block;
+    }
+
+    private static int lineOf(Node node) {
+        return node.getBegin().map(p -> p.line).orElse(0);
+    }
+
+    /**
+     * Symbol id and declared return type of the method being visited (null type for constructors)
+     */
+    private static class MethodContext {
+        static final MethodContext NONE = new MethodContext(-1, null);
+
+        final int id;
+        final Type returnType;
+
+        MethodContext(int id, Type returnType) {
+            this.id = id;
+            this.returnType = returnType;
+        }
+    }
+}
@@ -2,341 +2,439 @@ package com.example.btrace.ast;
 
 import com.github.javaparser.JavaParser;
 import com.github.javaparser.ast.CompilationUnit;
-import com.github.javaparser.ast.Node;
-import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
-import com.github.javaparser.ast.body.MethodDeclaration;
-import com.github.javaparser.ast.body.VariableDeclarator;
-import com.github.javaparser.ast.expr.*;
-import com.github.javaparser.ast.stmt.*;
-import com.github.javaparser.ast.visitor.ModifierVisitor;
-import com.github.javaparser.ast.visitor.Visitable;
-import com.google.gson.Gson;
+import com.example.btrace.bytecode.BytecodeInstrumentor;
+import com.example.btrace.bytecode.BytecodeInstrumentor.InstrumentedClasses;
+import com.example.btrace.cache.ArtifactCache;
+import com.example.btrace.cache.CompiledArtifact;
+import com.example.btrace.compiler.InMemoryCompiler;
+import com.example.btrace.compiler.InMemoryCompiler.CompilationError;
+import com.example.btrace.compiler.InMemoryCompiler.CompilationResult;
+import com.example.btrace.executor.WorkerPool;
+import com.example.btrace.executor.WorkerPool.ExecutionResult;
+import com.example.btrace.metrics.StageTimings;
+import com.example.btrace.metrics.TraceMetrics;
+import com.example.btrace.metrics.TraceMetrics.Stage;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceSymbols;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * AST-based Java Code Tracer using JavaParser
  * Provides clean variable tracing without regex complications
+ *
+ * Thread-safe: all trace state is local to a single {@link #executeAndTrace} call, except the
+ * programs of edit-and-rerun sessions, which build one run of a session at a time.
  */
 public class ASTTracer {
     
-    private final JavaParser parser = new JavaParser();
-    private final Gson gson = new Gson();
-    private final List<Map<String, Object>> traceEvents = new ArrayList<>();
+    private static final Logger log = LoggerFactory.getLogger(ASTTracer.class);
     
-    public TraceResult executeAndTrace(String className, String methodName, String sourceCode) {
-        try {
-            // Clear previous traces
-            traceEvents.clear();
-            
-            // Parse the source code into AST
-            CompilationUnit cu = parser.parse(sourceCode).getResult().orElse(null);
-            if (cu == null) {
-                return TraceResult.error("Failed to parse source code");
+    /** Bump whenever instrumentation output changes so cached artifacts are not reused */
+    private static final String INSTRUMENTATION_VERSION = "ast-6";
+    
+    private final InMemoryCompiler compiler = new InMemoryCompiler();
+    private final BytecodeInstrumentor bytecodeInstrumentor = new BytecodeInstrumentor();
+    private final WorkerPool workerPool;
+    private final ArtifactCache artifactCache;
+    private final TraceLimits limits;
+    private final TraceMetrics metrics;
+    private final double logSampleRate;
+    // Edit-and-rerun sessions by id, least recently used first
+    private final Map<String, TraceSession> sessions;
+    // Waits on the worker jobs of parallel batches; the jobs themselves run in the worker JVMs
+    private final ExecutorService batchJobs = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "trace-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    public ASTTracer() {
+        this(WorkerPool.withDefaults(), new ArtifactCache(256, 64L * 1024 * 1024), TraceLimits.defaults(),
+             new TraceMetrics(), 0, 64);
+    }
+    
+    /**
+     * @param metrics receives stage timings and the outcome of every trace
+     * @param logSampleRate fraction of traces (0..1) logged with their stage timings; at DEBUG level
+     *                      a sampled trace also logs its instrumented source
+     * @param maxSessions edit-and-rerun sessions kept; the least recently used one is dropped first
+     */
+    public ASTTracer(WorkerPool workerPool, ArtifactCache artifactCache, TraceLimits limits,
+                     TraceMetrics metrics, double logSampleRate, int maxSessions) {
+        this.workerPool = workerPool;
+        this.artifactCache = artifactCache;
+        this.limits = limits;
+        this.metrics = metrics;
+        this.logSampleRate = logSampleRate;
+        this.sessions = new LinkedHashMap<String, TraceSession>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TraceSession> eldest) {
+                return size() > maxSessions;
             }
-            
-            // Instrument the AST with tracing
-            ASTInstrumenter instrumenter = new ASTInstrumenter();
-            cu.accept(instrumenter, null);
-            
-            // Generate instrumented source code
-            String instrumentedCode = cu.toString();
-            
-            // DEBUG: Print the instrumented code
-            System.out.println("=== INSTRUMENTED CODE DEBUG ===");
-            System.out.println(instrumentedCode);
-            System.out.println("=== END DEBUG ===");
-            
-            // Compile and execute
-            String output = compileAndExecute(className, instrumentedCode);
-            
-            // Parse trace output
-            parseTraceOutput(output);
-            
-            return TraceResult.success(traceEvents, output, instrumentedCode);
-            
-        } catch (Exception e) {
-            return TraceResult.error("Execution failed: " + e.getMessage());
-        }
+        };
     }
     
-    private String compileAndExecute(String className, String sourceCode) throws Exception {
-        Path tempDir = Files.createTempDirectory("java_trace");
-        Path sourceFile = tempDir.resolve(className + ".java");
-        
+    public TraceResult executeAndTrace(String className, String methodName, String sourceCode) {
+        return executeAndTrace(new TraceRun(className, methodName, sourceCode));
+    }
+    
+    public TraceResult executeAndTrace(TraceRun run) {
+        return trace(run, null);
+    }
+    
+    /**
+     * Like {@link #executeAndTrace}, but hands events to the listener batch by batch while the
+     * program runs. The returned result carries the event count and program output, not the events.
+     */
+    public TraceResult streamTrace(TraceRun run, TraceListener listener) {
+        return trace(run, listener);
+    }
+    
+    /**
+     * Traces the run's method once per test input, compiling the code once.
+     * Each input is a Java argument list such as {@code new int[]{3, 2, 2}, 2}. The cases are split
+     * into up to {@code parallelism} groups (at most one per pooled worker JVM); each group runs as
+     * one job, with the cases of a group one after another in the same JVM. Budgets apply per case.
+     */
+    public BatchResult traceBatch(TraceRun run, List<String> inputs, int parallelism) {
+        String className = run.getClassName();
+        String sourceCode = run.getSourceCode();
+        InstrumentationMode mode = run.getMode();
+        TraceLimits requestLimits = limitsOf(run);
+        StageTimings timings = new StageTimings(metrics);
+        String outcome = null;
+        boolean cached = true;
         try {
-            // Write source to file
-            Files.write(sourceFile, sourceCode.getBytes());
-            
-            // Compile with timeout
-            ProcessBuilder compileProcess = new ProcessBuilder(
-                "javac", "-cp", ".", sourceFile.toString()
-            );
-            compileProcess.directory(tempDir.toFile());
-            compileProcess.redirectErrorStream(true);
-            
-            Process compile = compileProcess.start();
-            boolean compileFinished = compile.waitFor(10, java.util.concurrent.TimeUnit.SECONDS);
-            
-            if (!compileFinished) {
-                compile.destroyForcibly();
-                throw new RuntimeException("Compilation timeout after 10 seconds");
+            timings.mark();
+            CompilationUnit cu = new JavaParser().parse(sourceCode).getResult().orElse(null);
+            timings.lap(Stage.PARSE);
+            if (cu == null) {
+                return BatchResult.error("Failed to parse source code");
             }
-            
-            if (compile.exitValue() != 0) {
-                String error = new String(compile.getInputStream().readAllBytes());
-                System.err.println("=== COMPILATION ERROR ===");
-                System.err.println("Source written to: " + sourceFile);
-                System.err.println("Error: " + error);
-                System.err.println("=== END COMPILATION ERROR ===");
-                throw new RuntimeException("Compilation failed: " + error);
+            BatchHarness harness;
+            try {
+                harness = BatchHarness.generate(cu, className, run.getMethodName(), inputs);
+            } catch (IllegalArgumentException e) {
+                return BatchResult.error(e.getMessage());
             }
             
-            // Execute with timeout
-            ProcessBuilder runProcess = new ProcessBuilder(
-                "java", "-cp", ".", className
-            );
-            runProcess.directory(tempDir.toFile());
-            runProcess.redirectErrorStream(true);
-            
-            Process run = runProcess.start();
-            boolean runFinished = run.waitFor(5, java.util.concurrent.TimeUnit.SECONDS);
+            String cacheKey = ArtifactCache.key(className, sourceCode + "\n" + harness.getSource(),
+                                                INSTRUMENTATION_VERSION + "/" + mode + "/batch");
+            CompiledArtifact artifact = artifactCache.get(cacheKey);
+            if (artifact == null) {
+                cached = false;
+                artifact = mode == InstrumentationMode.BYTECODE
+                    ? compileAndWeave(className, sourceCode, harness, timings)
+                    : instrumentAndCompile(className, cu, harness, timings);
+                artifactCache.put(cacheKey, artifact);
+                logSource(className, artifact);
+            }
             
-            if (!runFinished) {
-                run.destroyForcibly();
-                throw new RuntimeException("Execution timeout after 5 seconds");
+            BatchOutputCollector.Case[] cases = new BatchOutputCollector.Case[inputs.size()];
+            for (int i = 0; i < cases.length; i++) {
+                cases[i] = new BatchOutputCollector.Case(inputs.get(i), requestLimits.getMaxMemoryBytes());
+            }
+            int groups = groupCount(parallelism, workerPool.getPoolSize(), cases.length);
+            if (groups == 1) {
+                runCases(artifact, harness, cases, 0, 1, requestLimits);
+            } else {
+                List<Future<?>> jobs = new ArrayList<>();
+                for (int group = 0; group < groups; group++) {
+                    int first = group;
+                    CompiledArtifact compiled = artifact;
+                    jobs.add(batchJobs.submit(() -> {
+                        runCases(compiled, harness, cases, first, groups, requestLimits);
+                        return null;
+                    }));
+                }
+                for (Future<?> job : jobs) {
+                    try {
+                        job.get();
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
             }
             
-            // Get output
-            String output = new String(run.getInputStream().readAllBytes());
-            return output;
+            List<CaseResult> results = new ArrayList<>();
+            for (BatchOutputCollector.Case c : cases) {
+                CaseResult result = CaseResult.of(c);
+                metrics.recordTrace(!result.isSuccess() ? "not_run" : result.isTruncated() ? "truncated" : "success",
+                                    result.getTrace().size(), c.getOutputBytes());
+                results.add(result);
+            }
+            outcome = "batch";
+            return BatchResult.success(results, artifact.getInstrumentedCode());
             
+        } catch (CompilationException e) {
+            outcome = "compile_error";
+            return BatchResult.compilationFailed(e.getErrors());
+        } catch (Exception e) {
+            log.warn("Batch trace of {} failed: {}", className, e.toString());
+            return BatchResult.error("Execution failed: " + e.getMessage());
         } finally {
-            // Cleanup
-            try {
-                Files.deleteIfExists(tempDir.resolve(className + ".class"));
-                Files.deleteIfExists(sourceFile);
-                Files.deleteIfExists(tempDir);
-            } catch (Exception e) {
-                // Ignore cleanup errors
+            if ("batch".equals(outcome)) {
+                // Cases were counted one by one; only stage timings remain
+                timings.finish();
+                if (log.isInfoEnabled() && sampled()) {
+                    log.info("trace class={} mode={} cached={} batch={} {}", className, mode, cached,
+                             inputs.size(), timings);
+                }
+            } else {
+                finish(timings, outcome, -1, -1,
+                       "class=" + className + " mode=" + mode + " cached=" + cached + " batch=" + inputs.size());
             }
         }
     }
     
-    private void parseTraceOutput(String output) {
-        String[] lines = output.split("\n");
-        for (String line : lines) {
-            if (line.startsWith("TRACE:")) {
-                try {
-                    String jsonStr = line.substring(6); // Remove "TRACE:" prefix
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> event = gson.fromJson(jsonStr, Map.class);
-                    if (event != null) {
-                        traceEvents.add(event);
-                    }
-                } catch (Exception e) {
-                    // Create error event for malformed traces
-                    Map<String, Object> errorEvent = new HashMap<>();
-                    errorEvent.put("event_type", "parse_error");
-                    errorEvent.put("message", "Failed to parse trace: " + e.getMessage());
-                    errorEvent.put("raw_line", line);
-                    traceEvents.add(errorEvent);
-                }
+    /**
+     * Runs every {@code stride}-th case from {@code first} as one worker job. A case interrupted by
+     * the end of the job keeps what it traced so far; the cases after it are marked as not run.
+     */
+    private void runCases(CompiledArtifact artifact, BatchHarness harness, BatchOutputCollector.Case[] cases,
+                          int first, int stride, TraceLimits limits) throws Exception {
+        List<String> indexes = caseIndexes(first, stride, cases.length);
+        BatchOutputCollector collector = new BatchOutputCollector(
+            artifact.getSymbols(), limits.getMaxOutputBytes(), limits.getMaxEvents(), cases, indexes.size());
+        // Jobs of one batch run on separate threads, so each records its own stages
+        StageTimings timings = new StageTimings(metrics);
+        ExecutionResult execution = run(harness.getClassName(), indexes.toArray(new String[0]), artifact, limits,
+                                        collector, timings);
+        timings.add(Stage.DECODE, collector.getDecodeNanos());
+        timings.finish();
+        if (execution.isCompleted() && execution.getMessage() == null) {
+            return;
+        }
+        String reason = collector.getTruncation() != null ? collector.getTruncation() : execution.getMessage();
+        BatchOutputCollector.Case interrupted = collector.getCurrent();
+        if (interrupted != null) {
+            interrupted.truncation = reason;
+        }
+        for (int i = first; i < cases.length; i += stride) {
+            if (!cases[i].started) {
+                cases[i].truncation = "Not run: " + reason;
             }
         }
     }
     
     /**
-     * AST Visitor that instruments code with tracing calls
+     * Number of jobs a batch of {@code cases} is split into: up to {@code parallelism}, but no more
+     * than there are pooled workers or cases
      */
-    private static class ASTInstrumenter extends ModifierVisitor<Void> {
-        
-        private boolean instrumentationAdded = false;
-        private Set<String> tracedVariables = new HashSet<>();
-        
-        @Override
-        public Visitable visit(ClassOrInterfaceDeclaration cls, Void arg) {
-            if (!instrumentationAdded) {
-                addTracingInfrastructure(cls);
-                instrumentationAdded = true;
-            }
-            return super.visit(cls, arg);
-        }
-        
-        @Override
-        public Visitable visit(MethodDeclaration method, Void arg) {
-            if ("main".equals(method.getNameAsString())) {
-                // Add method entry trace at the beginning
-                BlockStmt body = method.getBody().orElse(new BlockStmt());
-                
-                // Create method entry trace
-                ExpressionStmt entryTrace = new ExpressionStmt(
-                    new MethodCallExpr("__traceMethodEntry")
-                        .addArgument(new StringLiteralExpr("main"))
-                );
-                
-                body.getStatements().add(0, entryTrace);
-                method.setBody(body);
-            }
-            
-            return super.visit(method, arg);
+    static int groupCount(int parallelism, int poolSize, int cases) {
+        return Math.max(1, Math.min(Math.min(parallelism, poolSize), cases));
+    }
+
+    /**
+     * Indexes of every {@code stride}-th case from {@code first}, the harness arguments of one job
+     */
+    static List<String> caseIndexes(int first, int stride, int cases) {
+        List<String> indexes = new ArrayList<>();
+        for (int i = first; i < cases; i += stride) {
+            indexes.add(String.valueOf(i));
         }
-        
-        @Override
-        public Visitable visit(VariableDeclarationExpr varDecl, Void arg) {
-            // Track declared variables - but NOT in our tracing methods
-            Node parent = varDecl.getParentNode().orElse(null);
-            while (parent != null) {
-                if (parent instanceof MethodDeclaration) {
-                    MethodDeclaration method = (MethodDeclaration) parent;
-                    String methodName = method.getNameAsString();
-                    // Skip instrumenting variables in our own tracing methods
-                    if (methodName.startsWith("__trace") || methodName.equals("varsToJson")) {
-                        return super.visit(varDecl, arg);
+        return indexes;
+    }
+
+    /** The server-wide ceilings; requests may only lower them */
+    public TraceLimits getLimits() {
+        return limits;
+    }
+    
+    private TraceLimits limitsOf(TraceRun run) {
+        return run.getLimits() != null ? run.getLimits() : limits;
+    }
+    
+    private TraceResult trace(TraceRun run, TraceListener listener) {
+        String className = run.getClassName();
+        String sourceCode = run.getSourceCode();
+        InstrumentationMode mode = run.getMode();
+        TraceLimits limits = limitsOf(run);
+        String sessionId = run.getSessionId();
+        StageTimings timings = new StageTimings(metrics);
+        String outcome = null;
+        int events = -1;
+        long bytes = -1;
+        boolean cached = true;
+        boolean session = sessionId != null && mode == InstrumentationMode.SOURCE;
+        try {
+            CompiledArtifact artifact;
+            if (session) {
+                // Sessions keep their own program, rebuilt only where the source changed
+                cached = false;
+                artifact = session(sessionId).build(className, sourceCode, timings);
+                if (artifact == null) {
+                    return TraceResult.error("Failed to parse source code");
+                }
+                logSource(className, artifact);
+            } else {
+                // Identical requests skip parsing, instrumentation and compilation
+                String cacheKey = ArtifactCache.key(className, sourceCode, INSTRUMENTATION_VERSION + "/" + mode);
+                artifact = artifactCache.get(cacheKey);
+                if (artifact == null) {
+                    cached = false;
+                    if (mode == InstrumentationMode.BYTECODE) {
+                        artifact = compileAndWeave(className, sourceCode, null, timings);
+                    } else {
+                        // Parse the source code into AST
+                        timings.mark();
+                        CompilationUnit cu = new JavaParser().parse(sourceCode).getResult().orElse(null);
+                        timings.lap(Stage.PARSE);
+                        if (cu == null) {
+                            return TraceResult.error("Failed to parse source code");
+                        }
+                        
+                        artifact = instrumentAndCompile(className, cu, null, timings);
                     }
-                    break;
+                    artifactCache.put(cacheKey, artifact);
+                    logSource(className, artifact);
                 }
-                parent = parent.getParentNode().orElse(null);
             }
-            
-            for (VariableDeclarator var : varDecl.getVariables()) {
-                String varName = var.getNameAsString();
-                tracedVariables.add(varName);
+            if (listener != null && !listener.onStarted(artifact.getInstrumentedCode())) {
+                return TraceResult.error("Trace stream closed by client");
             }
-            return super.visit(varDecl, arg);
-        }
-        
-        @Override
-        public Visitable visit(ExpressionStmt stmt, Void arg) {
-            Expression expr = stmt.getExpression();
             
-            // Check if we're inside a tracing method - if so, skip instrumentation
-            Node parent = stmt.getParentNode().orElse(null);
-            while (parent != null) {
-                if (parent instanceof MethodDeclaration) {
-                    MethodDeclaration method = (MethodDeclaration) parent;
-                    String methodName = method.getNameAsString();
-                    // Skip instrumenting inside our own tracing methods
-                    if (methodName.startsWith("__trace") || methodName.equals("varsToJson")) {
-                        return super.visit(stmt, arg);
-                    }
-                    break;
+            // Execute on a pre-started worker JVM, decoding trace records as they stream in
+            TraceOutputCollector collector = new TraceOutputCollector(artifact.getSymbols(), limits.getMaxOutputBytes(),
+                limits.getMaxEvents(), limits.getMaxMemoryBytes(), listener);
+            ExecutionResult execution = run(className, new String[0], artifact, limits, collector, timings);
+            timings.add(Stage.DECODE, collector.getDecodeNanos());
+            events = collector.getEventCount();
+            bytes = collector.getBytesReceived();
+            String truncation = collector.getTruncation();
+            if (execution.isTimedOut()) {
+                outcome = "timeout";
+                if (collector.getEventCount() == 0) {
+                    throw new RuntimeException(execution.getMessage());
                 }
-                parent = parent.getParentNode().orElse(null);
+                // Typically a loop running past its iteration budget: keep what was traced
+                truncation = execution.getMessage();
+            } else {
+                outcome = truncation != null ? "truncated" : "success";
             }
             
-            // Handle variable assignments
-            if (expr instanceof VariableDeclarationExpr) {
-                VariableDeclarationExpr varDecl = (VariableDeclarationExpr) expr;
-                for (VariableDeclarator var : varDecl.getVariables()) {
-                    String varName = var.getNameAsString();
-                    if (var.getInitializer().isPresent()) {
-                        // Add trace call after variable declaration
-                        BlockStmt parentBlock = findParentBlock(stmt);
-                        if (parentBlock != null) {
-                            int index = parentBlock.getStatements().indexOf(stmt);
-                            ExpressionStmt traceCall = new ExpressionStmt(
-                                new MethodCallExpr("__traceVariable")
-                                    .addArgument(new StringLiteralExpr(varName))
-                                    .addArgument(new NameExpr(varName))
-                            );
-                            parentBlock.getStatements().add(index + 1, traceCall);
-                        }
-                    }
-                }
-            } else if (expr instanceof AssignExpr) {
-                AssignExpr assignment = (AssignExpr) expr;
-                if (assignment.getTarget() instanceof NameExpr) {
-                    String varName = ((NameExpr) assignment.getTarget()).getNameAsString();
-                    if (tracedVariables.contains(varName)) {
-                        // Add trace call after assignment
-                        BlockStmt parentBlock = findParentBlock(stmt);
-                        if (parentBlock != null) {
-                            int index = parentBlock.getStatements().indexOf(stmt);
-                            ExpressionStmt traceCall = new ExpressionStmt(
-                                new MethodCallExpr("__traceVariable")
-                                    .addArgument(new StringLiteralExpr(varName))
-                                    .addArgument(new NameExpr(varName))
-                            );
-                            parentBlock.getStatements().add(index + 1, traceCall);
-                        }
-                    }
-                }
-            }
+            return TraceResult.success(collector.getEvents(), collector.getEventCount(), collector.getProgramOutput(), 
+                                       artifact.getInstrumentedCode(), truncation, collector.getBudget());
             
-            return super.visit(stmt, arg);
+        } catch (CompilationException e) {
+            outcome = "compile_error";
+            return TraceResult.compilationFailed(e.getErrors());
+        } catch (Exception e) {
+            log.warn("Trace of {} failed: {}", className, e.toString());
+            return TraceResult.error("Execution failed: " + e.getMessage());
+        } finally {
+            finish(timings, outcome, events, bytes, "class=" + className + " mode=" + mode + " cached=" + cached
+                   + (session ? " session=true" : ""));
         }
-        
-        private BlockStmt findParentBlock(Node node) {
-            Node parent = node.getParentNode().orElse(null);
-            while (parent != null) {
-                if (parent instanceof BlockStmt) {
-                    return (BlockStmt) parent;
-                }
-                parent = parent.getParentNode().orElse(null);
-            }
-            return null;
+    }
+    
+    private TraceSession session(String sessionId) {
+        synchronized (sessions) {
+            return sessions.computeIfAbsent(sessionId, id -> new TraceSession(compiler));
+        }
+    }
+    
+    /**
+     * Runs a job on the worker pool, timing the wait for a worker and the run itself
+     */
+    private ExecutionResult run(String mainClass, String[] args, CompiledArtifact artifact, TraceLimits limits,
+                                WorkerPool.OutputConsumer consumer, StageTimings timings) throws Exception {
+        long started = System.nanoTime();
+        ExecutionResult execution = workerPool.execute(
+            new WorkerPool.Job(mainClass, artifact.getClasses()).withArgs(args).withOptions(limits.toOptions()),
+            consumer);
+        timings.add(Stage.WORKER, execution.getWaitNanos());
+        timings.add(Stage.EXECUTE, System.nanoTime() - started - execution.getWaitNanos());
+        return execution;
+    }
+    
+    /**
+     * Records the trace's stages and outcome; a sample of traces is also logged as one line of
+     * key=value pairs
+     */
+    private void finish(StageTimings timings, String outcome, int events, long bytes, String context) {
+        String result = outcome != null ? outcome : "error";
+        timings.finish();
+        metrics.recordTrace(result, events, bytes);
+        if (log.isInfoEnabled() && sampled()) {
+            log.info("trace {} outcome={} events={} bytes={} {}", context, result, events, bytes, timings);
         }
+    }
+    
+    private void logSource(String className, CompiledArtifact artifact) {
+        if (log.isDebugEnabled() && sampled()) {
+            log.debug("Instrumented source of {}:\n{}", className, artifact.getInstrumentedCode());
+        }
+    }
+    
+    private boolean sampled() {
+        return logSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < logSampleRate;
+    }
+    
+    /**
+     * @param harness compiled along with the instrumented code but not instrumented itself, or null
+     */
+    private CompiledArtifact instrumentAndCompile(String className, CompilationUnit cu, BatchHarness harness,
+                                                  StageTimings timings) throws CompilationException {
+        // Instrument the AST with tracing
+        timings.mark();
+        ASTInstrumenter instrumenter = new ASTInstrumenter();
+        cu.accept(instrumenter, null);
+        timings.lap(Stage.INSTRUMENT);
         
-        private void addTracingInfrastructure(ClassOrInterfaceDeclaration cls) {
-            // Add step counter field
-            cls.addFieldWithInitializer(int.class, "__stepCounter", new IntegerLiteralExpr("1"))
-               .setPrivate(true).setStatic(true);
-            
-            // Add simple trace method using string concatenation instead of complex parsing
-            try {
-                // Simple trace method
-                MethodDeclaration traceMethod = cls.addMethod("__trace", com.github.javaparser.ast.Modifier.Keyword.PRIVATE, com.github.javaparser.ast.Modifier.Keyword.STATIC);
-                traceMethod.addParameter("String", "eventType");
-                traceMethod.addParameter("String", "action");
-                traceMethod.addParameter("java.util.Map<String, Object>", "vars");
-                traceMethod.setType("void");
-                
-                BlockStmt traceBody = new BlockStmt();
-                traceBody.addStatement("System.out.println(\"TRACE:{\\\"step\\\":\" + (__stepCounter++) + \",\\\"event_type\\\":\\\"\" + eventType + \"\\\",\\\"action\\\":\\\"\" + action + \"\\\",\\\"vars\\\":{\" + varsToJson(vars) + \"},\\\"timestamp\\\":\" + System.currentTimeMillis() + \"}\");");
-                traceMethod.setBody(traceBody);
-                
-                // varsToJson method
-                MethodDeclaration varsToJsonMethod = cls.addMethod("varsToJson", com.github.javaparser.ast.Modifier.Keyword.PRIVATE, com.github.javaparser.ast.Modifier.Keyword.STATIC);
-                varsToJsonMethod.addParameter("java.util.Map<String, Object>", "vars");
-                varsToJsonMethod.setType("String");
-                
-                BlockStmt varsBody = new BlockStmt();
-                varsBody.addStatement("StringBuilder sb = new StringBuilder();");
-                varsBody.addStatement("boolean first = true;");
-                varsBody.addStatement("for (java.util.Map.Entry<String, Object> entry : vars.entrySet()) { if (!first) sb.append(\",\"); sb.append(\"\\\"\").append(entry.getKey()).append(\"\\\":\\\"\").append(entry.getValue()).append(\"\\\"\"); first = false; }");
-                varsBody.addStatement("return sb.toString();");
-                varsToJsonMethod.setBody(varsBody);
-                
-                // traceVariable method - simplified to avoid recursion
-                MethodDeclaration traceVarMethod = cls.addMethod("__traceVariable", com.github.javaparser.ast.Modifier.Keyword.PRIVATE, com.github.javaparser.ast.Modifier.Keyword.STATIC);
-                traceVarMethod.addParameter("String", "varName");
-                traceVarMethod.addParameter("Object", "value");
-                traceVarMethod.setType("void");
-                
-                BlockStmt varBody = new BlockStmt();
-                varBody.addStatement("System.out.println(\"TRACE:{\\\"step\\\":\" + (__stepCounter++) + \",\\\"event_type\\\":\\\"variable_update\\\",\\\"action\\\":\\\"Variable \" + varName + \" = \" + value + \"\\\",\\\"vars\\\":{\\\"\" + varName + \"\\\":\\\"\" + value + \"\\\"},\\\"timestamp\\\":\" + System.currentTimeMillis() + \"}\");");
-                traceVarMethod.setBody(varBody);
-                
-                // traceMethodEntry method - simplified to avoid recursion
-                MethodDeclaration traceEntryMethod = cls.addMethod("__traceMethodEntry", com.github.javaparser.ast.Modifier.Keyword.PRIVATE, com.github.javaparser.ast.Modifier.Keyword.STATIC);
-                traceEntryMethod.addParameter("String", "methodName");
-                traceEntryMethod.setType("void");
-                
-                BlockStmt entryBody = new BlockStmt();
-                entryBody.addStatement("System.out.println(\"TRACE:{\\\"step\\\":\" + (__stepCounter++) + \",\\\"event_type\\\":\\\"method_entry\\\",\\\"action\\\":\\\"Entering method \" + methodName + \"\\\",\\\"vars\\\":{\\\"method\\\":\\\"\" + methodName + \"\\\"},\\\"timestamp\\\":\" + System.currentTimeMillis() + \"}\");");
-                traceEntryMethod.setBody(entryBody);
-                
-            } catch (Exception e) {
-                System.err.println("Failed to add tracing methods: " + e.getMessage());
-                // Add minimal fallback
-                cls.addFieldWithInitializer(String.class, "__TRACE_ERROR", new StringLiteralExpr("Tracing failed: " + e.getMessage()))
-                   .setPrivate(true).setStatic(true);
-            }
+        // Generate instrumented source code
+        String instrumentedCode = cu.toString();
+        TraceSymbols symbols = instrumenter.getSymbols();
+        timings.lap(Stage.PRINT);
+        
+        // Compile in-process
+        CompilationResult compilation = compiler.compile(sources(className, instrumentedCode, harness));
+        timings.lap(Stage.COMPILE);
+        if (!compilation.isSuccess()) {
+            throw new CompilationException(compilation.getErrors());
+        }
+        return new CompiledArtifact(instrumentedCode, compilation.getClasses(), symbols);
+    }
+    
+    /**
+     * Compiles the original source and weaves tracing calls into the class bytes;
+     * the user's code is reported back unchanged.
+     */
+    private CompiledArtifact compileAndWeave(String className, String sourceCode, BatchHarness harness,
+                                             StageTimings timings) throws CompilationException {
+        timings.mark();
+        CompilationResult compilation = compiler.compile(sources(className, sourceCode, harness));
+        timings.lap(Stage.COMPILE);
+        if (!compilation.isSuccess()) {
+            throw new CompilationException(compilation.getErrors());
+        }
+        Map<String, byte[]> classes = new HashMap<>(compilation.getClasses());
+        byte[] harnessClass = harness != null ? classes.remove(harness.getClassName()) : null;
+        InstrumentedClasses woven = bytecodeInstrumentor.instrument(classes);
+        timings.lap(Stage.WEAVE);
+        if (harnessClass == null) {
+            return new CompiledArtifact(sourceCode, woven.getClasses(), woven.getSymbols());
+        }
+        Map<String, byte[]> all = new HashMap<>(woven.getClasses());
+        all.put(harness.getClassName(), harnessClass);
+        return new CompiledArtifact(sourceCode, all, woven.getSymbols());
+    }
+    
+    private static Map<String, String> sources(String className, String code, BatchHarness harness) {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put(className, code);
+        if (harness != null) {
+            sources.put(harness.getClassName(), harness.getSource());
         }
+        return sources;
     }
     
     /**
@@ -345,32 +443,179 @@ public class ASTTracer {
     public static class TraceResult {
         private final boolean success;
         private final String message;
-        private final List<Map<String, Object>> trace;
+        private final TraceData trace;
+        private final int eventCount;
         private final String rawOutput;
         private final String instrumentedCode;
+        private final List<CompilationError> compilationErrors;
+        private final String truncation;
+        private final Map<String, Object> budget;
         
-        private TraceResult(boolean success, String message, List<Map<String, Object>> trace, 
-                           String rawOutput, String instrumentedCode) {
+        private TraceResult(boolean success, String message, TraceData trace, int eventCount,
+                           String rawOutput, String instrumentedCode, List<CompilationError> compilationErrors,
+                           String truncation, Map<String, Object> budget) {
             this.success = success;
             this.message = message;
-            this.trace = trace != null ? trace : new ArrayList<>();
+            this.trace = trace != null ? trace : new TraceData();
+            this.eventCount = eventCount;
             this.rawOutput = rawOutput;
             this.instrumentedCode = instrumentedCode;
+            this.compilationErrors = compilationErrors != null ? compilationErrors : new ArrayList<>();
+            this.truncation = truncation;
+            this.budget = budget;
         }
         
-        public static TraceResult success(List<Map<String, Object>> trace, String rawOutput, String instrumentedCode) {
-            return new TraceResult(true, "Trace completed successfully", trace, rawOutput, instrumentedCode);
+        public static TraceResult success(TraceData trace, String rawOutput, String instrumentedCode) {
+            return success(trace, trace.size(), rawOutput, instrumentedCode, null);
+        }
+        
+        /**
+         * @param eventCount events produced; larger than {@code trace.size()} when they were streamed
+         */
+        public static TraceResult success(TraceData trace, int eventCount, String rawOutput,
+                                          String instrumentedCode, String truncation) {
+            return success(trace, eventCount, rawOutput, instrumentedCode, truncation, null);
+        }
+        
+        /**
+         * @param budget the exhausted runtime budget (see TraceDecoder#getBudget), or null
+         */
+        public static TraceResult success(TraceData trace, int eventCount, String rawOutput,
+                                          String instrumentedCode, String truncation, Map<String, Object> budget) {
+            String message = truncation == null ? "Trace completed successfully" : "Trace truncated: " + truncation;
+            return new TraceResult(true, message, trace, eventCount, rawOutput, instrumentedCode, null, truncation, budget);
         }
         
         public static TraceResult error(String message) {
-            return new TraceResult(false, message, null, null, null);
+            return new TraceResult(false, message, null, 0, null, null, null, null, null);
+        }
+        
+        public static TraceResult compilationFailed(List<CompilationError> errors) {
+            return new TraceResult(false, "Compilation failed with " + errors.size() + " error(s)", 
+                                   null, 0, null, null, errors, null, null);
         }
         
         // Getters
         public boolean isSuccess() { return success; }
         public String getMessage() { return message; }
-        public List<Map<String, Object>> getTrace() { return trace; }
+        public TraceData getTrace() { return trace; }
+        public int getEventCount() { return eventCount; }
         public String getRawOutput() { return rawOutput; }
         public String getInstrumentedCode() { return instrumentedCode; }
+        public List<CompilationError> getCompilationErrors() { return compilationErrors; }
+        public boolean isTruncated() { return truncation != null; }
+        public String getTruncation() { return truncation; }
+        public Map<String, Object> getBudget() { return budget; }
+    }
+    
+    /**
+     * One test case of a batch: its trace, output, and what the method returned or threw
+     */
+    public static class CaseResult {
+        private final String input;
+        private final boolean success;
+        private final String message;
+        private final Object returnValue;
+        private final Object exception;
+        private final TraceData trace;
+        private final String rawOutput;
+        private final String truncation;
+        private final Map<String, Object> budget;
+        
+        private CaseResult(String input, boolean success, String message, Object returnValue, Object exception,
+                           TraceData trace, String rawOutput, String truncation,
+                           Map<String, Object> budget) {
+            this.input = input;
+            this.success = success;
+            this.message = message;
+            this.returnValue = returnValue;
+            this.exception = exception;
+            this.trace = trace;
+            this.rawOutput = rawOutput;
+            this.truncation = truncation;
+            this.budget = budget;
+        }
+        
+        static CaseResult of(BatchOutputCollector.Case c) {
+            String message;
+            if (!c.started) {
+                message = c.truncation != null ? c.truncation : "Not run";
+            } else if (c.truncation != null) {
+                message = "Trace truncated: " + c.truncation;
+            } else {
+                message = c.exception != null ? "Method threw " + c.exception : "Trace completed successfully";
+            }
+            return new CaseResult(c.input, c.started, message, c.returnValue, c.exception,
+                                  c.events, c.getOutput(), c.truncation, c.budget);
+        }
+        
+        // Getters
+        public String getInput() { return input; }
+        /** Whether the case ran; it may still have thrown or been truncated */
+        public boolean isSuccess() { return success; }
+        public String getMessage() { return message; }
+        public Object getReturnValue() { return returnValue; }
+        public Object getException() { return exception; }
+        public TraceData getTrace() { return trace; }
+        public String getRawOutput() { return rawOutput; }
+        public boolean isTruncated() { return truncation != null; }
+        public String getTruncation() { return truncation; }
+        public Map<String, Object> getBudget() { return budget; }
+    }
+    
+    /**
+     * Result of a batch trace: one CaseResult per test input, in input order
+     */
+    public static class BatchResult {
+        private final boolean success;
+        private final String message;
+        private final List<CaseResult> cases;
+        private final String instrumentedCode;
+        private final List<CompilationError> compilationErrors;
+        
+        private BatchResult(boolean success, String message, List<CaseResult> cases, String instrumentedCode,
+                            List<CompilationError> compilationErrors) {
+            this.success = success;
+            this.message = message;
+            this.cases = cases != null ? cases : new ArrayList<>();
+            this.instrumentedCode = instrumentedCode;
+            this.compilationErrors = compilationErrors != null ? compilationErrors : new ArrayList<>();
+        }
+        
+        public static BatchResult success(List<CaseResult> cases, String instrumentedCode) {
+            return new BatchResult(true, "Traced " + cases.size() + " test case(s)", cases, instrumentedCode, null);
+        }
+        
+        public static BatchResult error(String message) {
+            return new BatchResult(false, message, null, null, null);
+        }
+        
+        public static BatchResult compilationFailed(List<CompilationError> errors) {
+            return new BatchResult(false, "Compilation failed with " + errors.size() + " error(s)", 
+                                   null, null, errors);
+        }
+        
+        // Getters
+        public boolean isSuccess() { return success; }
+        public String getMessage() { return message; }
+        public List<CaseResult> getCases() { return cases; }
+        public String getInstrumentedCode() { return instrumentedCode; }
+        public List<CompilationError> getCompilationErrors() { return compilationErrors; }
+    }
+    
+    /**
+     * Raised when the instrumented source does not compile
+     */
+    static class CompilationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final List<CompilationError> errors;
+        
+        CompilationException(List<CompilationError> errors) {
+            super("Compilation failed: " + errors);
+            this.errors = errors;
+        }
+        
+        List<CompilationError> getErrors() { return errors; }
     }
 }
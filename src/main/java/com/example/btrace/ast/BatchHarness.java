@@ -0,0 +1,148 @@
+package com.example.btrace.ast;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Generates the main class of a batch job.
+ * Every test input is an argument list in Java syntax (e.g. {@code new int[]{3, 2, 2}, 2}); the
+ * harness calls {@code methodName} with it in a method of its own and brackets each call with
+ * {@code Tracer.caseStart} / {@code Tracer.caseEnd}, so one compile and one worker serve all
+ * inputs. {@code main} runs the cases whose indexes it is given as arguments.
+ *
+ * The harness is a separate compilation unit with the user's package and imports, so inputs
+ * may use the same types as the code and compiler errors in the code keep their line numbers.
+ */
+class BatchHarness {
+
+    static final String SIMPLE_NAME = "$TraceBatch";
+    private static final String TRACER = "com.example.btrace.runtime.Tracer";
+
+    private final String className;
+    private final String source;
+
+    private BatchHarness(String className, String source) {
+        this.className = className;
+        this.source = source;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the method does not exist or an input is not an
+     *                                  argument list it can be called with
+     */
+    static BatchHarness generate(CompilationUnit cu, String className, String methodName, List<String> inputs) {
+        TypeDeclaration<?> type = cu.getTypes().stream()
+            .filter(t -> t.getNameAsString().equals(className))
+            .findFirst()
+            .orElseThrow(() -> new IllegalArgumentException("Class " + className + " not found in source code"));
+        List<MethodDeclaration> methods = type.getMethodsByName(methodName);
+        if (methods.isEmpty()) {
+            throw new IllegalArgumentException("Method " + methodName + " not found in class " + className);
+        }
+
+        StringBuilder cases = new StringBuilder();
+        StringBuilder calls = new StringBuilder();
+        for (int i = 0; i < inputs.size(); i++) {
+            int arguments = countArguments(inputs.get(i), i);
+            int number = i + 1;
+            List<MethodDeclaration> candidates = methods.stream()
+                .filter(m -> takes(m, arguments))
+                .collect(Collectors.toList());
+            if (candidates.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "Method " + methodName + " does not take " + arguments + " argument(s) (test input " + number + ")");
+            }
+            // Overloads are told apart by argument count only; javac picks among the candidates by
+            // type, preferring fixed arity, so the call goes through an instance unless all are static
+            MethodDeclaration method = candidates.stream()
+                .filter(m -> !isVarArgs(m))
+                .findFirst()
+                .orElse(candidates.get(0));
+            boolean onClass = candidates.stream().allMatch(MethodDeclaration::isStatic);
+            String target = onClass ? className : "new " + className + "()";
+            String call = target + "." + methodName + "(" + inputs.get(i) + ")";
+            boolean returns = !method.getType().isVoidType();
+
+            calls.append("                    case ").append(i).append(":\n");
+            if (returns) {
+                calls.append("                        value = case").append(i).append("();\n");
+                calls.append("                        returned = true;\n");
+            } else {
+                calls.append("                        case").append(i).append("();\n");
+            }
+            calls.append("                        break;\n");
+
+            cases.append("\n    private static ").append(returns ? "Object" : "void")
+                .append(" case").append(i).append("() throws Throwable {\n")
+                .append("        ").append(returns ? "return " : "").append(call).append(";\n")
+                .append("    }\n");
+        }
+
+        StringBuilder source = new StringBuilder();
+        Optional<String> packageName = cu.getPackageDeclaration().map(p -> p.getNameAsString());
+        packageName.ifPresent(p -> source.append("package ").append(p).append(";\n\n"));
+        for (ImportDeclaration declaration : cu.getImports()) {
+            source.append(declaration.toString().trim()).append('\n');
+        }
+        source.append("\npublic final class ").append(SIMPLE_NAME).append(" {\n\n")
+            .append("    public static void main(String[] args) {\n")
+            .append("        for (String arg : args) {\n")
+            .append("            int index = Integer.parseInt(arg);\n")
+            .append("            boolean returned = false;\n")
+            .append("            Object value = null;\n")
+            .append("            Throwable error = null;\n")
+            .append("            ").append(TRACER).append(".caseStart(index);\n")
+            .append("            try {\n")
+            .append("                switch (index) {\n")
+            .append(calls)
+            .append("                    default:\n")
+            .append("                        break;\n")
+            .append("                }\n")
+            .append("            } catch (Throwable e) {\n")
+            .append("                error = e;\n")
+            .append("            }\n")
+            .append("            System.out.flush(); // The case's output goes out before its end record\n")
+            .append("            ").append(TRACER).append(".caseEnd(index, returned, value, error);\n")
+            .append("        }\n")
+            .append("    }\n")
+            .append(cases)
+            .append("}\n");
+        String qualifiedName = packageName.map(p -> p + "." + SIMPLE_NAME).orElse(SIMPLE_NAME);
+        return new BatchHarness(qualifiedName, source.toString());
+    }
+
+    /**
+     * Whether the method can be called with that many arguments
+     */
+    private static boolean takes(MethodDeclaration method, int arguments) {
+        int parameters = method.getParameters().size();
+        return isVarArgs(method) ? arguments >= parameters - 1 : arguments == parameters;
+    }
+
+    private static boolean isVarArgs(MethodDeclaration method) {
+        return method.getParameters().isNonEmpty() && method.getParameter(method.getParameters().size() - 1).isVarArgs();
+    }
+
+    private static int countArguments(String input, int index) {
+        ParseResult<Expression> parsed = new JavaParser().parseExpression("f(" + input + ")");
+        Expression call = parsed.getResult().orElse(null);
+        if (!parsed.isSuccessful() || !(call instanceof MethodCallExpr)) {
+            throw new IllegalArgumentException("Test input " + (index + 1) + " is not a valid argument list: " + input);
+        }
+        return ((MethodCallExpr) call).getArguments().size();
+    }
+
+    /** Binary name of the harness class, the job's main class */
+    String getClassName() { return className; }
+    String getSource() { return source; }
+}
@@ -0,0 +1,154 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.executor.WorkerPool.OutputConsumer;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceDecoder;
+import com.example.btrace.trace.TraceSymbols;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Consumes the output of a batch job, which runs several test cases one after another.
+ * Events between a case's {@code case_start} and {@code case_end} and program output written
+ * meanwhile go to that case. The event and byte ceilings apply to each case on its own: a case
+ * past its ceiling is truncated while the next ones are still collected, so the job is only
+ * stopped once the whole job's output exceeds the ceilings of all its cases together.
+ */
+class BatchOutputCollector implements OutputConsumer {
+
+    private final long maxBytes;
+    private final int maxEvents;
+    private final long maxJobBytes;
+
+    private final TraceDecoder decoder;
+    private final Case[] cases;
+    private final TraceData batch = new TraceData();
+    private Case current;
+    private long bytesReceived = 0;
+    private long decodeNanos = 0;
+    private String truncation = null;
+
+    /**
+     * @param cases results of the whole batch, indexed by case; only the cases this job runs are written
+     * @param jobCases number of cases this job runs
+     */
+    BatchOutputCollector(TraceSymbols symbols, long maxBytes, int maxEvents, Case[] cases, int jobCases) {
+        this.decoder = new TraceDecoder(symbols);
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.maxJobBytes = maxBytes * jobCases;
+        this.cases = cases;
+    }
+
+    @Override
+    public boolean onOutput(byte[] chunk, int offset, int length) {
+        if (current != null) {
+            current.output(chunk, offset, length, maxBytes);
+        }
+        return reserve(length);
+    }
+
+    @Override
+    public boolean onTrace(byte[] chunk, int offset, int length) {
+        batch.clear();
+        long started = System.nanoTime();
+        decoder.decode(chunk, offset, length, batch, Integer.MAX_VALUE);
+        decodeNanos += System.nanoTime() - started;
+        for (int i = 0; i < batch.size(); i++) {
+            String type = batch.getEventType(i);
+            if ("case_start".equals(type)) {
+                current = cases[((Number) batch.getField(i, "case")).intValue()];
+                current.started = true;
+            } else if ("case_end".equals(type)) {
+                if (current != null) {
+                    current.finish(batch, i);
+                }
+                current = null;
+            } else if (current != null) {
+                current.add(batch, i, maxEvents);
+            }
+        }
+        return reserve(length);
+    }
+
+    @Override
+    public void onOversizedTrace(int length) {
+        bytesReceived += length;
+        if (truncation == null) {
+            truncation = "Output exceeded " + maxBytes + " bytes";
+        }
+    }
+
+    private boolean reserve(int length) {
+        bytesReceived += length;
+        if (bytesReceived > maxJobBytes && truncation == null) {
+            truncation = "Output exceeded " + maxJobBytes + " bytes";
+        }
+        return truncation == null;
+    }
+
+    /** The case that was running when the job ended, or null if it ended between cases */
+    Case getCurrent() { return current; }
+    /** Why the job was stopped early, or null */
+    String getTruncation() { return truncation; }
+    long getDecodeNanos() { return decodeNanos; }
+
+    /**
+     * What was collected for one test case
+     */
+    static class Case {
+        final String input;
+        boolean started;
+        final TraceData events;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private long outputBytes = 0;
+        String truncation;
+        Object returnValue;
+        Object exception;
+        Map<String, Object> budget;
+
+        /**
+         * @param maxMemoryBytes heap budget of the case's trace (see TraceData); 0 = unlimited
+         */
+        Case(String input, long maxMemoryBytes) {
+            this.input = input;
+            this.events = new TraceData(maxMemoryBytes);
+        }
+
+        void add(TraceData batch, int event, int maxEvents) {
+            if (events.size() < maxEvents && !events.isFull()) {
+                events.append(batch, event);
+            } else if (truncation == null) {
+                truncation = events.isFull()
+                    ? "Trace exceeded its memory budget of " + events.getMaxBytes() + " bytes"
+                    : "Trace exceeded " + maxEvents + " events";
+            }
+        }
+
+        void output(byte[] chunk, int offset, int length, long maxBytes) {
+            long room = maxBytes - outputBytes;
+            if (room > 0) {
+                output.write(chunk, offset, (int) Math.min(room, length));
+            }
+            outputBytes += length;
+            if (outputBytes > maxBytes && truncation == null) {
+                truncation = "Output exceeded " + maxBytes + " bytes";
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void finish(TraceData batch, int event) {
+            exception = batch.getField(event, "exception");
+            returnValue = batch.getField(event, "returnValue");
+            budget = (Map<String, Object>) batch.getField(event, "budget");
+            if (budget != null) {
+                truncation = TraceOutputCollector.describe(budget);
+            }
+        }
+
+        String getOutput() { return new String(output.toByteArray(), StandardCharsets.UTF_8); }
+        long getOutputBytes() { return outputBytes; }
+    }
+}
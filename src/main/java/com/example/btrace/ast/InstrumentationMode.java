@@ -0,0 +1,26 @@
+package com.example.btrace.ast;
+
+/**
+ * How tracing calls are added to user code
+ */
+public enum InstrumentationMode {
+    /** Rewrite the parsed AST and compile the instrumented source */
+    SOURCE,
+    /** Compile the original source and weave tracing calls into the class bytes */
+    BYTECODE;
+
+    /**
+     * Parses a request value; null or blank selects {@link #SOURCE}
+     */
+    public static InstrumentationMode fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return SOURCE;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown instrumentation mode: " + value
+                + " (expected 'source' or 'bytecode')");
+        }
+    }
+}
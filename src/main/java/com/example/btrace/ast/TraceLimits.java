@@ -0,0 +1,92 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.runtime.TraceOptions;
+
+/**
+ * Per-request ceilings on how much a traced program may produce.
+ * The configured limits are the server's ceilings; a request may only narrow them.
+ */
+public class TraceLimits {
+
+    private final long maxOutputBytes;
+    private final int maxEvents;
+    private final int maxCallDepth;
+    private final int maxLoopIterations;
+    private final long maxMemoryBytes;
+
+    /**
+     * Output and event ceilings only; the other limits start unlimited and are set with the
+     * {@code with*} methods, which return copies
+     */
+    public TraceLimits(long maxOutputBytes, int maxEvents) {
+        this(maxOutputBytes, maxEvents, 0, 0, 0);
+    }
+
+    private TraceLimits(long maxOutputBytes, int maxEvents, int maxCallDepth, int maxLoopIterations,
+                        long maxMemoryBytes) {
+        this.maxOutputBytes = maxOutputBytes;
+        this.maxEvents = maxEvents;
+        this.maxCallDepth = maxCallDepth;
+        this.maxLoopIterations = maxLoopIterations;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    public static TraceLimits defaults() {
+        return new TraceLimits(8L * 1024 * 1024, 100_000).withMaxMemoryBytes(64L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxCallDepth calls nested deeper than this run untraced; 0 = unlimited
+     */
+    public TraceLimits withMaxCallDepth(int maxCallDepth) {
+        return new TraceLimits(maxOutputBytes, maxEvents, maxCallDepth, maxLoopIterations, maxMemoryBytes);
+    }
+
+    /**
+     * @param maxLoopIterations iterations of one loop beyond this run untraced and are
+     *                          reported as a single range; 0 = unlimited
+     */
+    public TraceLimits withMaxLoopIterations(int maxLoopIterations) {
+        return new TraceLimits(maxOutputBytes, maxEvents, maxCallDepth, maxLoopIterations, maxMemoryBytes);
+    }
+
+    /**
+     * @param maxMemoryBytes heap one decoded trace may take on the server (see TraceData); 0 = unlimited
+     */
+    public TraceLimits withMaxMemoryBytes(long maxMemoryBytes) {
+        return new TraceLimits(maxOutputBytes, maxEvents, maxCallDepth, maxLoopIterations, maxMemoryBytes);
+    }
+
+    /**
+     * These limits lowered to the values a request asked for; null or non-positive
+     * values keep the current limit
+     */
+    public TraceLimits narrow(Long maxOutputBytes, Integer maxEvents, Integer maxLoopIterations) {
+        return new TraceLimits(
+            lower(this.maxOutputBytes, maxOutputBytes),
+            (int) lower(this.maxEvents, maxEvents),
+            maxCallDepth,
+            (int) lower(this.maxLoopIterations, maxLoopIterations),
+            maxMemoryBytes);
+    }
+
+    private static long lower(long limit, Number requested) {
+        if (requested == null || requested.longValue() <= 0) {
+            return limit;
+        }
+        return limit > 0 ? Math.min(limit, requested.longValue()) : requested.longValue();
+    }
+
+    /**
+     * The budgets the runtime enforces inside the traced program
+     */
+    public TraceOptions toOptions() {
+        return new TraceOptions(maxCallDepth, maxEvents, maxOutputBytes, maxLoopIterations);
+    }
+
+    public long getMaxOutputBytes() { return maxOutputBytes; }
+    public int getMaxEvents() { return maxEvents; }
+    public int getMaxCallDepth() { return maxCallDepth; }
+    public int getMaxLoopIterations() { return maxLoopIterations; }
+    public long getMaxMemoryBytes() { return maxMemoryBytes; }
+}
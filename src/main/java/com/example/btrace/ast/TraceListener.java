@@ -0,0 +1,20 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.trace.TraceData;
+
+/**
+ * Receives trace events while the traced program is still running.
+ * Callbacks run on the job thread; returning false stops the job.
+ */
+public interface TraceListener {
+
+    /**
+     * The code compiled and is about to run
+     */
+    boolean onStarted(String instrumentedCode);
+
+    /**
+     * Events decoded from one batch of trace records, in step order. The list is not reused.
+     */
+    boolean onEvents(TraceData events);
+}
@@ -0,0 +1,149 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.executor.WorkerPool.OutputConsumer;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceDecoder;
+import com.example.btrace.trace.TraceSymbols;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Consumes program output and binary trace records while they are being produced.
+ * Trace records are decoded into events on arrival; program output is kept separately.
+ * Collection stops once the byte, event or memory ceiling is reached, which ends the job early
+ * instead of buffering unbounded output. The runtime enforces the same budgets itself and
+ * reports which one ran out and where, so usually that report ends the job.
+ *
+ * With a {@link TraceListener}, each decoded batch is handed to the listener and not kept here.
+ * The listener may keep what it is given (the /stream endpoint indexes every event for stepping and
+ * the trace store), so the memory budget then applies to all batches together.
+ */
+class TraceOutputCollector implements OutputConsumer {
+
+    private final long maxBytes;
+    private final int maxEvents;
+    private final long maxMemoryBytes;
+
+    private final TraceDecoder decoder;
+    private final TraceListener listener;
+    private final TraceData events;
+    private int eventCount = 0;
+    private long streamedMemoryBytes = 0;
+    private final ByteArrayOutputStream programOutput = new ByteArrayOutputStream();
+    private long bytesReceived = 0;
+    private long decodeNanos = 0;
+    private String truncation = null;
+
+    TraceOutputCollector(TraceSymbols symbols, long maxBytes, int maxEvents, long maxMemoryBytes) {
+        this(symbols, maxBytes, maxEvents, maxMemoryBytes, null);
+    }
+
+    /**
+     * @param maxMemoryBytes heap budget of the collected trace (see TraceData); 0 = unlimited
+     */
+    TraceOutputCollector(TraceSymbols symbols, long maxBytes, int maxEvents, long maxMemoryBytes,
+                         TraceListener listener) {
+        this.decoder = new TraceDecoder(symbols);
+        this.listener = listener;
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.events = new TraceData(maxMemoryBytes);
+    }
+
+    @Override
+    public boolean onOutput(byte[] chunk, int offset, int length) {
+        long room = maxBytes - bytesReceived;
+        if (room > 0) {
+            programOutput.write(chunk, offset, (int) Math.min(room, length));
+        }
+        return reserve(length);
+    }
+
+    @Override
+    public boolean onTrace(byte[] chunk, int offset, int length) {
+        if (truncation != null) {
+            return false;
+        }
+        // Decoded before the byte count is checked, so the runtime's own budget report wins
+        boolean complete;
+        long started = System.nanoTime();
+        if (listener == null) {
+            complete = decoder.decode(chunk, offset, length, events, maxEvents);
+            eventCount = events.size();
+            decodeNanos += System.nanoTime() - started;
+        } else {
+            long room = maxMemoryBytes > 0 ? Math.max(1, maxMemoryBytes - streamedMemoryBytes) : 0;
+            TraceData batch = new TraceData(room);
+            complete = decoder.decode(chunk, offset, length, batch, maxEvents - eventCount);
+            eventCount += batch.size();
+            streamedMemoryBytes += batch.getMemoryBytes();
+            decodeNanos += System.nanoTime() - started;
+            if (!batch.isEmpty() && !listener.onEvents(batch)) {
+                truncation = "Trace stream closed by client";
+                return false;
+            }
+            if (!complete && batch.isFull()) {
+                return memoryExceeded();
+            }
+        }
+        if (decoder.getBudget() != null) {
+            truncation = describe(decoder.getBudget());
+            return false;
+        }
+        return reserve(length) && (complete || exceeded());
+    }
+
+    /**
+     * E.g. "Event budget of 500 reached at line 7 (step 501)"
+     */
+    static String describe(Map<String, Object> budget) {
+        String kind = "events".equals(budget.get("budget")) ? "Event" : "Byte";
+        String where = budget.containsKey("line") ? " at line " + budget.get("line") : "";
+        return kind + " budget of " + budget.get("limit") + " reached" + where + " (step " + budget.get("step") + ")";
+    }
+
+    private boolean exceeded() {
+        if (events.isFull()) {
+            return memoryExceeded();
+        }
+        truncation = "Trace exceeded " + maxEvents + " events";
+        return false;
+    }
+
+    private boolean memoryExceeded() {
+        truncation = "Trace exceeded its memory budget of " + maxMemoryBytes + " bytes";
+        return false;
+    }
+
+    @Override
+    public void onOversizedTrace(int length) {
+        bytesReceived += length;
+        if (truncation == null) {
+            truncation = "Output exceeded " + maxBytes + " bytes";
+        }
+    }
+
+    private boolean reserve(int length) {
+        bytesReceived += length;
+        if (bytesReceived > maxBytes && truncation == null) {
+            truncation = "Output exceeded " + maxBytes + " bytes";
+        }
+        return truncation == null;
+    }
+
+    /** Decoded events; empty when they were handed to a listener */
+    TraceData getEvents() { return events; }
+    int getEventCount() { return eventCount; }
+    /** Program output and trace record bytes received */
+    long getBytesReceived() { return bytesReceived; }
+    /** Time spent decoding trace records */
+    long getDecodeNanos() { return decodeNanos; }
+    String getProgramOutput() { return new String(programOutput.toByteArray(), StandardCharsets.UTF_8); }
+    /** Why collection stopped early, or null if all output was consumed */
+    String getTruncation() { return truncation; }
+    /** The runtime's report of an exhausted budget (see TraceDecoder#getBudget), or null */
+    Map<String, Object> getBudget() { return decoder.getBudget(); }
+}
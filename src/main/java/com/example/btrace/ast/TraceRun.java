@@ -0,0 +1,61 @@
+package com.example.btrace.ast;
+
+/**
+ * One program to trace and how to trace it. Only the class and its source are required; the
+ * {@code with*} methods return copies with one setting changed, so a new per-request setting
+ * becomes a field here rather than another overload of the {@link ASTTracer} entry points.
+ */
+public final class TraceRun {
+
+    private final String className;
+    private final String methodName;
+    private final String sourceCode;
+    private final InstrumentationMode mode;
+    private final TraceLimits limits;
+    private final String sessionId;
+
+    /**
+     * Runs {@code className.main}, instrumented from source, within the tracer's own limits
+     */
+    public TraceRun(String className, String methodName, String sourceCode) {
+        this(className, methodName, sourceCode, InstrumentationMode.SOURCE, null, null);
+    }
+
+    private TraceRun(String className, String methodName, String sourceCode, InstrumentationMode mode,
+                     TraceLimits limits, String sessionId) {
+        this.className = className;
+        this.methodName = methodName;
+        this.sourceCode = sourceCode;
+        this.mode = mode;
+        this.limits = limits;
+        this.sessionId = sessionId;
+    }
+
+    public TraceRun withMode(InstrumentationMode mode) {
+        return new TraceRun(className, methodName, sourceCode, mode, limits, sessionId);
+    }
+
+    /**
+     * @param limits budgets for this run, usually {@link ASTTracer#getLimits()} narrowed by the
+     *               request; null for the tracer's own limits
+     */
+    public TraceRun withLimits(TraceLimits limits) {
+        return new TraceRun(className, methodName, sourceCode, mode, limits, sessionId);
+    }
+
+    /**
+     * @param sessionId edit-and-rerun session the source belongs to, or null. In {@code SOURCE} mode
+     *                  a session keeps its instrumented program, and a run that only edits the body
+     *                  of one method re-instruments that method and recompiles its class alone.
+     */
+    public TraceRun withSession(String sessionId) {
+        return new TraceRun(className, methodName, sourceCode, mode, limits, sessionId);
+    }
+
+    public String getClassName() { return className; }
+    public String getMethodName() { return methodName; }
+    public String getSourceCode() { return sourceCode; }
+    public InstrumentationMode getMode() { return mode; }
+    public TraceLimits getLimits() { return limits; }
+    public String getSessionId() { return sessionId; }
+}
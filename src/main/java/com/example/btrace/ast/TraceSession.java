@@ -0,0 +1,512 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.cache.CompiledArtifact;
+import com.example.btrace.compiler.InMemoryCompiler;
+import com.example.btrace.compiler.InMemoryCompiler.CompilationResult;
+import com.example.btrace.metrics.StageTimings;
+import com.example.btrace.metrics.TraceMetrics.Stage;
+import com.example.btrace.trace.TraceSymbols;
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.utils.LineSeparator;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.Position;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.BodyDeclaration;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.*;
+
+/**
+ * The instrumented program of one edit-and-rerun session. The parsed and instrumented AST is kept
+ * between runs; when the source differs from the last run only inside the body of one method or
+ * constructor, just that member is parsed and instrumented again, its printed form replaces the
+ * old one in the instrumented source, and only the top-level class declaring it is recompiled,
+ * against the session's other classes. The work then grows with the edited member and its class
+ * rather than with the program.
+ *
+ * Any other edit rebuilds the whole program, as does an edited member that no longer compiles, so
+ * compilation errors are reported exactly as for a request without a session. Methods of local and
+ * anonymous classes belong to the member declaring them; those of nested classes are members too.
+ *
+ * Thread-safe: runs of one session are built one at a time.
+ */
+class TraceSession {
+
+    private static final String INDENT = "    ";
+
+    private final InMemoryCompiler compiler;
+
+    // The last build; cu is null until a build succeeds
+    private String className;
+    private String source;
+    private CompilationUnit cu;
+    private String instrumentedCode;
+    private String lineSeparator;
+    // Package and imports, to compile one top-level type on its own
+    private String header;
+    private CompiledArtifact artifact;
+    // Top-level types, and the members that can be rebuilt on their own, in source order. Where
+    // they are in the instrumented source is looked up the first time an edit falls in a type.
+    private final List<TypeSpan> types = new ArrayList<>();
+    private final List<MemberSpan> members = new ArrayList<>();
+
+    TraceSession(InMemoryCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    /**
+     * Brings the session's program up to date with {@code sourceCode}
+     * @return the compiled program, or null if the source does not parse
+     */
+    synchronized CompiledArtifact build(String className, String sourceCode, StageTimings timings)
+            throws ASTTracer.CompilationException {
+        if (cu != null && className.equals(this.className)) {
+            if (sourceCode.equals(source)) {
+                return artifact;
+            }
+            CompiledArtifact updated = rebuildMember(sourceCode, timings);
+            if (updated != null) {
+                return updated;
+            }
+        }
+        return rebuild(className, sourceCode, timings);
+    }
+
+    /**
+     * Parses, instruments and compiles the whole program, and records where each member is in the
+     * source and in the instrumented source
+     */
+    private CompiledArtifact rebuild(String className, String sourceCode, StageTimings timings)
+            throws ASTTracer.CompilationException {
+        cu = null;
+        types.clear();
+        members.clear();
+
+        timings.mark();
+        CompilationUnit parsed = new JavaParser().parse(sourceCode).getResult().orElse(null);
+        timings.lap(Stage.PARSE);
+        if (parsed == null) {
+            return null;
+        }
+        // Positions are taken before instrumentation moves the bodies
+        int[] lineStarts = lineStarts(sourceCode);
+        String packageName = parsed.getPackageDeclaration().map(p -> p.getNameAsString()).orElse(null);
+        String packagePrefix = packageName != null ? packageName + "." : "";
+        StringBuilder imports = new StringBuilder(packageName != null ? "package " + packageName + ";\n" : "");
+        for (ImportDeclaration declaration : parsed.getImports()) {
+            imports.append(declaration.isStatic() ? "import static " : "import ").append(declaration.getNameAsString())
+                .append(declaration.isAsterisk() ? ".*;\n" : ";\n");
+        }
+        for (TypeDeclaration<?> type : parsed.getTypes()) {
+            TypeSpan span = new TypeSpan(type, packagePrefix + type.getNameAsString());
+            types.add(span);
+            collectMembers(type, span, 1, sourceCode, lineStarts);
+        }
+
+        ASTInstrumenter instrumenter = new ASTInstrumenter();
+        parsed.accept(instrumenter, null);
+        timings.lap(Stage.INSTRUMENT);
+
+        String code = parsed.toString();
+        timings.lap(Stage.PRINT);
+
+        CompilationResult compilation = compiler.compile(Collections.singletonMap(className, code));
+        timings.lap(Stage.COMPILE);
+        if (!compilation.isSuccess()) {
+            throw new ASTTracer.CompilationException(compilation.getErrors());
+        }
+        this.className = className;
+        this.source = sourceCode;
+        this.cu = parsed;
+        this.instrumentedCode = code;
+        this.lineSeparator = parsed.getLineEndingStyleOrDefault(LineSeparator.SYSTEM).asRawString();
+        this.header = imports.toString();
+        this.artifact = new CompiledArtifact(code, compilation.getClasses(), instrumenter.getSymbols());
+        return artifact;
+    }
+
+    /**
+     * Rebuilds the one member whose body holds every change from the last source
+     * @return the updated program, or null if the edit is not confined to one member body or the
+     *         member no longer parses or compiles
+     */
+    private CompiledArtifact rebuildMember(String sourceCode, StageTimings timings) {
+        // The changed region: what is left after the common prefix and suffix
+        timings.mark();
+        int oldLength = source.length();
+        int newLength = sourceCode.length();
+        int shorter = Math.min(oldLength, newLength);
+        int prefix = 0;
+        while (prefix < shorter && source.charAt(prefix) == sourceCode.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < shorter - prefix
+                && source.charAt(oldLength - 1 - suffix) == sourceCode.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        int index = memberContaining(prefix, oldLength - suffix);
+        if (index < 0) {
+            return null;
+        }
+        MemberSpan member = members.get(index);
+        TypeSpan type = member.type;
+        if (!type.located && !locate(type)) {
+            return null;
+        }
+        if (!member.located) {
+            return null;
+        }
+        int delta = newLength - oldLength;
+        // Count from one character either side, so a line break split by the edit is counted right
+        int lineDelta = lineBreaks(sourceCode, Math.max(0, prefix - 1), Math.min(newLength, newLength - suffix + 1))
+            - lineBreaks(source, Math.max(0, prefix - 1), Math.min(oldLength, oldLength - suffix + 1));
+        if (lineDelta != 0 && member.beginLine == member.endLine) {
+            // Whatever shares the member's line may be before or after it
+            return null;
+        }
+
+        // Parse the member on its own, placed at its line and column so positions are those in the
+        // whole source
+        String text = sourceCode.substring(member.start, member.close + 1 + delta);
+        int column = 0;
+        while (column < member.start && sourceCode.charAt(member.start - column - 1) != '\n'
+                && sourceCode.charAt(member.start - column - 1) != '\r') {
+            column++;
+        }
+        StringBuilder padded = new StringBuilder(member.beginLine + column + text.length());
+        for (int i = 1; i < member.beginLine; i++) {
+            padded.append('\n');
+        }
+        for (int i = 0; i < column; i++) {
+            padded.append(' ');
+        }
+        ParseResult<BodyDeclaration<?>> parsed = new JavaParser().parseBodyDeclaration(padded.append(text).toString());
+        timings.lap(Stage.PARSE);
+        BodyDeclaration<?> result = parsed.isSuccessful() ? parsed.getResult().orElse(null) : null;
+        if (result == null || result.getClass() != member.node.getClass()) {
+            return null;
+        }
+        CallableDeclaration<?> declaration = (CallableDeclaration<?>) result;
+
+        // Instrument with the ids of the other members kept, and their lines moved past the edit
+        TraceSymbols symbols = artifact.getSymbols().copy();
+        if (lineDelta != 0) {
+            symbols.shiftLines(member.endLine, lineDelta);
+        }
+        member.node.getComment().ifPresent(declaration::setComment);
+        declaration.accept(new ASTInstrumenter(symbols), null);
+        timings.lap(Stage.INSTRUMENT);
+
+        String printed = print(declaration, member.depth);
+        int printedDelta = printed.length() - (member.printedEnd - member.printedStart);
+        int printedLineDelta = lineBreaks(printed, 0, printed.length())
+            - lineBreaks(instrumentedCode, member.printedStart, member.printedEnd);
+        String code = instrumentedCode.substring(0, member.printedStart) + printed
+            + instrumentedCode.substring(member.printedEnd);
+        timings.lap(Stage.PRINT);
+
+        // Recompile the declaring top-level class; the others are only read from the classpath.
+        // It starts on the line it has in the whole program, so its line numbers are the same.
+        Map<String, byte[]> classes = new LinkedHashMap<>(artifact.getClasses());
+        classes.keySet().removeIf(name -> name.equals(type.name) || name.startsWith(type.name + "$"));
+        StringBuilder typeSource = new StringBuilder(header);
+        for (int line = lineBreaks(header, 0, header.length()) + 1; line < type.printedLine; line++) {
+            typeSource.append('\n');
+        }
+        typeSource.append(code, type.printedStart, type.printedEnd + printedDelta);
+        CompilationResult compilation = compiler.compile(Collections.singletonMap(type.name, typeSource.toString()),
+                                                          classes);
+        if (!compilation.isSuccess()) {
+            return null;
+        }
+        classes.putAll(compilation.getClasses());
+        if (printedLineDelta != 0) {
+            // The classes of the types after it were compiled with the old line count
+            Set<String> later = new HashSet<>();
+            for (int i = types.indexOf(type) + 1; i < types.size(); i++) {
+                later.add(types.get(i).name);
+            }
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                String name = entry.getKey();
+                if (later.contains(name.indexOf('$') < 0 ? name : name.substring(0, name.indexOf('$')))) {
+                    entry.setValue(shiftLineNumbers(entry.getValue(), printedLineDelta));
+                }
+            }
+        }
+        timings.lap(Stage.COMPILE);
+
+        replace(member.node, declaration);
+        member.node = declaration;
+        member.close += delta;
+        member.endLine += lineDelta;
+        member.printedEnd += printedDelta;
+        for (int i = index + 1; i < members.size(); i++) {
+            members.get(i).shift(delta, lineDelta, printedDelta);
+        }
+        type.printedEnd += printedDelta;
+        for (int i = types.indexOf(type) + 1; i < types.size(); i++) {
+            types.get(i).shift(printedDelta, printedLineDelta);
+        }
+        source = sourceCode;
+        instrumentedCode = code;
+        artifact = new CompiledArtifact(code, classes, symbols);
+        return artifact;
+    }
+
+    /**
+     * Index of the member whose body braces enclose the changed region {@code [from, to)} of the
+     * last source, or -1
+     */
+    private int memberContaining(int from, int to) {
+        for (int i = 0; i < members.size(); i++) {
+            MemberSpan member = members.get(i);
+            if (member.open < from && to <= member.close) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void collectMembers(TypeDeclaration<?> type, TypeSpan span, int depth, String sourceCode,
+                                int[] lineStarts) {
+        for (BodyDeclaration<?> declaration : type.getMembers()) {
+            if (declaration instanceof TypeDeclaration) {
+                collectMembers((TypeDeclaration<?>) declaration, span, depth + 1, sourceCode, lineStarts);
+                continue;
+            }
+            BlockStmt body;
+            if (declaration instanceof MethodDeclaration) {
+                body = ((MethodDeclaration) declaration).getBody().orElse(null);
+            } else if (declaration instanceof ConstructorDeclaration) {
+                body = ((ConstructorDeclaration) declaration).getBody();
+            } else {
+                continue;
+            }
+            if (body == null || !declaration.getRange().isPresent() || !body.getRange().isPresent()) {
+                continue;
+            }
+            int start = offset(declaration.getRange().get().begin, sourceCode, lineStarts);
+            int open = offset(body.getRange().get().begin, sourceCode, lineStarts);
+            int close = offset(body.getRange().get().end, sourceCode, lineStarts);
+            int end = offset(declaration.getRange().get().end, sourceCode, lineStarts);
+            // Tolerates nothing unusual about the positions: such a member is only rebuilt with the program
+            if (start < 0 || open < 0 || close != end || close < 0
+                    || sourceCode.charAt(open) != '{' || sourceCode.charAt(close) != '}') {
+                continue;
+            }
+            members.add(new MemberSpan((CallableDeclaration<?>) declaration, span, depth, start, open, close,
+                declaration.getRange().get().begin.line, declaration.getRange().get().end.line));
+        }
+    }
+
+    /**
+     * Finds a type and its members in the instrumented source by printing them again on their own.
+     * A member that does not print the same way in place is only rebuilt with the program.
+     * @return false if the type itself is not found
+     */
+    private boolean locate(TypeSpan type) {
+        String printed = type.node.toString();
+        int at = instrumentedCode.indexOf(printed);
+        if (at < 0) {
+            return false;
+        }
+        type.located = true;
+        type.printedStart = at;
+        type.printedEnd = at + printed.length();
+        type.printedLine = lineBreaks(instrumentedCode, 0, at) + 1;
+        int from = type.printedStart;
+        for (MemberSpan member : members) {
+            if (member.type != type) {
+                continue;
+            }
+            String text = print(member.node, member.depth);
+            int found = instrumentedCode.indexOf(text, from);
+            if (found >= 0 && found + text.length() <= type.printedEnd) {
+                member.located = true;
+                member.printedStart = found;
+                member.printedEnd = found + text.length();
+                from = member.printedEnd;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The class with every line number moved by {@code delta}
+     */
+    private static byte[] shiftLineNumbers(byte[] bytes, int delta) {
+        ClassReader reader = new ClassReader(bytes);
+        ClassWriter writer = new ClassWriter(reader, 0);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9,
+                                         super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                        super.visitLineNumber(line + delta, start);
+                    }
+                };
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static void replace(CallableDeclaration<?> old, CallableDeclaration<?> replacement) {
+        NodeList<BodyDeclaration<?>> siblings = ((TypeDeclaration<?>) old.getParentNode()
+            .orElseThrow(() -> new IllegalStateException("Member outside a type"))).getMembers();
+        for (int i = 0; i < siblings.size(); i++) {
+            if (siblings.get(i) == old) {
+                siblings.set(i, replacement);
+                return;
+            }
+        }
+        throw new IllegalStateException("Member not found in its type");
+    }
+
+    /**
+     * The member's text as printing the whole program lays it out: at its nesting depth, and with
+     * the line separator of the source rather than the system's
+     */
+    private String print(CallableDeclaration<?> member, int depth) {
+        String text = member.toString();
+        if (!lineSeparator.equals("\n")) {
+            text = text.replace("\r\n", "\n").replace("\n", lineSeparator);
+        }
+        StringBuilder indented = new StringBuilder(text.length() + 64);
+        int lineStart = 0;
+        while (lineStart <= text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            // Blank lines are not indented
+            if (lineEnd > lineStart && !(lineEnd == lineStart + 1 && text.charAt(lineStart) == '\r')) {
+                for (int i = 0; i < depth; i++) {
+                    indented.append(INDENT);
+                }
+            }
+            indented.append(text, lineStart, lineEnd);
+            if (lineEnd < text.length()) {
+                indented.append('\n');
+            }
+            lineStart = lineEnd + 1;
+        }
+        return indented.toString();
+    }
+
+    /**
+     * Offsets where each line starts, with \n, \r\n and \r ending lines as they do for the parser
+     */
+    private static int[] lineStarts(String text) {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || (c == '\r' && (i + 1 == text.length() || text.charAt(i + 1) != '\n'))) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    private static int lineBreaks(String text, int from, int to) {
+        int breaks = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || (c == '\r' && (i + 1 == text.length() || text.charAt(i + 1) != '\n'))) {
+                breaks++;
+            }
+        }
+        return breaks;
+    }
+
+    /** Offset of a parser position, or -1 if it is not in the text */
+    private static int offset(Position position, String text, int[] lineStarts) {
+        if (position.line < 1 || position.line > lineStarts.length) {
+            return -1;
+        }
+        int offset = lineStarts[position.line - 1] + position.column - 1;
+        return offset < text.length() ? offset : -1;
+    }
+
+    /**
+     * A top-level type: its binary name and, once located, where it is in the instrumented source
+     */
+    private static class TypeSpan {
+        final TypeDeclaration<?> node;
+        final String name;
+        boolean located;
+        int printedStart;
+        int printedEnd;
+        int printedLine;
+
+        TypeSpan(TypeDeclaration<?> node, String name) {
+            this.node = node;
+            this.name = name;
+        }
+
+        void shift(int printedDelta, int printedLineDelta) {
+            printedStart += printedDelta;
+            printedEnd += printedDelta;
+            printedLine += printedLineDelta;
+        }
+    }
+
+    /**
+     * A method or constructor: where it is in the source (offsets of its start and body braces,
+     * its first and last line) and, once located, in the instrumented source
+     */
+    private static class MemberSpan {
+        CallableDeclaration<?> node;
+        final TypeSpan type;
+        final int depth;
+        int start;
+        int open;
+        int close;
+        int beginLine;
+        int endLine;
+        boolean located;
+        int printedStart;
+        int printedEnd;
+
+        MemberSpan(CallableDeclaration<?> node, TypeSpan type, int depth, int start, int open, int close,
+                   int beginLine, int endLine) {
+            this.node = node;
+            this.type = type;
+            this.depth = depth;
+            this.start = start;
+            this.open = open;
+            this.close = close;
+            this.beginLine = beginLine;
+            this.endLine = endLine;
+        }
+
+        void shift(int delta, int lineDelta, int printedDelta) {
+            start += delta;
+            open += delta;
+            close += delta;
+            beginLine += lineDelta;
+            endLine += lineDelta;
+            printedStart += printedDelta;
+            printedEnd += printedDelta;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.example.btrace.bytecode;
+
+import com.example.btrace.trace.TraceSymbols;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Weaves tracing calls directly into compiled class bytes using the ASM tree API.
+ * The classes must be compiled with debug info ({@code -g}) so local variable names and
+ * line numbers are available. Every local store ({@code xSTORE}, {@code IINC}), array
+ * element store and method entry/exit gets a call into the {@code Tracer} runtime,
+ * which captures assignment forms (compound operators, {@code i++}, array writes) that
+ * source rewriting misses, without a second print/parse cycle.
+ *
+ * Calls are traced like the source engine does it: {@code enter} stores the caller depth
+ * in a new local, value returns pass through {@code Tracer.ret}, and void returns plus a
+ * catch-all handler that rethrows call {@code Tracer.unwind}.
+ */
+public class BytecodeInstrumentor {
+
+    private static final String TRACER = "com/example/btrace/runtime/Tracer";
+
+    /**
+     * Instruments every class in the map; the result shares one symbol table
+     */
+    public InstrumentedClasses instrument(Map<String, byte[]> classes) {
+        TraceSymbols symbols = new TraceSymbols();
+        Map<String, ClassNode> nodes = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            ClassNode node = new ClassNode();
+            new ClassReader(entry.getValue()).accept(node, ClassReader.SKIP_FRAMES);
+            nodes.put(entry.getKey(), node);
+        }
+
+        Map<String, String> superClasses = new HashMap<>();
+        for (ClassNode node : nodes.values()) {
+            superClasses.put(node.name, (node.access & Opcodes.ACC_INTERFACE) != 0 ? null : node.superName);
+        }
+
+        Map<String, byte[]> woven = new LinkedHashMap<>();
+        for (Map.Entry<String, ClassNode> entry : nodes.entrySet()) {
+            ClassNode node = entry.getValue();
+            for (MethodNode method : node.methods) {
+                if ((method.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_BRIDGE)) == 0) {
+                    instrumentMethod(node, method, symbols);
+                }
+            }
+            ClassWriter writer = new FrameComputingWriter(superClasses);
+            node.accept(writer);
+            woven.put(entry.getKey(), writer.toByteArray());
+        }
+        return new InstrumentedClasses(woven, symbols);
+    }
+
+    private void instrumentMethod(ClassNode owner, MethodNode method, TraceSymbols symbols) {
+        InsnList code = method.instructions;
+        if (code.size() == 0) {
+            return;
+        }
+        int scratch = method.maxLocals;
+        int callerDepth = scratch + 2;
+        method.maxLocals += 3;
+
+        int methodSymbol = symbols.define(TraceSymbols.METHOD, displayName(owner, method), firstLine(code));
+        LabelNode start = new LabelNode();
+        InsnList entry = new InsnList();
+        entry.add(pushInt(methodSymbol));
+        entry.add(new MethodInsnNode(Opcodes.INVOKESTATIC, TRACER, "enter", "(I)I", false));
+        entry.add(new VarInsnNode(Opcodes.ISTORE, callerDepth));
+        entry.add(traceArguments(method, symbols));
+        entry.add(start);
+        code.insert(entry);
+
+        // Resolve sites against the unmodified list first: InsnList.indexOf is only cheap
+        // while no instructions are being inserted
+        List<AbstractInsnNode> sites = new ArrayList<>();
+        List<Integer> lines = new ArrayList<>();
+        List<LocalVariableNode> locals = new ArrayList<>();
+        int line = 0;
+        for (AbstractInsnNode insn = code.getFirst(); insn != null; insn = insn.getNext()) {
+            int opcode = insn.getOpcode();
+            LocalVariableNode local = null;
+            if (insn instanceof LineNumberNode) {
+                line = ((LineNumberNode) insn).line;
+                continue;
+            } else if (insn instanceof VarInsnNode && opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE) {
+                local = findLocal(method, insn, ((VarInsnNode) insn).var);
+                if (local == null) {
+                    continue; // Compiler-generated temporary
+                }
+            } else if (insn instanceof IincInsnNode) {
+                local = findLocal(method, insn, ((IincInsnNode) insn).var);
+                if (local == null) {
+                    continue;
+                }
+            } else if (!isArrayStore(opcode) && !isReturn(opcode)) {
+                continue;
+            }
+            sites.add(insn);
+            lines.add(line);
+            locals.add(local);
+        }
+
+        for (int i = 0; i < sites.size(); i++) {
+            AbstractInsnNode insn = sites.get(i);
+            if (locals.get(i) != null) {
+                traceLocal(code, insn, locals.get(i), lines.get(i), symbols);
+            } else if (isArrayStore(insn.getOpcode())) {
+                traceArrayStore(code, insn, scratch, lines.get(i), symbols);
+            } else {
+                code.insertBefore(insn, traceReturn(method, insn.getOpcode(), methodSymbol, callerDepth));
+            }
+        }
+
+        // Frames left by an exception; constructors are skipped because a handler may not
+        // cover the code before super() runs
+        if (!"<init>".equals(method.name)) {
+            LabelNode end = new LabelNode();
+            LabelNode handler = new LabelNode();
+            code.add(end);
+            code.add(handler);
+            code.add(unwindCall(methodSymbol, callerDepth));
+            code.add(new InsnNode(Opcodes.ATHROW));
+            method.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, null));
+        }
+    }
+
+    /**
+     * {@code Tracer.arg} for every parameter, named from the local variable table
+     */
+    private InsnList traceArguments(MethodNode method, TraceSymbols symbols) {
+        InsnList calls = new InsnList();
+        int slot = (method.access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+        int line = firstLine(method.instructions);
+        Type[] parameters = Type.getArgumentTypes(method.desc);
+        for (int i = 0; i < parameters.length; i++) {
+            String name = parameterName(method, slot, i);
+            calls.add(pushInt(symbols.define(TraceSymbols.ARGUMENT, name, line)));
+            calls.add(new VarInsnNode(parameters[i].getOpcode(Opcodes.ILOAD), slot));
+            calls.add(new MethodInsnNode(Opcodes.INVOKESTATIC, TRACER, "arg",
+                "(I" + tracerArgument(parameters[i]) + ")V", false));
+            slot += parameters[i].getSize();
+        }
+        return calls;
+    }
+
+    private static String parameterName(MethodNode method, int slot, int index) {
+        if (method.localVariables != null) {
+            for (LocalVariableNode local : method.localVariables) {
+                if (local.index == slot && method.instructions.indexOf(local.start) == 0) {
+                    return local.name;
+                }
+            }
+        }
+        return "arg" + index;
+    }
+
+    /**
+     * Value returns go through the matching {@code Tracer.ret} overload, which hands the
+     * value back; void returns unwind the frame
+     */
+    private InsnList traceReturn(MethodNode method, int opcode, int methodSymbol, int callerDepth) {
+        if (opcode == Opcodes.RETURN) {
+            return unwindCall(methodSymbol, callerDepth);
+        }
+        Type returnType = Type.getReturnType(method.desc);
+        String argument = tracerArgument(returnType);
+        if (returnType.getSort() == Type.BYTE) {
+            argument = "B";
+        } else if (returnType.getSort() == Type.SHORT) {
+            argument = "S";
+        }
+        InsnList call = new InsnList();
+        call.add(pushInt(methodSymbol));
+        call.add(new MethodInsnNode(Opcodes.INVOKESTATIC, TRACER, "ret",
+            "(" + argument + "I)" + argument, false));
+        if (opcode == Opcodes.ARETURN && !"java/lang/Object".equals(returnType.getInternalName())) {
+            call.add(new TypeInsnNode(Opcodes.CHECKCAST, returnType.getInternalName()));
+        }
+        return call;
+    }
+
+    private static InsnList unwindCall(int methodSymbol, int callerDepth) {
+        InsnList call = new InsnList();
+        call.add(pushInt(methodSymbol));
+        call.add(new VarInsnNode(Opcodes.ILOAD, callerDepth));
+        call.add(new MethodInsnNode(Opcodes.INVOKESTATIC, TRACER, "unwind", "(II)V", false));
+        return call;
+    }
+
+    /**
+     * Inserts {@code Tracer.var(symbol, local)} after a local store or increment
+     */
+    private void traceLocal(InsnList code, AbstractInsnNode store, LocalVariableNode local, int line,
+                            TraceSymbols symbols) {
+        Type type = Type.getType(local.desc);
+        InsnList call = new InsnList();
+        call.add(pushInt(symbols.define(TraceSymbols.VARIABLE, local.name, line)));
+        call.add(new VarInsnNode(type.getOpcode(Opcodes.ILOAD), local.index));
+        call.add(new MethodInsnNode(Opcodes.INVOKESTATIC, TRACER, "var",
+            "(I" + tracerArgument(type) + ")V", false));
+        code.insert(store, call);
+    }
+
+    /**
+     * Rewrites {@code xASTORE} so the array and index survive the store:
+     * value -> scratch, DUP2 (array, index), reload value, store, then Tracer.element(array, index, site)
+     */
+    private void traceArrayStore(InsnList code, AbstractInsnNode store, int scratch, int line,
+                                 TraceSymbols symbols) {
+        Type valueType = arrayStoreType(store.getOpcode());
+        int site = symbols.define(TraceSymbols.ELEMENT, "", line);
+
+        InsnList before = new InsnList();
+        before.add(new VarInsnNode(valueType.getOpcode(Opcodes.ISTORE), scratch));
+        before.add(new InsnNode(Opcodes.DUP2));
+        before.add(new VarInsnNode(valueType.getOpcode(Opcodes.ILOAD), scratch));
+        code.insertBefore(store, before);
+
+        InsnList after = new InsnList();
+        after.add(pushInt(site));
+        after.add(new MethodInsnNode(Opcodes.INVOKESTATIC, TRACER, "element", "(Ljava/lang/Object;II)V", false));
+        code.insert(store, after);
+    }
+
+    /**
+     * Local variable whose scope covers the instruction after the store; a variable's
+     * scope starts right after its initializing store.
+     */
+    private LocalVariableNode findLocal(MethodNode method, AbstractInsnNode store, int var) {
+        if (method.localVariables == null) {
+            return null;
+        }
+        InsnList code = method.instructions;
+        int position = code.indexOf(store);
+        for (LocalVariableNode local : method.localVariables) {
+            if (local.index == var
+                    && code.indexOf(local.start) <= position + 1
+                    && position < code.indexOf(local.end)) {
+                return local;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isArrayStore(int opcode) {
+        return opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE;
+    }
+
+    private static boolean isReturn(int opcode) {
+        return opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN;
+    }
+
+    private static AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            return new InsnNode(Opcodes.ICONST_0 + value);
+        }
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.BIPUSH, value);
+        }
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+
+    /**
+     * Descriptor of the Tracer.var overload matching a local's type
+     */
+    private static String tracerArgument(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN: return "Z";
+            case Type.CHAR: return "C";
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT: return "I";
+            case Type.LONG: return "J";
+            case Type.FLOAT: return "F";
+            case Type.DOUBLE: return "D";
+            default: return "Ljava/lang/Object;";
+        }
+    }
+
+    private static Type arrayStoreType(int opcode) {
+        switch (opcode) {
+            case Opcodes.LASTORE: return Type.LONG_TYPE;
+            case Opcodes.FASTORE: return Type.FLOAT_TYPE;
+            case Opcodes.DASTORE: return Type.DOUBLE_TYPE;
+            case Opcodes.AASTORE: return Type.getObjectType("java/lang/Object");
+            default: return Type.INT_TYPE;
+        }
+    }
+
+    private static String displayName(ClassNode owner, MethodNode method) {
+        String simpleName = owner.name.substring(owner.name.lastIndexOf('/') + 1);
+        if ("<init>".equals(method.name)) {
+            return simpleName;
+        }
+        return "<clinit>".equals(method.name) ? simpleName + ".<clinit>" : method.name;
+    }
+
+    private static int firstLine(InsnList code) {
+        for (AbstractInsnNode insn = code.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof LineNumberNode) {
+                return ((LineNumberNode) insn).line;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Computes stack map frames without loading the user's classes, which are not on the
+     * server's classpath: their hierarchy comes from the class nodes being woven.
+     */
+    private static class FrameComputingWriter extends ClassWriter {
+        private final Map<String, String> superClasses;
+
+        FrameComputingWriter(Map<String, String> superClasses) {
+            super(COMPUTE_FRAMES);
+            this.superClasses = superClasses;
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            List<String> chain = superChain(type1);
+            for (String type = type2; type != null; type = superOf(type)) {
+                if (chain.contains(type)) {
+                    return type;
+                }
+            }
+            return "java/lang/Object";
+        }
+
+        private List<String> superChain(String type) {
+            List<String> chain = new ArrayList<>();
+            for (String t = type; t != null; t = superOf(t)) {
+                chain.add(t);
+            }
+            return chain;
+        }
+
+        private String superOf(String type) {
+            if (superClasses.containsKey(type)) {
+                return superClasses.get(type);
+            }
+            try {
+                Class<?> cls = Class.forName(type.replace('/', '.'), false, getClassLoader());
+                if (cls.isInterface() || cls.getSuperclass() == null) {
+                    return null;
+                }
+                return Type.getInternalName(cls.getSuperclass());
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Woven class bytes and the symbol table their Tracer calls refer to
+     */
+    public static class InstrumentedClasses {
+        private final Map<String, byte[]> classes;
+        private final TraceSymbols symbols;
+
+        InstrumentedClasses(Map<String, byte[]> classes, TraceSymbols symbols) {
+            this.classes = classes;
+            this.symbols = symbols;
+        }
+
+        // Getters
+        public Map<String, byte[]> getClasses() { return classes; }
+        public TraceSymbols getSymbols() { return symbols; }
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.btrace.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Bounded LRU cache of compiled artifacts keyed by a content hash of the request.
+ * Entries are evicted when either the entry count or the total byte size is exceeded.
+ * When a directory is configured, artifacts are also written there so the cache
+ * survives restarts; the disk tier is bounded by entry count, oldest first.
+ */
+public class ArtifactCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ArtifactCache.class);
+
+    private static final String FILE_SUFFIX = ".artifact";
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Path diskDir;
+    private final int maxDiskEntries;
+
+    private final LinkedHashMap<String, CompiledArtifact> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Path> diskIndex = new LinkedHashMap<>();
+    private long currentBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ArtifactCache(int maxEntries, long maxBytes, Path diskDir, int maxDiskEntries) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.diskDir = diskDir;
+        this.maxDiskEntries = maxDiskEntries;
+        if (diskDir != null) {
+            loadDiskIndex();
+        }
+    }
+
+    /**
+     * Memory-only cache
+     */
+    public ArtifactCache(int maxEntries, long maxBytes) {
+        this(maxEntries, maxBytes, null, 0);
+    }
+
+    /**
+     * Content hash of everything that influences the instrumented and compiled output
+     */
+    public static String key(String className, String sourceCode, String options) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[] {className, sourceCode, options}) {
+                byte[] bytes = String.valueOf(part).getBytes(StandardCharsets.UTF_8);
+                digest.update((byte) (bytes.length >>> 24));
+                digest.update((byte) (bytes.length >>> 16));
+                digest.update((byte) (bytes.length >>> 8));
+                digest.update((byte) bytes.length);
+                digest.update(bytes);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public CompiledArtifact get(String key) {
+        synchronized (this) {
+            CompiledArtifact artifact = entries.get(key);
+            if (artifact != null) {
+                hits.incrementAndGet();
+                return artifact;
+            }
+        }
+        CompiledArtifact artifact = readFromDisk(key);
+        if (artifact != null) {
+            diskHits.incrementAndGet();
+            putInMemory(key, artifact);
+            return artifact;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, CompiledArtifact artifact) {
+        putInMemory(key, artifact);
+        writeToDisk(key, artifact);
+    }
+
+    private synchronized void putInMemory(String key, CompiledArtifact artifact) {
+        long size = artifact.sizeInBytes();
+        if (size > maxBytes) {
+            return; // Would evict everything else and still not fit
+        }
+        CompiledArtifact previous = entries.put(key, artifact);
+        if (previous != null) {
+            currentBytes -= previous.sizeInBytes();
+        }
+        currentBytes += size;
+
+        Iterator<Map.Entry<String, CompiledArtifact>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || currentBytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, CompiledArtifact> entry = eldest.next();
+            currentBytes -= entry.getValue().sizeInBytes();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private CompiledArtifact readFromDisk(String key) {
+        Path file;
+        synchronized (diskIndex) {
+            file = diskIndex.get(key);
+        }
+        if (file == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return CompiledArtifact.readFrom(in);
+        } catch (IOException e) {
+            synchronized (diskIndex) {
+                diskIndex.remove(key);
+            }
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, CompiledArtifact artifact) {
+        if (diskDir == null) {
+            return;
+        }
+        Path file = diskDir.resolve(key + FILE_SUFFIX);
+        try {
+            Path temp = Files.createTempFile(diskDir, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                artifact.writeTo(out);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to write cached artifact {}: {}", file, e.getMessage());
+            return;
+        }
+
+        synchronized (diskIndex) {
+            diskIndex.remove(key);
+            diskIndex.put(key, file);
+            Iterator<Path> oldest = diskIndex.values().iterator();
+            while (diskIndex.size() > maxDiskEntries && oldest.hasNext()) {
+                Path stale = oldest.next();
+                oldest.remove();
+                try {
+                    Files.deleteIfExists(stale);
+                } catch (IOException e) {
+                    // Retried implicitly the next time the index is loaded
+                }
+            }
+        }
+    }
+
+    private void loadDiskIndex() {
+        try {
+            Files.createDirectories(diskDir);
+            try (Stream<Path> files = Files.list(diskDir)) {
+                files.filter(p -> p.getFileName().toString().endsWith(FILE_SUFFIX))
+                     .sorted(Comparator.comparingLong(p -> p.toFile().lastModified()))
+                     .forEach(p -> {
+                         String name = p.getFileName().toString();
+                         diskIndex.put(name.substring(0, name.length() - FILE_SUFFIX.length()), p);
+                     });
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read artifact cache directory {}: {}", diskDir, e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("entries", entries.size());
+            stats.put("bytes", currentBytes);
+        }
+        synchronized (diskIndex) {
+            stats.put("diskEntries", diskIndex.size());
+        }
+        stats.put("hits", hits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getDiskHits() { return diskHits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+}
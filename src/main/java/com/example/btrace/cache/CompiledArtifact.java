@@ -0,0 +1,69 @@
+package com.example.btrace.cache;
+
+import com.example.btrace.trace.TraceSymbols;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Instrumented source, compiled class bytes and trace symbol table for one
+ * (className, sourceCode, options) key
+ */
+public class CompiledArtifact {
+
+    private final String instrumentedCode;
+    private final Map<String, byte[]> classes;
+    private final TraceSymbols symbols;
+
+    public CompiledArtifact(String instrumentedCode, Map<String, byte[]> classes, TraceSymbols symbols) {
+        this.instrumentedCode = instrumentedCode;
+        this.classes = Collections.unmodifiableMap(new LinkedHashMap<>(classes));
+        this.symbols = symbols;
+    }
+
+    public String getInstrumentedCode() { return instrumentedCode; }
+    public Map<String, byte[]> getClasses() { return classes; }
+    public TraceSymbols getSymbols() { return symbols; }
+
+    /**
+     * Approximate heap footprint, used for size-based eviction
+     */
+    public long sizeInBytes() {
+        long size = 2L * instrumentedCode.length();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            size += 2L * entry.getKey().length() + entry.getValue().length;
+        }
+        size += 32L * symbols.size();
+        return size;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        byte[] code = instrumentedCode.getBytes("UTF-8");
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeInt(classes.size());
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+        symbols.writeTo(out);
+    }
+
+    static CompiledArtifact readFrom(DataInputStream in) throws IOException {
+        byte[] code = new byte[in.readInt()];
+        in.readFully(code);
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            classes.put(name, bytes);
+        }
+        TraceSymbols symbols = TraceSymbols.readFrom(in);
+        return new CompiledArtifact(new String(code, "UTF-8"), classes, symbols);
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.btrace.compiler;
+
+import com.example.btrace.runtime.RuntimeClasspath;
+
+import javax.tools.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compiles Java source held in memory using the JDK compiler API.
+ * No source or class files are written to disk; class bytes are collected
+ * in memory and diagnostics are returned as structured errors.
+ */
+public class InMemoryCompiler {
+
+    private final JavaCompiler compiler;
+    private final List<String> options;
+
+    // javac's standard file manager is not thread-safe, so each compiling thread keeps its own
+    private final ThreadLocal<StandardJavaFileManager> standardFileManager;
+
+    public InMemoryCompiler() {
+        this(RuntimeClasspath.get().toString());
+    }
+
+    /**
+     * @param classpath classpath visible to compiled sources (the tracing runtime)
+     */
+    public InMemoryCompiler(String classpath) {
+        this.options = Arrays.asList("-g", "-proc:none", "-Xlint:none", "-classpath", classpath);
+        this.compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No system Java compiler available - run the service on a JDK, not a JRE");
+        }
+        this.standardFileManager = ThreadLocal.withInitial(
+            () -> compiler.getStandardFileManager(null, Locale.ROOT, StandardCharsets.UTF_8));
+    }
+
+    public CompilationResult compile(String className, String sourceCode) {
+        return compile(Collections.singletonMap(className, sourceCode));
+    }
+
+    /**
+     * Compiles a set of compilation units, keyed by their top-level class name.
+     */
+    public CompilationResult compile(Map<String, String> sources) {
+        return compile(sources, Collections.emptyMap());
+    }
+
+    /**
+     * Compiles a set of compilation units against classes compiled earlier, e.g. to recompile
+     * one class of a program without the others
+     * @param classpath class bytes by binary name, visible to the sources but not recompiled
+     */
+    public CompilationResult compile(Map<String, String> sources, Map<String, byte[]> classpath) {
+        List<JavaFileObject> units = new ArrayList<>();
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            units.add(new SourceFile(entry.getKey(), entry.getValue()));
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        MemoryFileManager fileManager = new MemoryFileManager(standardFileManager.get(), classpath);
+
+        boolean compiled = compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+
+        List<CompilationError> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(CompilationError.from(diagnostic));
+            }
+        }
+
+        if (!compiled || !errors.isEmpty()) {
+            return CompilationResult.failure(errors);
+        }
+        return CompilationResult.success(fileManager.getClassBytes());
+    }
+
+    /**
+     * Source compilation unit backed by a String
+     */
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String source;
+
+        SourceFile(String className, String source) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return source;
+        }
+    }
+
+    /**
+     * Class output backed by a byte array
+     */
+    private static class ClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        ClassFile(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+
+        byte[] getBytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Class input backed by a byte array
+     */
+    private static class ClassInput extends SimpleJavaFileObject {
+        private final String className;
+        private final byte[] bytes;
+
+        ClassInput(String className, byte[] bytes) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.className = className;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    /**
+     * File manager that captures generated classes in memory, adds the in-memory classpath
+     * classes to the class path, and delegates everything else (platform classes, options) to
+     * the standard file manager.
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, ClassFile> outputs = new LinkedHashMap<>();
+        private final Map<String, byte[]> classpath;
+
+        MemoryFileManager(StandardJavaFileManager delegate, Map<String, byte[]> classpath) {
+            super(delegate);
+            this.classpath = classpath;
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds,
+                                             boolean recurse) throws IOException {
+            Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+            if (classpath.isEmpty() || location != StandardLocation.CLASS_PATH
+                    || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+                return listed;
+            }
+            List<JavaFileObject> files = new ArrayList<>();
+            for (Map.Entry<String, byte[]> entry : classpath.entrySet()) {
+                String name = entry.getKey();
+                String classPackage = name.lastIndexOf('.') < 0 ? "" : name.substring(0, name.lastIndexOf('.'));
+                if (classPackage.equals(packageName) || (recurse && classPackage.startsWith(packageName + "."))) {
+                    files.add(new ClassInput(name, entry.getValue()));
+                }
+            }
+            listed.forEach(files::add);
+            return files;
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            return file instanceof ClassInput ? ((ClassInput) file).className : super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            ClassFile file = new ClassFile(className);
+            outputs.put(className, file);
+            return file;
+        }
+
+        @Override
+        public void close() {
+            // The shared standard file manager outlives a single compilation
+        }
+
+        Map<String, byte[]> getClassBytes() {
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (Map.Entry<String, ClassFile> entry : outputs.entrySet()) {
+                classes.put(entry.getKey(), entry.getValue().getBytes());
+            }
+            return classes;
+        }
+    }
+
+    /**
+     * Result of an in-memory compilation
+     */
+    public static class CompilationResult {
+        private final boolean success;
+        private final Map<String, byte[]> classes;
+        private final List<CompilationError> errors;
+
+        private CompilationResult(boolean success, Map<String, byte[]> classes, List<CompilationError> errors) {
+            this.success = success;
+            this.classes = classes;
+            this.errors = errors;
+        }
+
+        public static CompilationResult success(Map<String, byte[]> classes) {
+            return new CompilationResult(true, classes, Collections.emptyList());
+        }
+
+        public static CompilationResult failure(List<CompilationError> errors) {
+            return new CompilationResult(false, Collections.emptyMap(), errors);
+        }
+
+        // Getters
+        public boolean isSuccess() { return success; }
+        public Map<String, byte[]> getClasses() { return classes; }
+        public List<CompilationError> getErrors() { return errors; }
+    }
+
+    /**
+     * A single compiler diagnostic
+     */
+    public static class CompilationError {
+        private final long line;
+        private final long column;
+        private final String code;
+        private final String message;
+
+        public CompilationError(long line, long column, String code, String message) {
+            this.line = line;
+            this.column = column;
+            this.code = code;
+            this.message = message;
+        }
+
+        static CompilationError from(Diagnostic<? extends JavaFileObject> diagnostic) {
+            return new CompilationError(
+                diagnostic.getLineNumber(),
+                diagnostic.getColumnNumber(),
+                diagnostic.getCode(),
+                diagnostic.getMessage(Locale.ROOT)
+            );
+        }
+
+        // Getters
+        public long getLine() { return line; }
+        public long getColumn() { return column; }
+        public String getCode() { return code; }
+        public String getMessage() { return message; }
+
+        @Override
+        public String toString() {
+            return "line " + line + ":" + column + " " + message;
+        }
+    }
+}
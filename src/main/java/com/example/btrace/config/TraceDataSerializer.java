@@ -0,0 +1,64 @@
+package com.example.btrace.config;
+
+import com.example.btrace.trace.TraceData;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * Writes a {@link TraceData} as the usual array of event objects straight from its columns,
+ * instead of letting Jackson build and walk one map per event
+ */
+public class TraceDataSerializer extends StdSerializer<TraceData> {
+
+    private static final long serialVersionUID = 1L;
+
+    public TraceDataSerializer() {
+        super(TraceData.class);
+    }
+
+    @Override
+    public void serialize(TraceData trace, JsonGenerator out, SerializerProvider provider) throws IOException {
+        out.writeStartArray();
+        for (int i = 0; i < trace.size(); i++) {
+            out.writeStartObject();
+            if (trace.getStep(i) != TraceData.NO_STEP) {
+                out.writeNumberField("step", trace.getStep(i));
+            }
+            if (trace.getLine(i) != TraceData.NO_LINE) {
+                out.writeNumberField("line", trace.getLine(i));
+            }
+            if (trace.getEventType(i) != null) {
+                out.writeStringField("event_type", trace.getEventType(i));
+            }
+            if (trace.getAction(i) != null) {
+                out.writeStringField("action", trace.getAction(i));
+            }
+            int start = trace.cellStart(i);
+            int end = trace.cellEnd(i);
+            if (trace.hasVars(i)) {
+                out.writeObjectFieldStart("vars");
+                for (int c = start; c < end; c++) {
+                    if (trace.isVar(c)) {
+                        out.writeFieldName(trace.cellName(c));
+                        provider.defaultSerializeValue(trace.cellValue(c), out);
+                    }
+                }
+                out.writeEndObject();
+            }
+            if (trace.getTimestamp(i) != TraceData.NO_TIMESTAMP) {
+                out.writeNumberField("timestamp", trace.getTimestamp(i));
+            }
+            for (int c = start; c < end; c++) {
+                if (!trace.isVar(c)) {
+                    out.writeFieldName(trace.cellName(c));
+                    provider.defaultSerializeValue(trace.cellValue(c), out);
+                }
+            }
+            out.writeEndObject();
+        }
+        out.writeEndArray();
+    }
+}
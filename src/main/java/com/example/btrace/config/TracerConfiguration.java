@@ -0,0 +1,152 @@
+package com.example.btrace.config;
+
+import com.example.btrace.ast.ASTTracer;
+import com.example.btrace.ast.TraceLimits;
+import com.example.btrace.cache.ArtifactCache;
+import com.example.btrace.dto.TraceResponse;
+import com.example.btrace.executor.SingleFlight;
+import com.example.btrace.executor.TraceScheduler;
+import com.example.btrace.executor.WorkerPool;
+import com.example.btrace.metrics.TraceMetrics;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceRepository;
+import com.example.btrace.trace.TraceStore;
+import com.example.btrace.tracer.BTraceEngine;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Wires the tracing pipeline from application.properties
+ */
+@Configuration
+public class TracerConfiguration {
+
+    @Bean
+    public TraceMetrics traceMetrics() {
+        return new TraceMetrics();
+    }
+
+    /**
+     * Picked up by Spring's JSON converter: traces in responses are written from their columns
+     */
+    @Bean
+    public Module traceDataModule() {
+        SimpleModule module = new SimpleModule("trace-data");
+        module.addSerializer(TraceData.class, new TraceDataSerializer());
+        return module;
+    }
+
+    @Bean(destroyMethod = "close")
+    public WorkerPool workerPool(
+            @Value("${trace.executor.pool-size:4}") int poolSize,
+            @Value("${trace.executor.max-runs-per-worker:50}") int maxRunsPerWorker,
+            @Value("${trace.executor.timeout-ms:5000}") long timeoutMillis,
+            @Value("${trace.executor.jvm-options:}") List<String> jvmOptions,
+            TraceMetrics metrics) throws IOException {
+        WorkerPool pool = new WorkerPool(poolSize, maxRunsPerWorker, timeoutMillis, jvmOptions);
+        metrics.gauge("workers_active", "Worker JVMs running a job", pool::getActiveWorkers);
+        metrics.gauge("workers_idle", "Started worker JVMs waiting for a job", pool::getIdleWorkers);
+        return pool;
+    }
+
+    @Bean(destroyMethod = "close")
+    public TraceScheduler traceScheduler(
+            @Value("${trace.scheduler.parallelism:0}") int parallelism,
+            @Value("${trace.scheduler.queue-depth:64}") int queueDepth,
+            TraceMetrics metrics) {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        TraceScheduler scheduler = new TraceScheduler(threads, queueDepth, metrics);
+        metrics.gauge("scheduler_queue_depth", "Jobs waiting in the scheduler queue", scheduler::getQueueDepth);
+        metrics.gauge("scheduler_active_jobs", "Jobs being compiled or run", scheduler::getActiveJobs);
+        return scheduler;
+    }
+
+    @Bean
+    public ArtifactCache artifactCache(
+            @Value("${trace.cache.max-entries:256}") int maxEntries,
+            @Value("${trace.cache.max-bytes:67108864}") long maxBytes,
+            @Value("${trace.cache.disk-dir:}") String diskDir,
+            @Value("${trace.cache.max-disk-entries:4096}") int maxDiskEntries) {
+        Path dir = diskDir.trim().isEmpty() ? null : Paths.get(diskDir.trim());
+        return new ArtifactCache(maxEntries, maxBytes, dir, maxDiskEntries);
+    }
+
+    @Bean
+    public SingleFlight<TraceResponse> traceExecutions(
+            @Value("${trace.dedup.result-ttl-ms:2000}") long resultTtlMillis,
+            @Value("${trace.dedup.max-results:256}") int maxResults,
+            TraceMetrics metrics) {
+        SingleFlight<TraceResponse> executions = new SingleFlight<>(resultTtlMillis, maxResults);
+        metrics.counter("dedup_executions_total", "Trace executions started by /execute", executions::getExecutions);
+        metrics.counter("dedup_coalesced_total", "Requests that joined an identical running trace",
+                        executions::getCoalesced);
+        metrics.counter("dedup_cache_hits_total", "Requests answered with a recent identical result",
+                        executions::getCacheHits);
+        return executions;
+    }
+
+    @Bean
+    public TraceLimits traceLimits(
+            @Value("${trace.output.max-bytes:8388608}") long maxOutputBytes,
+            @Value("${trace.output.max-events:100000}") int maxEvents,
+            @Value("${trace.output.max-call-depth:0}") int maxCallDepth,
+            @Value("${trace.output.max-loop-iterations:0}") int maxLoopIterations,
+            @Value("${trace.output.max-memory-bytes:67108864}") long maxMemoryBytes) {
+        return new TraceLimits(maxOutputBytes, maxEvents)
+            .withMaxCallDepth(maxCallDepth)
+            .withMaxLoopIterations(maxLoopIterations)
+            .withMaxMemoryBytes(maxMemoryBytes);
+    }
+
+    @Bean
+    public TraceRepository traceRepository(
+            @Value("${trace.store.max-traces:64}") int maxTraces,
+            @Value("${trace.store.keyframe-interval:256}") int keyframeInterval) {
+        return new TraceRepository(maxTraces, keyframeInterval);
+    }
+
+    @Bean(destroyMethod = "close")
+    public TraceStore traceStore(
+            @Value("${trace.store.disk-dir:}") String diskDir,
+            @Value("${trace.store.segment-bytes:67108864}") long segmentBytes,
+            @Value("${trace.store.max-disk-bytes:1073741824}") long maxDiskBytes,
+            @Value("${trace.store.max-age-minutes:1440}") long maxAgeMinutes,
+            TraceMetrics metrics) {
+        Path dir = diskDir.trim().isEmpty() ? null : Paths.get(diskDir.trim());
+        TraceStore store = new TraceStore(dir, segmentBytes, maxDiskBytes, maxAgeMinutes * 60_000L);
+        metrics.gauge("store_bytes", "Disk taken by trace store segments", store::getBytes);
+        metrics.gauge("store_traces", "Traces in the trace store", store::getTraceCount);
+        return store;
+    }
+
+    /**
+     * The target JVM is started by the first btrace request, so an unused engine costs nothing
+     */
+    @Bean(destroyMethod = "close")
+    public BTraceEngine btraceEngine(
+            @Value("${trace.btrace.home:}") String btraceHome,
+            @Value("${trace.btrace.work-dir:${java.io.tmpdir}/btrace-jobs}") String workDir,
+            @Value("${trace.btrace.attach-timeout-ms:30000}") long attachTimeoutMillis,
+            @Value("${trace.executor.timeout-ms:5000}") long timeoutMillis,
+            @Value("${trace.executor.jvm-options:}") List<String> jvmOptions,
+            TraceMetrics metrics) {
+        return new BTraceEngine(btraceHome, Paths.get(workDir.trim()), jvmOptions, attachTimeoutMillis,
+                                timeoutMillis, metrics);
+    }
+
+    @Bean
+    public ASTTracer astTracer(WorkerPool workerPool, ArtifactCache artifactCache, TraceLimits traceLimits,
+                               TraceMetrics metrics,
+                               @Value("${trace.metrics.log-sample-rate:0.01}") double logSampleRate,
+                               @Value("${trace.session.max-sessions:64}") int maxSessions) {
+        return new ASTTracer(workerPool, artifactCache, traceLimits, metrics, logSampleRate, maxSessions);
+    }
+}
@@ -2,74 +2,522 @@
 package com.example.btrace.controller;
 
 import com.example.btrace.ast.ASTTracer;
+import com.example.btrace.ast.ASTTracer.BatchResult;
+import com.example.btrace.ast.ASTTracer.CaseResult;
 import com.example.btrace.ast.ASTTracer.TraceResult;
+import com.example.btrace.ast.InstrumentationMode;
+import com.example.btrace.ast.TraceLimits;
+import com.example.btrace.ast.TraceRun;
+import com.example.btrace.cache.ArtifactCache;
+import com.example.btrace.dto.BatchTraceResponse;
+import com.example.btrace.dto.BatchTraceResponse.CaseTrace;
 import com.example.btrace.dto.TraceRequest;
 import com.example.btrace.dto.TraceResponse;
+import com.example.btrace.executor.SingleFlight;
+import com.example.btrace.executor.TraceScheduler;
+import com.example.btrace.executor.TraceScheduler.SchedulerBusyException;
+import com.example.btrace.metrics.TraceMetrics;
+import com.example.btrace.metrics.TraceMetrics.Stage;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceRepository;
+import com.example.btrace.trace.TraceStore;
+import com.example.btrace.trace.TraceTimeline;
+import com.example.btrace.tracer.BTraceEngine;
+import com.example.btrace.tracer.TraceEngine;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 
 @RestController
 @RequestMapping("/api/trace")
 @CrossOrigin(origins = "*") // Allow CORS for frontend integration
 public class BTraceController {
 
-    private final ASTTracer astTracer = new ASTTracer();
+    /** Upper bound for one streamed trace: queueing, compilation and the execution timeout */
+    private static final long STREAM_TIMEOUT_MS = 120_000L;
 
+    /** Events per page of GET /{traceId}/events, by default and at most */
+    private static final int DEFAULT_PAGE_EVENTS = 500;
+    private static final int MAX_PAGE_EVENTS = 10_000;
+
+    /** Session ids are client-chosen keys; this bounds what one can make the server hold */
+    private static final int MAX_SESSION_ID_LENGTH = 128;
+
+    /** Sources using any of these may trace differently on every run, so their results are not reused */
+    private static final Pattern NONDETERMINISTIC = Pattern.compile(
+        "\\b(Random|SecureRandom|ThreadLocalRandom|random|shuffle|UUID|currentTimeMillis|nanoTime|now|Thread"
+            + "|hashCode|identityHashCode|getenv|getProperty|Scanner|System\\.in)\\b");
+
+    private final ASTTracer astTracer;
+    private final BTraceEngine btraceEngine;
+    private final ArtifactCache artifactCache;
+    private final TraceScheduler scheduler;
+    private final TraceRepository traceRepository;
+    private final TraceStore traceStore;
+    private final TraceMetrics metrics;
+    private final SingleFlight<TraceResponse> executions;
+
+    public BTraceController(ASTTracer astTracer, BTraceEngine btraceEngine, ArtifactCache artifactCache,
+                            TraceScheduler scheduler, TraceRepository traceRepository, TraceStore traceStore,
+                            TraceMetrics metrics, SingleFlight<TraceResponse> executions) {
+        this.astTracer = astTracer;
+        this.btraceEngine = btraceEngine;
+        this.artifactCache = artifactCache;
+        this.scheduler = scheduler;
+        this.traceRepository = traceRepository;
+        this.traceStore = traceStore;
+        this.metrics = metrics;
+        this.executions = executions;
+    }
+
+    /**
+     * Traces one run of the method with the requested engine ({@code "ast"} by default, or
+     * {@code "btrace"}). {@code offset} / {@code limit} return a window of the events,
+     * {@code fields} keeps only the listed event fields and {@code rawOutput=omit} leaves out the
+     * program output; the whole trace is still stored under the returned trace id.
+     */
     @PostMapping("/execute")
-    public ResponseEntity<TraceResponse> executeTrace(@RequestBody TraceRequest request) {
+    public CompletableFuture<ResponseEntity<TraceResponse>> executeTrace(@RequestBody TraceRequest request,
+                                                                         @RequestParam(required = false) Integer offset,
+                                                                         @RequestParam(required = false) Integer limit,
+                                                                         @RequestParam(required = false) String fields,
+                                                                         @RequestParam(required = false) String rawOutput) {
         // Validate request
-        if (request.getClassName() == null || request.getClassName().trim().isEmpty()) {
+        TraceResponse invalid = validate(request);
+        if (invalid != null) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(invalid));
+        }
+        TraceView view;
+        try {
+            view = TraceView.of(offset, limit, fields, rawOutput);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(
+                new TraceResponse(false, e.getMessage(), null, null)));
+        }
+
+        try {
+            // Execute trace using the requested engine on the bounded job scheduler.
+            // Identical concurrent requests share one execution; repeatable results are reused briefly.
+            TraceEngine engine = TraceEngine.fromString(request.getEngine());
+            InstrumentationMode mode = InstrumentationMode.fromString(request.getInstrumentation());
+            TraceLimits limits = limitsFor(request);
+            boolean deterministic = isDeterministic(request.getSourceCode());
+            return executions.run(requestKey(request, engine, mode, limits),
+                    () -> scheduler.submit(() -> engine == TraceEngine.BTRACE
+                        ? btraceEngine.trace(
+                            request.getClassName(),
+                            request.getMethodName(),
+                            request.getSourceCode(),
+                            limits)
+                        : astTracer.executeAndTrace(traceRun(request, mode, limits)))
+                        .thenApply(result -> toExecuteResponse(result, engine)),
+                    response -> deterministic && isRepeatable(response))
+                .thenApply(view::apply)
+                .thenApply(ResponseEntity::ok)
+                .exceptionally(e -> {
+                    if (e.getCause() instanceof SchedulerBusyException) {
+                        // Joined a request the scheduler turned away
+                        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(
+                            new TraceResponse(false, e.getCause().getMessage(), new ArrayList<>(), null));
+                    }
+                    return ResponseEntity.status(500).body(new TraceResponse(
+                        false, 
+                        TraceEngine.fromString(request.getEngine()).getLabel() + " trace failed: " + e.getMessage(),
+                        new ArrayList<>(),
+                        null
+                    ));
+                });
+        } catch (SchedulerBusyException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(
+                new TraceResponse(false, e.getMessage(), new ArrayList<>(), null)
+            ));
+        }
+    }
+
+    /**
+     * Streams trace events as newline-delimited JSON while the program runs
+     * (see {@link TraceStreamWriter} for the line format); {@code fields} and {@code rawOutput}
+     * work as for /execute
+     */
+    @PostMapping(value = "/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> streamTrace(@RequestBody TraceRequest request,
+                                                           @RequestParam(required = false) String fields,
+                                                           @RequestParam(required = false) String rawOutput) {
+        TraceResponse invalid = validate(request);
+        if (invalid == null) {
+            invalid = astOnly(request, "/stream");
+        }
+        if (invalid != null) {
+            return ResponseEntity.badRequest().body(TraceStreamWriter.rejected(invalid));
+        }
+        TraceView view;
+        try {
+            view = TraceView.of(null, null, fields, rawOutput);
+        } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(
-                new TraceResponse(false, "Class name is required", null, null)
-            );
+                TraceStreamWriter.rejected(new TraceResponse(false, e.getMessage(), null, null)));
+        }
+
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(STREAM_TIMEOUT_MS);
+        TraceStreamWriter writer = new TraceStreamWriter(emitter, traceRepository.newTimeline(),
+            traceStore.isEnabled() ? traceStore.builder() : null, metrics, view);
+        try {
+            InstrumentationMode mode = InstrumentationMode.fromString(request.getInstrumentation());
+            TraceLimits limits = limitsFor(request);
+            scheduler.submit(() -> astTracer.streamTrace(traceRun(request, mode, limits), writer))
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        writer.fail(error);
+                    } else {
+                        TraceResponse response = toTraceResponse(result, TraceEngine.AST);
+                        if (result.isSuccess()) {
+                            String traceId = traceRepository.save(writer.getTimeline());
+                            store(traceId, writer.getStored());
+                            response.setTraceId(traceId);
+                        }
+                        writer.finish(response);
+                    }
+                });
+        } catch (SchedulerBusyException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(
+                TraceStreamWriter.rejected(new TraceResponse(false, e.getMessage(), null, null)));
+        }
+        return ResponseEntity.ok(emitter);
+    }
+
+    /**
+     * Traces the method once per entry of {@code testInputs} with a single compile, returning one
+     * trace per input. {@code parallelism} spreads the inputs over that many worker JVMs.
+     * {@code offset}, {@code limit}, {@code fields} and {@code rawOutput} apply to every case as for /execute.
+     */
+    @PostMapping("/batch")
+    public CompletableFuture<ResponseEntity<BatchTraceResponse>> batchTrace(@RequestBody TraceRequest request,
+                                                                            @RequestParam(required = false) Integer offset,
+                                                                            @RequestParam(required = false) Integer limit,
+                                                                            @RequestParam(required = false) String fields,
+                                                                            @RequestParam(required = false) String rawOutput) {
+        TraceResponse invalid = validate(request);
+        if (invalid == null && (request.getTestInputs() == null || request.getTestInputs().isEmpty())) {
+            invalid = new TraceResponse(false, "Test inputs are required", null, null);
+        }
+        if (invalid == null && isNegative(request.getParallelism())) {
+            invalid = new TraceResponse(false, "Parallelism must not be negative", null, null);
+        }
+        if (invalid == null) {
+            invalid = astOnly(request, "/batch");
+        }
+        if (invalid != null) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(
+                new BatchTraceResponse(false, invalid.getMessage(), new ArrayList<>())));
+        }
+        TraceView view;
+        try {
+            view = TraceView.of(offset, limit, fields, rawOutput);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(
+                new BatchTraceResponse(false, e.getMessage(), new ArrayList<>())));
+        }
+
+        try {
+            InstrumentationMode mode = InstrumentationMode.fromString(request.getInstrumentation());
+            TraceLimits limits = limitsFor(request);
+            int parallelism = request.getParallelism() != null ? request.getParallelism() : 1;
+            TraceRun run = new TraceRun(request.getClassName(), request.getMethodName(), request.getSourceCode())
+                .withMode(mode)
+                .withLimits(limits);
+            return scheduler.submit(() -> astTracer.traceBatch(run, request.getTestInputs(), parallelism))
+                .thenApply(result -> toBatchResponse(result, view))
+                .exceptionally(e -> ResponseEntity.status(500).body(new BatchTraceResponse(
+                    false,
+                    "AST trace failed: " + e.getMessage(),
+                    new ArrayList<>()
+                )));
+        } catch (SchedulerBusyException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(
+                new BatchTraceResponse(false, e.getMessage(), new ArrayList<>())
+            ));
+        }
+    }
+
+    private TraceResponse validate(TraceRequest request) {
+        if (request.getClassName() == null || request.getClassName().trim().isEmpty()) {
+            return new TraceResponse(false, "Class name is required", null, null);
         }
         
         if (request.getMethodName() == null || request.getMethodName().trim().isEmpty()) {
-            return ResponseEntity.badRequest().body(
-                new TraceResponse(false, "Method name is required", null, null)
-            );
+            return new TraceResponse(false, "Method name is required", null, null);
         }
         
         if (request.getSourceCode() == null || request.getSourceCode().trim().isEmpty()) {
-            return ResponseEntity.badRequest().body(
-                new TraceResponse(false, "Source code is required", null, null)
-            );
+            return new TraceResponse(false, "Source code is required", null, null);
         }
-
+        
         try {
-            // Execute trace using AST-based approach
-            TraceResult result = astTracer.executeAndTrace(
-                request.getClassName(), 
-                request.getMethodName(), 
-                request.getSourceCode()
-            );
-            
-            if (result.isSuccess()) {
-                return ResponseEntity.ok(new TraceResponse(
-                    true, 
-                    "AST-based trace completed with " + result.getTrace().size() + " events",
-                    result.getTrace(),
-                    result.getRawOutput()
-                ));
-            } else {
-                return ResponseEntity.ok(new TraceResponse(
-                    false, 
-                    result.getMessage(),
-                    new ArrayList<>(),
-                    null
-                ));
+            InstrumentationMode.fromString(request.getInstrumentation());
+            TraceEngine.fromString(request.getEngine());
+        } catch (IllegalArgumentException e) {
+            return new TraceResponse(false, e.getMessage(), null, null);
+        }
+        
+        if (isNegative(request.getMaxEvents()) || isNegative(request.getMaxBytes())
+                || isNegative(request.getMaxLoopIterations())) {
+            return new TraceResponse(false, "Budgets must not be negative", null, null);
+        }
+        
+        if (request.getSessionId() != null && request.getSessionId().length() > MAX_SESSION_ID_LENGTH) {
+            return new TraceResponse(false, "Session id must be at most " + MAX_SESSION_ID_LENGTH + " characters",
+                                     null, null);
+        }
+        return null;
+    }
+
+    /**
+     * Rejects engines other than AST on endpoints only it implements
+     */
+    private static TraceResponse astOnly(TraceRequest request, String endpoint) {
+        TraceEngine engine = TraceEngine.fromString(request.getEngine());
+        if (engine != TraceEngine.AST) {
+            return new TraceResponse(false, "The " + engine.name().toLowerCase(Locale.ROOT)
+                + " engine does not support " + endpoint + "; use /execute", null, null);
+        }
+        return null;
+    }
+
+    private static boolean isNegative(Number value) {
+        return value != null && value.longValue() < 0;
+    }
+
+    /**
+     * The server's limits lowered to the budgets the request asked for
+     */
+    private TraceLimits limitsFor(TraceRequest request) {
+        return astTracer.getLimits().narrow(request.getMaxBytes(), request.getMaxEvents(),
+                                            request.getMaxLoopIterations());
+    }
+
+    private static TraceRun traceRun(TraceRequest request, InstrumentationMode mode, TraceLimits limits) {
+        return new TraceRun(request.getClassName(), request.getMethodName(), request.getSourceCode())
+            .withMode(mode)
+            .withLimits(limits)
+            .withSession(request.getSessionId());
+    }
+
+    private TraceResponse toExecuteResponse(TraceResult result, TraceEngine engine) {
+        TraceResponse response = toTraceResponse(result, engine);
+        if (result.isSuccess()) {
+            response.setTraceId(saveTimeline(result.getTrace()));
+        }
+        return response;
+    }
+
+    /**
+     * Everything that decides the outcome of an /execute request
+     */
+    private static String requestKey(TraceRequest request, TraceEngine engine, InstrumentationMode mode,
+                                     TraceLimits limits) {
+        String call = request.getMethodName() + "\n" + request.getTestInputs();
+        String options = engine + "/" + mode + "/" + limits.getMaxOutputBytes() + "/" + limits.getMaxEvents() + "/"
+            + limits.getMaxCallDepth() + "/" + limits.getMaxLoopIterations();
+        return ArtifactCache.key(request.getClassName(), call + "\n" + request.getSourceCode(), options);
+    }
+
+    /**
+     * Whether the source may trace the same way on every run, as far as its text shows
+     */
+    static boolean isDeterministic(String sourceCode) {
+        return !NONDETERMINISTIC.matcher(sourceCode).find();
+    }
+
+    /**
+     * Whether running the same request again gives the same trace: a timeout depends on load,
+     * while budgets cut a deterministic program at the same step every time
+     */
+    static boolean isRepeatable(TraceResponse response) {
+        return response.isSuccess() && (!response.isTruncated() || response.getBudget() != null);
+    }
+
+    /**
+     * Indexes a finished trace for time-travel stepping and writes it to the trace store
+     * @return the trace id
+     */
+    private String saveTimeline(TraceData trace) {
+        long started = System.nanoTime();
+        TraceTimeline timeline = traceRepository.newTimeline();
+        timeline.appendAll(trace);
+        String traceId = traceRepository.save(timeline);
+        metrics.recordStage(Stage.TIMELINE, System.nanoTime() - started);
+        if (traceStore.isEnabled()) {
+            TraceStore.Builder stored = traceStore.builder();
+            stored.addAll(trace);
+            store(traceId, stored);
+        }
+        return traceId;
+    }
+
+    private void store(String traceId, TraceStore.Builder stored) {
+        if (stored != null) {
+            long started = System.nanoTime();
+            traceStore.append(traceId, stored);
+            metrics.recordStage(Stage.STORE, System.nanoTime() - started);
+        }
+    }
+
+    private TraceResponse toTraceResponse(TraceResult result, TraceEngine engine) {
+        if (result.isSuccess()) {
+            String message = engine.getLabel() + " trace completed with " + result.getEventCount() + " events";
+            if (result.isTruncated()) {
+                message += " (truncated: " + result.getTruncation() + ")";
             }
-            
-        } catch (Exception e) {
-            return ResponseEntity.status(500).body(new TraceResponse(
-                false, 
-                "AST trace failed: " + e.getMessage(),
-                new ArrayList<>(),
-                null
-            ));
+            TraceResponse response = new TraceResponse(true, message, result.getTrace(), result.getRawOutput());
+            response.setTruncated(result.isTruncated());
+            response.setBudget(result.getBudget());
+            return response;
+        }
+        TraceResponse response = new TraceResponse(
+            false, 
+            result.getMessage(),
+            new ArrayList<>(),
+            null
+        );
+        response.setCompilationErrors(result.getCompilationErrors());
+        return response;
+    }
+
+    private ResponseEntity<BatchTraceResponse> toBatchResponse(BatchResult result, TraceView view) {
+        List<CaseTrace> cases = new ArrayList<>();
+        for (CaseResult c : result.getCases()) {
+            CaseTrace trace = new CaseTrace();
+            trace.setInput(c.getInput());
+            trace.setSuccess(c.isSuccess());
+            trace.setMessage(c.getMessage());
+            trace.setReturnValue(c.getReturnValue());
+            trace.setException(c.getException());
+            view.applyTo(trace, c.getTrace(), c.getRawOutput());
+            trace.setTruncated(c.isTruncated());
+            trace.setBudget(c.getBudget());
+            if (c.isSuccess()) {
+                trace.setTraceId(saveTimeline(c.getTrace()));
+            }
+            cases.add(trace);
+        }
+        BatchTraceResponse response = new BatchTraceResponse(result.isSuccess(), result.getMessage(), cases);
+        response.setCompilationErrors(result.getCompilationErrors());
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Full program state (call stack with variables, array contents) after a given step of a
+     * recent trace; defaults to the last step
+     */
+    @GetMapping("/{traceId}/state")
+    public ResponseEntity<Map<String, Object>> traceState(@PathVariable String traceId,
+                                                          @RequestParam(required = false) Integer step) {
+        TraceTimeline timeline = traceRepository.get(traceId);
+        if (timeline == null) {
+            timeline = loadTimeline(traceId);
+        }
+        if (timeline == null) {
+            return ResponseEntity.notFound().build();
+        }
+        int target = step != null ? step : timeline.getLastStep();
+        if (target < 0) {
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("message", "step must not be negative");
+            return ResponseEntity.badRequest().body(error);
+        }
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("traceId", traceId);
+        state.put("lastStep", timeline.getLastStep());
+        state.putAll(timeline.stateAt(target));
+        return ResponseEntity.ok(state);
+    }
+
+    /**
+     * Size and step range of a stored trace
+     */
+    @GetMapping("/{traceId}")
+    public ResponseEntity<Map<String, Object>> traceInfo(@PathVariable String traceId) {
+        Map<String, Object> info = traceStore.info(traceId);
+        return info != null ? ResponseEntity.ok(info) : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * One page of a stored trace's events, from {@code fromStep} up to {@code toStep}; a page
+     * ends on a step boundary and {@code nextStep} is where the next one starts (null at the end)
+     */
+    @GetMapping("/{traceId}/events")
+    public ResponseEntity<Map<String, Object>> traceEvents(@PathVariable String traceId,
+                                                           @RequestParam(defaultValue = "0") int fromStep,
+                                                           @RequestParam(defaultValue = "" + Integer.MAX_VALUE) int toStep,
+                                                           @RequestParam(defaultValue = "" + DEFAULT_PAGE_EVENTS) int limit,
+                                                           @RequestParam(required = false) String fields) {
+        if (fromStep < 0 || toStep < fromStep || limit <= 0) {
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("message", "Expected 0 <= fromStep <= toStep and limit > 0");
+            return ResponseEntity.badRequest().body(error);
         }
+        TraceStore.Page page = traceStore.read(traceId, fromStep, toStep, Math.min(limit, MAX_PAGE_EVENTS));
+        if (page == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("traceId", traceId);
+        body.put("eventCount", page.getEventCount());
+        body.put("firstStep", page.getFirstStep());
+        body.put("lastStep", page.getLastStep());
+        body.put("nextStep", page.getNextStep());
+        body.put("events", TraceView.of(null, null, fields, null).project(page.getEvents()));
+        return ResponseEntity.ok(body);
+    }
+
+    /**
+     * Rebuilds the timeline of a trace that is no longer held in memory from the trace store
+     * @return the timeline, or null if the store does not have the trace either
+     */
+    private TraceTimeline loadTimeline(String traceId) {
+        TraceStore.Page page = traceStore.read(traceId, 0, Integer.MAX_VALUE, MAX_PAGE_EVENTS);
+        if (page == null) {
+            return null;
+        }
+        TraceTimeline timeline = traceRepository.newTimeline();
+        timeline.appendAll(page.getEvents());
+        while (page.getNextStep() != null) {
+            page = traceStore.read(traceId, page.getNextStep(), Integer.MAX_VALUE, MAX_PAGE_EVENTS);
+            if (page == null) {
+                return null; // Dropped by retention meanwhile
+            }
+            timeline.appendAll(page.getEvents());
+        }
+        traceRepository.put(traceId, timeline);
+        return timeline;
+    }
+
+    @GetMapping("/store/stats")
+    public ResponseEntity<Map<String, Object>> storeStats() {
+        return ResponseEntity.ok(traceStore.getStats());
+    }
+
+    @GetMapping("/cache/stats")
+    public ResponseEntity<Map<String, Object>> cacheStats() {
+        return ResponseEntity.ok(artifactCache.getStats());
+    }
+
+    /**
+     * Stage latencies, trace outcomes and pool gauges in the Prometheus text format
+     */
+    @GetMapping(value = "/metrics", produces = TraceMetrics.CONTENT_TYPE)
+    public ResponseEntity<String> metrics() {
+        return ResponseEntity.ok(metrics.render());
     }
 
     @GetMapping("/health")
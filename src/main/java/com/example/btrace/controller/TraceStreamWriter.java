@@ -0,0 +1,148 @@
+package com.example.btrace.controller;
+
+import com.example.btrace.ast.TraceListener;
+import com.example.btrace.dto.TraceResponse;
+import com.example.btrace.metrics.TraceMetrics;
+import com.example.btrace.metrics.TraceMetrics.Stage;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceStore;
+import com.example.btrace.trace.TraceTimeline;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes a trace to the client as newline-delimited JSON while the program runs.
+ * Every trace event is one line, exactly as in {@code TraceResponse.trace}; stream control
+ * lines carry a {@code type} instead: {@code started} once the code compiled, and a final
+ * {@code end} line with the rest of the response (success, message, rawOutput, ...).
+ * Events are written straight from the trace columns; each decoded batch is sent and flushed as one write.
+ */
+class TraceStreamWriter implements TraceListener {
+
+    // Compact output: one JSON document per line, regardless of the pretty-printing setting
+    private static final Gson GSON = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+
+    private final ResponseBodyEmitter emitter;
+    private final TraceTimeline timeline;
+    private final TraceStore.Builder stored;
+    private final TraceMetrics metrics;
+    private final TraceView view;
+    private long timelineNanos = 0;
+    private long serializeNanos = 0;
+    private volatile boolean open = true;
+
+    /**
+     * @param timeline receives every streamed event, or null
+     * @param stored encodes every streamed event for the trace store, or null
+     * @param metrics receives the time spent indexing and serializing events, or null
+     * @param view event fields and output sent to the client; the timeline and store get everything
+     */
+    TraceStreamWriter(ResponseBodyEmitter emitter, TraceTimeline timeline, TraceStore.Builder stored,
+                      TraceMetrics metrics, TraceView view) {
+        this.emitter = emitter;
+        this.timeline = timeline;
+        this.stored = stored;
+        this.metrics = metrics;
+        this.view = view;
+        emitter.onCompletion(() -> open = false);
+        emitter.onTimeout(() -> open = false);
+        emitter.onError(e -> open = false);
+    }
+
+    /**
+     * A stream holding only an end line, for requests rejected before a job starts
+     */
+    static ResponseBodyEmitter rejected(TraceResponse response) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter();
+        new TraceStreamWriter(emitter, null, null, null, TraceView.FULL).finish(response);
+        return emitter;
+    }
+
+    @Override
+    public boolean onStarted(String instrumentedCode) {
+        return send(GSON.toJson(control("started")) + "\n");
+    }
+
+    @Override
+    public boolean onEvents(TraceData events) {
+        long started = System.nanoTime();
+        if (timeline != null) {
+            timeline.appendAll(events);
+        }
+        if (stored != null) {
+            stored.addAll(events);
+        }
+        long indexed = System.nanoTime();
+        StringBuilder lines = new StringBuilder(events.size() * 160);
+        TraceData shown = view.project(events);
+        try {
+            for (int i = 0; i < shown.size(); i++) {
+                shown.writeJson(i, lines);
+                lines.append('\n');
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // StringBuilder does not throw
+        }
+        timelineNanos += indexed - started;
+        serializeNanos += System.nanoTime() - indexed;
+        return send(lines.toString());
+    }
+
+    /**
+     * Sends the end line and closes the stream; the response's trace is omitted
+     */
+    void finish(TraceResponse response) {
+        if (metrics != null && serializeNanos > 0) {
+            metrics.recordStage(Stage.SERIALIZE, serializeNanos);
+            if (timeline != null) {
+                metrics.recordStage(Stage.TIMELINE, timelineNanos);
+            }
+        }
+        response = view.apply(response);
+        response.setTrace(null);
+        JsonObject end = control("end");
+        for (Map.Entry<String, JsonElement> field : GSON.toJsonTree(response).getAsJsonObject().entrySet()) {
+            end.add(field.getKey(), field.getValue());
+        }
+        send(GSON.toJson(end) + "\n");
+        emitter.complete();
+    }
+
+    TraceTimeline getTimeline() {
+        return timeline;
+    }
+
+    TraceStore.Builder getStored() {
+        return stored;
+    }
+
+    void fail(Throwable error) {
+        TraceResponse response = new TraceResponse(false, "AST trace failed: " + error.getMessage(), null, null);
+        finish(response);
+    }
+
+    private static JsonObject control(String type) {
+        JsonObject line = new JsonObject();
+        line.addProperty("type", type);
+        return line;
+    }
+
+    private boolean send(String lines) {
+        if (!open) {
+            return false;
+        }
+        try {
+            emitter.send(lines);
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            open = false; // Client went away; stop the job
+            return false;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.btrace.controller;
+
+import com.example.btrace.dto.TraceResponse;
+import com.example.btrace.trace.TraceData;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The part of a trace a client asked for: a window of events ({@code offset}, {@code limit}),
+ * a subset of event fields ({@code fields=step,vars}) and whether program output is included
+ * ({@code rawOutput=omit}). Responses are copied, never changed, since they may be shared
+ * between requests.
+ */
+final class TraceView {
+
+    static final TraceView FULL = new TraceView(0, null, null, true);
+
+    private final int offset;
+    private final Integer limit;
+    private final Set<String> fields;
+    private final boolean rawOutput;
+
+    private TraceView(int offset, Integer limit, Set<String> fields, boolean rawOutput) {
+        this.offset = offset;
+        this.limit = limit;
+        this.fields = fields;
+        this.rawOutput = rawOutput;
+    }
+
+    /**
+     * @param fields comma-separated event fields to keep, or null / empty for all
+     * @param rawOutput "include" or "omit", or null for include
+     * @throws IllegalArgumentException for a negative offset or limit or an unknown rawOutput option
+     */
+    static TraceView of(Integer offset, Integer limit, String fields, String rawOutput) {
+        if ((offset != null && offset < 0) || (limit != null && limit < 0)) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        boolean includeOutput;
+        if (rawOutput == null || "include".equalsIgnoreCase(rawOutput)) {
+            includeOutput = true;
+        } else if ("omit".equalsIgnoreCase(rawOutput)) {
+            includeOutput = false;
+        } else {
+            throw new IllegalArgumentException("Unknown rawOutput option '" + rawOutput + "' (expected include or omit)");
+        }
+        Set<String> keep = null;
+        if (fields != null && !fields.trim().isEmpty()) {
+            keep = new LinkedHashSet<>();
+            for (String field : fields.split(",")) {
+                if (!field.trim().isEmpty()) {
+                    keep.add(field.trim());
+                }
+            }
+        }
+        return new TraceView(offset != null ? offset : 0, limit, keep, includeOutput);
+    }
+
+    boolean isPaged() {
+        return offset > 0 || limit != null;
+    }
+
+    /**
+     * Copy of {@code full} holding only the requested events, fields and output
+     */
+    TraceResponse apply(TraceResponse full) {
+        TraceResponse response = new TraceResponse(full.isSuccess(), full.getMessage(), null, null);
+        response.setCompilationErrors(full.getCompilationErrors());
+        response.setTruncated(full.isTruncated());
+        response.setBudget(full.getBudget());
+        response.setTraceId(full.getTraceId());
+        applyTo(response, full.getTrace() != null ? TraceData.of(full.getTrace()) : null, full.getRawOutput());
+        return response;
+    }
+
+    /**
+     * Sets the requested window of {@code trace} and, if asked for, {@code rawOutput} on {@code response}
+     */
+    void applyTo(TraceResponse response, TraceData trace, String rawOutput) {
+        response.setRawOutput(this.rawOutput ? rawOutput : null);
+        if (trace == null) {
+            response.setTrace(null);
+            return;
+        }
+        int from = Math.min(offset, trace.size());
+        int to = limit != null ? (int) Math.min((long) from + limit, trace.size()) : trace.size();
+        response.setTrace(isPaged() || fields != null ? trace.copy(from, to, fields) : trace);
+        if (isPaged()) {
+            response.setEventCount(trace.size());
+            response.setNextOffset(to < trace.size() ? to : null);
+        }
+    }
+
+    /**
+     * The events reduced to the requested fields; the same events if all fields were requested
+     */
+    TraceData project(TraceData events) {
+        return fields == null ? events : events.copy(0, events.size(), fields);
+    }
+}
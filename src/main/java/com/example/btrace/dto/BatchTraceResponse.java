@@ -0,0 +1,89 @@
+package com.example.btrace.dto;
+
+import com.example.btrace.compiler.InMemoryCompiler.CompilationError;
+
+import java.util.List;
+
+public class BatchTraceResponse {
+    private boolean success;
+    private String message;
+    private List<CompilationError> compilationErrors;
+    private List<CaseTrace> cases; // one per test input, in request order
+
+    // Constructors
+    public BatchTraceResponse() {}
+
+    public BatchTraceResponse(boolean success, String message, List<CaseTrace> cases) {
+        this.success = success;
+        this.message = message;
+        this.cases = cases;
+    }
+
+    // Getters and Setters
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public List<CompilationError> getCompilationErrors() {
+        return compilationErrors;
+    }
+
+    public void setCompilationErrors(List<CompilationError> compilationErrors) {
+        this.compilationErrors = compilationErrors;
+    }
+
+    public List<CaseTrace> getCases() {
+        return cases;
+    }
+
+    public void setCases(List<CaseTrace> cases) {
+        this.cases = cases;
+    }
+
+    /**
+     * The trace of one test input, plus what the method returned or threw
+     */
+    public static class CaseTrace extends TraceResponse {
+        private String input;
+        private Object returnValue; // contents for arrays and collections
+        private Object exception;
+
+        public CaseTrace() {}
+
+        public String getInput() {
+            return input;
+        }
+
+        public void setInput(String input) {
+            this.input = input;
+        }
+
+        public Object getReturnValue() {
+            return returnValue;
+        }
+
+        public void setReturnValue(Object returnValue) {
+            this.returnValue = returnValue;
+        }
+
+        public Object getException() {
+            return exception;
+        }
+
+        public void setException(Object exception) {
+            this.exception = exception;
+        }
+    }
+}
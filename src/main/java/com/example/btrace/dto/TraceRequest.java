@@ -8,6 +8,14 @@ public class TraceRequest {
     private String methodName;
     private String sourceCode;
     private List<String> testInputs;
+    private String instrumentation; // "source" (default) or "bytecode"
+    private String engine; // "ast" (default) or "btrace"
+    // Optional budgets; they can only lower the server's limits
+    private Integer maxEvents;
+    private Long maxBytes;
+    private Integer maxLoopIterations;
+    private Integer parallelism; // batch traces: worker JVMs to spread testInputs over (default 1)
+    private String sessionId; // edit-and-rerun session: only the edited method is rebuilt (AST source mode)
     
     // Constructors
     public TraceRequest() {}
@@ -51,4 +59,60 @@ public class TraceRequest {
     public void setTestInputs(List<String> testInputs) {
         this.testInputs = testInputs;
     }
+    
+    public String getInstrumentation() {
+        return instrumentation;
+    }
+    
+    public void setInstrumentation(String instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+    
+    public String getEngine() {
+        return engine;
+    }
+    
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+    
+    public Integer getMaxEvents() {
+        return maxEvents;
+    }
+    
+    public void setMaxEvents(Integer maxEvents) {
+        this.maxEvents = maxEvents;
+    }
+    
+    public Long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    public void setMaxBytes(Long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    public Integer getMaxLoopIterations() {
+        return maxLoopIterations;
+    }
+    
+    public void setMaxLoopIterations(Integer maxLoopIterations) {
+        this.maxLoopIterations = maxLoopIterations;
+    }
+    
+    public Integer getParallelism() {
+        return parallelism;
+    }
+    
+    public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+    }
+    
+    public String getSessionId() {
+        return sessionId;
+    }
+    
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
 }
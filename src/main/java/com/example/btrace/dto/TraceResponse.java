@@ -1,6 +1,8 @@
 // src/main/java/com/example/btrace/dto/TraceResponse.java
 package com.example.btrace.dto;
 
+import com.example.btrace.compiler.InMemoryCompiler.CompilationError;
+
 import java.util.List;
 import java.util.Map;
 
@@ -9,6 +11,12 @@ public class TraceResponse {
     private String message;
     private List<Map<String, Object>> trace;
     private String rawOutput;
+    private List<CompilationError> compilationErrors;
+    private boolean truncated;
+    private Map<String, Object> budget; // exhausted budget: {budget, limit, step, line}
+    private String traceId;
+    private Integer eventCount; // events in the whole trace, when trace holds only a page of them
+    private Integer nextOffset; // offset of the next page, or null after the last one
     
     // Constructors
     public TraceResponse() {}
@@ -52,4 +60,52 @@ public class TraceResponse {
     public void setRawOutput(String rawOutput) {
         this.rawOutput = rawOutput;
     }
+    
+    public List<CompilationError> getCompilationErrors() {
+        return compilationErrors;
+    }
+    
+    public void setCompilationErrors(List<CompilationError> compilationErrors) {
+        this.compilationErrors = compilationErrors;
+    }
+    
+    public boolean isTruncated() {
+        return truncated;
+    }
+    
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+    
+    public Map<String, Object> getBudget() {
+        return budget;
+    }
+    
+    public void setBudget(Map<String, Object> budget) {
+        this.budget = budget;
+    }
+    
+    public String getTraceId() {
+        return traceId;
+    }
+    
+    public void setTraceId(String traceId) {
+        this.traceId = traceId;
+    }
+    
+    public Integer getEventCount() {
+        return eventCount;
+    }
+    
+    public void setEventCount(Integer eventCount) {
+        this.eventCount = eventCount;
+    }
+    
+    public Integer getNextOffset() {
+        return nextOffset;
+    }
+    
+    public void setNextOffset(Integer nextOffset) {
+        this.nextOffset = nextOffset;
+    }
 }
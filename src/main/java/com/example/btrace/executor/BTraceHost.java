@@ -0,0 +1,118 @@
+package com.example.btrace.executor;
+
+import com.example.btrace.executor.WorkerMain.FrameOutputStream;
+import com.example.btrace.executor.WorkerMain.JobClassLoader;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Entry point of the long-running target JVM that BTrace attaches to.
+ * Jobs arrive on stdin like for {@link WorkerMain} (main class name and compiled class bytes), but
+ * are not run right away: the host loads the main class, reports {@link #FRAME_READY} with its pid
+ * and keeps calling {@link #attached()} until the server answers {@link #GO} (the BTrace script has
+ * printed from that probe) or {@link #ABORT}. After main returns it calls {@link #finished()}, whose
+ * probe ends the BTrace session. Program output is framed as in WorkerMain.
+ *
+ * Only JDK classes may be used here - they are the whole classpath of the host.
+ */
+public final class BTraceHost {
+
+    static final byte FRAME_READY = 'R';
+
+    static final byte GO = 'G';
+    static final byte ABORT = 'A';
+
+    private static final long ATTACH_POLL_MILLIS = 5;
+
+    private BTraceHost() {}
+
+    public static void main(String[] args) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        DataOutputStream channel = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+
+        PrintStream userOut = new PrintStream(
+            new BufferedOutputStream(new FrameOutputStream(channel, WorkerMain.FRAME_OUTPUT), 8192), false);
+        System.setOut(userOut);
+        System.setErr(userOut);
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+        while (true) {
+            String mainClass;
+            try {
+                mainClass = in.readUTF();
+            } catch (EOFException e) {
+                return; // Server closed the pipe - shut down
+            }
+            Map<String, byte[]> classes = new HashMap<>();
+            int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.put(name, bytes);
+            }
+
+            byte status = WorkerMain.STATUS_OK;
+            String message = "";
+            Method main = null;
+            try {
+                // Loaded but not initialized, so no user code runs before the probes are in place
+                main = new JobClassLoader(classes).loadClass(mainClass).getMethod("main", String[].class);
+            } catch (Throwable e) {
+                status = WorkerMain.STATUS_EXCEPTION;
+                message = String.valueOf(e);
+            }
+            synchronized (channel) {
+                channel.writeByte(FRAME_READY);
+                channel.writeUTF(pid);
+                channel.flush();
+            }
+
+            while (in.available() == 0) {
+                attached();
+                Thread.sleep(ATTACH_POLL_MILLIS);
+            }
+            if (in.readByte() != GO) {
+                if (status == WorkerMain.STATUS_OK) {
+                    status = WorkerMain.STATUS_EXCEPTION;
+                    message = "Aborted before start";
+                }
+            } else {
+                try {
+                    if (main != null) {
+                        main.invoke(null, (Object) new String[0]);
+                    }
+                } catch (InvocationTargetException e) {
+                    status = WorkerMain.STATUS_EXCEPTION;
+                    message = String.valueOf(e.getCause());
+                    System.out.print("Exception in thread \"main\" ");
+                    e.getCause().printStackTrace(System.out);
+                } catch (Throwable e) {
+                    status = WorkerMain.STATUS_EXCEPTION;
+                    message = String.valueOf(e);
+                } finally {
+                    finished();
+                }
+            }
+
+            userOut.flush();
+            synchronized (channel) {
+                channel.writeByte(WorkerMain.FRAME_END);
+                channel.writeByte(status);
+                channel.writeUTF(message);
+                channel.flush();
+            }
+        }
+    }
+
+    /** Probed by the BTrace script to confirm it is attached */
+    static void attached() {}
+
+    /** Probed by the BTrace script to flush its output and end the session */
+    static void finished() {}
+}
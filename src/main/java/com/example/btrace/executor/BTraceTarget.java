@@ -0,0 +1,146 @@
+package com.example.btrace.executor;
+
+import com.example.btrace.executor.WorkerPool.ExecutionResult;
+import com.example.btrace.executor.WorkerPool.OutputConsumer;
+import com.example.btrace.runtime.RuntimeClasspath;
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A long-running {@link BTraceHost} JVM that BTrace attaches to, one job at a time:
+ * {@link #submit} loads a job and returns the pid to attach to, then either {@link #run} releases
+ * it or {@link #abort} skips it. The JVM survives between jobs; it is only lost when a job is
+ * killed for running too long or producing too much, after which {@link #isAlive()} is false.
+ *
+ * Not thread-safe: the caller runs one job at a time.
+ */
+public class BTraceTarget implements AutoCloseable {
+
+    private final Process process;
+    private final DataOutputStream jobs;
+    private final DataInputStream channel;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "btrace-target-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BTraceTarget(Process process) {
+        this.process = process;
+        this.jobs = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        this.channel = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    public static BTraceTarget start(List<String> jvmOptions) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(RuntimeClasspath.get().toString());
+        command.add(BTraceHost.class.getName());
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return new BTraceTarget(builder.start());
+    }
+
+    /**
+     * Sends a job and waits until the host has loaded it; no user code has run yet
+     * @return the pid of the target JVM
+     */
+    public String submit(String mainClass, Map<String, byte[]> classes) throws IOException {
+        jobs.writeUTF(mainClass);
+        jobs.writeInt(classes.size());
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            jobs.writeUTF(entry.getKey());
+            jobs.writeInt(entry.getValue().length);
+            jobs.write(entry.getValue());
+        }
+        jobs.flush();
+        byte frame = channel.readByte();
+        if (frame != BTraceHost.FRAME_READY) {
+            destroy();
+            throw new IOException("Unexpected frame from BTrace target: " + frame);
+        }
+        return channel.readUTF();
+    }
+
+    /**
+     * Runs the submitted job, handing its output to the consumer. The target is killed when the
+     * consumer refuses more output or the job runs past {@code timeoutMillis}.
+     */
+    public ExecutionResult run(OutputConsumer consumer, long timeoutMillis) {
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> kill = watchdog.schedule(() -> {
+            timedOut.set(true);
+            destroy();
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            jobs.writeByte(BTraceHost.GO);
+            jobs.flush();
+            return readUntilEnd(consumer);
+        } catch (IOException e) {
+            if (timedOut.get()) {
+                return ExecutionResult.timedOut(timeoutMillis);
+            }
+            return ExecutionResult.crashed("BTrace target exited: " + e.getMessage());
+        } finally {
+            kill.cancel(false);
+        }
+    }
+
+    /**
+     * Skips the submitted job, leaving the target ready for the next one
+     */
+    public void abort() {
+        try {
+            jobs.writeByte(BTraceHost.ABORT);
+            jobs.flush();
+            readUntilEnd(null);
+        } catch (IOException e) {
+            destroy();
+        }
+    }
+
+    private ExecutionResult readUntilEnd(OutputConsumer consumer) throws IOException {
+        byte[] buffer = new byte[WorkerMain.MAX_OUTPUT_FRAME];
+        while (true) {
+            byte frame = channel.readByte();
+            if (frame == WorkerMain.FRAME_OUTPUT) {
+                if (!WorkerPool.readOutput(channel, buffer, consumer)) {
+                    destroy();
+                    return ExecutionResult.stopped();
+                }
+            } else if (frame == WorkerMain.FRAME_END) {
+                byte status = channel.readByte();
+                String message = channel.readUTF();
+                return ExecutionResult.completed(status == WorkerMain.STATUS_OK, message);
+            } else {
+                throw new IOException("Unexpected frame from BTrace target: " + frame);
+            }
+        }
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /** Kills the target JVM; safe to call from any thread */
+    public void destroy() {
+        process.destroyForcibly();
+    }
+
+    @Override
+    public void close() {
+        watchdog.shutdownNow();
+        destroy();
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.btrace.executor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent jobs: while a job for a key is running, further calls with that
+ * key wait for the same result instead of starting their own. Results marked cacheable are also
+ * served for {@code ttlMillis} after they finished, which absorbs bursts of identical requests.
+ *
+ * Thread-safe.
+ */
+public class SingleFlight<T> {
+
+    private final long ttlMillis;
+    private final int maxResults;
+    private final ConcurrentHashMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+    // Insertion order is expiry order
+    private final LinkedHashMap<String, Result<T>> results = new LinkedHashMap<>();
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    /**
+     * @param ttlMillis how long a cacheable result is reused; 0 disables the result cache
+     * @param maxResults results kept at most; the oldest is dropped first
+     */
+    public SingleFlight(long ttlMillis, int maxResults) {
+        this.ttlMillis = Math.max(0, ttlMillis);
+        this.maxResults = Math.max(1, maxResults);
+    }
+
+    /**
+     * Result for {@code key}: a recent cached one, the one of a running job, or that of a job
+     * started by {@code job}. Exceptions thrown by {@code job} itself reach only this caller.
+     * @param cacheable whether a finished result may be reused by later calls
+     */
+    public CompletableFuture<T> run(String key, Supplier<CompletableFuture<T>> job, Predicate<T> cacheable) {
+        T cached = cached(key);
+        if (cached != null) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<T> promise = new CompletableFuture<>();
+        CompletableFuture<T> running = inFlight.putIfAbsent(key, promise);
+        if (running != null) {
+            coalesced.increment();
+            return running;
+        }
+
+        CompletableFuture<T> started;
+        try {
+            started = job.get();
+        } catch (RuntimeException e) {
+            inFlight.remove(key, promise);
+            promise.completeExceptionally(e);
+            throw e;
+        }
+        executions.increment();
+        started.whenComplete((result, error) -> {
+            if (error == null && ttlMillis > 0 && cacheable.test(result)) {
+                store(key, result);
+            }
+            // Later calls now find the cached result (or start over) instead of this promise
+            inFlight.remove(key, promise);
+            if (error != null) {
+                promise.completeExceptionally(error);
+            } else {
+                promise.complete(result);
+            }
+        });
+        return promise;
+    }
+
+    private synchronized T cached(String key) {
+        expire();
+        Result<T> result = results.get(key);
+        return result != null ? result.value : null;
+    }
+
+    private synchronized void store(String key, T value) {
+        results.remove(key);
+        results.put(key, new Result<>(value, System.currentTimeMillis() + ttlMillis));
+        while (results.size() > maxResults) {
+            Iterator<String> eldest = results.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Result<T>>> entries = results.entrySet().iterator();
+        while (entries.hasNext() && entries.next().getValue().expires <= now) {
+            entries.remove();
+        }
+    }
+
+    /** Jobs actually started */
+    public long getExecutions() { return executions.sum(); }
+    /** Calls that joined a running job */
+    public long getCoalesced() { return coalesced.sum(); }
+    /** Calls answered from the result cache */
+    public long getCacheHits() { return cacheHits.sum(); }
+
+    private static class Result<T> {
+        final T value;
+        final long expires;
+
+        Result(T value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.btrace.executor;
+
+import com.example.btrace.metrics.TraceMetrics;
+import com.example.btrace.metrics.TraceMetrics.Stage;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded scheduler for compile/run jobs.
+ * Runs at most {@code parallelism} jobs at a time with a fixed-depth queue behind them;
+ * submissions beyond that are rejected immediately instead of piling up request threads.
+ */
+public class TraceScheduler implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+    private final TraceMetrics metrics;
+
+    public TraceScheduler(int parallelism, int queueDepth) {
+        this(parallelism, queueDepth, new TraceMetrics());
+    }
+
+    /**
+     * @param metrics receives the time each job waited in the queue, and rejections
+     */
+    public TraceScheduler(int parallelism, int queueDepth, TraceMetrics metrics) {
+        this.metrics = metrics;
+        AtomicInteger threadIds = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            parallelism, parallelism, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueDepth)),
+            r -> {
+                Thread thread = new Thread(r, "trace-job-" + threadIds.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a job, failing fast with {@link SchedulerBusyException} when the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> job) {
+        long queued = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                metrics.recordStage(Stage.QUEUE, System.nanoTime() - queued);
+                return job.get();
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            metrics.recordTrace("rejected", -1, -1);
+            throw new SchedulerBusyException(executor.getQueue().size());
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveJobs() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Raised when the scheduler's queue is full
+     */
+    public static class SchedulerBusyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public SchedulerBusyException(int queued) {
+            super("Trace service is busy (" + queued + " jobs queued), retry later");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.btrace.executor;
+
+import com.example.btrace.runtime.TraceChannel;
+import com.example.btrace.runtime.TraceOptions;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Entry point of a pooled executor JVM.
+ * Reads jobs (main class name and arguments, trace options and compiled class bytes) from stdin, runs each one in a
+ * throwaway ClassLoader and streams the program output back to the server over stdout.
+ * Program output and binary trace records travel in separate frame types, so user
+ * {@code System.out} output never mixes with trace events.
+ *
+ * Only JDK classes and the tracing runtime may be used here - they are the whole classpath of the worker.
+ */
+public final class WorkerMain {
+
+    static final byte FRAME_OUTPUT = 'O';
+    static final byte FRAME_TRACE = 'T';
+    static final byte FRAME_END = 'E';
+
+    /** Program output is sent in frames of at most this size; trace frames carry whole records */
+    static final int MAX_OUTPUT_FRAME = 8192;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_EXCEPTION = 1;
+
+    private WorkerMain() {}
+
+    public static void main(String[] args) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        DataOutputStream channel = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+
+        // User code writes into framed output, never onto the protocol stream directly
+        PrintStream userOut = new PrintStream(
+            new BufferedOutputStream(new FrameOutputStream(channel, FRAME_OUTPUT), 8192), false);
+        System.setOut(userOut);
+        System.setErr(userOut);
+        FrameOutputStream traceOut = new FrameOutputStream(channel, FRAME_TRACE);
+        // Keep output and trace records written just before a System.exit() in user code
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            userOut.flush();
+            try {
+                TraceChannel.close();
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+        }));
+
+        while (true) {
+            String mainClass;
+            try {
+                mainClass = in.readUTF();
+            } catch (EOFException e) {
+                return; // Server closed the pipe - shut down
+            }
+            String[] mainArgs = new String[in.readInt()];
+            for (int i = 0; i < mainArgs.length; i++) {
+                mainArgs[i] = in.readUTF();
+            }
+            TraceOptions options = TraceOptions.readFrom(in);
+
+            Map<String, byte[]> classes = new HashMap<>();
+            int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.put(name, bytes);
+            }
+
+            byte status = STATUS_OK;
+            String message = "";
+            TraceChannel.open(traceOut, options);
+            try {
+                JobClassLoader loader = new JobClassLoader(classes);
+                Method main = loader.loadClass(mainClass).getMethod("main", String[].class);
+                main.invoke(null, (Object) mainArgs);
+            } catch (InvocationTargetException e) {
+                status = STATUS_EXCEPTION;
+                message = String.valueOf(e.getCause());
+                System.out.print("Exception in thread \"main\" ");
+                e.getCause().printStackTrace(System.out);
+            } catch (Throwable e) {
+                status = STATUS_EXCEPTION;
+                message = String.valueOf(e);
+            }
+
+            userOut.flush();
+            TraceChannel.close();
+            synchronized (channel) {
+                channel.writeByte(FRAME_END);
+                channel.writeByte(status);
+                channel.writeUTF(message);
+                channel.flush();
+            }
+        }
+    }
+
+    /**
+     * Defines the job's classes; discarded after the run so static state never leaks between jobs
+     */
+    static class JobClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        JobClassLoader(Map<String, byte[]> classes) {
+            super(JobClassLoader.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Wraps everything written to it into frames of one type on the protocol channel. Program
+     * output is split into frames of at most {@link #MAX_OUTPUT_FRAME} bytes, as a single large
+     * write passes straight through the buffering in front of it.
+     */
+    static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream channel;
+        private final byte frameType;
+
+        FrameOutputStream(DataOutputStream channel, byte frameType) {
+            this.channel = channel;
+            this.frameType = frameType;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            int maxFrame = frameType == FRAME_OUTPUT ? MAX_OUTPUT_FRAME : len;
+            synchronized (channel) {
+                for (int end = off + len; off < end; off += maxFrame) {
+                    int frame = Math.min(maxFrame, end - off);
+                    channel.writeByte(frameType);
+                    channel.writeInt(frame);
+                    channel.write(b, off, frame);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (channel) {
+                channel.flush();
+            }
+        }
+    }
+}
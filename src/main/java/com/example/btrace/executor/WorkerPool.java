@@ -0,0 +1,394 @@
+package com.example.btrace.executor;
+
+import com.example.btrace.runtime.RuntimeClasspath;
+import com.example.btrace.runtime.TraceOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of long-lived executor JVMs running {@link WorkerMain}.
+ * Each job is sent to an idle worker, which loads it in a fresh ClassLoader and streams the
+ * output and trace records back. Workers are recycled after a fixed number of runs, and replaced whenever they
+ * crash or are killed for exceeding the execution timeout, so jobs keep process isolation
+ * without paying JVM startup on every request.
+ */
+public class WorkerPool implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkerPool.class);
+
+    /** Bounds on the size of one trace frame read from a worker */
+    private static final int MIN_TRACE_FRAME = 64 * 1024;
+    private static final int MAX_TRACE_FRAME = 64 * 1024 * 1024;
+
+    private final int poolSize;
+    private final int maxRunsPerWorker;
+    private final long timeoutMillis;
+    private final List<String> command;
+
+    private final Semaphore permits;
+    private final BlockingDeque<Worker> idle = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "worker-pool-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed = false;
+
+    public WorkerPool(int poolSize, int maxRunsPerWorker, long timeoutMillis, List<String> jvmOptions) throws IOException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Worker pool size must be at least 1");
+        }
+        this.poolSize = poolSize;
+        this.maxRunsPerWorker = Math.max(1, maxRunsPerWorker);
+        this.timeoutMillis = timeoutMillis;
+        this.permits = new Semaphore(poolSize, true);
+
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(jvmOptions);
+        cmd.add("-cp");
+        cmd.add(RuntimeClasspath.get().toString());
+        cmd.add(WorkerMain.class.getName());
+        this.command = Collections.unmodifiableList(cmd);
+
+        // Pre-start the whole pool so the first requests don't pay JVM startup
+        for (int i = 0; i < poolSize; i++) {
+            idle.offer(Worker.start(command));
+        }
+    }
+
+    /**
+     * Pool with a single worker and default limits, for use outside the Spring context
+     */
+    public static WorkerPool withDefaults() {
+        try {
+            return new WorkerPool(1, 50, 5000, Arrays.asList("-Xmx256m", "-Xss16m", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start executor worker", e);
+        }
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /** Number of jobs that can run at the same time */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /** Worker JVMs running a job right now */
+    public int getActiveWorkers() {
+        return poolSize - permits.availablePermits();
+    }
+
+    /** Started worker JVMs waiting for a job */
+    public int getIdleWorkers() {
+        return idle.size();
+    }
+
+    /**
+     * Runs the job on a pooled worker.
+     * Output is handed to the consumer as it arrives; when the consumer refuses more output
+     * the worker is killed immediately and the result is marked as stopped.
+     */
+    public ExecutionResult execute(Job job, OutputConsumer consumer) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Worker pool is closed");
+        }
+        long waitStarted = System.nanoTime();
+        permits.acquire();
+        Worker worker = null;
+        boolean reusable = false;
+        try {
+            worker = acquireWorker();
+            long waitNanos = System.nanoTime() - waitStarted;
+            Worker running = worker;
+            AtomicBoolean timedOut = new AtomicBoolean(false);
+            ScheduledFuture<?> kill = watchdog.schedule(() -> {
+                timedOut.set(true);
+                running.destroy();
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+            try {
+                running.send(job);
+                DataInputStream channel = running.channel();
+                byte[] buffer = new byte[WorkerMain.MAX_OUTPUT_FRAME];
+                byte[] records = buffer;
+                int maxRecords = maxTraceFrame(job.options);
+                while (true) {
+                    byte frame = channel.readByte();
+                    if (frame == WorkerMain.FRAME_OUTPUT) {
+                        if (!readOutput(channel, buffer, consumer)) {
+                            running.destroy();
+                            return ExecutionResult.stopped().waited(waitNanos);
+                        }
+                    } else if (frame == WorkerMain.FRAME_TRACE) {
+                        // Records are decoded whole, so the frame is read at once, up to what the job may produce
+                        int length = channel.readInt();
+                        if (length < 0 || length > maxRecords) {
+                            consumer.onOversizedTrace(length);
+                            running.destroy();
+                            return ExecutionResult.stopped().waited(waitNanos);
+                        }
+                        if (length > records.length) {
+                            records = new byte[Math.min(Math.max(length, records.length * 2), maxRecords)];
+                        }
+                        channel.readFully(records, 0, length);
+                        if (!consumer.onTrace(records, 0, length)) {
+                            running.destroy();
+                            return ExecutionResult.stopped().waited(waitNanos);
+                        }
+                    } else if (frame == WorkerMain.FRAME_END) {
+                        byte status = channel.readByte();
+                        String message = channel.readUTF();
+                        // The watchdog may have fired since the last frame; a worker it is killing
+                        // must not go back to the pool, so it is called off before deciding
+                        reusable = kill.cancel(false) && !timedOut.get();
+                        return ExecutionResult.completed(status == WorkerMain.STATUS_OK, message).waited(waitNanos);
+                    } else {
+                        throw new IOException("Unexpected frame from worker: " + frame);
+                    }
+                }
+            } catch (IOException e) {
+                if (timedOut.get()) {
+                    return ExecutionResult.timedOut(timeoutMillis).waited(waitNanos);
+                }
+                return ExecutionResult.crashed("Executor worker exited: " + e.getMessage()).waited(waitNanos);
+            } finally {
+                kill.cancel(false);
+            }
+        } finally {
+            if (worker != null) {
+                release(worker, reusable);
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Hands an output frame to the consumer in pieces of at most the buffer's size, so the length
+     * the worker sends never decides how much is allocated here
+     * @param consumer null to skip the output
+     * @return false if the consumer refused more output
+     */
+    static boolean readOutput(DataInputStream channel, byte[] buffer, OutputConsumer consumer) throws IOException {
+        int length = channel.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid output frame length: " + length);
+        }
+        while (length > 0) {
+            int piece = Math.min(length, buffer.length);
+            channel.readFully(buffer, 0, piece);
+            length -= piece;
+            if (consumer != null && !consumer.onOutput(buffer, 0, piece)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The longest trace frame accepted: the job's byte budget, but never less than a few flushes
+     * of the runtime's buffer
+     */
+    private static int maxTraceFrame(TraceOptions options) {
+        long budget = options.getMaxBytes() > 0 ? options.getMaxBytes() : MAX_TRACE_FRAME;
+        return (int) Math.max(MIN_TRACE_FRAME, Math.min(MAX_TRACE_FRAME, budget));
+    }
+
+    private Worker acquireWorker() throws IOException {
+        Worker worker = idle.poll();
+        while (worker != null && !worker.isAlive()) {
+            worker.destroy();
+            worker = idle.poll();
+        }
+        return worker != null ? worker : Worker.start(command);
+    }
+
+    private void release(Worker worker, boolean reusable) {
+        if (reusable && !closed && worker.incrementRuns() < maxRunsPerWorker) {
+            idle.offerFirst(worker);
+            return;
+        }
+        worker.destroy();
+        if (!closed) {
+            // Warm a replacement off the request thread
+            watchdog.execute(() -> {
+                try {
+                    idle.offerLast(Worker.start(command));
+                } catch (IOException e) {
+                    log.warn("Failed to start replacement worker: {}", e.getMessage());
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        watchdog.shutdownNow();
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.destroy();
+        }
+    }
+
+    /**
+     * A single executor JVM and its protocol streams
+     */
+    private static class Worker {
+        private final Process process;
+        private final DataOutputStream jobs;
+        private final DataInputStream channel;
+        private int runs = 0;
+
+        private Worker(Process process) {
+            this.process = process;
+            this.jobs = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.channel = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        static Worker start(List<String> command) throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            return new Worker(builder.start());
+        }
+
+        void send(Job job) throws IOException {
+            jobs.writeUTF(job.mainClass);
+            jobs.writeInt(job.args.length);
+            for (String arg : job.args) {
+                jobs.writeUTF(arg);
+            }
+            job.options.writeTo(jobs);
+            jobs.writeInt(job.classes.size());
+            for (Map.Entry<String, byte[]> entry : job.classes.entrySet()) {
+                jobs.writeUTF(entry.getKey());
+                jobs.writeInt(entry.getValue().length);
+                jobs.write(entry.getValue());
+            }
+            jobs.flush();
+        }
+
+        DataInputStream channel() { return channel; }
+        boolean isAlive() { return process.isAlive(); }
+        int incrementRuns() { return ++runs; }
+
+        void destroy() {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * A program to run on a worker: {@code mainClass.main(String[])} from the given compiled classes,
+     * with no arguments and default trace options unless set
+     */
+    public static final class Job {
+        private final String mainClass;
+        private final String[] args;
+        private final Map<String, byte[]> classes;
+        private final TraceOptions options;
+
+        public Job(String mainClass, Map<String, byte[]> classes) {
+            this(mainClass, new String[0], classes, TraceOptions.defaults());
+        }
+
+        private Job(String mainClass, String[] args, Map<String, byte[]> classes, TraceOptions options) {
+            this.mainClass = mainClass;
+            this.args = args;
+            this.classes = classes;
+            this.options = options;
+        }
+
+        /**
+         * @param args passed to {@code main}
+         */
+        public Job withArgs(String... args) {
+            return new Job(mainClass, args, classes, options);
+        }
+
+        public Job withOptions(TraceOptions options) {
+            return new Job(mainClass, args, classes, options);
+        }
+    }
+
+    /**
+     * Receives program output and trace records as the worker produces them
+     */
+    public interface OutputConsumer {
+        /**
+         * Program output written to System.out / System.err
+         * @return false to stop the job; the worker is killed without reading further output
+         */
+        boolean onOutput(byte[] chunk, int offset, int length);
+
+        /**
+         * A batch of whole binary trace records (see TraceProtocol)
+         * @return false to stop the job; the worker is killed without reading further output
+         */
+        boolean onTrace(byte[] chunk, int offset, int length);
+
+        /**
+         * A trace frame longer than the job may produce arrived; it is not read, and the worker
+         * is killed
+         */
+        default void onOversizedTrace(int length) {
+        }
+    }
+
+    /**
+     * Outcome of running a job on a worker
+     */
+    public static class ExecutionResult {
+        private final boolean completed;
+        private final boolean timedOut;
+        private final boolean stopped;
+        private final String message;
+        private final long waitNanos;
+
+        private ExecutionResult(boolean completed, boolean timedOut, boolean stopped, String message, long waitNanos) {
+            this.completed = completed;
+            this.timedOut = timedOut;
+            this.stopped = stopped;
+            this.message = message;
+            this.waitNanos = waitNanos;
+        }
+
+        ExecutionResult waited(long nanos) {
+            return new ExecutionResult(completed, timedOut, stopped, message, nanos);
+        }
+
+        static ExecutionResult completed(boolean normalExit, String message) {
+            return new ExecutionResult(true, false, false, normalExit ? null : message, 0);
+        }
+
+        static ExecutionResult timedOut(long timeoutMillis) {
+            return new ExecutionResult(false, true, false, "Execution timeout after " + timeoutMillis + " ms", 0);
+        }
+
+        static ExecutionResult stopped() {
+            return new ExecutionResult(false, false, true, "Execution stopped by output consumer", 0);
+        }
+
+        static ExecutionResult crashed(String message) {
+            return new ExecutionResult(false, false, false, message, 0);
+        }
+
+        // Getters
+        public boolean isCompleted() { return completed; }
+        public boolean isTimedOut() { return timedOut; }
+        /** True when the output consumer ended the job early */
+        public boolean isStopped() { return stopped; }
+        /** Failure or uncaught exception description, null when main returned normally */
+        public String getMessage() { return message; }
+        /** Time spent waiting for a free worker, including starting one */
+        public long getWaitNanos() { return waitNanos; }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.btrace.metrics;
+
+import com.example.btrace.metrics.TraceMetrics.Stage;
+
+import java.util.Locale;
+
+/**
+ * Stage durations of one trace request. A stage may be added several times (e.g. one EXECUTE
+ * per batch job); each stage is recorded once, as its total, by {@link #finish()}.
+ *
+ * Used by a single thread.
+ */
+public class StageTimings {
+
+    private final TraceMetrics metrics;
+    private final long[] nanos = new long[Stage.values().length];
+    private long mark = System.nanoTime();
+
+    public StageTimings(TraceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Starts timing the next stage */
+    public void mark() {
+        mark = System.nanoTime();
+    }
+
+    /** Ends the stage started by the last {@link #mark()} or {@code lap}, and starts the next */
+    public void lap(Stage stage) {
+        long now = System.nanoTime();
+        add(stage, now - mark);
+        mark = now;
+    }
+
+    public void add(Stage stage, long elapsedNanos) {
+        nanos[stage.ordinal()] += elapsedNanos;
+    }
+
+    /** Records every stage that took place into the metrics */
+    public void finish() {
+        for (Stage stage : Stage.values()) {
+            if (nanos[stage.ordinal()] > 0) {
+                metrics.recordStage(stage, nanos[stage.ordinal()]);
+            }
+        }
+    }
+
+    /**
+     * Log form, e.g. {@code parse_ms=1.21 compile_ms=84.00 execute_ms=12.50}
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            long elapsed = nanos[stage.ordinal()];
+            if (elapsed > 0) {
+                if (out.length() > 0) {
+                    out.append(' ');
+                }
+                out.append(stage.label()).append("_ms=").append(String.format(Locale.ROOT, "%.2f", elapsed / 1e6));
+            }
+        }
+        return out.toString();
+    }
+}
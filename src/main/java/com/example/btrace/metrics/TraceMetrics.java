@@ -0,0 +1,196 @@
+package com.example.btrace.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Pipeline metrics: a latency histogram per stage, trace outcome counters, histograms of events
+ * and output bytes per trace, and gauges read when rendered.
+ * Rendered in the Prometheus text exposition format (version 0.0.4).
+ *
+ * Thread-safe; recording is lock-free.
+ */
+public class TraceMetrics {
+
+    /** Content type of {@link #render()} */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] SECONDS_BUCKETS =
+        {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double[] EVENT_BUCKETS = {10, 100, 1_000, 10_000, 100_000, 1_000_000};
+    private static final double[] BYTE_BUCKETS = {1_024, 16_384, 131_072, 1_048_576, 8_388_608, 67_108_864};
+
+    /**
+     * Stages of a trace request, in pipeline order
+     */
+    public enum Stage {
+        /** Waiting in the scheduler queue */
+        QUEUE,
+        PARSE,
+        INSTRUMENT,
+        /** Printing the instrumented AST back to source */
+        PRINT,
+        COMPILE,
+        /** Bytecode instrumentation */
+        WEAVE,
+        /** Waiting for a free worker JVM, including starting one when none is idle */
+        WORKER,
+        /** Attaching BTrace to the target JVM, until its probes fire */
+        ATTACH,
+        /** Running the job on the worker: user code plus tracing */
+        EXECUTE,
+        /** Decoding trace records into events; overlaps EXECUTE */
+        DECODE,
+        /** Indexing the trace for time-travel stepping */
+        TIMELINE,
+        /** Writing streamed events as JSON */
+        SERIALIZE,
+        /** Appending the trace to the on-disk trace store */
+        STORE;
+
+        String label() { return name().toLowerCase(Locale.ROOT); }
+    }
+
+    private final Map<Stage, Histogram> stages = new EnumMap<>(Stage.class);
+    private final Histogram eventsPerTrace = new Histogram(EVENT_BUCKETS);
+    private final Histogram bytesPerTrace = new Histogram(BYTE_BUCKETS);
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    public TraceMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new Histogram(SECONDS_BUCKETS));
+        }
+    }
+
+    public void recordStage(Stage stage, long nanos) {
+        stages.get(stage).observe(nanos / 1e9);
+    }
+
+    /**
+     * Counts one finished trace
+     * @param outcome e.g. "success", "truncated", "timeout", "compile_error", "error", "rejected"
+     * @param events events produced, or -1 if the trace never ran
+     * @param outputBytes program output plus trace record bytes received, or -1 if the trace never ran
+     */
+    public void recordTrace(String outcome, int events, long outputBytes) {
+        outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+        if (events >= 0) {
+            eventsPerTrace.observe(events);
+        }
+        if (outputBytes >= 0) {
+            bytesPerTrace.observe(outputBytes);
+        }
+    }
+
+    /**
+     * Registers a value sampled on every render; {@code name} gets the {@code btrace_} prefix
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge("gauge", help, value));
+    }
+
+    /**
+     * Registers a counter kept elsewhere, sampled on every render; {@code name} should end in {@code _total}
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge("counter", help, value));
+    }
+
+    public long getTraceCount(String outcome) {
+        LongAdder count = outcomes.get(outcome);
+        return count != null ? count.sum() : 0;
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "btrace_stage_duration_seconds", "Time spent in each trace pipeline stage", "histogram");
+        for (Map.Entry<Stage, Histogram> stage : stages.entrySet()) {
+            stage.getValue().render(out, "btrace_stage_duration_seconds", "stage=\"" + stage.getKey().label() + "\"");
+        }
+
+        header(out, "btrace_traces_total", "Finished trace requests by outcome", "counter");
+        for (String outcome : new TreeSet<>(outcomes.keySet())) {
+            out.append("btrace_traces_total{outcome=\"").append(outcome).append("\"} ")
+               .append(outcomes.get(outcome).sum()).append('\n');
+        }
+
+        header(out, "btrace_trace_events", "Events produced per trace", "histogram");
+        eventsPerTrace.render(out, "btrace_trace_events", null);
+        header(out, "btrace_trace_output_bytes", "Program output and trace record bytes per trace", "histogram");
+        bytesPerTrace.render(out, "btrace_trace_output_bytes", null);
+
+        for (String name : new TreeSet<>(gauges.keySet())) {
+            Gauge gauge = gauges.get(name);
+            header(out, "btrace_" + name, gauge.help, gauge.type);
+            out.append("btrace_").append(name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * Fixed-bucket histogram; buckets are counted individually and made cumulative when rendered
+     */
+    private static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(value);
+        }
+
+        void render(StringBuilder out, String name, String labels) {
+            String prefix = labels != null ? labels + "," : "";
+            long cumulative = 0;
+            for (int i = 0; i <= bounds.length; i++) {
+                cumulative += counts[i].sum();
+                String le = i < bounds.length ? number(bounds[i]) : "+Inf";
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                   .append(cumulative).append('\n');
+            }
+            String suffix = labels != null ? "{" + labels + "} " : " ";
+            out.append(name).append("_sum").append(suffix).append(number(sum.sum())).append('\n');
+            out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+        }
+    }
+
+    /** A sampled value: a gauge or an externally kept counter */
+    private static class Gauge {
+        final String type;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String type, String help, LongSupplier value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.btrace.runtime;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Extracts the executor worker and tracing runtime classes into a plain directory.
+ * The server's own classpath may be a nested boot jar that neither a child JVM nor javac
+ * can read, so the worker processes, the BTrace host and the in-memory compiler use this directory.
+ */
+public final class RuntimeClasspath {
+
+    private static final String[] CLASSES = {
+        "com.example.btrace.executor.WorkerMain",
+        "com.example.btrace.executor.WorkerMain$JobClassLoader",
+        "com.example.btrace.executor.WorkerMain$FrameOutputStream",
+        "com.example.btrace.executor.BTraceHost",
+        "com.example.btrace.runtime.TraceProtocol",
+        "com.example.btrace.runtime.TraceChannel",
+        "com.example.btrace.runtime.TraceOptions",
+        "com.example.btrace.runtime.Tracer"
+    };
+
+    private static Path directory;
+
+    private RuntimeClasspath() {}
+
+    public static synchronized Path get() {
+        if (directory == null) {
+            try {
+                directory = extract();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to extract tracing runtime classes", e);
+            }
+        }
+        return directory;
+    }
+
+    private static Path extract() throws IOException {
+        Path dir = Files.createTempDirectory("trace_runtime");
+        dir.toFile().deleteOnExit();
+        ClassLoader loader = RuntimeClasspath.class.getClassLoader();
+        for (String className : CLASSES) {
+            String resource = className.replace('.', '/') + ".class";
+            try (InputStream in = loader.getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new FileNotFoundException("Runtime class not found on classpath: " + resource);
+                }
+                Path target = dir.resolve(resource);
+                Files.createDirectories(target.getParent());
+                target.getParent().toFile().deleteOnExit();
+                Files.copy(in, target);
+                target.toFile().deleteOnExit();
+            }
+        }
+        return dir;
+    }
+}
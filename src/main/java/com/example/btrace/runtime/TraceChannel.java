@@ -0,0 +1,668 @@
+package com.example.btrace.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.example.btrace.runtime.TraceProtocol.*;
+
+/**
+ * Buffered writer for binary trace records.
+ * Records are handed to the sink in whole-record batches, so the reader never has to
+ * reassemble a record split across writes. The executor opens the channel for each job;
+ * {@link Tracer} writes records into it while holding the class lock.
+ *
+ * Runs inside the executor JVM - JDK classes only.
+ */
+public final class TraceChannel {
+
+    private static final int FLUSH_THRESHOLD = 8192;
+    // A slow program still delivers its first events promptly to streaming readers
+    private static final long FLUSH_INTERVAL_MS = 20;
+
+    private static OutputStream sink;
+    private static byte[] buffer = new byte[FLUSH_THRESHOLD * 2];
+    private static int position;
+    private static int step;
+    private static long lastTime;
+    private static long lastDrain;
+    private static int depth;
+    private static int nextFrame;
+    private static int maxDepth;
+    private static int maxEvents;
+    private static long maxBytes;
+    private static int maxLoopIterations;
+    private static long drained;
+    private static int lastSymbol;
+    private static boolean stopped;
+    private static boolean entryOpen;
+
+    // Loops being executed, innermost last: symbol, call depth and iterations so far
+    private static int[] loopSymbols = new int[16];
+    private static int[] loopDepths = new int[16];
+    private static int[] loopIterations = new int[16];
+    private static int loops;
+    // Outermost loop over its iteration budget (-1 if none) and its first untraced iteration
+    private static int mutedLoop = -1;
+    private static int mutedFrom;
+    // Contents of an array or collection are sent when it is first referenced; later writes
+    // are sent as element deltas. Snapshots stop after this many elements.
+    private static final int SNAPSHOT_LIMIT = 1000;
+
+    private static final Map<Object, Integer> arrayIds = new IdentityHashMap<>();
+    // Size of each container when its contents were last sent
+    private static final Map<Object, Integer> snapshotSizes = new IdentityHashMap<>();
+    private static boolean inSnapshot;
+    // Set while a tracer call runs code of the program in the middle of a record: toString(),
+    // hashCode() or equals() of a value, or the iterator of a collection. Instrumented code reached
+    // from there is not traced, or its records would be written into the open one.
+    private static boolean callingOut;
+
+    private TraceChannel() {}
+
+    public static synchronized void open(OutputStream out, TraceOptions options) {
+        sink = out;
+        position = 0;
+        maxDepth = options.getMaxCallDepth() > 0 ? options.getMaxCallDepth() : Integer.MAX_VALUE;
+        maxEvents = options.getMaxEvents() > 0 ? options.getMaxEvents() : Integer.MAX_VALUE;
+        maxBytes = options.getMaxBytes() > 0 ? options.getMaxBytes() : Long.MAX_VALUE;
+        maxLoopIterations = options.getMaxLoopIterations() > 0 ? options.getMaxLoopIterations() : Integer.MAX_VALUE;
+        begin(RECORD_START);
+    }
+
+    /**
+     * Starts the trace of one case of a batch job: steps, frames, container ids and budgets
+     * start over, so every case reads like a trace of its own
+     */
+    static void startCase(int index) {
+        if (sink == null) {
+            return;
+        }
+        flush();
+        begin(RECORD_CASE_START);
+        writeVarint(index);
+        flush(); // Sent right away, so the case's program output cannot overtake it
+    }
+
+    /**
+     * Ends a batch case with its outcome and hands its records over
+     * @param returned whether {@code value} holds a return value (false for void methods)
+     * @param error what the case threw, or null
+     */
+    static void endCase(int index, boolean returned, Object value, Throwable error) {
+        if (sink == null) {
+            return;
+        }
+        lastTime = System.currentTimeMillis();
+        ensure(6);
+        buffer[position++] = RECORD_CASE_END;
+        writeVarint(index);
+        if (error != null) {
+            buffer[position++] = CASE_THREW;
+            writeString(String.valueOf(error));
+        } else {
+            buffer[position++] = CASE_RETURNED;
+            if (returned) {
+                snapshotSizes.remove(value); // The result always carries its contents
+                writeObject(value);
+            } else {
+                ensure(1);
+                buffer[position++] = VALUE_NONE;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Resets the per-trace state and writes the record that opens a trace (epoch millis follow the type)
+     */
+    private static void begin(byte type) {
+        step = 1;
+        depth = 0;
+        nextFrame = 1;
+        drained = 0;
+        stopped = false;
+        entryOpen = false;
+        callingOut = false;
+        loops = 0;
+        mutedLoop = -1;
+        arrayIds.clear();
+        snapshotSizes.clear();
+        lastTime = System.currentTimeMillis();
+        lastDrain = lastTime;
+        ensure(9);
+        buffer[position++] = type;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (lastTime >>> shift);
+        }
+    }
+
+    public static synchronized void close() throws IOException {
+        if (sink != null) {
+            drain();
+        }
+        if (sink != null) {
+            sink.flush();
+            sink = null;
+        }
+        arrayIds.clear();
+        snapshotSizes.clear();
+    }
+
+    /**
+     * True while the channel is open and no tracer call is running code of the program
+     */
+    static boolean isOpen() {
+        return sink != null && !callingOut;
+    }
+
+    /**
+     * Marks the start or end of a tracer call that may run code of the program mid-record
+     */
+    static void callingOut(boolean running) {
+        callingOut = running;
+    }
+
+    /**
+     * True while events should be written: the channel is open, no tracer call is running
+     * code of the program, no budget is exhausted, the current call is not nested deeper than
+     * the job's call depth cutoff and no enclosing loop is past its iteration budget
+     */
+    static boolean recording() {
+        if (sink == null || stopped || callingOut) {
+            return false;
+        }
+        if (step > maxEvents) {
+            exhausted(BUDGET_EVENTS, maxEvents);
+            return false;
+        }
+        if (drained + position > maxBytes) {
+            exhausted(BUDGET_BYTES, maxBytes);
+            return false;
+        }
+        return depth <= maxDepth && mutedLoop < 0;
+    }
+
+    /**
+     * True right after an entry record was written, while its arguments may follow
+     */
+    static boolean entryOpen() {
+        return entryOpen && sink != null && !callingOut;
+    }
+
+    /**
+     * Starts an execution of a loop
+     */
+    static void enterLoop(int loop) {
+        if (loops == loopSymbols.length) {
+            loopSymbols = Arrays.copyOf(loopSymbols, loops * 2);
+            loopDepths = Arrays.copyOf(loopDepths, loops * 2);
+            loopIterations = Arrays.copyOf(loopIterations, loops * 2);
+        }
+        loopSymbols[loops] = loop;
+        loopDepths[loops] = depth;
+        loopIterations[loops] = 0;
+        loops++;
+    }
+
+    /**
+     * Counts an iteration of a loop; iterations past the budget are not traced until the loop ends
+     */
+    static void nextIteration(int loop) {
+        int index = findLoop(loop);
+        if (index < 0) {
+            enterLoop(loop);
+            index = loops - 1;
+        }
+        closeLoops(index + 1); // Inner loops left by a labeled continue
+        int iteration = ++loopIterations[index];
+        if (iteration > maxLoopIterations && mutedLoop < 0) {
+            mutedLoop = index;
+            mutedFrom = iteration;
+            flush(); // The loop may run until the job is stopped; hand over what was traced
+        }
+    }
+
+    /**
+     * Ends an execution of a loop (and of any inner loop still open)
+     */
+    static void exitLoop(int loop) {
+        int index = findLoop(loop);
+        if (index >= 0) {
+            closeLoops(index);
+        }
+    }
+
+    /**
+     * Innermost open execution of the loop within the current call, or -1
+     */
+    private static int findLoop(int loop) {
+        for (int i = loops - 1; i >= 0 && loopDepths[i] == depth; i--) {
+            if (loopSymbols[i] == loop) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Closes open loops down to index {@code from}; closing the muted loop resumes tracing
+     * and writes one run-length record for the iterations that were not traced
+     */
+    private static void closeLoops(int from) {
+        while (loops > from) {
+            loops--;
+            if (loops == mutedLoop) {
+                mutedLoop = -1;
+                if (recording()) {
+                    header(RECORD_LOOP_SKIP, loopSymbols[loops]);
+                    writeVarint(mutedFrom);
+                    writeVarint(loopIterations[loops]);
+                    endRecord();
+                }
+            }
+        }
+    }
+
+    /**
+     * Enters a call frame and writes its entry record; calls made by a tracer call into the
+     * program take no frame
+     * @return the depth before the call, which {@link #popTo} restores
+     */
+    static int push(int method) {
+        if (callingOut) {
+            return depth;
+        }
+        int caller = depth++;
+        int frame = nextFrame++;
+        if (recording()) {
+            header(RECORD_METHOD_ENTRY, method);
+            writeVarint(frame);
+            writeVarint(depth);
+            entryOpen = true;
+            // No endRecord(): the argument records must reach the reader in the same batch
+        }
+        return caller;
+    }
+
+    /**
+     * Writes the exit header of the innermost frame and leaves it; the caller writes the value
+     * @return false if the frame was not traced (cutoff) or no frame is open
+     */
+    static boolean pop(int method) {
+        if (depth == 0 || callingOut) {
+            return false;
+        }
+        // Loops of this frame end with it (return from inside a loop, exception)
+        int frameLoops = loops;
+        while (frameLoops > 0 && loopDepths[frameLoops - 1] >= depth) {
+            frameLoops--;
+        }
+        closeLoops(frameLoops);
+        boolean traced = recording();
+        depth--;
+        if (traced) {
+            header(RECORD_METHOD_EXIT, method);
+        }
+        return traced;
+    }
+
+    /**
+     * Leaves every frame above {@code callerDepth} that did not return a value (void
+     * return or exception), writing a value-less exit record for each
+     */
+    static void popTo(int method, int callerDepth) {
+        while (depth > callerDepth && !callingOut) {
+            if (pop(method)) {
+                ensure(1);
+                buffer[position++] = VALUE_NONE;
+                endRecord();
+            }
+        }
+    }
+
+    /**
+     * Starts an event record: type, step, time delta and symbol id
+     */
+    static void header(byte type, int symbol) {
+        entryOpen = false;
+        long now = System.currentTimeMillis();
+        ensure(21);
+        buffer[position++] = type;
+        writeVarint(step++);
+        writeVarLong(Math.max(0, now - lastTime));
+        writeVarint(symbol);
+        lastTime = now;
+        lastSymbol = symbol;
+    }
+
+    /**
+     * Starts an argument record; it belongs to the last entry and takes no step
+     */
+    static void writeArgument(int symbol) {
+        ensure(6);
+        buffer[position++] = RECORD_ARGUMENT;
+        writeVarint(symbol);
+    }
+
+    static void writeInt(int value) {
+        ensure(6);
+        buffer[position++] = VALUE_INT;
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    static void writeLong(long value) {
+        ensure(11);
+        buffer[position++] = VALUE_LONG;
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    static void writeDouble(double value) {
+        ensure(9);
+        buffer[position++] = VALUE_DOUBLE;
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (bits >>> shift);
+        }
+    }
+
+    static void writeFloat(float value) {
+        ensure(5);
+        buffer[position++] = VALUE_FLOAT;
+        int bits = Float.floatToIntBits(value);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (bits >>> shift);
+        }
+    }
+
+    static void writeBoolean(boolean value) {
+        ensure(1);
+        buffer[position++] = value ? VALUE_TRUE : VALUE_FALSE;
+    }
+
+    static void writeChar(char value) {
+        ensure(4);
+        buffer[position++] = VALUE_CHAR;
+        writeVarint(value);
+    }
+
+    static void writeObject(Object value) {
+        if (value == null) {
+            ensure(1);
+            buffer[position++] = VALUE_NULL;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            writeLong((Long) value);
+        } else if (value instanceof Double) {
+            writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            writeBoolean((Boolean) value);
+        } else if (value instanceof Character) {
+            writeChar((Character) value);
+        } else if (value.getClass().isArray()) {
+            writeArrayRef(value);
+        } else if (value instanceof Collection) {
+            writeCollectionRef((Collection<?>) value);
+        } else if (value instanceof Map) {
+            writeMapRef((Map<?, ?>) value);
+        } else {
+            ensure(1);
+            buffer[position++] = VALUE_STRING;
+            writeString(String.valueOf(value));
+        }
+    }
+
+    /**
+     * Array reference: id, element type, length and snapshot (see {@link #writeSnapshotCount})
+     */
+    static void writeArrayRef(Object array) {
+        Class<?> component = array.getClass().getComponentType();
+        int length = java.lang.reflect.Array.getLength(array);
+        ensure(1);
+        buffer[position++] = VALUE_ARRAY;
+        writeVarint(arrayId(array));
+        writeVarint(component.isPrimitive() ? typeChar(component) : 'L');
+        writeVarint(length);
+        int count = writeSnapshotCount(array, length);
+        inSnapshot = true;
+        try {
+            for (int i = 0; i < count; i++) {
+                writeElement(array, i);
+            }
+        } finally {
+            inSnapshot = false;
+        }
+    }
+
+    /**
+     * Collection reference: id, kind ('L' list, 'S' other), size and snapshot in iteration order
+     */
+    static void writeCollectionRef(Collection<?> collection) {
+        int size = collection.size();
+        ensure(1);
+        buffer[position++] = VALUE_COLLECTION;
+        writeVarint(arrayId(collection));
+        writeVarint(collection instanceof List ? 'L' : 'S');
+        writeVarint(size);
+        int count = writeSnapshotCount(collection, size);
+        inSnapshot = true;
+        try {
+            Iterator<?> elements = collection.iterator();
+            for (int i = 0; i < count; i++) {
+                writeObject(elements.next());
+            }
+        } finally {
+            inSnapshot = false;
+        }
+    }
+
+    /**
+     * Map reference: id, size and snapshot as key/value pairs
+     */
+    static void writeMapRef(Map<?, ?> map) {
+        int size = map.size();
+        ensure(1);
+        buffer[position++] = VALUE_MAP;
+        writeVarint(arrayId(map));
+        writeVarint(size);
+        int count = writeSnapshotCount(map, size);
+        inSnapshot = true;
+        try {
+            Iterator<? extends Map.Entry<?, ?>> entries = map.entrySet().iterator();
+            for (int i = 0; i < count; i++) {
+                Map.Entry<?, ?> entry = entries.next();
+                writeObject(entry.getKey());
+                writeObject(entry.getValue());
+            }
+        } finally {
+            inSnapshot = false;
+        }
+    }
+
+    /**
+     * Decides whether a container's contents go with this reference and writes the marker:
+     * 0 for none, otherwise 1 + the number of elements that follow. Contents are sent on first
+     * sight and again when a collection's size changed behind the tracer's back (remove,
+     * clear, ...); containers nested in a snapshot are sent as references only.
+     *
+     * @return the number of elements the caller must write
+     */
+    private static int writeSnapshotCount(Object container, int size) {
+        Integer sent = snapshotSizes.get(container);
+        boolean stale = sent == null || (sent != size && !container.getClass().isArray());
+        if (!stale || inSnapshot) {
+            writeVarint(0);
+            return 0;
+        }
+        snapshotSizes.put(container, size);
+        int count = Math.min(size, SNAPSHOT_LIMIT);
+        writeVarint(count + 1);
+        return count;
+    }
+
+    /**
+     * Records a traced change of a container's size (list add, map put) so the next
+     * reference does not resend its contents
+     */
+    static void noteSize(Object container, int size) {
+        if (snapshotSizes.containsKey(container)) {
+            snapshotSizes.put(container, size);
+        }
+    }
+
+    /**
+     * Whether {@code target[index]} can be read back: an array or a list
+     */
+    static boolean isIndexed(Object target) {
+        return target != null && (target.getClass().isArray() || target instanceof List);
+    }
+
+    /**
+     * Current value of {@code array[index]} (or {@code list.get(index)}), written with the tag
+     * matching the element type
+     */
+    static void writeElement(Object array, int index) {
+        if (array instanceof int[]) {
+            writeInt(((int[]) array)[index]);
+        } else if (array instanceof long[]) {
+            writeLong(((long[]) array)[index]);
+        } else if (array instanceof double[]) {
+            writeDouble(((double[]) array)[index]);
+        } else if (array instanceof char[]) {
+            writeChar(((char[]) array)[index]);
+        } else if (array instanceof boolean[]) {
+            writeBoolean(((boolean[]) array)[index]);
+        } else if (array instanceof byte[]) {
+            writeInt(((byte[]) array)[index]);
+        } else if (array instanceof short[]) {
+            writeInt(((short[]) array)[index]);
+        } else if (array instanceof float[]) {
+            writeFloat(((float[]) array)[index]);
+        } else if (array instanceof List) {
+            writeObject(((List<?>) array).get(index));
+        } else {
+            writeObject(((Object[]) array)[index]);
+        }
+    }
+
+    static int arrayId(Object array) {
+        Integer id = arrayIds.get(array);
+        if (id == null) {
+            id = arrayIds.size() + 1;
+            arrayIds.put(array, id);
+        }
+        return id;
+    }
+
+    private static char typeChar(Class<?> primitive) {
+        if (primitive == int.class) return 'I';
+        if (primitive == long.class) return 'J';
+        if (primitive == double.class) return 'D';
+        if (primitive == float.class) return 'F';
+        if (primitive == boolean.class) return 'Z';
+        if (primitive == char.class) return 'C';
+        if (primitive == byte.class) return 'B';
+        return 'S';
+    }
+
+    static void writeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    static void writeVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    static void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * Ends a record, draining the buffer to the sink once enough has accumulated or the
+     * oldest buffered record is older than the flush interval
+     */
+    static void endRecord() {
+        if (position >= FLUSH_THRESHOLD) {
+            drain();
+            lastDrain = lastTime;
+        } else if (lastTime - lastDrain >= FLUSH_INTERVAL_MS) {
+            flush();
+            lastDrain = lastTime;
+        }
+    }
+
+    /**
+     * Stops tracing for the rest of the job, telling the server which budget ran out and at
+     * which site; the program itself keeps running until the server stops it
+     */
+    private static void exhausted(byte budget, long limit) {
+        stopped = true;
+        header(RECORD_BUDGET, lastSymbol);
+        ensure(11);
+        buffer[position++] = budget;
+        writeVarLong(limit);
+        flush();
+    }
+
+    private static void ensure(int bytes) {
+        if (position + bytes > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, position + bytes)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Drains the buffer and pushes it through the sink's own buffering, so the server sees
+     * the records now rather than when more output follows
+     */
+    private static void flush() {
+        drain();
+        if (sink != null) {
+            try {
+                sink.flush();
+            } catch (IOException e) {
+                sink = null;
+            }
+        }
+    }
+
+    private static void drain() {
+        if (position == 0) {
+            return;
+        }
+        drained += position;
+        try {
+            sink.write(buffer, 0, position);
+        } catch (IOException e) {
+            sink = null; // Server is gone; stop tracing rather than failing the program
+        }
+        position = 0;
+        if (buffer.length > FLUSH_THRESHOLD * 8) {
+            buffer = new byte[FLUSH_THRESHOLD * 2];
+        }
+    }
+}
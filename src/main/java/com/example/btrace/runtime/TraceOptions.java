@@ -0,0 +1,61 @@
+package com.example.btrace.runtime;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Per-job settings the server sends along with a job and the runtime applies while tracing.
+ * For every limit, 0 means unlimited.
+ *
+ * Runs inside the executor JVM - JDK classes only.
+ */
+public final class TraceOptions {
+
+    private static final TraceOptions DEFAULTS = new TraceOptions(0, 0, 0, 0);
+
+    private final int maxCallDepth;
+    private final int maxEvents;
+    private final long maxBytes;
+    private final int maxLoopIterations;
+
+    /**
+     * @param maxCallDepth calls nested deeper than this are executed but not traced
+     */
+    public TraceOptions(int maxCallDepth) {
+        this(maxCallDepth, 0, 0, 0);
+    }
+
+    /**
+     * @param maxCallDepth calls nested deeper than this are executed but not traced
+     * @param maxEvents tracing stops after this many events
+     * @param maxBytes tracing stops once this many bytes of trace records were written
+     * @param maxLoopIterations iterations of one loop run beyond this are not traced, only counted
+     */
+    public TraceOptions(int maxCallDepth, int maxEvents, long maxBytes, int maxLoopIterations) {
+        this.maxCallDepth = Math.max(0, maxCallDepth);
+        this.maxEvents = Math.max(0, maxEvents);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxLoopIterations = Math.max(0, maxLoopIterations);
+    }
+
+    public static TraceOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public int getMaxCallDepth() { return maxCallDepth; }
+    public int getMaxEvents() { return maxEvents; }
+    public long getMaxBytes() { return maxBytes; }
+    public int getMaxLoopIterations() { return maxLoopIterations; }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(maxCallDepth);
+        out.writeInt(maxEvents);
+        out.writeLong(maxBytes);
+        out.writeInt(maxLoopIterations);
+    }
+
+    public static TraceOptions readFrom(DataInput in) throws IOException {
+        return new TraceOptions(in.readInt(), in.readInt(), in.readLong(), in.readInt());
+    }
+}
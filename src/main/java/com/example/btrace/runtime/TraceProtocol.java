@@ -0,0 +1,60 @@
+package com.example.btrace.runtime;
+
+/**
+ * Binary trace record format shared by the in-process runtime and the server-side decoder.
+ *
+ * Every record starts with a one-byte record type. Event records continue with the step
+ * number and the milliseconds elapsed since the previous event, both as unsigned varints,
+ * followed by the symbol id assigned at instrumentation time. Variable names are never
+ * sent; the server resolves symbol ids against the symbol table it built while
+ * instrumenting. Values are a tag byte followed by a tag-specific payload; ints, longs
+ * and chars are zigzag/unsigned varints. Arrays and collections are identified by a per-job
+ * id so element stores can be matched to the variable that holds them. A snapshot is a
+ * varint n: 0 when the contents are not included, else n - 1 values follow (possibly fewer
+ * than the size). Contents go out when a container is first seen; after that only the
+ * reference and element-level deltas do.
+ *
+ * Method entries carry a frame id from a per-job counter and the call depth; the matching
+ * exit is the next exit at the same depth, so frames never have to be named on the wire.
+ * Argument records follow their entry record and carry no step or time of their own.
+ */
+public final class TraceProtocol {
+
+    // Record types
+    public static final byte RECORD_START = 1;        // epoch millis (8 bytes)
+    public static final byte RECORD_VARIABLE = 2;     // step, delta, symbol id, value
+    public static final byte RECORD_METHOD_ENTRY = 3; // step, delta, symbol id, frame id, depth
+    public static final byte RECORD_METHOD_EXIT = 4;  // step, delta, symbol id, return value or VALUE_NONE
+    public static final byte RECORD_ARRAY_STORE = 5;  // step, delta, symbol id, array id, index, value
+    public static final byte RECORD_ARGUMENT = 6;     // symbol id, value (belongs to the preceding entry)
+    public static final byte RECORD_MAP_PUT = 7;      // step, delta, symbol id, map id, key, value
+    public static final byte RECORD_LOOP_SKIP = 8;    // step, delta, loop symbol id, first and last untraced iteration
+    public static final byte RECORD_BUDGET = 9;       // step, delta, symbol id of the last event, budget kind, limit
+    public static final byte RECORD_CASE_START = 10;  // epoch millis (8 bytes), case index; steps restart at 1
+    public static final byte RECORD_CASE_END = 11;    // case index, outcome, return value (VALUE_NONE if void) or exception
+
+    // Budget kinds; tracing ends after a RECORD_BUDGET
+    public static final byte BUDGET_EVENTS = 1;
+    public static final byte BUDGET_BYTES = 2;
+
+    // Batch case outcomes
+    public static final byte CASE_RETURNED = 0;
+    public static final byte CASE_THREW = 1;
+
+    // Value tags
+    public static final byte VALUE_NULL = 0;
+    public static final byte VALUE_INT = 1;
+    public static final byte VALUE_LONG = 2;
+    public static final byte VALUE_DOUBLE = 3;
+    public static final byte VALUE_FLOAT = 4;
+    public static final byte VALUE_FALSE = 5;
+    public static final byte VALUE_TRUE = 6;
+    public static final byte VALUE_CHAR = 7;
+    public static final byte VALUE_STRING = 8;
+    public static final byte VALUE_ARRAY = 9;        // array id, element type char, length, snapshot
+    public static final byte VALUE_NONE = 10;        // void return or exit by exception
+    public static final byte VALUE_COLLECTION = 11;  // id, kind char, size, snapshot
+    public static final byte VALUE_MAP = 12;         // id, size, snapshot of (key, value) pairs
+
+    private TraceProtocol() {}
+}
@@ -0,0 +1,406 @@
+package com.example.btrace.runtime;
+
+import static com.example.btrace.runtime.TraceProtocol.*;
+
+/**
+ * Tracing API called from instrumented code.
+ * Every call takes the symbol id the instrumenter assigned to the traced variable or
+ * method. Primitive overloads write values directly, so the hot path neither boxes
+ * nor calls {@code toString()}.
+ *
+ * Writing an object may run code of the program - its {@code toString()}, {@code hashCode()}
+ * or iterator - while the record is open. Such calls are marked on the channel, which ignores
+ * tracer calls made from inside them.
+ *
+ * Runs inside the executor JVM - JDK classes only.
+ */
+public final class Tracer {
+
+    private Tracer() {}
+
+    /**
+     * Enters a method frame
+     * @return the call depth before entering, to be passed to {@link #unwind}
+     */
+    public static int enter(int method) {
+        synchronized (TraceChannel.class) {
+            return TraceChannel.push(method);
+        }
+    }
+
+    /**
+     * Leaves the frames a method did not leave through {@code ret} - void returns and
+     * exceptions. Called from the method's finally block with the depth {@link #enter} returned.
+     */
+    public static void unwind(int method, int callerDepth) {
+        synchronized (TraceChannel.class) {
+            TraceChannel.popTo(method, callerDepth);
+        }
+    }
+
+    /**
+     * Starts the trace of case {@code index} of a batch job; called by the generated batch harness
+     */
+    public static void caseStart(int index) {
+        synchronized (TraceChannel.class) {
+            TraceChannel.startCase(index);
+        }
+    }
+
+    /**
+     * Ends case {@code index} of a batch job
+     * @param returned whether the traced method returned a value (false for void or on exception)
+     * @param error what the case threw, or null
+     */
+    public static void caseEnd(int index, boolean returned, Object value, Throwable error) {
+        synchronized (TraceChannel.class) {
+            TraceChannel.callingOut(true);
+            try {
+                TraceChannel.endCase(index, returned, value, error);
+            } finally {
+                TraceChannel.callingOut(false);
+            }
+        }
+    }
+
+    /**
+     * Marks the start of a loop statement; iterations are counted per execution of the loop
+     */
+    public static void loopEnter(int loop) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.isOpen()) {
+                TraceChannel.enterLoop(loop);
+            }
+        }
+    }
+
+    /**
+     * Called first thing in every iteration of a loop body
+     */
+    public static void loopIteration(int loop) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.isOpen()) {
+                TraceChannel.nextIteration(loop);
+            }
+        }
+    }
+
+    /**
+     * Marks the end of a loop statement, however it was left; called from a finally block
+     */
+    public static void loopExit(int loop) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.isOpen()) {
+                TraceChannel.exitLoop(loop);
+            }
+        }
+    }
+
+    /**
+     * Records {@code array[index]} (or {@code list.get(index)}) right after it was stored.
+     * The value is read back from the target, so one signature serves every array type.
+     */
+    public static void element(Object array, int index, int site) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording() && TraceChannel.isIndexed(array)) {
+                TraceChannel.callingOut(true);
+                try {
+                    TraceChannel.header(RECORD_ARRAY_STORE, site);
+                    TraceChannel.writeVarint(TraceChannel.arrayId(array));
+                    TraceChannel.writeVarint(index);
+                    TraceChannel.writeElement(array, index);
+                    TraceChannel.endRecord();
+                    if (array instanceof java.util.List) {
+                        TraceChannel.noteSize(array, ((java.util.List<?>) array).size());
+                    }
+                } finally {
+                    TraceChannel.callingOut(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the last element of a list right after {@code list.add(value)}
+     */
+    public static void appended(Object list, int site) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording() && list instanceof java.util.List) {
+                int size;
+                TraceChannel.callingOut(true);
+                try {
+                    size = ((java.util.List<?>) list).size();
+                } finally {
+                    TraceChannel.callingOut(false);
+                }
+                if (size > 0) {
+                    element(list, size - 1, site);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records {@code map.get(key)} right after {@code map.put(key, value)}
+     */
+    public static void put(Object map, Object key, int site) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording() && map instanceof java.util.Map) {
+                TraceChannel.callingOut(true);
+                try {
+                    TraceChannel.header(RECORD_MAP_PUT, site);
+                    TraceChannel.writeVarint(TraceChannel.arrayId(map));
+                    TraceChannel.writeObject(key);
+                    TraceChannel.writeObject(((java.util.Map<?, ?>) map).get(key));
+                    TraceChannel.endRecord();
+                    TraceChannel.noteSize(map, ((java.util.Map<?, ?>) map).size());
+                } finally {
+                    TraceChannel.callingOut(false);
+                }
+            }
+        }
+    }
+
+    public static void var(int symbol, int value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording()) {
+                TraceChannel.header(RECORD_VARIABLE, symbol);
+                TraceChannel.writeInt(value);
+                TraceChannel.endRecord();
+            }
+        }
+    }
+
+    public static void var(int symbol, long value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording()) {
+                TraceChannel.header(RECORD_VARIABLE, symbol);
+                TraceChannel.writeLong(value);
+                TraceChannel.endRecord();
+            }
+        }
+    }
+
+    public static void var(int symbol, double value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording()) {
+                TraceChannel.header(RECORD_VARIABLE, symbol);
+                TraceChannel.writeDouble(value);
+                TraceChannel.endRecord();
+            }
+        }
+    }
+
+    public static void var(int symbol, float value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording()) {
+                TraceChannel.header(RECORD_VARIABLE, symbol);
+                TraceChannel.writeFloat(value);
+                TraceChannel.endRecord();
+            }
+        }
+    }
+
+    public static void var(int symbol, boolean value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording()) {
+                TraceChannel.header(RECORD_VARIABLE, symbol);
+                TraceChannel.writeBoolean(value);
+                TraceChannel.endRecord();
+            }
+        }
+    }
+
+    public static void var(int symbol, char value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording()) {
+                TraceChannel.header(RECORD_VARIABLE, symbol);
+                TraceChannel.writeChar(value);
+                TraceChannel.endRecord();
+            }
+        }
+    }
+
+    public static void var(int symbol, Object value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.recording()) {
+                TraceChannel.callingOut(true);
+                try {
+                    TraceChannel.header(RECORD_VARIABLE, symbol);
+                    TraceChannel.writeObject(value);
+                    TraceChannel.endRecord();
+                } finally {
+                    TraceChannel.callingOut(false);
+                }
+            }
+        }
+    }
+
+    // Arguments, recorded right after enter() and flushed together with the entry record
+
+    public static void arg(int symbol, int value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.entryOpen()) {
+                TraceChannel.writeArgument(symbol);
+                TraceChannel.writeInt(value);
+            }
+        }
+    }
+
+    public static void arg(int symbol, long value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.entryOpen()) {
+                TraceChannel.writeArgument(symbol);
+                TraceChannel.writeLong(value);
+            }
+        }
+    }
+
+    public static void arg(int symbol, double value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.entryOpen()) {
+                TraceChannel.writeArgument(symbol);
+                TraceChannel.writeDouble(value);
+            }
+        }
+    }
+
+    public static void arg(int symbol, float value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.entryOpen()) {
+                TraceChannel.writeArgument(symbol);
+                TraceChannel.writeFloat(value);
+            }
+        }
+    }
+
+    public static void arg(int symbol, boolean value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.entryOpen()) {
+                TraceChannel.writeArgument(symbol);
+                TraceChannel.writeBoolean(value);
+            }
+        }
+    }
+
+    public static void arg(int symbol, char value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.entryOpen()) {
+                TraceChannel.writeArgument(symbol);
+                TraceChannel.writeChar(value);
+            }
+        }
+    }
+
+    public static void arg(int symbol, Object value) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.entryOpen()) {
+                TraceChannel.callingOut(true);
+                try {
+                    TraceChannel.writeArgument(symbol);
+                    TraceChannel.writeObject(value);
+                } finally {
+                    TraceChannel.callingOut(false);
+                }
+            }
+        }
+    }
+
+    // Return values: each overload records the exit of the innermost frame and hands the
+    // value back, so instrumented code can wrap any return expression in place
+
+    public static int ret(int value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeInt(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static long ret(long value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeLong(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static double ret(double value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeDouble(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static float ret(float value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeFloat(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static boolean ret(boolean value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeBoolean(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static char ret(char value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeChar(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static byte ret(byte value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeInt(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static short ret(short value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.writeInt(value);
+                TraceChannel.endRecord();
+            }
+        }
+        return value;
+    }
+
+    public static <T> T ret(T value, int method) {
+        synchronized (TraceChannel.class) {
+            if (TraceChannel.pop(method)) {
+                TraceChannel.callingOut(true);
+                try {
+                    TraceChannel.writeObject(value);
+                    TraceChannel.endRecord();
+                } finally {
+                    TraceChannel.callingOut(false);
+                }
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,717 @@
+package com.example.btrace.trace;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The events of one trace in columns instead of one map per event.
+ *
+ * Step, line and timestamp are primitive arrays. Event types, variable names and field names are
+ * interned ids, and string values go to a table shared by the whole trace. Each event owns a run
+ * of cells, one per variable or extra field (frame, depth, index, arrays, ...). A cell holds the
+ * name id, a kind, and the value as 64 bits: a number, a string id, or an index into a side
+ * list for nested lists and maps (container contents), which stay objects.
+ *
+ * As a {@code List} the trace reads as the usual event maps (see TraceDecoder for their shape).
+ * Each {@link #get} builds its map on the fly, so callers that only iterate pay for one event at
+ * a time. {@link #writeJson} and the column accessors serialize the columns without building any
+ * map.
+ *
+ * Events of the types the decoder produces - variable, element and map updates, method entries and
+ * exits - usually carry no action of their own: "Variable x = 5", "Entering method f(n=3)" and so
+ * on are derived from the event's type and vars whenever the event is read or serialized, so
+ * decoding builds and interns no per-event description.
+ *
+ * {@code maxBytes} is a heap budget: {@link #isFull()} reports when the estimated size reached it,
+ * and producers stop adding events then. The estimate counts the columns, the string tables and
+ * the nested values.
+ *
+ * Built by one thread; safe to read from any thread once published.
+ */
+public class TraceData extends AbstractList<Map<String, Object>> implements RandomAccess {
+
+    /** Step of an event without one (batch control events) */
+    public static final int NO_STEP = -1;
+    /** Line of an event without one */
+    public static final int NO_LINE = 0;
+    /** Timestamp of an event without one */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // Cell kinds; VAR marks a cell that belongs to the event's vars
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte FLOAT = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte CHAR = 7;
+    private static final byte STRING = 8;
+    private static final byte OBJECT = 9;
+    private static final byte VAR = (byte) 0x80;
+
+    private static final byte HAS_VARS = 1;
+    // The event reads without an action even where one could be derived
+    private static final byte NO_ACTION = 2;
+
+    // Heap estimates: bytes per event row, per cell, and per interned string beyond its chars
+    private static final int EVENT_BYTES = 4 + 4 + 8 + 4 + 4 + 1 + 4;
+    private static final int CELL_BYTES = 4 + 1 + 8;
+    private static final int STRING_BYTES = 88;
+    private static final int INITIAL_EVENTS = 64;
+
+    private final long maxBytes;
+
+    private int size;
+    private int[] steps = new int[INITIAL_EVENTS];
+    private int[] lines = new int[INITIAL_EVENTS];
+    private long[] timestamps = new long[INITIAL_EVENTS];
+    private int[] types = new int[INITIAL_EVENTS];     // name id, or -1
+    private int[] actions = new int[INITIAL_EVENTS];   // string id, or -1
+    private byte[] flags = new byte[INITIAL_EVENTS];
+    private int[] cellStarts = new int[INITIAL_EVENTS];
+
+    private int cells;
+    private int[] cellNames = new int[INITIAL_EVENTS * 2];
+    private byte[] cellKinds = new byte[INITIAL_EVENTS * 2];
+    private long[] cellBits = new long[INITIAL_EVENTS * 2];
+
+    private final StringTable names = new StringTable();
+    private final StringTable strings = new StringTable();
+    private final List<Object> objects = new ArrayList<>();
+    private long objectBytes;
+
+    public TraceData() {
+        this(0);
+    }
+
+    /**
+     * @param maxBytes heap budget for the trace; 0 = unbounded
+     */
+    public TraceData(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * The events of {@code events} as a TraceData; the same object if it already is one
+     */
+    public static TraceData of(List<Map<String, Object>> events) {
+        if (events instanceof TraceData) {
+            return (TraceData) events;
+        }
+        TraceData data = new TraceData();
+        data.addAll(events);
+        return data;
+    }
+
+    // Building
+
+    /**
+     * Starts an event; its variables and fields follow with {@link #var} and {@link #field}
+     * @param step the step, or NO_STEP
+     * @param line the source line, or NO_LINE
+     * @param eventType e.g. "variable_update", or null
+     * @param action human-readable description, or null to derive it where the event type allows
+     * @param timestamp epoch milliseconds, or NO_TIMESTAMP
+     * @param hasVars whether the event has a vars map even while it is empty
+     */
+    public void startEvent(int step, int line, String eventType, String action, long timestamp, boolean hasVars) {
+        if (size == steps.length) {
+            int capacity = size * 2;
+            steps = Arrays.copyOf(steps, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            types = Arrays.copyOf(types, capacity);
+            actions = Arrays.copyOf(actions, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            cellStarts = Arrays.copyOf(cellStarts, capacity);
+        }
+        steps[size] = step;
+        lines[size] = line;
+        timestamps[size] = timestamp;
+        types[size] = eventType != null ? names.id(eventType) : -1;
+        actions[size] = action != null ? strings.id(action) : -1;
+        flags[size] = hasVars ? HAS_VARS : 0;
+        cellStarts[size] = cells;
+        size++;
+        modCount++;
+    }
+
+    /** Adds a variable to the last event */
+    public void var(String name, Object value) {
+        flags[size - 1] |= HAS_VARS;
+        cell(name, value, VAR);
+    }
+
+    /** Adds a field other than step, line, event_type, action, vars and timestamp to the last event */
+    public void field(String name, Object value) {
+        cell(name, value, (byte) 0);
+    }
+
+    /**
+     * Puts an entry into a map-valued field of the last event, e.g. the contents of a container
+     * under {@code arrays}; the field is added if the event does not have it yet
+     */
+    @SuppressWarnings("unchecked")
+    public void putInField(String name, String key, Object value) {
+        Object existing = getField(size - 1, name);
+        if (existing instanceof Map) {
+            ((Map<String, Object>) existing).put(key, value);
+            objectBytes += 40 + estimate(key) + estimate(value);
+        } else {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put(key, value);
+            field(name, map);
+        }
+    }
+
+    /** Replaces the action of the last event */
+    public void setAction(String action) {
+        actions[size - 1] = action != null ? strings.id(action) : -1;
+    }
+
+    /**
+     * Appends an event given as a map; {@code step}, {@code line}, {@code event_type},
+     * {@code action}, {@code vars} and {@code timestamp} go to their columns, other keys are fields
+     */
+    @Override
+    public boolean add(Map<String, Object> event) {
+        Object step = event.get("step");
+        Object line = event.get("line");
+        Object type = event.get("event_type");
+        Object action = event.get("action");
+        Object vars = event.get("vars");
+        Object timestamp = event.get("timestamp");
+        startEvent(step instanceof Number ? ((Number) step).intValue() : NO_STEP,
+                   line instanceof Number ? ((Number) line).intValue() : NO_LINE,
+                   type != null ? String.valueOf(type) : null,
+                   action != null ? String.valueOf(action) : null,
+                   timestamp instanceof Number ? ((Number) timestamp).longValue() : NO_TIMESTAMP,
+                   vars instanceof Map);
+        if (action == null && event.containsKey("action")) {
+            flags[size - 1] |= NO_ACTION;
+        }
+        if (vars instanceof Map) {
+            for (Map.Entry<?, ?> var : ((Map<?, ?>) vars).entrySet()) {
+                var(String.valueOf(var.getKey()), var.getValue());
+            }
+        }
+        for (Map.Entry<String, Object> field : event.entrySet()) {
+            if (!isColumn(field.getKey(), field.getValue())) {
+                field(field.getKey(), field.getValue());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a copy of event {@code event} of {@code other}
+     */
+    public void append(TraceData other, int event) {
+        other.check(event);
+        startEvent(other.steps[event], other.lines[event], other.getEventType(event), other.getOwnAction(event),
+                   other.timestamps[event], (other.flags[event] & HAS_VARS) != 0);
+        flags[size - 1] |= other.flags[event] & NO_ACTION;
+        for (int c = other.cellStart(event); c < other.cellEnd(event); c++) {
+            cell(other.cellName(c), other.cellValue(c), (byte) (other.cellKinds[c] & VAR));
+        }
+    }
+
+    /**
+     * Copy of events {@code from} (inclusive) to {@code to} (exclusive)
+     * @param keep top-level keys to keep (e.g. "step", "vars"), or null for all
+     */
+    public TraceData copy(int from, int to, Set<String> keep) {
+        TraceData copy = new TraceData(maxBytes);
+        for (int i = from; i < to; i++) {
+            check(i);
+            boolean vars = (flags[i] & HAS_VARS) != 0 && (keep == null || keep.contains("vars"));
+            boolean type = keep == null || keep.contains("event_type");
+            boolean action = keep == null || keep.contains("action");
+            // A derived action needs the type and vars; a copy without them keeps the action itself
+            copy.startEvent(keep == null || keep.contains("step") ? steps[i] : NO_STEP,
+                            keep == null || keep.contains("line") ? lines[i] : NO_LINE,
+                            type ? getEventType(i) : null,
+                            !action ? null : type && vars ? getOwnAction(i) : getAction(i),
+                            keep == null || keep.contains("timestamp") ? timestamps[i] : NO_TIMESTAMP,
+                            vars);
+            if (!action || (flags[i] & NO_ACTION) != 0) {
+                copy.flags[copy.size - 1] |= NO_ACTION;
+            }
+            for (int c = cellStart(i); c < cellEnd(i); c++) {
+                boolean var = isVar(c);
+                if (var ? vars : keep == null || keep.contains(cellName(c))) {
+                    copy.cell(cellName(c), cellValue(c), var ? VAR : 0);
+                }
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        cells = 0;
+        names.clear();
+        strings.clear();
+        objects.clear();
+        objectBytes = 0;
+        modCount++;
+    }
+
+    private void cell(String name, Object value, byte var) {
+        if (cells == cellNames.length) {
+            int capacity = cells * 2;
+            cellNames = Arrays.copyOf(cellNames, capacity);
+            cellKinds = Arrays.copyOf(cellKinds, capacity);
+            cellBits = Arrays.copyOf(cellBits, capacity);
+        }
+        byte kind;
+        long bits = 0;
+        if (value == null) {
+            kind = NULL;
+        } else if (value instanceof Boolean) {
+            kind = (Boolean) value ? TRUE : FALSE;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            kind = INT;
+            bits = ((Number) value).intValue();
+        } else if (value instanceof Long) {
+            kind = LONG;
+            bits = (Long) value;
+        } else if (value instanceof Float) {
+            kind = FLOAT;
+            bits = Float.floatToRawIntBits((Float) value);
+        } else if (value instanceof Double) {
+            kind = DOUBLE;
+            bits = Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof Character) {
+            kind = CHAR;
+            bits = (Character) value;
+        } else if (value instanceof String) {
+            kind = STRING;
+            bits = strings.id((String) value);
+        } else {
+            kind = OBJECT;
+            bits = objects.size();
+            objects.add(value);
+            objectBytes += estimate(value);
+        }
+        cellNames[cells] = names.id(name);
+        cellKinds[cells] = (byte) (kind | var);
+        cellBits[cells] = bits;
+        cells++;
+    }
+
+    /** Whether {@link #add(Map)} keeps this entry in a column rather than a field */
+    private static boolean isColumn(String key, Object value) {
+        switch (key) {
+            case "step":
+            case "line":
+            case "timestamp":
+                return value instanceof Number;
+            case "vars":
+                return value instanceof Map;
+            case "event_type":
+            case "action":
+                return value != null;
+            default:
+                return false;
+        }
+    }
+
+    // Memory budget
+
+    /** Estimated heap taken by the trace */
+    public long getMemoryBytes() {
+        return (long) steps.length * EVENT_BYTES + (long) cellNames.length * CELL_BYTES
+            + names.bytes + strings.bytes + objectBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Whether the trace reached its heap budget; no more events should be added */
+    public boolean isFull() {
+        return maxBytes > 0 && getMemoryBytes() >= maxBytes;
+    }
+
+    private static long estimate(Object value) {
+        if (value instanceof Map) {
+            long bytes = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += 40 + estimate(entry.getKey()) + estimate(entry.getValue());
+            }
+            return bytes;
+        }
+        if (value instanceof Collection) {
+            long bytes = 24;
+            for (Object element : (Collection<?>) value) {
+                bytes += 8 + estimate(element);
+            }
+            return bytes;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        return 16;
+    }
+
+    // Reading
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Event {@code index} as a new map
+     */
+    @Override
+    public Map<String, Object> get(int index) {
+        check(index);
+        Map<String, Object> event = new LinkedHashMap<>();
+        if (steps[index] != NO_STEP) {
+            event.put("step", steps[index]);
+        }
+        if (lines[index] != NO_LINE) {
+            event.put("line", lines[index]);
+        }
+        if (types[index] >= 0) {
+            event.put("event_type", getEventType(index));
+        }
+        String action = getAction(index);
+        if (action != null) {
+            event.put("action", action);
+        }
+        if ((flags[index] & HAS_VARS) != 0) {
+            event.put("vars", getVars(index));
+        }
+        if (timestamps[index] != NO_TIMESTAMP) {
+            event.put("timestamp", timestamps[index]);
+        }
+        for (int c = cellStart(index); c < cellEnd(index); c++) {
+            if (!isVar(c)) {
+                event.put(cellName(c), cellValue(c));
+            }
+        }
+        return event;
+    }
+
+    /** Step of event {@code index}, or NO_STEP */
+    public int getStep(int index) { return steps[check(index)]; }
+    /** Line of event {@code index}, or NO_LINE */
+    public int getLine(int index) { return lines[check(index)]; }
+    /** Timestamp of event {@code index}, or NO_TIMESTAMP */
+    public long getTimestamp(int index) { return timestamps[check(index)]; }
+
+    public String getEventType(int index) {
+        int type = types[check(index)];
+        return type >= 0 ? names.get(type) : null;
+    }
+
+    /**
+     * Action of event {@code index}: its own, or one derived from its type and vars, or null
+     */
+    public String getAction(int index) {
+        int action = actions[check(index)];
+        if (action >= 0) {
+            return strings.get(action);
+        }
+        return (flags[index] & NO_ACTION) == 0 ? derivedAction(index) : null;
+    }
+
+    /** The action stored with event {@code index}, or null if it has none or it is derived */
+    public String getOwnAction(int index) {
+        int action = actions[check(index)];
+        return action >= 0 ? strings.get(action) : null;
+    }
+
+    /**
+     * E.g. "Variable x = 5", "arr[1] = 7", "Entering method sq(x=3)", "Returning 9 from sq";
+     * null for events of other types
+     */
+    private String derivedAction(int index) {
+        String type = getEventType(index);
+        if (type == null) {
+            return null;
+        }
+        int start = cellStart(index);
+        int end = cellEnd(index);
+        switch (type) {
+            case "variable_update":
+            case "array_update":
+            case "map_update": {
+                int c = varCell(start, end, null);
+                if (c < 0) {
+                    return null;
+                }
+                String prefix = "variable_update".equals(type) ? "Variable " : "";
+                return prefix + cellName(c) + " = " + cellValue(c);
+            }
+            case "method_entry": {
+                int method = varCell(start, end, "method");
+                if (method < 0) {
+                    return null;
+                }
+                StringBuilder action = new StringBuilder("Entering method ").append(cellValue(method));
+                int arguments = 0;
+                for (int c = start; c < end; c++) {
+                    if (isVar(c) && c != method) {
+                        action.append(arguments++ == 0 ? "(" : ", ")
+                            .append(cellName(c)).append('=').append(cellValue(c));
+                    }
+                }
+                return arguments > 0 ? action.append(')').toString() : action.toString();
+            }
+            case "method_exit": {
+                int method = varCell(start, end, "method");
+                if (method < 0) {
+                    return null;
+                }
+                int returned = varCell(start, end, "return");
+                return returned >= 0
+                    ? "Returning " + cellValue(returned) + " from " + cellValue(method)
+                    : "Leaving method " + cellValue(method);
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * First variable cell named {@code name} (any variable if null) among cells {@code start} to
+     * {@code end}, or -1
+     */
+    private int varCell(int start, int end, String name) {
+        for (int c = start; c < end; c++) {
+            if (isVar(c) && (name == null || cellName(c).equals(name))) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /** Whether event {@code index} has a vars map, possibly empty */
+    public boolean hasVars(int index) {
+        return (flags[check(index)] & HAS_VARS) != 0;
+    }
+
+    /** Variables of event {@code index} as a new map */
+    public Map<String, Object> getVars(int index) {
+        Map<String, Object> vars = new LinkedHashMap<>();
+        for (int c = cellStart(index); c < cellEnd(index); c++) {
+            if (isVar(c)) {
+                vars.put(cellName(c), cellValue(c));
+            }
+        }
+        return vars;
+    }
+
+    /**
+     * Value of a field other than the columns, or null if the event has none
+     */
+    public Object getField(int index, String name) {
+        for (int c = cellStart(index); c < cellEnd(index); c++) {
+            if (!isVar(c) && cellName(c).equals(name)) {
+                return cellValue(c);
+            }
+        }
+        return null;
+    }
+
+    /** First cell of event {@code index} */
+    public int cellStart(int index) { return cellStarts[check(index)]; }
+    /** End (exclusive) of the cells of event {@code index} */
+    public int cellEnd(int index) { return index + 1 < size ? cellStarts[index + 1] : cells; }
+    /** Whether the cell is a variable rather than a field */
+    public boolean isVar(int cell) { return (cellKinds[cell] & VAR) != 0; }
+    public String cellName(int cell) { return names.get(cellNames[cell]); }
+
+    /**
+     * Value of a cell, boxed
+     */
+    public Object cellValue(int cell) {
+        long bits = cellBits[cell];
+        switch (cellKinds[cell] & ~VAR) {
+            case NULL: return null;
+            case FALSE: return Boolean.FALSE;
+            case TRUE: return Boolean.TRUE;
+            case INT: return (int) bits;
+            case LONG: return bits;
+            case FLOAT: return Float.intBitsToFloat((int) bits);
+            case DOUBLE: return Double.longBitsToDouble(bits);
+            case CHAR: return (char) bits;
+            case STRING: return strings.get((int) bits);
+            default: return objects.get((int) bits);
+        }
+    }
+
+    private int check(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Event " + index + " of " + size);
+        }
+        return index;
+    }
+
+    // JSON
+
+    /**
+     * Writes event {@code index} as one compact JSON object, straight from the columns.
+     * Non-finite doubles are written as the strings "NaN" / "Infinity", as Jackson writes them.
+     */
+    public void writeJson(int index, Appendable out) throws IOException {
+        check(index);
+        out.append('{');
+        boolean first = true;
+        if (steps[index] != NO_STEP) {
+            first = key(out, "step", first);
+            out.append(Integer.toString(steps[index]));
+        }
+        if (lines[index] != NO_LINE) {
+            first = key(out, "line", first);
+            out.append(Integer.toString(lines[index]));
+        }
+        if (types[index] >= 0) {
+            first = key(out, "event_type", first);
+            writeString(getEventType(index), out);
+        }
+        String action = getAction(index);
+        if (action != null) {
+            first = key(out, "action", first);
+            writeString(action, out);
+        }
+        if ((flags[index] & HAS_VARS) != 0) {
+            first = key(out, "vars", first);
+            out.append('{');
+            boolean firstVar = true;
+            for (int c = cellStart(index); c < cellEnd(index); c++) {
+                if (isVar(c)) {
+                    firstVar = key(out, cellName(c), firstVar);
+                    writeCell(c, out);
+                }
+            }
+            out.append('}');
+        }
+        if (timestamps[index] != NO_TIMESTAMP) {
+            first = key(out, "timestamp", first);
+            out.append(Long.toString(timestamps[index]));
+        }
+        for (int c = cellStart(index); c < cellEnd(index); c++) {
+            if (!isVar(c)) {
+                first = key(out, cellName(c), first);
+                writeCell(c, out);
+            }
+        }
+        out.append('}');
+    }
+
+    private void writeCell(int cell, Appendable out) throws IOException {
+        long bits = cellBits[cell];
+        switch (cellKinds[cell] & ~VAR) {
+            case INT:
+                out.append(Integer.toString((int) bits));
+                break;
+            case LONG:
+                out.append(Long.toString(bits));
+                break;
+            case STRING:
+                writeString(strings.get((int) bits), out);
+                break;
+            default:
+                writeValue(cellValue(cell), out);
+        }
+    }
+
+    private static boolean key(Appendable out, String name, boolean first) throws IOException {
+        if (!first) {
+            out.append(',');
+        }
+        writeString(name, out);
+        out.append(':');
+        return false;
+    }
+
+    private static void writeValue(Object value, Appendable out) throws IOException {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Double && !Double.isFinite((Double) value)
+                || value instanceof Float && !Float.isFinite((Float) value)) {
+            writeString(value.toString(), out);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value.toString());
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                first = key(out, String.valueOf(entry.getKey()), first);
+                writeValue(entry.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeValue(element, out);
+            }
+            out.append(']');
+        } else {
+            writeString(value.toString(), out);
+        }
+    }
+
+    private static void writeString(String value, Appendable out) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Interned strings with ids in insertion order
+     */
+    private static class StringTable {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> ids = new HashMap<>();
+        long bytes;
+
+        int id(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+                bytes += STRING_BYTES + 2L * value.length();
+            }
+            return id;
+        }
+
+        String get(int id) {
+            return values.get(id);
+        }
+
+        void clear() {
+            values.clear();
+            ids.clear();
+            bytes = 0;
+        }
+    }
+}
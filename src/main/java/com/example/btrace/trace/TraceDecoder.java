@@ -0,0 +1,447 @@
+package com.example.btrace.trace;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.example.btrace.trace.TraceData.NO_LINE;
+import static com.example.btrace.trace.TraceData.NO_STEP;
+import static com.example.btrace.trace.TraceData.NO_TIMESTAMP;
+
+import static com.example.btrace.runtime.TraceProtocol.*;
+
+/**
+ * Decodes binary trace records (see TraceProtocol) straight into the columns of a {@link TraceData}.
+ * Symbol ids are resolved against the table built at instrumentation time. The clock
+ * carries over between calls, so one decoder must be used for the whole record stream
+ * of a job. Each call must be given whole records.
+ *
+ * A batch job carries several such traces, each between a {@code case_start} and a
+ * {@code case_end} control event (the latter with the case's return value or exception).
+ *
+ * Call events carry the frame id, the call depth and, on entry, the caller's frame id,
+ * which is enough to rebuild the call tree; the decoder keeps the open frames on a stack.
+ *
+ * Arrays and collections are named after the variable or argument that first holds them
+ * (arrays nested in them as {@code name[i]}). When a value carries a container's contents,
+ * the event gets an {@code arrays} entry {name: contents}; element writes after that are
+ * plain {@code array_update}/{@code map_update} deltas.
+ */
+public class TraceDecoder {
+
+    private final TraceSymbols symbols;
+    private final Map<Integer, String> arrayNames = new HashMap<>();
+    private long time;
+    private int lastArrayId;
+    private Object lastSnapshot;
+    private final List<int[]> nestedArrays = new ArrayList<>(); // {child id, index} within lastSnapshot
+    private int[] frames = new int[64];
+    private int openFrames;
+    // Method entry event awaiting its argument records, which follow it in the same batch
+    private TraceData entryEvents;
+    private Map<String, Object> budget;
+
+    private byte[] buffer;
+    private int position;
+
+    public TraceDecoder(TraceSymbols symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * @return false if decoding stopped because {@code maxEvents} was reached or {@code events}
+     *         is full (see TraceData#isFull)
+     */
+    public boolean decode(byte[] chunk, int offset, int length, TraceData events, int maxEvents) {
+        buffer = chunk;
+        position = offset;
+        int end = offset + length;
+        try {
+            return decodeRecords(end, events, maxEvents);
+        } finally {
+            finishEntry();
+        }
+    }
+
+    private boolean decodeRecords(int end, TraceData events, int maxEvents) {
+        while (position < end) {
+            byte type = buffer[position];
+            if (type != RECORD_ARGUMENT) {
+                finishEntry();
+            }
+            if ((events.size() >= maxEvents || events.isFull()) && producesEvent(type)) {
+                return false;
+            }
+            position++;
+            switch (type) {
+                case RECORD_START:
+                    time = readFixedLong();
+                    break;
+                case RECORD_CASE_START: {
+                    time = readFixedLong();
+                    int index = readVarint();
+                    // Each case is a trace of its own
+                    openFrames = 0;
+                    budget = null;
+                    arrayNames.clear();
+                    events.startEvent(NO_STEP, NO_LINE, "case_start", null, time, false);
+                    events.field("case", index);
+                    break;
+                }
+                case RECORD_CASE_END: {
+                    int index = readVarint();
+                    byte outcome = buffer[position++];
+                    events.startEvent(NO_STEP, NO_LINE, "case_end", null, NO_TIMESTAMP, false);
+                    events.field("case", index);
+                    if (outcome == CASE_THREW) {
+                        events.field("exception", readString());
+                    } else if (buffer[position] == VALUE_NONE) {
+                        position++;
+                    } else {
+                        Object value = readNamedValue();
+                        // A returned array or collection is reported with its contents
+                        events.field("returnValue", lastSnapshot != null ? lastSnapshot : value);
+                        bindContainer(events, "return");
+                    }
+                    if (budget != null) {
+                        events.field("budget", budget);
+                    }
+                    break;
+                }
+                case RECORD_VARIABLE: {
+                    int step = readVarint();
+                    time += readVarLong();
+                    int symbol = readVarint();
+                    String name = symbols.name(symbol);
+                    Object value = readNamedValue();
+                    event(events, step, symbol, "variable_update", null);
+                    events.var(name, value);
+                    bindContainer(events, name);
+                    break;
+                }
+                case RECORD_METHOD_ENTRY: {
+                    int step = readVarint();
+                    time += readVarLong();
+                    int symbol = readVarint();
+                    int frame = readVarint();
+                    int depth = readVarint();
+                    String method = symbols.name(symbol);
+                    event(events, step, symbol, "method_entry", null);
+                    events.var("method", method);
+                    events.field("frame", frame);
+                    events.field("depth", depth);
+                    events.field("parent_frame", openFrames > 0 ? frames[openFrames - 1] : 0);
+                    pushFrame(frame);
+                    entryEvents = events;
+                    break;
+                }
+                case RECORD_ARGUMENT: {
+                    int symbol = readVarint();
+                    Object value = readNamedValue();
+                    if (entryEvents != null) {
+                        entryEvents.var(symbols.name(symbol), value);
+                        bindContainer(entryEvents, symbols.name(symbol));
+                    }
+                    break;
+                }
+                case RECORD_METHOD_EXIT: {
+                    int step = readVarint();
+                    time += readVarLong();
+                    int symbol = readVarint();
+                    String method = symbols.name(symbol);
+                    int frame = openFrames > 0 ? frames[--openFrames] : 0;
+                    if (buffer[position] == VALUE_NONE) {
+                        position++;
+                        event(events, step, symbol, "method_exit", null);
+                        events.var("method", method);
+                    } else {
+                        Object value = readValue();
+                        event(events, step, symbol, "method_exit", null);
+                        events.var("method", method);
+                        events.var("return", value);
+                    }
+                    events.field("frame", frame);
+                    events.field("depth", openFrames + 1);
+                    break;
+                }
+                case RECORD_ARRAY_STORE: {
+                    int step = readVarint();
+                    time += readVarLong();
+                    int symbol = readVarint();
+                    int arrayId = readVarint();
+                    int index = readVarint();
+                    Object value = readNamedValue();
+                    String array = arrayName(arrayId);
+                    String element = array + "[" + index + "]";
+                    event(events, step, symbol, "array_update", null);
+                    events.var(element, value);
+                    events.field("array", array);
+                    events.field("index", index);
+                    bindContainer(events, element);
+                    break;
+                }
+                case RECORD_MAP_PUT: {
+                    int step = readVarint();
+                    time += readVarLong();
+                    int symbol = readVarint();
+                    int mapId = readVarint();
+                    Object key = readValue();
+                    Object value = readNamedValue();
+                    String map = arrayName(mapId);
+                    String entry = map + "[" + key + "]";
+                    event(events, step, symbol, "map_update", null);
+                    events.var(entry, value);
+                    events.field("array", map);
+                    events.field("key", key);
+                    bindContainer(events, entry);
+                    break;
+                }
+                case RECORD_LOOP_SKIP: {
+                    int step = readVarint();
+                    time += readVarLong();
+                    int symbol = readVarint();
+                    int from = readVarint();
+                    int to = readVarint();
+                    String range = from == to ? "Iteration " + from : "Iterations " + from + ".." + to;
+                    event(events, step, symbol, "loop_skip", range + " of " + symbols.name(symbol) + " loop not traced");
+                    events.field("from", from);
+                    events.field("to", to);
+                    break;
+                }
+                case RECORD_BUDGET: {
+                    int step = readVarint();
+                    time += readVarLong();
+                    int symbol = readVarint();
+                    byte kind = buffer[position++];
+                    long limit = readVarLong();
+                    budget = new LinkedHashMap<>();
+                    budget.put("budget", kind == BUDGET_EVENTS ? "events" : "bytes");
+                    budget.put("limit", limit);
+                    budget.put("step", step);
+                    if (symbols.line(symbol) > 0) {
+                        budget.put("line", symbols.line(symbol));
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown trace record type " + type + " at offset " + (position - 1));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Budget the runtime reported as exhausted - {budget: "events"|"bytes", limit, step, line} -
+     * or null; no events follow it
+     */
+    public Map<String, Object> getBudget() {
+        return budget;
+    }
+
+    private static boolean producesEvent(byte type) {
+        return type != RECORD_START && type != RECORD_ARGUMENT && type != RECORD_BUDGET;
+    }
+
+    /**
+     * Starts a traced event: step, line, type, (so far empty) vars and timestamp
+     * @param action null for the types whose action TraceData derives from the vars
+     */
+    private void event(TraceData events, int step, int symbol, String eventType, String action) {
+        events.startEvent(step, symbols.line(symbol) > 0 ? symbols.line(symbol) : NO_LINE, eventType, action, time, true);
+    }
+
+    private void pushFrame(int frame) {
+        if (openFrames == frames.length) {
+            frames = Arrays.copyOf(frames, openFrames * 2);
+        }
+        frames[openFrames++] = frame;
+    }
+
+    /**
+     * Ends the pending entry event; argument records after this belong to no event
+     */
+    private void finishEntry() {
+        entryEvents = null;
+    }
+
+    private Object readValue() {
+        byte tag = buffer[position++];
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_INT: {
+                int v = readVarint();
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case VALUE_LONG: {
+                long v = readVarLong();
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case VALUE_DOUBLE:
+                return Double.longBitsToDouble(readFixedLong());
+            case VALUE_FLOAT: {
+                int bits = 0;
+                for (int i = 0; i < 4; i++) {
+                    bits = (bits << 8) | (buffer[position++] & 0xFF);
+                }
+                return Float.intBitsToFloat(bits);
+            }
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_CHAR:
+                return (char) readVarint();
+            case VALUE_STRING:
+                return readString();
+            case VALUE_ARRAY: {
+                int id = readVarint();
+                char elementType = (char) readVarint();
+                int length = readVarint();
+                readSnapshot(id, false);
+                return elementTypeName(elementType) + "[" + length + "]";
+            }
+            case VALUE_COLLECTION: {
+                int id = readVarint();
+                char kind = (char) readVarint();
+                int size = readVarint();
+                readSnapshot(id, false);
+                return (kind == 'L' ? "List(" : "Set(") + size + ")";
+            }
+            case VALUE_MAP: {
+                int id = readVarint();
+                int size = readVarint();
+                readSnapshot(id, true);
+                return "Map(" + size + ")";
+            }
+            default:
+                throw new IllegalStateException("Unknown value tag " + tag + " at offset " + (position - 1));
+        }
+    }
+
+    /**
+     * Reads a value that is about to be given a name; a container it references is left in
+     * lastArrayId/lastSnapshot for {@link #bindContainer}
+     */
+    private Object readNamedValue() {
+        lastArrayId = 0;
+        lastSnapshot = null;
+        nestedArrays.clear();
+        return readValue();
+    }
+
+    /**
+     * Reads a container's snapshot marker and contents. Nested containers are only
+     * references (the runtime sends one level), so they are noted for naming.
+     */
+    private void readSnapshot(int id, boolean map) {
+        int marker = readVarint();
+        if (marker == 0) {
+            lastArrayId = id;
+            lastSnapshot = null;
+            return;
+        }
+        int count = marker - 1;
+        Object contents;
+        if (map) {
+            Map<String, Object> entries = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String key = String.valueOf(readValue());
+                entries.put(key, readValue());
+            }
+            contents = entries;
+        } else {
+            List<Object> elements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                lastArrayId = 0;
+                elements.add(readValue());
+                if (lastArrayId != 0) {
+                    nestedArrays.add(new int[] {lastArrayId, i});
+                }
+            }
+            contents = elements;
+        }
+        lastArrayId = id;
+        lastSnapshot = contents;
+    }
+
+    /**
+     * Names the container read by the last {@link #readNamedValue} (unless it already has a
+     * name) and attaches its contents to the event
+     */
+    private void bindContainer(TraceData events, String name) {
+        if (lastArrayId == 0) {
+            return;
+        }
+        arrayNames.putIfAbsent(lastArrayId, name);
+        if (lastSnapshot != null) {
+            String container = arrayNames.get(lastArrayId);
+            for (int[] nested : nestedArrays) {
+                arrayNames.putIfAbsent(nested[0], container + "[" + nested[1] + "]");
+            }
+            events.putInField("arrays", container, lastSnapshot);
+        }
+        lastArrayId = 0;
+        lastSnapshot = null;
+    }
+
+    private String arrayName(int arrayId) {
+        String name = arrayNames.get(arrayId);
+        return name != null ? name : "array#" + arrayId;
+    }
+
+    private static String elementTypeName(char type) {
+        switch (type) {
+            case 'I': return "int";
+            case 'J': return "long";
+            case 'D': return "double";
+            case 'F': return "float";
+            case 'Z': return "boolean";
+            case 'C': return "char";
+            case 'B': return "byte";
+            case 'S': return "short";
+            default: return "Object";
+        }
+    }
+
+    private String readString() {
+        int length = readVarint();
+        String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return s;
+    }
+
+    private int readVarint() {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer[position++];
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private long readVarLong() {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer[position++];
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private long readFixedLong() {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (buffer[position++] & 0xFF);
+        }
+        return result;
+    }
+}
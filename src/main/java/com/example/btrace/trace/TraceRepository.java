@@ -0,0 +1,55 @@
+package com.example.btrace.trace;
+
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * Keeps the timelines of recent traces so clients can step through them by trace id.
+ * Bounded by count; the least recently used trace is dropped first.
+ */
+public class TraceRepository {
+
+    private final int maxTraces;
+    private final int keyframeInterval;
+    private final LinkedHashMap<String, TraceTimeline> timelines = new LinkedHashMap<>(16, 0.75f, true);
+
+    public TraceRepository(int maxTraces, int keyframeInterval) {
+        this.maxTraces = Math.max(1, maxTraces);
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Empty timeline using the configured keyframe interval
+     */
+    public TraceTimeline newTimeline() {
+        return new TraceTimeline(keyframeInterval);
+    }
+
+    /**
+     * Stores a finished timeline
+     * @return the new trace id
+     */
+    public String save(TraceTimeline timeline) {
+        String id = UUID.randomUUID().toString();
+        put(id, timeline);
+        return id;
+    }
+
+    /**
+     * Stores a timeline under a known id, e.g. one rebuilt from the trace store
+     */
+    public synchronized void put(String id, TraceTimeline timeline) {
+        timelines.put(id, timeline);
+        while (timelines.size() > maxTraces) {
+            String eldest = timelines.keySet().iterator().next();
+            timelines.remove(eldest);
+        }
+    }
+
+    /**
+     * @return the timeline, or null if the id is unknown or was evicted
+     */
+    public synchronized TraceTimeline get(String id) {
+        return timelines.get(id);
+    }
+}
@@ -0,0 +1,751 @@
+package com.example.btrace.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Finished traces on local disk, so they can be read back by trace id after the response
+ * was sent, by another viewer, or after a restart.
+ *
+ * Traces are appended to memory-mapped segment files ({@code segment-000001.seg}, ...); a segment
+ * is never rewritten, and when it is full the next one is started. One trace is one record:
+ * <pre>
+ *   int magic, int record length
+ *   long createdAt, short id length, id (UTF-8)
+ *   int eventCount, int keyCount, int eventsLength, int firstStep, int lastStep
+ *   keys         varint length + UTF-8, the map keys used by the events
+ *   steps        int[eventCount]  step of each event
+ *   offsets      int[eventCount]  start of each event in the events block
+ *   events       tagged values; map keys are indexes into keys
+ * </pre>
+ * The step and offset columns let a page of events be found by binary search and decoded on its
+ * own, straight from the mapping, without reading the rest of the trace.
+ *
+ * Retention drops whole segments, oldest first, once the store exceeds {@code maxBytes} or a
+ * segment's newest trace is older than {@code maxAgeMillis}. Segments are scanned on startup
+ * to rebuild the id index, so the store survives restarts.
+ *
+ * Thread-safe: appends and retention are serialized, reads run concurrently against the mappings.
+ */
+public class TraceStore implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TraceStore.class);
+
+    private static final int MAGIC = 0x42545253; // "BTRS"
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_TRUE = 1;
+    private static final byte VALUE_FALSE = 2;
+    private static final byte VALUE_INT = 3;
+    private static final byte VALUE_LONG = 4;
+    private static final byte VALUE_DOUBLE = 5;
+    private static final byte VALUE_STRING = 6;
+    private static final byte VALUE_LIST = 7;
+    private static final byte VALUE_MAP = 8;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    // Oldest first; the last one takes appends
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private int nextSegment = 1;
+
+    /**
+     * @param dir directory holding the segment files, or null to keep nothing
+     * @param segmentBytes size of one segment file; a larger trace gets a segment of its own
+     * @param maxBytes total size of all segments before the oldest are dropped
+     * @param maxAgeMillis age after which a trace is dropped, or 0 to keep traces regardless of age
+     */
+    public TraceStore(Path dir, long segmentBytes, long maxBytes, long maxAgeMillis) {
+        this.dir = dir;
+        this.segmentBytes = Math.max(4096, Math.min(segmentBytes, Integer.MAX_VALUE));
+        this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+        this.maxAgeMillis = Math.max(0, maxAgeMillis);
+        if (dir != null) {
+            loadSegments();
+        }
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Encoder for the events of one trace, fed while the trace is produced
+     */
+    public Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Writes a finished trace; does nothing if the store is disabled
+     * @return whether the trace was stored
+     */
+    public boolean append(String traceId, Builder events) {
+        if (dir == null) {
+            return false;
+        }
+        byte[] record = events.toRecord(traceId, System.currentTimeMillis());
+        synchronized (this) {
+            try {
+                Segment segment = segments.peekLast();
+                if (segment == null || segment.remaining() < record.length) {
+                    segment = openSegment(nextSegment++, Math.max(segmentBytes, record.length), true);
+                    segments.addLast(segment);
+                }
+                int offset = segment.size;
+                ByteBuffer target = segment.buffer.duplicate();
+                target.position(offset);
+                target.put(record);
+                segment.size += record.length;
+                index.put(traceId, segment.readEntry(offset));
+            } catch (IOException e) {
+                log.warn("Failed to store trace {}: {}", traceId, e.getMessage());
+                return false;
+            }
+            retain();
+        }
+        return true;
+    }
+
+    /**
+     * @return the trace's size and step range, or null if it is unknown or expired
+     */
+    public Map<String, Object> info(String traceId) {
+        Entry entry = find(traceId);
+        if (entry == null) {
+            return null;
+        }
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("traceId", traceId);
+        info.put("createdAt", entry.createdAt);
+        info.put("eventCount", entry.eventCount);
+        info.put("firstStep", entry.firstStep);
+        info.put("lastStep", entry.lastStep);
+        info.put("bytes", entry.length);
+        return info;
+    }
+
+    /**
+     * Events with {@code fromStep <= step <= toStep}, at most about {@code limit} of them. A page
+     * always ends on a step boundary (a single step with more events than {@code limit} is
+     * returned whole), so the next page starts at {@link Page#getNextStep()}.
+     * @return the page, or null if the trace is unknown or expired
+     */
+    public Page read(String traceId, int fromStep, int toStep, int limit) {
+        Entry entry = find(traceId);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer buffer = entry.segment.buffer.duplicate();
+        String[] keys = entry.readKeys(buffer);
+
+        // First event at or after fromStep; steps only grow within a trace
+        int low = 0;
+        int high = entry.eventCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entry.step(buffer, mid) < fromStep) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        TraceData events = new TraceData();
+        int i = low;
+        int lastStep = Integer.MIN_VALUE;
+        while (i < entry.eventCount) {
+            int step = entry.step(buffer, i);
+            if (step > toStep || (events.size() >= limit && step != lastStep)) {
+                break;
+            }
+            buffer.position(entry.eventsStart + buffer.getInt(entry.offsetsStart + 4 * i) + 1); // past VALUE_MAP
+            events.add(readMap(buffer, keys));
+            lastStep = step;
+            i++;
+        }
+        Integer nextStep = i < entry.eventCount && entry.step(buffer, i) <= toStep ? entry.step(buffer, i) : null;
+        return new Page(events, entry.eventCount, entry.firstStep, entry.lastStep, nextStep);
+    }
+
+    private Entry find(String traceId) {
+        Entry entry = index.get(traceId);
+        if (entry == null || isExpired(entry.createdAt, System.currentTimeMillis())) {
+            return null;
+        }
+        return entry;
+    }
+
+    private boolean isExpired(long createdAt, long now) {
+        return maxAgeMillis > 0 && createdAt < now - maxAgeMillis;
+    }
+
+    /**
+     * Drops the oldest segments while the store is over its size or they hold only expired traces.
+     * The segment taking appends is dropped only for age, and then replaced on the next append.
+     */
+    private synchronized void retain() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.capacity();
+        }
+        long now = System.currentTimeMillis();
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.peekFirst();
+            boolean overSize = total > maxBytes && segments.size() > 1;
+            if (!overSize && !isExpired(oldest.newest, now)) {
+                break;
+            }
+            segments.removeFirst();
+            total -= oldest.capacity();
+            drop(oldest);
+        }
+    }
+
+    private void drop(Segment segment) {
+        index.values().removeIf(entry -> entry.segment == segment);
+        try {
+            segment.channel.close();
+            // Readers still holding the mapping keep it until it is garbage collected
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            log.warn("Failed to delete trace segment {}: {}", segment.file, e.getMessage());
+        }
+    }
+
+    private synchronized void loadSegments() {
+        try {
+            Files.createDirectories(dir);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(dir)) {
+                files = new ArrayList<>();
+                list.filter(p -> segmentNumber(p) > 0).sorted(Comparator.comparingInt(TraceStore::segmentNumber))
+                    .forEach(files::add);
+            }
+            for (Path file : files) {
+                int number = segmentNumber(file);
+                Segment segment = openSegment(number, Files.size(file), false);
+                int offset = 0;
+                try {
+                    while (offset + 8 <= segment.capacity() && segment.buffer.getInt(offset) == MAGIC) {
+                        Entry entry = segment.readEntry(offset);
+                        index.put(entry.traceId, entry);
+                        offset += entry.length;
+                    }
+                } catch (RuntimeException e) {
+                    // A record cut short by a crash; the next append overwrites it
+                    log.warn("Ignoring damaged trace record at {}:{}", file, offset);
+                }
+                segment.size = offset;
+                segments.addLast(segment);
+                nextSegment = number + 1;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read trace store directory {}: {}", dir, e.getMessage());
+        }
+        retain();
+    }
+
+    private Segment openSegment(int number, long capacity, boolean create) throws IOException {
+        Path file = dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        FileChannel channel = create
+            ? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(file, channel, buffer);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("traces", index.size());
+        synchronized (this) {
+            stats.put("segments", segments.size());
+            stats.put("bytes", getBytes());
+        }
+        stats.put("maxBytes", maxBytes);
+        stats.put("maxAgeMillis", maxAgeMillis);
+        return stats;
+    }
+
+    /** Bytes of disk taken by the segment files */
+    public synchronized long getBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.capacity();
+        }
+        return total;
+    }
+
+    public int getTraceCount() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            try {
+                segment.buffer.force();
+                segment.channel.close();
+            } catch (IOException e) {
+                // Nothing left to do at shutdown
+            }
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    // Value decoding, reading from the buffer's position
+
+    private static Object readValue(ByteBuffer in, String[] keys) {
+        byte tag = in.get();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_INT: {
+                int v = (int) readVarLong(in);
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case VALUE_LONG: {
+                long v = readVarLong(in);
+                return (v >>> 1) ^ -(v & 1);
+            }
+            case VALUE_DOUBLE:
+                return in.getDouble();
+            case VALUE_STRING:
+                return readString(in);
+            case VALUE_LIST: {
+                int size = (int) readVarLong(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, keys));
+                }
+                return list;
+            }
+            case VALUE_MAP:
+                return readMap(in, keys);
+            default:
+                throw new IllegalStateException("Corrupt trace record: value tag " + tag);
+        }
+    }
+
+    private static Map<String, Object> readMap(ByteBuffer in, String[] keys) {
+        int size = (int) readVarLong(in);
+        Map<String, Object> map = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String key = keys[(int) readVarLong(in)];
+            map.put(key, readValue(in, keys));
+        }
+        return map;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Encodes the events of one trace in the record layout. Events must arrive in step order.
+     *
+     * Used by a single thread.
+     */
+    public static class Builder {
+        private byte[] events = new byte[4096];
+        private int length;
+        private int count;
+        private int[] steps = new int[256];
+        private int[] offsets = new int[256];
+        private final Map<String, Integer> keyIds = new HashMap<>();
+        private final List<String> keys = new ArrayList<>();
+
+        Builder() {
+        }
+
+        /**
+         * Encodes every event of {@code trace}, straight from its columns
+         */
+        public void addAll(TraceData trace) {
+            for (int i = 0; i < trace.size(); i++) {
+                add(trace, i);
+            }
+        }
+
+        public void add(TraceData trace, int event) {
+            int step = trace.getStep(event);
+            startEvent(step != TraceData.NO_STEP ? step : (count > 0 ? steps[count - 1] : 0));
+
+            int start = trace.cellStart(event);
+            int end = trace.cellEnd(event);
+            int vars = 0;
+            for (int c = start; c < end; c++) {
+                if (trace.isVar(c)) {
+                    vars++;
+                }
+            }
+            // A derived action is not stored; it is derived again when the event is read back
+            String action = trace.getOwnAction(event);
+            int entries = (end - start - vars) + (step != TraceData.NO_STEP ? 1 : 0)
+                + (trace.getLine(event) != TraceData.NO_LINE ? 1 : 0) + (trace.getEventType(event) != null ? 1 : 0)
+                + (action != null ? 1 : 0) + (trace.hasVars(event) ? 1 : 0)
+                + (trace.getTimestamp(event) != TraceData.NO_TIMESTAMP ? 1 : 0);
+            writeByte(VALUE_MAP);
+            writeVarLong(entries);
+            if (step != TraceData.NO_STEP) {
+                writeKey("step");
+                writeValue(step);
+            }
+            if (trace.getLine(event) != TraceData.NO_LINE) {
+                writeKey("line");
+                writeValue(trace.getLine(event));
+            }
+            if (trace.getEventType(event) != null) {
+                writeKey("event_type");
+                writeValue(trace.getEventType(event));
+            }
+            if (action != null) {
+                writeKey("action");
+                writeValue(action);
+            }
+            if (trace.hasVars(event)) {
+                writeKey("vars");
+                writeByte(VALUE_MAP);
+                writeVarLong(vars);
+                for (int c = start; c < end; c++) {
+                    if (trace.isVar(c)) {
+                        writeKey(trace.cellName(c));
+                        writeValue(trace.cellValue(c));
+                    }
+                }
+            }
+            if (trace.getTimestamp(event) != TraceData.NO_TIMESTAMP) {
+                writeKey("timestamp");
+                writeValue(trace.getTimestamp(event));
+            }
+            for (int c = start; c < end; c++) {
+                if (!trace.isVar(c)) {
+                    writeKey(trace.cellName(c));
+                    writeValue(trace.cellValue(c));
+                }
+            }
+        }
+
+        private void startEvent(int step) {
+            if (count == steps.length) {
+                steps = Arrays.copyOf(steps, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            steps[count] = step;
+            offsets[count] = length;
+            count++;
+        }
+
+        public int getEventCount() {
+            return count;
+        }
+
+        byte[] toRecord(String traceId, long createdAt) {
+            byte[] id = traceId.getBytes(StandardCharsets.UTF_8);
+            byte[][] keyBytes = new byte[keys.size()][];
+            int keysLength = 0;
+            for (int i = 0; i < keyBytes.length; i++) {
+                keyBytes[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                keysLength += varLongSize(keyBytes[i].length) + keyBytes[i].length;
+            }
+            int size = 4 + 4 + 8 + 2 + id.length + 5 * 4 + keysLength + 8 * count + length;
+            ByteBuffer record = ByteBuffer.allocate(size);
+            record.putInt(MAGIC);
+            record.putInt(size);
+            record.putLong(createdAt);
+            record.putShort((short) id.length);
+            record.put(id);
+            record.putInt(count);
+            record.putInt(keyBytes.length);
+            record.putInt(length);
+            record.putInt(count > 0 ? steps[0] : 0);
+            record.putInt(count > 0 ? steps[count - 1] : 0);
+            for (byte[] key : keyBytes) {
+                putVarLong(record, key.length);
+                record.put(key);
+            }
+            for (int i = 0; i < count; i++) {
+                record.putInt(steps[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                record.putInt(offsets[i]);
+            }
+            record.put(events, 0, length);
+            return record.array();
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                writeByte(VALUE_NULL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                int v = ((Number) value).intValue();
+                writeByte(VALUE_INT);
+                writeVarLong(((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+            } else if (value instanceof Long) {
+                long v = (Long) value;
+                writeByte(VALUE_LONG);
+                writeVarLong((v << 1) ^ (v >> 63));
+            } else if (value instanceof Double || value instanceof Float) {
+                writeByte(VALUE_DOUBLE);
+                long bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    writeByte((byte) (bits >>> shift));
+                }
+            } else if (value instanceof Map) {
+                writeMap((Map<?, ?>) value);
+            } else if (value instanceof Collection) {
+                Collection<?> list = (Collection<?>) value;
+                writeByte(VALUE_LIST);
+                writeVarLong(list.size());
+                for (Object element : list) {
+                    writeValue(element);
+                }
+            } else {
+                writeByte(VALUE_STRING);
+                writeString(String.valueOf(value));
+            }
+        }
+
+        private void writeMap(Map<?, ?> map) {
+            writeByte(VALUE_MAP);
+            writeVarLong(map.size());
+            for (Map.Entry<?, ?> field : map.entrySet()) {
+                writeKey(String.valueOf(field.getKey()));
+                writeValue(field.getValue());
+            }
+        }
+
+        private void writeKey(String key) {
+            Integer id = keyIds.get(key);
+            if (id == null) {
+                id = keys.size();
+                keyIds.put(key, id);
+                keys.add(key);
+            }
+            writeVarLong(id);
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, events, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((byte) value);
+        }
+
+        private void writeByte(byte b) {
+            ensure(1);
+            events[length++] = b;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > events.length) {
+                events = Arrays.copyOf(events, Math.max(events.length * 2, length + extra));
+            }
+        }
+
+        private static int varLongSize(long value) {
+            int size = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        private static void putVarLong(ByteBuffer out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.put((byte) value);
+        }
+    }
+
+    /**
+     * A page of stored events
+     */
+    public static class Page {
+        private final TraceData events;
+        private final int eventCount;
+        private final int firstStep;
+        private final int lastStep;
+        private final Integer nextStep;
+
+        Page(TraceData events, int eventCount, int firstStep, int lastStep, Integer nextStep) {
+            this.events = events;
+            this.eventCount = eventCount;
+            this.firstStep = firstStep;
+            this.lastStep = lastStep;
+            this.nextStep = nextStep;
+        }
+
+        // Getters
+        public TraceData getEvents() { return events; }
+        /** Events in the whole trace */
+        public int getEventCount() { return eventCount; }
+        public int getFirstStep() { return firstStep; }
+        public int getLastStep() { return lastStep; }
+        /** Step the next page starts at, or null if this page reached the end of the range */
+        public Integer getNextStep() { return nextStep; }
+    }
+
+    /** One segment file and its mapping */
+    private static class Segment {
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int size;
+        long newest;
+
+        Segment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        int capacity() { return buffer.capacity(); }
+
+        int remaining() { return buffer.capacity() - size; }
+
+        /** Header of the record at {@code offset} */
+        Entry readEntry(int offset) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(offset + 4);
+            int length = in.getInt();
+            long createdAt = in.getLong();
+            byte[] id = new byte[in.getShort()];
+            in.get(id);
+            int eventCount = in.getInt();
+            int keyCount = in.getInt();
+            int eventsLength = in.getInt();
+            int firstStep = in.getInt();
+            int lastStep = in.getInt();
+            int keysStart = in.position();
+            for (int i = 0; i < keyCount; i++) {
+                int keyLength = (int) readVarLong(in);
+                in.position(in.position() + keyLength);
+            }
+            int stepsStart = in.position();
+            int offsetsStart = stepsStart + 4 * eventCount;
+            int eventsStart = offsetsStart + 4 * eventCount;
+            if (eventsStart + eventsLength != offset + length) {
+                throw new IllegalStateException("Corrupt trace record at " + file + ":" + offset);
+            }
+            newest = Math.max(newest, createdAt);
+            return new Entry(this, new String(id, StandardCharsets.UTF_8), length, createdAt, eventCount,
+                             keyCount, firstStep, lastStep, keysStart, stepsStart, offsetsStart, eventsStart);
+        }
+    }
+
+    /** Location and header of one stored trace */
+    private static class Entry {
+        final Segment segment;
+        final String traceId;
+        final int length;
+        final long createdAt;
+        final int eventCount;
+        final int keyCount;
+        final int firstStep;
+        final int lastStep;
+        final int keysStart;
+        final int stepsStart;
+        final int offsetsStart;
+        final int eventsStart;
+
+        Entry(Segment segment, String traceId, int length, long createdAt, int eventCount, int keyCount,
+              int firstStep, int lastStep, int keysStart, int stepsStart, int offsetsStart, int eventsStart) {
+            this.segment = segment;
+            this.traceId = traceId;
+            this.length = length;
+            this.createdAt = createdAt;
+            this.eventCount = eventCount;
+            this.keyCount = keyCount;
+            this.firstStep = firstStep;
+            this.lastStep = lastStep;
+            this.keysStart = keysStart;
+            this.stepsStart = stepsStart;
+            this.offsetsStart = offsetsStart;
+            this.eventsStart = eventsStart;
+        }
+
+        int step(ByteBuffer buffer, int event) {
+            return buffer.getInt(stepsStart + 4 * event);
+        }
+
+        String[] readKeys(ByteBuffer buffer) {
+            buffer.position(keysStart);
+            String[] keys = new String[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = readString(buffer);
+            }
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.btrace.trace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Symbol table produced at instrumentation time.
+ * Instrumented code refers to variables and methods by symbol id only; the server
+ * keeps this table to turn the ids in trace records back into names and source lines.
+ */
+public class TraceSymbols {
+
+    public static final byte VARIABLE = 0;
+    public static final byte METHOD = 1;
+    /** Array element or collection store site; the container is named from the variable holding it at run time */
+    public static final byte ELEMENT = 2;
+    /** Method parameter, reported with the call that passed it */
+    public static final byte ARGUMENT = 3;
+    /** Loop statement, named by its keyword; referenced by iterations that were not traced */
+    public static final byte LOOP = 4;
+
+    private final List<String> names = new ArrayList<>();
+    private byte[] kinds = new byte[16];
+    private int[] lines = new int[16];
+
+    /**
+     * @return the id of the new symbol
+     */
+    public int define(byte kind, String name, int line) {
+        int id = names.size();
+        if (id == kinds.length) {
+            kinds = Arrays.copyOf(kinds, id * 2);
+            lines = Arrays.copyOf(lines, id * 2);
+        }
+        names.add(name);
+        kinds[id] = kind;
+        lines[id] = line;
+        return id;
+    }
+
+    /** A copy to add to or move, leaving this table as it is for the traces still using it */
+    public TraceSymbols copy() {
+        TraceSymbols copy = new TraceSymbols();
+        copy.names.addAll(names);
+        copy.kinds = Arrays.copyOf(kinds, kinds.length);
+        copy.lines = Arrays.copyOf(lines, lines.length);
+        return copy;
+    }
+
+    /**
+     * Moves the symbols on or after {@code fromLine} by {@code delta} lines, after an edit of the
+     * source above them
+     */
+    public void shiftLines(int fromLine, int delta) {
+        for (int id = 0; id < names.size(); id++) {
+            if (lines[id] >= fromLine) {
+                lines[id] += delta;
+            }
+        }
+    }
+
+    public String name(int id) { return names.get(id); }
+    public byte kind(int id) { return kinds[id]; }
+    /** Source line in the submitted code, or 0 if unknown */
+    public int line(int id) { return lines[id]; }
+    public int size() { return names.size(); }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            out.writeByte(kinds[i]);
+            out.writeUTF(names.get(i));
+            out.writeInt(lines[i]);
+        }
+    }
+
+    public static TraceSymbols readFrom(DataInputStream in) throws IOException {
+        TraceSymbols symbols = new TraceSymbols();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte kind = in.readByte();
+            String name = in.readUTF();
+            symbols.define(kind, name, in.readInt());
+        }
+        return symbols;
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.btrace.trace;
+
+import java.util.*;
+
+/**
+ * Time-travel index over a finished trace.
+ * Events are reduced to compact state changes (enter, exit, variable, element, container
+ * snapshot) held in
+ * parallel arrays with interned names, and a full-state keyframe is stored every
+ * {@code keyframeInterval} changes. The state at any step is rebuilt from the nearest
+ * keyframe plus at most {@code keyframeInterval} changes, so scrubbing costs O(K) instead of
+ * a replay from step 1, and memory grows with the number of changes, not steps x variables.
+ *
+ * Built by one thread; safe to read from any thread once published.
+ */
+public class TraceTimeline {
+
+    private static final byte ENTER = 0;
+    private static final byte EXIT = 1;
+    private static final byte VARIABLE = 2;
+    private static final byte ELEMENT = 3;
+    private static final byte SNAPSHOT = 4;
+    private static final byte MAP_PUT = 5;
+
+    private final int keyframeInterval;
+
+    // One entry per change
+    private int size;
+    private byte[] ops = new byte[256];
+    private int[] steps = new int[256];
+    private int[] lines = new int[256];
+    private int[] names = new int[256];
+    private int[] aux = new int[256];   // frame id for ENTER, index for ELEMENT, interned key for MAP_PUT
+    private Object[] values = new Object[256];
+
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringIds = new HashMap<>();
+
+    private final List<State> keyframes = new ArrayList<>();
+    private final State head = new State();
+
+    public TraceTimeline(int keyframeInterval) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        keyframes.add(new State());
+    }
+
+    public void appendAll(List<Map<String, Object>> events) {
+        for (Map<String, Object> event : events) {
+            append(event);
+        }
+    }
+
+    /**
+     * Adds the state changes carried by one trace event (see TraceDecoder for the event shape)
+     */
+    @SuppressWarnings("unchecked")
+    public void append(Map<String, Object> event) {
+        int step = ((Number) event.get("step")).intValue();
+        Object line = event.get("line");
+        int lineNumber = line != null ? ((Number) line).intValue() : 0;
+        Map<String, Object> vars = (Map<String, Object>) event.get("vars");
+        String type = String.valueOf(event.get("event_type"));
+
+        switch (type) {
+            case "method_entry":
+                add(ENTER, step, lineNumber, String.valueOf(vars.get("method")),
+                    ((Number) event.get("frame")).intValue(), null);
+                for (Map.Entry<String, Object> argument : vars.entrySet()) {
+                    if (!"method".equals(argument.getKey())) {
+                        add(VARIABLE, step, lineNumber, argument.getKey(), 0, argument.getValue());
+                    }
+                }
+                break;
+            case "method_exit":
+                add(EXIT, step, lineNumber, String.valueOf(vars.get("method")), 0, null);
+                break;
+            case "variable_update":
+                for (Map.Entry<String, Object> variable : vars.entrySet()) {
+                    add(VARIABLE, step, lineNumber, variable.getKey(), 0, variable.getValue());
+                }
+                break;
+            case "array_update":
+                add(ELEMENT, step, lineNumber, String.valueOf(event.get("array")),
+                    ((Number) event.get("index")).intValue(), vars.values().iterator().next());
+                break;
+            case "map_update":
+                add(MAP_PUT, step, lineNumber, String.valueOf(event.get("array")),
+                    intern(String.valueOf(event.get("key"))), vars.values().iterator().next());
+                break;
+            default:
+                break; // Carries no variable state
+        }
+        Map<String, Object> arrays = (Map<String, Object>) event.get("arrays");
+        if (arrays != null) {
+            for (Map.Entry<String, Object> contents : arrays.entrySet()) {
+                add(SNAPSHOT, step, lineNumber, contents.getKey(), 0, contents.getValue());
+            }
+        }
+    }
+
+    /**
+     * Full state after every event up to and including {@code step}: the call stack with each
+     * frame's variables, and the contents of every array and collection seen so far.
+     */
+    public Map<String, Object> stateAt(int step) {
+        int end = changesUpTo(step);
+        int keyframe = Math.min(end / keyframeInterval, keyframes.size() - 1);
+        State state = keyframes.get(keyframe).copy();
+        for (int i = keyframe * keyframeInterval; i < end; i++) {
+            state.apply(i);
+        }
+        Map<String, Object> result = state.toMap();
+        result.put("step", step);
+        result.put("line", end > 0 ? lines[end - 1] : 0);
+        return result;
+    }
+
+    /** Step of the last recorded change, 0 for an empty trace */
+    public int getLastStep() {
+        return size > 0 ? steps[size - 1] : 0;
+    }
+
+    public int getChangeCount() {
+        return size;
+    }
+
+    public int getKeyframeCount() {
+        return keyframes.size();
+    }
+
+    /**
+     * Number of changes with a step no later than {@code step}; steps never decrease
+     */
+    private int changesUpTo(int step) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (steps[mid] <= step) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void add(byte op, int step, int line, String name, int auxValue, Object value) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            steps = Arrays.copyOf(steps, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            names = Arrays.copyOf(names, capacity);
+            aux = Arrays.copyOf(aux, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        ops[size] = op;
+        steps[size] = step;
+        lines[size] = line;
+        names[size] = intern(name);
+        aux[size] = auxValue;
+        values[size] = value;
+        head.apply(size);
+        size++;
+        if (size % keyframeInterval == 0) {
+            keyframes.add(head.copy());
+        }
+    }
+
+    private int intern(String s) {
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s);
+            stringIds.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * Call stack and container contents at one point of the trace.
+     * Arrays and lists are index-ordered TreeMaps, maps keep insertion order.
+     */
+    private class State {
+        private final List<Frame> frames = new ArrayList<>();
+        private final Map<Integer, Map<Object, Object>> arrays = new HashMap<>();
+
+        void apply(int change) {
+            switch (ops[change]) {
+                case ENTER:
+                    frames.add(new Frame(aux[change], names[change]));
+                    break;
+                case EXIT:
+                    if (!frames.isEmpty()) {
+                        frames.remove(frames.size() - 1);
+                    }
+                    break;
+                case VARIABLE:
+                    if (frames.isEmpty()) {
+                        frames.add(new Frame(0, -1));
+                    }
+                    frames.get(frames.size() - 1).vars.put(names[change], values[change]);
+                    break;
+                case ELEMENT:
+                    arrays.computeIfAbsent(names[change], k -> new TreeMap<>()).put(aux[change], values[change]);
+                    break;
+                case MAP_PUT:
+                    arrays.computeIfAbsent(names[change], k -> new LinkedHashMap<>())
+                        .put(strings.get(aux[change]), values[change]);
+                    break;
+                case SNAPSHOT:
+                    arrays.put(names[change], contents(values[change]));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        State copy() {
+            State copy = new State();
+            for (Frame frame : frames) {
+                Frame clone = new Frame(frame.id, frame.method);
+                clone.vars.putAll(frame.vars);
+                copy.frames.add(clone);
+            }
+            for (Map.Entry<Integer, Map<Object, Object>> array : arrays.entrySet()) {
+                Map<Object, Object> contents = array.getValue();
+                copy.arrays.put(array.getKey(), contents instanceof TreeMap
+                    ? new TreeMap<>(contents) : new LinkedHashMap<>(contents));
+            }
+            return copy;
+        }
+
+        Map<String, Object> toMap() {
+            List<Map<String, Object>> stack = new ArrayList<>();
+            for (int depth = 0; depth < frames.size(); depth++) {
+                Frame frame = frames.get(depth);
+                Map<String, Object> vars = new LinkedHashMap<>();
+                for (Map.Entry<Integer, Object> variable : frame.vars.entrySet()) {
+                    vars.put(strings.get(variable.getKey()), variable.getValue());
+                }
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("frame", frame.id);
+                entry.put("method", frame.method >= 0 ? strings.get(frame.method) : null);
+                entry.put("depth", depth + 1);
+                entry.put("vars", vars);
+                stack.add(entry);
+            }
+            Map<String, Object> arrayValues = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Map<Object, Object>> array : arrays.entrySet()) {
+                arrayValues.put(strings.get(array.getKey()), new LinkedHashMap<>(array.getValue()));
+            }
+            Map<String, Object> state = new LinkedHashMap<>();
+            state.put("stack", stack);
+            state.put("arrays", arrayValues);
+            return state;
+        }
+    }
+
+    /**
+     * Container contents from a decoded snapshot: a list becomes index -> element
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> contents(Object snapshot) {
+        if (snapshot instanceof List) {
+            List<Object> elements = (List<Object>) snapshot;
+            Map<Object, Object> contents = new TreeMap<>();
+            for (int i = 0; i < elements.size(); i++) {
+                contents.put(i, elements.get(i));
+            }
+            return contents;
+        }
+        return new LinkedHashMap<>((Map<Object, Object>) snapshot);
+    }
+
+    private static class Frame {
+        final int id;
+        final int method;
+        final LinkedHashMap<Integer, Object> vars = new LinkedHashMap<>();
+
+        Frame(int id, int method) {
+            this.id = id;
+            this.method = method;
+        }
+    }
+}
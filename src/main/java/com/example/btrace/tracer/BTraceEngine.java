@@ -0,0 +1,354 @@
+package com.example.btrace.tracer;
+
+import com.example.btrace.ast.ASTTracer.TraceResult;
+import com.example.btrace.ast.TraceLimits;
+import com.example.btrace.compiler.InMemoryCompiler;
+import com.example.btrace.compiler.InMemoryCompiler.CompilationResult;
+import com.example.btrace.executor.BTraceHost;
+import com.example.btrace.executor.BTraceTarget;
+import com.example.btrace.executor.WorkerPool.ExecutionResult;
+import com.example.btrace.executor.WorkerPool.OutputConsumer;
+import com.example.btrace.metrics.StageTimings;
+import com.example.btrace.metrics.TraceMetrics;
+import com.example.btrace.metrics.TraceMetrics.Stage;
+import com.example.btrace.trace.TraceData;
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Traces a method with BTrace instead of rewriting the code: the program is compiled unchanged,
+ * a BTrace script is generated for the traced method from its source (see {@link BTraceScript})
+ * and the {@code btrace} client attaches it to a long-running target JVM ({@link BTraceTarget})
+ * that then runs the program. Every step waits for a signal rather than a fixed time: the target
+ * reports ready, the script's attach probe releases the program, and its finish probe ends the session.
+ *
+ * The target JVM is started on first use and reused by every later trace, so attaching never
+ * pays JVM startup and the BTrace agent is loaded only once; traces therefore run one at a time.
+ * Each job writes its script to its own directory under the work directory, removed afterwards.
+ */
+public class BTraceEngine implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BTraceEngine.class);
+
+    private final String btraceHome;
+    private final Path workDir;
+    private final List<String> jvmOptions;
+    private final long attachTimeoutMillis;
+    private final long timeoutMillis;
+    private final TraceMetrics metrics;
+
+    private final InMemoryCompiler compiler = new InMemoryCompiler();
+    private final AtomicLong jobs = new AtomicLong();
+    // Guarded by this: one job at a time on the shared target JVM
+    private BTraceTarget target;
+    private List<String> btraceCommand;
+    private boolean closed = false;
+
+    /**
+     * @param btraceHome BTrace installation directory; null or blank looks at BTRACE_HOME, the
+     *                   usual install locations and then for {@code btrace} on the PATH
+     * @param workDir parent of the per-job script directories
+     * @param jvmOptions options of the target JVM
+     * @param attachTimeoutMillis longest wait for the script to attach, and for it to flush its output
+     * @param timeoutMillis longest run of the program once released
+     */
+    public BTraceEngine(String btraceHome, Path workDir, List<String> jvmOptions, long attachTimeoutMillis,
+                        long timeoutMillis, TraceMetrics metrics) {
+        this.btraceHome = btraceHome != null && !btraceHome.trim().isEmpty() ? btraceHome.trim() : null;
+        this.workDir = workDir;
+        this.jvmOptions = jvmOptions;
+        this.attachTimeoutMillis = attachTimeoutMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Engine with default limits and BTrace found from the environment, for use outside the Spring context
+     */
+    public static BTraceEngine withDefaults() {
+        return new BTraceEngine(null, Paths.get(System.getProperty("java.io.tmpdir"), "btrace-jobs"),
+            Arrays.asList("-Xmx256m", "-XX:+UseSerialGC"), 30_000, 5_000, new TraceMetrics());
+    }
+
+    /**
+     * Runs {@code className.main} on the target JVM with every declaration of {@code methodName}
+     * traced by BTrace. The result's instrumented code is the generated script; the user's code
+     * runs unchanged.
+     */
+    public TraceResult trace(String className, String methodName, String sourceCode, TraceLimits limits) {
+        StageTimings timings = new StageTimings(metrics);
+        String outcome = null;
+        int events = -1;
+        long bytes = -1;
+        try {
+            timings.mark();
+            CompilationUnit cu = new JavaParser().parse(sourceCode).getResult().orElse(null);
+            timings.lap(Stage.PARSE);
+            if (cu == null) {
+                return TraceResult.error("Failed to parse source code");
+            }
+            String mainClass = cu.getPackageDeclaration()
+                .map(p -> p.getNameAsString() + "." + className).orElse(className);
+            long job = jobs.incrementAndGet();
+            BTraceScript script;
+            try {
+                script = BTraceScript.generate(cu, methodName, "Trace" + job, BTraceHost.class.getName());
+            } catch (IllegalArgumentException e) {
+                return TraceResult.error(e.getMessage());
+            }
+            timings.lap(Stage.INSTRUMENT);
+
+            CompilationResult compilation = compiler.compile(mainClass, sourceCode);
+            timings.lap(Stage.COMPILE);
+            if (!compilation.isSuccess()) {
+                outcome = "compile_error";
+                return TraceResult.compilationFailed(compilation.getErrors());
+            }
+
+            Job run = new Job(limits);
+            synchronized (this) {
+                List<String> btrace = btraceCommand();
+                if (btrace == null) {
+                    return TraceResult.error("BTrace is not installed: set trace.btrace.home or BTRACE_HOME");
+                }
+                Path jobDir = Files.createTempDirectory(Files.createDirectories(workDir), "job-" + job + "-");
+                try {
+                    Path scriptFile = jobDir.resolve(script.getClassName() + ".java");
+                    Files.write(scriptFile, script.getSource().getBytes(StandardCharsets.UTF_8));
+                    run(run, btrace, jobDir, scriptFile, mainClass, compilation.getClasses(), timings);
+                } finally {
+                    delete(jobDir);
+                }
+            }
+
+            TraceData trace = run.parser.finish();
+            events = trace.size();
+            bytes = run.outputBytes;
+            if (run.failure != null) {
+                throw new RuntimeException(run.failure);
+            }
+            outcome = run.timedOut ? "timeout" : run.truncation != null ? "truncated" : "success";
+            return TraceResult.success(trace, trace.size(), run.output.toString(), script.getSource(), run.truncation);
+
+        } catch (Exception e) {
+            log.warn("BTrace trace of {} failed: {}", className, e.toString());
+            return TraceResult.error("Execution failed: " + e.getMessage());
+        } finally {
+            timings.finish();
+            metrics.recordTrace(outcome != null ? outcome : "error", events, bytes);
+        }
+    }
+
+    /**
+     * One job on the target JVM: hand it the classes, attach BTrace once it is loaded, release the
+     * program when the attach probe fires and collect its output until it ends
+     */
+    private void run(Job run, List<String> btrace, Path jobDir, Path scriptFile, String mainClass,
+                     Map<String, byte[]> classes, StageTimings timings) throws IOException, InterruptedException {
+        BTraceTarget target = target();
+        long started = System.nanoTime();
+        String pid = target.submit(mainClass, classes);
+
+        List<String> command = new ArrayList<>(btrace);
+        command.add(pid);
+        command.add(scriptFile.toString());
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(jobDir.toFile());
+        builder.redirectErrorStream(true);
+        Process client = builder.start();
+
+        Thread reader = new Thread(() -> {
+            try (InputStream in = client.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    if (!run.parser.accept(buffer, 0, read)) {
+                        // Out of budget: stop the program rather than trace it to the end
+                        target.destroy();
+                    }
+                }
+            } catch (IOException e) {
+                // Client was stopped
+            } finally {
+                // Both latches also open when the client exits, so a failed attach never waits out the timeout
+                run.attached.countDown();
+                run.finished.countDown();
+            }
+        }, "btrace-client-output");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            if (!run.attached.await(attachTimeoutMillis, TimeUnit.MILLISECONDS) || !run.probed) {
+                target.abort();
+                String messages = run.parser.getMessages();
+                run.failure = "BTrace did not attach to the target JVM" + (messages.isEmpty() ? "" : ": " + messages);
+                return;
+            }
+            timings.add(Stage.ATTACH, System.nanoTime() - started);
+
+            started = System.nanoTime();
+            ExecutionResult execution = target.run(run, timeoutMillis);
+            timings.add(Stage.EXECUTE, System.nanoTime() - started);
+            if (run.parser.isFull()) {
+                run.truncation = "Trace exceeded " + run.maxEvents + " events or its memory budget";
+            } else if (execution.isTimedOut()) {
+                run.timedOut = true;
+                run.truncation = execution.getMessage();
+            } else if (!execution.isCompleted() && !execution.isStopped()) {
+                run.failure = execution.getMessage();
+                return;
+            }
+            // The finish probe is printed after every event of the run
+            if (execution.isCompleted() && !run.finished.await(attachTimeoutMillis, TimeUnit.MILLISECONDS)
+                    && run.truncation == null) {
+                run.truncation = "BTrace output did not finish within " + attachTimeoutMillis + " ms";
+            }
+        } finally {
+            // The finish probe ends the session by itself; this only stops a client that is stuck
+            long grace = run.failure == null && target.isAlive() ? attachTimeoutMillis : 0;
+            if (!client.waitFor(grace, TimeUnit.MILLISECONDS)) {
+                client.destroyForcibly();
+            }
+            reader.join(attachTimeoutMillis);
+        }
+    }
+
+    private BTraceTarget target() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("BTrace engine is closed");
+        }
+        if (target == null || !target.isAlive()) {
+            if (target != null) {
+                target.close();
+            }
+            target = BTraceTarget.start(jvmOptions);
+        }
+        return target;
+    }
+
+    /**
+     * The btrace client command without its arguments, or null when BTrace is not installed.
+     * Looked up once, on the first trace.
+     */
+    private List<String> btraceCommand() {
+        if (btraceCommand == null) {
+            btraceCommand = findBtrace();
+        }
+        return btraceCommand.isEmpty() ? null : btraceCommand;
+    }
+
+    private List<String> findBtrace() {
+        boolean windows = System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("windows");
+        String executable = windows ? "btrace.bat" : "btrace";
+        List<String> homes = btraceHome != null ? Collections.singletonList(btraceHome)
+            : Arrays.asList(System.getenv("BTRACE_HOME"), "/usr/local/btrace", "/opt/btrace",
+                            System.getProperty("user.home") + "/btrace", "C:\\btrace", "C:\\Program Files\\btrace");
+        for (String home : homes) {
+            if (home != null && Files.isRegularFile(Paths.get(home, "bin", executable))) {
+                return command(windows, Paths.get(home, "bin", executable).toString());
+            }
+        }
+        if (btraceHome == null) {
+            try {
+                Process probe = new ProcessBuilder(executable, "-h").redirectErrorStream(true).start();
+                probe.getInputStream().close();
+                // btrace -h exits with 1 on some versions but is there
+                if (probe.waitFor(10, TimeUnit.SECONDS) && probe.exitValue() <= 1) {
+                    return command(windows, executable);
+                }
+                probe.destroyForcibly();
+            } catch (IOException | InterruptedException e) {
+                // Not on the PATH
+            }
+        }
+        log.warn("BTrace installation not found{}", btraceHome != null ? " under " + btraceHome : "");
+        return Collections.emptyList();
+    }
+
+    private static List<String> command(boolean windows, String executable) {
+        return windows ? Arrays.asList("cmd", "/c", executable) : Collections.singletonList(executable);
+    }
+
+    private static void delete(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            log.warn("Failed to delete BTrace job directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    /**
+     * State of one trace: events parsed from the BTrace client, output read from the target
+     */
+    private static class Job implements OutputConsumer, BTraceEventParser.Listener {
+        final BTraceEventParser parser;
+        final CountDownLatch attached = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        // Set by the attach probe, unlike the latch which also opens when the client exits
+        volatile boolean probed = false;
+        final int maxEvents;
+        final long maxOutputBytes;
+        final StringBuilder output = new StringBuilder();
+        long outputBytes = 0;
+        String truncation;
+        boolean timedOut;
+        String failure;
+
+        Job(TraceLimits limits) {
+            this.parser = new BTraceEventParser(new TraceData(limits.getMaxMemoryBytes()), limits.getMaxEvents(), this);
+            this.maxEvents = limits.getMaxEvents();
+            this.maxOutputBytes = limits.getMaxOutputBytes();
+        }
+
+        @Override
+        public boolean onOutput(byte[] chunk, int offset, int length) {
+            int kept = (int) Math.max(0, Math.min(length, maxOutputBytes - outputBytes));
+            output.append(new String(chunk, offset, kept, StandardCharsets.UTF_8));
+            outputBytes += length;
+            if (outputBytes > maxOutputBytes) {
+                truncation = "Output exceeded " + maxOutputBytes + " bytes";
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onAttached() {
+            probed = true;
+            attached.countDown();
+        }
+
+        @Override
+        public void onFinished() {
+            finished.countDown();
+        }
+
+        @Override
+        public boolean onTrace(byte[] chunk, int offset, int length) {
+            return true; // Events come from the BTrace client, not the target
+        }
+    }
+}
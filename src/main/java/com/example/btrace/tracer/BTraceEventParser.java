@@ -0,0 +1,457 @@
+package com.example.btrace.tracer;
+
+import com.example.btrace.trace.TraceData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.example.btrace.trace.TraceData.NO_LINE;
+
+/**
+ * Turns the output of a BTrace script into trace events of the same shape the AST engine
+ * produces (see TraceDecoder). The output is fed in raw chunks as the client prints it, one event
+ * per line:
+ * <pre>
+ * EVENT:CALL;METHOD:isPalindrome;LINE:3     method_entry, followed by its arguments
+ * EVENT:ARG;NAME:x;VALUE:121
+ * EVENT:LINE;LINE:4                         line
+ * EVENT:RETURN;METHOD:isPalindrome;VALUE:true   method_exit (no VALUE for void methods)
+ * EVENT:VAR_UPDATE;LINE:4;VAR:str;VALUE:121 variable_update
+ * </pre>
+ * {@code VALUE} is always the last field and runs to the end of the line, so it may contain
+ * {@code ;}. {@link #ATTACHED} and {@link #FINISHED} go to the {@link Listener}; anything that is
+ * not an event line - BTrace's own messages - is kept, up to 2 KB, for {@link #getMessages()}.
+ *
+ * Lines are tokenized in place in the chunk, without decoding them to strings: numbers are parsed
+ * from the bytes, method and variable names come from a small cache, and only string values and
+ * actions become new strings. Only a line split between two chunks is copied.
+ *
+ * Chunks may come from a reader thread while another thread takes the result; {@link #finish()}
+ * hands the events over and drops whatever arrives after it.
+ */
+public class BTraceEventParser {
+
+    /** Printed while the target waits for the script to attach */
+    public static final String ATTACHED = "EVENT:ATTACHED";
+    /** Printed after the last traced call; the session ends right after */
+    public static final String FINISHED = "EVENT:FINISHED";
+
+    /**
+     * Receives the session signals of the script, on the thread feeding the output
+     */
+    public interface Listener {
+        void onAttached();
+
+        void onFinished();
+    }
+
+    private static final byte[] PREFIX = bytes("EVENT:");
+    private static final byte[] TYPE_ATTACHED = bytes(ATTACHED.substring(PREFIX.length));
+    private static final byte[] TYPE_FINISHED = bytes(FINISHED.substring(PREFIX.length));
+    private static final byte[] TYPE_CALL = bytes("CALL");
+    private static final byte[] TYPE_ARG = bytes("ARG");
+    private static final byte[] TYPE_LINE = bytes("LINE");
+    private static final byte[] TYPE_RETURN = bytes("RETURN");
+    private static final byte[] TYPE_VAR_UPDATE = bytes("VAR_UPDATE");
+    private static final byte[] TRUE = bytes("true");
+    private static final byte[] FALSE = bytes("false");
+    private static final byte[] NULL = bytes("null");
+
+    // Fields of the current line, as start / end offsets in fields[2 * key]
+    private static final byte[][] KEYS = {bytes("METHOD"), bytes("LINE"), bytes("NAME"), bytes("VAR"), bytes("VALUE")};
+    private static final int METHOD = 0;
+    private static final int LINE = 1;
+    private static final int NAME = 2;
+    private static final int VAR = 3;
+    private static final int VALUE = 4;
+
+    private static final int MAX_MESSAGE_BYTES = 2048;
+    private static final int CACHED_LINE_ACTIONS = 4096;
+
+    private final TraceData events;
+    private final int maxEvents;
+    private final Listener listener;
+    private final int[] fields = new int[2 * KEYS.length];
+    private final NameCache names = new NameCache();
+    private final String[] lineActions = new String[CACHED_LINE_ACTIONS];
+    private final StringBuilder action = new StringBuilder();
+
+    // Open frames: ids and the line of their last event
+    private int[] frameIds = new int[16];
+    private int[] frameLines = new int[16];
+    private int depth = 0;
+    private int step = 0;
+    private int nextFrame = 1;
+    private int lastLine = NO_LINE;
+    // Method entry still collecting its arguments
+    private boolean inEntry = false;
+
+    // Start of a line split between chunks
+    private byte[] pending = new byte[256];
+    private int pendingLength = 0;
+    private byte[] messages = new byte[256];
+    private int messagesLength = 0;
+
+    private boolean full = false;
+    private boolean finished = false;
+
+    /**
+     * @param maxEvents events kept before the trace counts as full; the memory budget of
+     *                  {@code events} applies as well
+     */
+    public BTraceEventParser(TraceData events, int maxEvents, Listener listener) {
+        this.events = events;
+        this.maxEvents = maxEvents;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds the events of a chunk of BTrace output; a line may span chunks
+     * @return false once the trace is full; later events are dropped, signals still arrive
+     */
+    public synchronized boolean accept(byte[] chunk, int offset, int length) {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (chunk[i] != '\n') {
+                continue;
+            }
+            if (pendingLength > 0) {
+                append(chunk, start, i);
+                line(pending, 0, pendingLength);
+                pendingLength = 0;
+            } else {
+                line(chunk, start, i);
+            }
+            start = i + 1;
+        }
+        append(chunk, start, end);
+        return !full;
+    }
+
+    /**
+     * Completes the last event and returns the trace; output accepted afterwards is ignored
+     */
+    public synchronized TraceData finish() {
+        if (!finished && pendingLength > 0) {
+            line(pending, 0, pendingLength); // Output that ended without a newline
+            pendingLength = 0;
+        }
+        finishEntry();
+        finished = true;
+        return events;
+    }
+
+    /** Whether the event or memory budget ran out */
+    public synchronized boolean isFull() {
+        return full;
+    }
+
+    /** Output lines that were not events, e.g. why BTrace failed to attach */
+    public synchronized String getMessages() {
+        return new String(messages, 0, messagesLength, StandardCharsets.UTF_8).trim();
+    }
+
+    private void append(byte[] chunk, int from, int to) {
+        int length = to - from;
+        if (length == 0) {
+            return;
+        }
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+        }
+        System.arraycopy(chunk, from, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    /** Handles one line, {@code [start, end)} of the buffer without its newline */
+    private void line(byte[] buf, int start, int end) {
+        if (end > start && buf[end - 1] == '\r') {
+            end--;
+        }
+        if (!startsWith(buf, start, end, PREFIX)) {
+            message(buf, start, end);
+            return;
+        }
+        int typeStart = start + PREFIX.length;
+        int typeEnd = indexOf(buf, typeStart, end, (byte) ';');
+        if (equals(buf, typeStart, typeEnd, TYPE_ATTACHED)) {
+            listener.onAttached();
+            return;
+        }
+        if (equals(buf, typeStart, typeEnd, TYPE_FINISHED)) {
+            listener.onFinished();
+            return;
+        }
+        if (finished || full) {
+            return;
+        }
+        fields(buf, typeEnd, end);
+
+        if (equals(buf, typeStart, typeEnd, TYPE_ARG)) {
+            if (inEntry) {
+                String name = name(buf, NAME);
+                Object value = value(buf);
+                events.var(name, value);
+                action.append(action.charAt(action.length() - 1) == '(' ? "" : ", ")
+                      .append(name).append('=').append(value);
+            }
+            return;
+        }
+        finishEntry();
+        if (events.size() >= maxEvents || events.isFull()) {
+            full = true;
+            return;
+        }
+        if (equals(buf, typeStart, typeEnd, TYPE_CALL)) {
+            String method = name(buf, METHOD);
+            lastLine = lineNumber(buf);
+            int parent = depth > 0 ? frameIds[depth - 1] : 0;
+            int frame = nextFrame++;
+            push(frame, lastLine);
+            events.startEvent(++step, lastLine, "method_entry", null, System.currentTimeMillis(), true);
+            events.var("method", method);
+            events.field("frame", frame);
+            events.field("depth", depth);
+            events.field("parent_frame", parent);
+            action.setLength(0);
+            action.append("Entering method ").append(method).append('(');
+            inEntry = true;
+        } else if (equals(buf, typeStart, typeEnd, TYPE_LINE)) {
+            lastLine = lineNumber(buf);
+            events.startEvent(++step, lastLine, "line", lineAction(lastLine), System.currentTimeMillis(), false);
+            if (depth > 0) {
+                frameLines[depth - 1] = lastLine;
+                events.field("frame", frameIds[depth - 1]);
+            }
+        } else if (equals(buf, typeStart, typeEnd, TYPE_RETURN)) {
+            String method = name(buf, METHOD);
+            int exitDepth = depth;
+            int frame = 0;
+            int line = lastLine;
+            if (depth > 0) {
+                depth--;
+                frame = frameIds[depth];
+                line = frameLines[depth];
+            }
+            boolean hasValue = fields[2 * VALUE] >= 0;
+            Object value = hasValue ? value(buf) : null;
+            events.startEvent(++step, line, "method_exit",
+                hasValue ? "Returning " + value + " from " + method : "Leaving method " + method,
+                System.currentTimeMillis(), true);
+            events.var("method", method);
+            if (hasValue) {
+                events.var("return", value);
+            }
+            events.field("frame", frame);
+            events.field("depth", exitDepth);
+        } else if (equals(buf, typeStart, typeEnd, TYPE_VAR_UPDATE)) {
+            String variable = name(buf, VAR);
+            Object value = value(buf);
+            lastLine = lineNumber(buf);
+            events.startEvent(++step, lastLine, "variable_update", "Variable " + variable + " = " + value,
+                System.currentTimeMillis(), true);
+            events.var(variable, value);
+        }
+        // Unknown events carry no trace state
+    }
+
+    /**
+     * Locates the {@code ;KEY:value} fields after the type; the first occurrence of a key wins
+     * and {@code VALUE} ends the line
+     */
+    private void fields(byte[] buf, int from, int end) {
+        Arrays.fill(fields, -1);
+        int pos = from;
+        while (pos < end) {
+            int keyStart = pos + 1;
+            int colon = indexOf(buf, keyStart, end, (byte) ':');
+            if (colon == end) {
+                return;
+            }
+            int key = key(buf, keyStart, colon);
+            int valueEnd = key == VALUE ? end : indexOf(buf, colon + 1, end, (byte) ';');
+            if (key >= 0 && fields[2 * key] < 0) {
+                fields[2 * key] = colon + 1;
+                fields[2 * key + 1] = valueEnd;
+            }
+            if (key == VALUE) {
+                return;
+            }
+            pos = valueEnd;
+        }
+    }
+
+    private static int key(byte[] buf, int start, int end) {
+        for (int key = 0; key < KEYS.length; key++) {
+            if (equals(buf, start, end, KEYS[key])) {
+                return key;
+            }
+        }
+        return -1;
+    }
+
+    /** A name field, or null when absent */
+    private String name(byte[] buf, int key) {
+        int start = fields[2 * key];
+        return start < 0 ? null : names.get(buf, start, fields[2 * key + 1]);
+    }
+
+    /** The LINE field, or NO_LINE when absent or not a number */
+    private int lineNumber(byte[] buf) {
+        int start = fields[2 * LINE];
+        if (start < 0) {
+            return NO_LINE;
+        }
+        long number = parseNumber(buf, start, fields[2 * LINE + 1]);
+        return number != Long.MIN_VALUE && number == (int) number ? (int) number : NO_LINE;
+    }
+
+    /**
+     * The VALUE field typed like a traced value: null, a boolean, an Integer or Long for up to 18
+     * digits, otherwise the text
+     */
+    private Object value(byte[] buf) {
+        int start = fields[2 * VALUE];
+        if (start < 0) {
+            return null;
+        }
+        int end = fields[2 * VALUE + 1];
+        if (equals(buf, start, end, NULL)) {
+            return null;
+        }
+        if (equals(buf, start, end, TRUE)) {
+            return Boolean.TRUE;
+        }
+        if (equals(buf, start, end, FALSE)) {
+            return Boolean.FALSE;
+        }
+        long number = parseNumber(buf, start, end);
+        if (number != Long.MIN_VALUE) {
+            return number == (int) number ? (Object) (int) number : (Object) number;
+        }
+        return new String(buf, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses {@code -?[0-9]{1,18}}
+     * @return the number, or Long.MIN_VALUE when the bytes are anything else
+     */
+    private static long parseNumber(byte[] buf, int start, int end) {
+        boolean negative = start < end && buf[start] == '-';
+        int pos = negative ? start + 1 : start;
+        if (pos == end || end - pos > 18) {
+            return Long.MIN_VALUE;
+        }
+        long number = 0;
+        for (; pos < end; pos++) {
+            int digit = buf[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            number = number * 10 + digit;
+        }
+        return negative ? -number : number;
+    }
+
+    private String lineAction(int line) {
+        if (line < 0 || line >= CACHED_LINE_ACTIONS) {
+            return "Line " + line;
+        }
+        String cached = lineActions[line];
+        if (cached == null) {
+            cached = "Line " + line;
+            lineActions[line] = cached;
+        }
+        return cached;
+    }
+
+    private void push(int frame, int line) {
+        if (depth == frameIds.length) {
+            frameIds = Arrays.copyOf(frameIds, depth * 2);
+            frameLines = Arrays.copyOf(frameLines, depth * 2);
+        }
+        frameIds[depth] = frame;
+        frameLines[depth] = line;
+        depth++;
+    }
+
+    private void finishEntry() {
+        if (inEntry) {
+            events.setAction(action.append(')').toString());
+            inEntry = false;
+        }
+    }
+
+    private void message(byte[] buf, int start, int end) {
+        if (messagesLength >= MAX_MESSAGE_BYTES) {
+            return;
+        }
+        int length = Math.min(end - start, MAX_MESSAGE_BYTES - messagesLength);
+        if (messagesLength + length + 1 > messages.length) {
+            messages = Arrays.copyOf(messages, MAX_MESSAGE_BYTES + 1);
+        }
+        System.arraycopy(buf, start, messages, messagesLength, length);
+        messagesLength += length;
+        messages[messagesLength++] = '\n';
+    }
+
+    private static int indexOf(byte[] buf, int from, int end, byte b) {
+        for (int i = from; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean startsWith(byte[] buf, int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && equals(buf, start, start + prefix.length, prefix);
+    }
+
+    private static boolean equals(byte[] buf, int start, int end, byte[] word) {
+        if (end - start != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (buf[start + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Strings for the method and variable names of a trace, which repeat on nearly every line:
+     * a name is decoded once and found again by its bytes. Names that collide in the table are
+     * decoded each time.
+     */
+    private static final class NameCache {
+        private static final int SIZE = 256;
+
+        private final byte[][] keys = new byte[SIZE][];
+        private final String[] values = new String[SIZE];
+
+        String get(byte[] buf, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + buf[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+            byte[] key = keys[slot];
+            if (key != null && BTraceEventParser.equals(buf, start, end, key)) {
+                return values[slot];
+            }
+            String name = new String(buf, start, end - start, StandardCharsets.UTF_8);
+            if (key == null) {
+                keys[slot] = Arrays.copyOfRange(buf, start, end);
+                values[slot] = name;
+            }
+            return name;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.btrace.tracer;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.Statement;
+import com.github.javaparser.ast.type.Type;
+
+import java.util.*;
+
+/**
+ * BTrace script generated for one traced method. Every declaration of the method (all overloads,
+ * in any class of the source) gets an entry probe printing its arguments, a return probe and one
+ * line probe per statement line - the line map. Two more probes on the target host's
+ * {@code attached()} / {@code finished()} methods drive the attach handshake and end the session.
+ *
+ * The probes print the line format read by {@link BTraceEventParser}.
+ */
+public final class BTraceScript {
+
+    private final String className;
+    private final String source;
+    private final SortedSet<Integer> lines;
+
+    private BTraceScript(String className, String source, SortedSet<Integer> lines) {
+        this.className = className;
+        this.source = source;
+        this.lines = lines;
+    }
+
+    /**
+     * @param scriptClass class name of the script; unique per job, since the agent in a reused
+     *                    target JVM keeps the classes of earlier scripts
+     * @param hostClass class whose {@code attached()} / {@code finished()} methods the target calls
+     * @throws IllegalArgumentException if the source declares no method of that name
+     */
+    public static BTraceScript generate(CompilationUnit cu, String methodName, String scriptClass, String hostClass) {
+        List<MethodDeclaration> methods = new ArrayList<>();
+        for (MethodDeclaration method : cu.findAll(MethodDeclaration.class)) {
+            if (method.getNameAsString().equals(methodName) && method.getBody().isPresent()
+                    && binaryName(cu, method) != null) {
+                methods.add(method);
+            }
+        }
+        if (methods.isEmpty()) {
+            throw new IllegalArgumentException("Method '" + methodName + "' not found in source code");
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("import org.openjdk.btrace.core.annotations.*;\n");
+        out.append("import org.openjdk.btrace.core.types.AnyType;\n");
+        out.append("import static org.openjdk.btrace.core.BTraceUtils.*;\n\n");
+        out.append("@BTrace\n");
+        out.append("public class ").append(scriptClass).append(" {\n");
+        probe(out, hostClass, "attached", null, "onAttached", "");
+        out.append("        println(\"").append(BTraceEventParser.ATTACHED).append("\");\n    }\n");
+        probe(out, hostClass, "finished", null, "onFinished", "");
+        out.append("        println(\"").append(BTraceEventParser.FINISHED).append("\");\n");
+        out.append("        Sys.exit(0);\n    }\n");
+
+        SortedSet<Integer> lineMap = new TreeSet<>();
+        Set<String> returnProbes = new HashSet<>();
+        Set<String> lineProbes = new HashSet<>();
+        for (int i = 0; i < methods.size(); i++) {
+            MethodDeclaration method = methods.get(i);
+            String clazz = binaryName(cu, method);
+
+            StringBuilder params = new StringBuilder();
+            StringBuilder body = new StringBuilder();
+            body.append("        println(\"EVENT:CALL;METHOD:").append(methodName)
+                .append(";LINE:").append(line(method)).append("\");\n");
+            for (Parameter parameter : method.getParameters()) {
+                String type = parameter.isVarArgs() ? "AnyType" : probeType(parameter.getType());
+                String name = parameter.getNameAsString();
+                params.append(params.length() > 0 ? ", " : "").append(type).append(' ').append(name);
+                body.append("        println(Strings.strcat(\"EVENT:ARG;NAME:").append(name)
+                    .append(";VALUE:\", ").append(str(type, name)).append("));\n");
+            }
+            probe(out, clazz, methodName, null, "onEntry" + i, params.toString());
+            out.append(body).append("    }\n");
+
+            // Overloads returning the same type share one return probe, or it would fire twice
+            String returnType = method.getType().isVoidType() ? "void" : probeType(method.getType());
+            if (returnProbes.add(clazz + " " + returnType)) {
+                if ("void".equals(returnType)) {
+                    probe(out, clazz, methodName, "Kind.RETURN", "onReturn" + i, "");
+                    out.append("        println(\"EVENT:RETURN;METHOD:").append(methodName).append("\");\n    }\n");
+                } else {
+                    probe(out, clazz, methodName, "Kind.RETURN", "onReturn" + i, "@Return " + returnType + " result");
+                    out.append("        println(Strings.strcat(\"EVENT:RETURN;METHOD:").append(methodName)
+                        .append(";VALUE:\", ").append(str(returnType, "result")).append("));\n    }\n");
+                }
+            }
+
+            BlockStmt methodBody = method.getBody().get();
+            for (Statement statement : methodBody.findAll(Statement.class)) {
+                if (statement instanceof BlockStmt || !statement.getBegin().isPresent()) {
+                    continue;
+                }
+                int line = statement.getBegin().get().line;
+                lineMap.add(line);
+                if (lineProbes.add(clazz + ":" + line)) {
+                    probe(out, clazz, methodName, "Kind.LINE, line=" + line, "onLine" + line + "_" + i, "");
+                    out.append("        println(\"EVENT:LINE;LINE:").append(line).append("\");\n    }\n");
+                }
+            }
+        }
+        out.append("}\n");
+        return new BTraceScript(scriptClass, out.toString(), Collections.unmodifiableSortedSet(lineMap));
+    }
+
+    private static void probe(StringBuilder out, String clazz, String method, String location,
+                              String handler, String params) {
+        out.append("\n    @OnMethod(clazz=\"").append(clazz).append("\", method=\"").append(method).append('"');
+        if (location != null) {
+            out.append(", location=@Location(").append(location.startsWith("Kind.LINE") ? "value=" : "")
+                .append(location).append(')');
+        }
+        out.append(")\n    public static void ").append(handler).append('(').append(params).append(") {\n");
+    }
+
+    /**
+     * Handler parameter type: primitives and strings as declared, anything else as AnyType
+     */
+    private static String probeType(Type type) {
+        if (type.isPrimitiveType()) {
+            return type.asString();
+        }
+        String name = type.asString();
+        return "String".equals(name) || "java.lang.String".equals(name) ? "String" : "AnyType";
+    }
+
+    private static String str(String type, String name) {
+        // Strings.str has no byte / short overloads
+        return "byte".equals(type) || "short".equals(type) ? "Strings.str((int) " + name + ")"
+            : "String".equals(type) ? name : "Strings.str(" + name + ")";
+    }
+
+    private static int line(Node node) {
+        return node.getBegin().isPresent() ? node.getBegin().get().line : 0;
+    }
+
+    /**
+     * Binary name of the class declaring the method ({@code pkg.Outer$Inner}), or null when it
+     * sits in an anonymous or local class that probes cannot name
+     */
+    private static String binaryName(CompilationUnit cu, MethodDeclaration method) {
+        Deque<String> names = new ArrayDeque<>();
+        Node node = method.getParentNode().orElse(null);
+        while (node != null && node != cu) {
+            if (!(node instanceof TypeDeclaration)) {
+                return null;
+            }
+            names.addFirst(((TypeDeclaration<?>) node).getNameAsString());
+            node = node.getParentNode().orElse(null);
+        }
+        if (names.isEmpty()) {
+            return null;
+        }
+        String name = String.join("$", names);
+        return cu.getPackageDeclaration().map(p -> p.getNameAsString() + "." + name).orElse(name);
+    }
+
+    /** Class name of the script */
+    public String getClassName() {
+        return className;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /** Source lines of the traced method's statements, each with a line probe */
+    public SortedSet<Integer> getLines() {
+        return lines;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.btrace.tracer;
+
+/**
+ * Which tracer runs a request
+ */
+public enum TraceEngine {
+    /** Instrument the user's code (source or bytecode) and run it on a pooled worker JVM */
+    AST("AST-based"),
+    /** Run the code unchanged and attach BTrace probes generated for the traced method */
+    BTRACE("BTrace");
+
+    private final String label;
+
+    TraceEngine(String label) {
+        this.label = label;
+    }
+
+    /** Name used in response messages */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Parses a request value; null or blank selects {@link #AST}
+     */
+    public static TraceEngine fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return AST;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown trace engine: " + value
+                + " (expected 'ast' or 'btrace')");
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.cache.CompiledArtifact;
+import com.example.btrace.trace.TraceData;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Batch jobs: the generated harness, how a job's output is split into its cases and held to
+ * per-case ceilings, and how the cases of a batch are split between jobs
+ */
+class BatchTraceTest {
+
+    private static final String SOURCE = String.join("\n",
+        "import java.util.*;",
+        "",
+        "public class Solution {",
+        "    public static int count(int n) {",
+        "        int total = 0;",
+        "        for (int i = 0; i < n; i++) {",
+        "            total += i;",
+        "        }",
+        "        System.out.println(\"counted \" + n);",
+        "        return total;",
+        "    }",
+        "",
+        "    public static void print(int lines) {",
+        "        for (int i = 0; i < lines; i++) {",
+        "            System.out.println(\"line \" + i);",
+        "        }",
+        "    }",
+        "",
+        "    public static int sum(int a, int b) {",
+        "        int s = a + b;",
+        "        return s;",
+        "    }",
+        "",
+        "    public int sum(List<Integer> values, int... more) {",
+        "        int s = values.size();",
+        "        for (int x : more) {",
+        "            s += x;",
+        "        }",
+        "        return s;",
+        "    }",
+        "",
+        "    public static int first(int[] values) {",
+        "        return values[0];",
+        "    }",
+        "}",
+        "");
+
+    private static final int NO_CEILING = Integer.MAX_VALUE;
+
+    @Test
+    void eachCaseGetsItsOwnEventsOutputAndResult() throws Exception {
+        BatchOutputCollector.Case[] cases = run("count", Arrays.asList("3", "0", "5"), NO_CEILING, NO_CEILING);
+
+        int[] totals = {3, 0, 10};
+        for (int i = 0; i < cases.length; i++) {
+            BatchOutputCollector.Case c = cases[i];
+            assertTrue(c.started);
+            assertNull(c.truncation, "case " + i);
+            assertEquals(totals[i], ((Number) c.returnValue).intValue());
+            assertEquals("counted " + c.input + "\n", c.getOutput());
+            // Steps start over in every case, and the last value of total is the case's own
+            assertEquals(1, c.events.getStep(0));
+            assertEquals(totals[i], lastValue(c.events, "total"));
+        }
+        assertTrue(cases[0].events.size() < cases[2].events.size());
+    }
+
+    @Test
+    void aThrowingCaseDoesNotEndTheJob() throws Exception {
+        BatchOutputCollector.Case[] cases = run("first", Arrays.asList("new int[0]", "new int[]{7, 8}"),
+                                                NO_CEILING, NO_CEILING);
+
+        assertTrue(String.valueOf(cases[0].exception).contains("ArrayIndexOutOfBoundsException"));
+        assertNull(cases[0].returnValue);
+        assertNull(cases[1].exception);
+        assertEquals(7, ((Number) cases[1].returnValue).intValue());
+    }
+
+    @Test
+    void theEventCeilingAppliesToEachCaseOnItsOwn() throws Exception {
+        BatchOutputCollector.Case[] cases = run("count", Arrays.asList("50", "2"), NO_CEILING, 20);
+
+        assertEquals(20, cases[0].events.size());
+        assertEquals("Trace exceeded 20 events", cases[0].truncation);
+        assertEquals(1225, ((Number) cases[0].returnValue).intValue());
+        assertNull(cases[1].truncation);
+        assertEquals(1, ((Number) cases[1].returnValue).intValue());
+        assertEquals(1, lastValue(cases[1].events, "total"));
+    }
+
+    @Test
+    void theOutputCeilingAppliesToEachCaseOnItsOwn() throws Exception {
+        List<String> inputs = new ArrayList<>(Collections.nCopies(10, "1"));
+        inputs.set(0, "100");
+        BatchOutputCollector.Case[] cases = cases(inputs);
+        CompiledArtifact artifact = compile("print", inputs);
+        BatchOutputCollector collector = collector(artifact, cases, inputs.size(), 200, NO_CEILING);
+
+        assertTrue(runAll(artifact, inputs, collector));
+        assertNull(collector.getTruncation());
+        assertEquals("Output exceeded 200 bytes", cases[0].truncation);
+        assertEquals(200, cases[0].getOutput().length());
+        assertTrue(cases[0].getOutputBytes() > 200);
+        for (int i = 1; i < cases.length; i++) {
+            assertNull(cases[i].truncation, "case " + i);
+            assertEquals("line 0\n", cases[i].getOutput());
+        }
+    }
+
+    @Test
+    void theJobStopsPastTheCeilingsOfAllItsCases() throws Exception {
+        List<String> inputs = Arrays.asList("100", "100");
+        BatchOutputCollector.Case[] cases = cases(inputs);
+        CompiledArtifact artifact = compile("print", inputs);
+        BatchOutputCollector collector = collector(artifact, cases, inputs.size(), 200, NO_CEILING);
+
+        assertFalse(runAll(artifact, inputs, collector));
+        assertEquals("Output exceeded 400 bytes", collector.getTruncation());
+        assertSame(cases[0], collector.getCurrent());
+        assertFalse(cases[1].started);
+    }
+
+    @Test
+    void inputsPickTheOverloadTheyCanCall() throws Exception {
+        // Two arguments fit the static method and the instance method with varargs, so the call
+        // goes through an instance and javac picks by type; three need the varargs method
+        List<String> inputs = Arrays.asList("1, 2", "Arrays.asList(1, 2), 3, 4", "new ArrayList<>()",
+                                            "Arrays.asList(5), new int[]{6, 7}");
+        String harness = harness("sum", inputs).getSource();
+        assertTrue(harness.contains("return new Solution().sum(1, 2);"));
+        assertTrue(harness.contains("return new Solution().sum(Arrays.asList(1, 2), 3, 4);"));
+        assertTrue(harness("first", Collections.singletonList("new int[1]")).getSource()
+                       .contains("return Solution.first(new int[1]);"));
+
+        BatchOutputCollector.Case[] cases = run("sum", inputs, NO_CEILING, NO_CEILING);
+        int[] sums = {3, 9, 0, 14};
+        for (int i = 0; i < cases.length; i++) {
+            assertNull(cases[i].exception, "case " + i);
+            assertEquals(sums[i], ((Number) cases[i].returnValue).intValue(), "case " + i);
+        }
+    }
+
+    @Test
+    void inputsThatCannotBeCalledAreRejected() {
+        assertEquals("Method first does not take 2 argument(s) (test input 2)", assertThrows(
+            IllegalArgumentException.class, () -> harness("first", Arrays.asList("new int[1]", "1, 2"))).getMessage());
+        assertEquals("Test input 1 is not a valid argument list: 1,", assertThrows(
+            IllegalArgumentException.class, () -> harness("count", Collections.singletonList("1,"))).getMessage());
+        assertEquals("Method missing not found in class Solution", assertThrows(
+            IllegalArgumentException.class, () -> harness("missing", Collections.singletonList("1"))).getMessage());
+    }
+
+    @Test
+    void casesAreSplitBetweenAtMostOneJobPerWorker() throws Exception {
+        assertEquals(1, ASTTracer.groupCount(0, 4, 10));
+        assertEquals(3, ASTTracer.groupCount(3, 4, 10));
+        assertEquals(4, ASTTracer.groupCount(8, 4, 10));
+        assertEquals(2, ASTTracer.groupCount(8, 4, 2));
+        assertEquals(1, ASTTracer.groupCount(8, 4, 0));
+        assertEquals(Arrays.asList("1", "4", "7"), ASTTracer.caseIndexes(1, 3, 9));
+
+        // Every case runs in exactly one job, and jobs sharing the results fill in their own cases
+        List<String> inputs = Arrays.asList("1", "2", "3", "4", "5", "6", "7");
+        int groups = ASTTracer.groupCount(3, 4, inputs.size());
+        BatchOutputCollector.Case[] cases = cases(inputs);
+        CompiledArtifact artifact = compile("count", inputs);
+        List<String> seen = new ArrayList<>();
+        for (int group = 0; group < groups; group++) {
+            List<String> indexes = ASTTracer.caseIndexes(group, groups, inputs.size());
+            seen.addAll(indexes);
+            BatchOutputCollector collector = collector(artifact, cases, indexes.size(), NO_CEILING, NO_CEILING);
+            assertTrue(InProcessTrace.runJob(artifact, BatchHarness.SIMPLE_NAME, indexes, collector));
+        }
+        Collections.sort(seen);
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6"), seen);
+        for (int i = 0; i < cases.length; i++) {
+            int n = i + 1;
+            assertEquals(n * (n - 1) / 2, ((Number) cases[i].returnValue).intValue(), "case " + i);
+            assertEquals("counted " + n + "\n", cases[i].getOutput());
+            assertEquals(1, cases[i].events.getStep(0));
+        }
+    }
+
+    private static BatchOutputCollector.Case[] run(String method, List<String> inputs, long maxBytes,
+                                                   int maxEvents) throws Exception {
+        BatchOutputCollector.Case[] cases = cases(inputs);
+        CompiledArtifact artifact = compile(method, inputs);
+        assertTrue(runAll(artifact, inputs, collector(artifact, cases, inputs.size(), maxBytes, maxEvents)));
+        return cases;
+    }
+
+    /**
+     * Runs every case of the inputs as one job
+     */
+    private static boolean runAll(CompiledArtifact artifact, List<String> inputs,
+                                  BatchOutputCollector collector) throws Exception {
+        return InProcessTrace.runJob(artifact, BatchHarness.SIMPLE_NAME, ASTTracer.caseIndexes(0, 1, inputs.size()),
+                                     collector);
+    }
+
+    private static CompiledArtifact compile(String method, List<String> inputs) {
+        return InProcessTrace.compile("Solution", SOURCE, harness(method, inputs));
+    }
+
+    private static BatchHarness harness(String method, List<String> inputs) {
+        return BatchHarness.generate(InProcessTrace.parse(SOURCE), "Solution", method, inputs);
+    }
+
+    private static BatchOutputCollector.Case[] cases(List<String> inputs) {
+        BatchOutputCollector.Case[] cases = new BatchOutputCollector.Case[inputs.size()];
+        for (int i = 0; i < cases.length; i++) {
+            cases[i] = new BatchOutputCollector.Case(inputs.get(i), 0);
+        }
+        return cases;
+    }
+
+    private static BatchOutputCollector collector(CompiledArtifact artifact, BatchOutputCollector.Case[] cases,
+                                                  int jobCases, long maxBytes, int maxEvents) {
+        return new BatchOutputCollector(artifact.getSymbols(), maxBytes, maxEvents, cases, jobCases);
+    }
+
+    private static int lastValue(TraceData events, String variable) {
+        Object value = null;
+        for (int i = 0; i < events.size(); i++) {
+            if (events.hasVars(i) && events.getVars(i).containsKey(variable)) {
+                value = events.getVars(i).get(variable);
+            }
+        }
+        return ((Number) value).intValue();
+    }
+}
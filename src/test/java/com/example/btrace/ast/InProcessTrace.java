@@ -0,0 +1,152 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.cache.CompiledArtifact;
+import com.example.btrace.compiler.InMemoryCompiler;
+import com.example.btrace.compiler.InMemoryCompiler.CompilationResult;
+import com.example.btrace.executor.WorkerPool.OutputConsumer;
+import com.example.btrace.runtime.TraceChannel;
+import com.example.btrace.runtime.TraceOptions;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceDecoder;
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instruments, compiles and runs a program in the test JVM the way a worker runs a job,
+ * and decodes its trace records
+ */
+final class InProcessTrace {
+
+    private final TraceData events;
+    private final String output;
+
+    private InProcessTrace(TraceData events, String output) {
+        this.events = events;
+        this.output = output;
+    }
+
+    TraceData getEvents() { return events; }
+    String getOutput() { return output; }
+
+    static CompiledArtifact compile(String className, String sourceCode) {
+        return compile(className, sourceCode, null);
+    }
+
+    /**
+     * @param harness main class of a batch job compiled along with the program, or null
+     */
+    static CompiledArtifact compile(String className, String sourceCode, BatchHarness harness) {
+        CompilationUnit cu = parse(sourceCode);
+        ASTInstrumenter instrumenter = new ASTInstrumenter();
+        cu.accept(instrumenter, null);
+        String code = cu.toString();
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put(className, code);
+        if (harness != null) {
+            sources.put(harness.getClassName(), harness.getSource());
+        }
+        CompilationResult compilation = new InMemoryCompiler().compile(sources);
+        if (!compilation.isSuccess()) {
+            throw new IllegalArgumentException("Instrumented source does not compile: " + compilation.getErrors());
+        }
+        return new CompiledArtifact(code, compilation.getClasses(), instrumenter.getSymbols());
+    }
+
+    static CompilationUnit parse(String sourceCode) {
+        return new JavaParser().parse(sourceCode).getResult()
+            .orElseThrow(() -> new IllegalArgumentException("Source does not parse"));
+    }
+
+    /**
+     * Runs the main class of a batch job with the given case indexes, handing its program output
+     * and trace records to the consumer in the order a worker sends them. Once the consumer asks
+     * to stop the job, nothing more reaches it, as if the worker had been killed.
+     * @return whether the job ran to the end without being stopped
+     */
+    static boolean runJob(CompiledArtifact artifact, String mainClass, List<String> cases,
+                          OutputConsumer consumer) throws Exception {
+        boolean[] stopped = new boolean[1];
+        OutputStream records = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                stopped[0] = stopped[0] || !consumer.onTrace(b, off, len);
+            }
+        };
+        OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                stopped[0] = stopped[0] || !consumer.onOutput(b, off, len);
+            }
+        };
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, false, "UTF-8"));
+        TraceChannel.open(records, TraceOptions.defaults());
+        try {
+            ClassLoader loader = new JobLoader(artifact.getClasses());
+            loader.loadClass(mainClass).getMethod("main", String[].class)
+                .invoke(null, (Object) cases.toArray(new String[0]));
+        } finally {
+            TraceChannel.close();
+            System.setOut(stdout);
+        }
+        return !stopped[0];
+    }
+
+    static InProcessTrace run(CompiledArtifact artifact, String mainClass) throws Exception {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true, "UTF-8"));
+        TraceChannel.open(records, TraceOptions.defaults());
+        try {
+            ClassLoader loader = new JobLoader(artifact.getClasses());
+            loader.loadClass(mainClass).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+        } finally {
+            TraceChannel.close();
+            System.setOut(stdout);
+        }
+        byte[] bytes = records.toByteArray();
+        TraceData events = new TraceData();
+        new TraceDecoder(artifact.getSymbols()).decode(bytes, 0, bytes.length, events, Integer.MAX_VALUE);
+        return new InProcessTrace(events, new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Defines the program's classes on top of the test classpath, which holds the tracing runtime
+     */
+    private static class JobLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        JobLoader(Map<String, byte[]> classes) {
+            super(InProcessTrace.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.cache.CompiledArtifact;
+import com.example.btrace.compiler.InMemoryCompiler;
+import com.example.btrace.metrics.StageTimings;
+import com.example.btrace.metrics.TraceMetrics;
+import com.example.btrace.trace.TraceData;
+import com.example.btrace.trace.TraceSymbols;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Edits rebuilt within a session must give the program, symbols and trace of a full build of the
+ * edited source; the class after the edited one prints the line it runs on, so its line numbers
+ * are checked too
+ */
+class TraceSessionTest {
+
+    private static final String SOURCE = String.join("\n",
+        "import java.util.*;",
+        "",
+        "public class Main {",
+        "    public static void main(String[] args) {",
+        "        int total = new Counter().count(4);",
+        "        System.out.println(\"total \" + total);",
+        "        new Reporter().report(total);",
+        "    }",
+        "}",
+        "",
+        "class Counter {",
+        "    List<Integer> seen = new ArrayList<>();",
+        "",
+        "    int count(int n) {",
+        "        int sum = 0;",
+        "        for (int i = 0; i < n; i++) {",
+        "            sum += i;",
+        "            seen.add(sum);",
+        "        }",
+        "        return sum;",
+        "    }",
+        "}",
+        "",
+        "class Reporter {",
+        "    void report(int total) {",
+        "        int line = new Throwable().getStackTrace()[0].getLineNumber();",
+        "        System.out.println(\"reported \" + total + \" on line \" + line);",
+        "    }",
+        "}",
+        "");
+
+    private final TraceMetrics metrics = new TraceMetrics();
+
+    @Test
+    void anEditAddingALineMatchesAFullBuild() throws Exception {
+        String edited = SOURCE.replace("            sum += i;\n", "            sum += i;\n            sum *= 2;\n");
+        assertEditMatchesFullBuild(SOURCE, edited, "Main");
+    }
+
+    @Test
+    void anEditRemovingLinesMatchesAFullBuild() throws Exception {
+        String edited = SOURCE.replace("            sum += i;\n            seen.add(sum);\n", "            sum += i * i;\n");
+        assertEditMatchesFullBuild(SOURCE, edited, "Main");
+    }
+
+    @Test
+    void anEditWithinALineMatchesAFullBuild() throws Exception {
+        String edited = SOURCE.replace("int sum = 0;", "int sum = 100;");
+        assertEditMatchesFullBuild(SOURCE, edited, "Main");
+    }
+
+    @Test
+    void anEditWithWindowsLineEndingsMatchesAFullBuild() throws Exception {
+        String crlf = SOURCE.replace("\n", "\r\n");
+        String edited = crlf.replace("            sum += i;\r\n", "            sum += i;\r\n            sum -= 1;\r\n");
+        assertEditMatchesFullBuild(crlf, edited, "Main");
+    }
+
+    @Test
+    void successiveEditsKeepMatchingAFullBuild() throws Exception {
+        TraceSession session = new TraceSession(new InMemoryCompiler());
+        session.build("Main", SOURCE, timings());
+        String source = SOURCE;
+        String[][] edits = {
+            {"            sum += i;\n", "            sum += i;\n            sum++;\n"},
+            {"        int line = ", "        total++;\n        int line = "},
+            {"            sum++;\n", ""},
+            {"int total = new Counter().count(4);", "int total = new Counter().count(6);"}
+        };
+        for (String[] edit : edits) {
+            source = source.replace(edit[0], edit[1]);
+            CompiledArtifact incremental = session.build("Main", source, timings());
+            assertSameProgram(new TraceSession(new InMemoryCompiler()).build("Main", source, timings()), incremental);
+        }
+    }
+
+    @Test
+    void unchangedSourceReusesTheLastBuild() throws Exception {
+        TraceSession session = new TraceSession(new InMemoryCompiler());
+        CompiledArtifact first = session.build("Main", SOURCE, timings());
+        assertSame(first, session.build("Main", SOURCE, timings()));
+    }
+
+    @Test
+    void anEditOutsideMethodBodiesRebuildsEverything() throws Exception {
+        TraceSession session = new TraceSession(new InMemoryCompiler());
+        CompiledArtifact before = session.build("Main", SOURCE, timings());
+        String edited = SOURCE.replace("List<Integer> seen = new ArrayList<>();", "List<Integer> seen = new LinkedList<>();");
+        CompiledArtifact after = session.build("Main", edited, timings());
+
+        assertNotSame(before.getClasses().get("Main"), after.getClasses().get("Main"));
+        assertSameProgram(new TraceSession(new InMemoryCompiler()).build("Main", edited, timings()), after);
+    }
+
+    @Test
+    void anEditThatDoesNotCompileFailsLikeAFullBuild() throws Exception {
+        TraceSession session = new TraceSession(new InMemoryCompiler());
+        session.build("Main", SOURCE, timings());
+        String broken = SOURCE.replace("return sum;", "return sum + missing;");
+        assertThrows(ASTTracer.CompilationException.class, () -> session.build("Main", broken, timings()));
+
+        String fixed = SOURCE.replace("return sum;", "return sum + 1;");
+        assertSameProgram(new TraceSession(new InMemoryCompiler()).build("Main", fixed, timings()),
+                          session.build("Main", fixed, timings()));
+    }
+
+    private void assertEditMatchesFullBuild(String source, String edited, String mainClass) throws Exception {
+        TraceSession session = new TraceSession(new InMemoryCompiler());
+        CompiledArtifact before = session.build(mainClass, source, timings());
+        CompiledArtifact incremental = session.build(mainClass, edited, timings());
+        CompiledArtifact full = new TraceSession(new InMemoryCompiler()).build(mainClass, edited, timings());
+
+        // Only the edited class was compiled again
+        assertSame(before.getClasses().get("Main"), incremental.getClasses().get("Main"));
+        assertNotSame(before.getClasses().get("Counter"), incremental.getClasses().get("Counter"));
+        assertSameProgram(full, incremental);
+
+        InProcessTrace expected = InProcessTrace.run(full, mainClass);
+        InProcessTrace actual = InProcessTrace.run(incremental, mainClass);
+        assertEquals(expected.getOutput(), actual.getOutput());
+        // Stack traces give lines of the instrumented source, which the later class was compiled from
+        int reporterLine = lineOf(incremental.getInstrumentedCode(), "int line = ");
+        assertTrue(actual.getOutput().trim().endsWith(" on line " + reporterLine), actual.getOutput());
+        assertEquals(withoutTimestamps(expected.getEvents()), withoutTimestamps(actual.getEvents()));
+    }
+
+    /**
+     * Same printed program, classes and line tables. Symbol ids may differ - a rebuilt member takes
+     * new ids and leaves the old ones unused - but every symbol of the full build must be in the
+     * session's table with the same kind, name and line.
+     */
+    private static void assertSameProgram(CompiledArtifact expected, CompiledArtifact actual) {
+        assertEquals(withoutSymbolIds(expected.getInstrumentedCode()), withoutSymbolIds(actual.getInstrumentedCode()));
+        assertEquals(expected.getClasses().keySet(), actual.getClasses().keySet());
+        for (String name : expected.getClasses().keySet()) {
+            assertArrayEquals(lineTable(expected.getClasses().get(name)), lineTable(actual.getClasses().get(name)),
+                              "line numbers of " + name);
+        }
+        Set<String> actualSymbols = symbols(actual.getSymbols());
+        for (String symbol : symbols(expected.getSymbols())) {
+            assertTrue(actualSymbols.contains(symbol), "symbol " + symbol);
+        }
+    }
+
+    private static String withoutSymbolIds(String code) {
+        StringBuilder result = new StringBuilder();
+        for (String line : code.split("\n", -1)) {
+            result.append(line.contains("runtime.Tracer.") ? line.replaceAll("\\b\\d+\\b", "#") : line).append('\n');
+        }
+        return result.toString();
+    }
+
+    private static Set<String> symbols(TraceSymbols symbols) {
+        Set<String> result = new HashSet<>();
+        for (int id = 0; id < symbols.size(); id++) {
+            result.add(symbols.kind(id) + " " + symbols.name(id) + " @" + symbols.line(id));
+        }
+        return result;
+    }
+
+    /**
+     * Every line number entry of a class, in method order
+     */
+    private static int[] lineTable(byte[] classBytes) {
+        List<Integer> lines = new ArrayList<>();
+        new org.objectweb.asm.ClassReader(classBytes).accept(new org.objectweb.asm.ClassVisitor(org.objectweb.asm.Opcodes.ASM9) {
+            @Override
+            public org.objectweb.asm.MethodVisitor visitMethod(int access, String name, String descriptor,
+                                                               String signature, String[] exceptions) {
+                return new org.objectweb.asm.MethodVisitor(org.objectweb.asm.Opcodes.ASM9) {
+                    @Override
+                    public void visitLineNumber(int line, org.objectweb.asm.Label start) {
+                        lines.add(line);
+                    }
+                };
+            }
+        }, 0);
+        return lines.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static List<Map<String, Object>> withoutTimestamps(TraceData events) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map<String, Object> event : events) {
+            Map<String, Object> copy = new LinkedHashMap<>(event);
+            copy.remove("timestamp");
+            result.add(copy);
+        }
+        return result;
+    }
+
+    private static int lineOf(String source, String text) {
+        String before = source.substring(0, source.indexOf(text));
+        return before.split("\n", -1).length;
+    }
+
+    private StageTimings timings() {
+        return new StageTimings(metrics);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.btrace.ast;
+
+import com.example.btrace.trace.TraceData;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Values whose toString(), hashCode() or equals() are instrumented user methods: the runtime calls
+ * them while writing a record, and calls made from there must not write records of their own
+ */
+class UserObjectTraceTest {
+
+    private static final String SOURCE = String.join("\n",
+        "import java.util.*;",
+        "",
+        "public class Main {",
+        "    public static void main(String[] args) {",
+        "        Point p = new Point(1, 2);",
+        "        Map<Point, Integer> seen = new HashMap<>();",
+        "        seen.put(p, 7);",
+        "        List<Point> points = new ArrayList<>();",
+        "        points.add(p);",
+        "        Point q = seen.containsKey(new Point(1, 2)) ? p : null;",
+        "        System.out.println(q);",
+        "    }",
+        "}",
+        "",
+        "class Point {",
+        "    int x;",
+        "    int y;",
+        "",
+        "    Point(int x, int y) {",
+        "        this.x = x;",
+        "        this.y = y;",
+        "    }",
+        "",
+        "    @Override",
+        "    public String toString() {",
+        "        String text = \"(\" + x + \", \" + y + \")\";",
+        "        return text;",
+        "    }",
+        "",
+        "    @Override",
+        "    public int hashCode() {",
+        "        int hash = 31 * x + y;",
+        "        return hash;",
+        "    }",
+        "",
+        "    @Override",
+        "    public boolean equals(Object other) {",
+        "        boolean same = other instanceof Point && ((Point) other).x == x && ((Point) other).y == y;",
+        "        return same;",
+        "    }",
+        "}",
+        "");
+
+    @Test
+    void callsMadeByTheTracerAreNotTraced() throws Exception {
+        InProcessTrace run = InProcessTrace.run(InProcessTrace.compile("Main", SOURCE), "Main");
+        TraceData events = run.getEvents();
+
+        assertEquals("(1, 2)", run.getOutput().trim());
+        int open = 0;
+        int toStrings = 0;
+        int hashCodes = 0;
+        for (int i = 0; i < events.size(); i++) {
+            String type = events.getEventType(i);
+            if ("method_entry".equals(type)) {
+                open++;
+                assertEquals(open, events.getField(i, "depth"), "depth of event " + i);
+                Object method = events.getVars(i).get("method");
+                if ("toString".equals(method)) {
+                    toStrings++;
+                } else if ("hashCode".equals(method)) {
+                    hashCodes++;
+                }
+            } else if ("method_exit".equals(type)) {
+                assertEquals(open, events.getField(i, "depth"), "depth of event " + i);
+                open--;
+            }
+        }
+        assertEquals(0, open, "every traced call returns");
+        // Only the program's own calls: println's toString, put's and containsKey's hashCode
+        assertEquals(1, toStrings);
+        assertEquals(2, hashCodes);
+    }
+
+    @Test
+    void userObjectsAreRecordedWithTheirToString() throws Exception {
+        TraceData events = InProcessTrace.run(InProcessTrace.compile("Main", SOURCE), "Main").getEvents();
+
+        boolean variable = false;
+        boolean mapKey = false;
+        boolean listElement = false;
+        for (int i = 0; i < events.size(); i++) {
+            String type = events.getEventType(i);
+            if ("variable_update".equals(type) && "(1, 2)".equals(events.getVars(i).get("p"))) {
+                variable = true;
+            } else if ("map_update".equals(type)) {
+                assertEquals("(1, 2)", events.getField(i, "key"));
+                assertEquals(7, events.getVars(i).get("seen[(1, 2)]"));
+                mapKey = true;
+            } else if ("array_update".equals(type)) {
+                assertEquals("(1, 2)", events.getVars(i).get("points[0]"));
+                listElement = true;
+            }
+        }
+        assertTrue(variable, "p is recorded");
+        assertTrue(mapKey, "the put into seen is recorded");
+        assertTrue(listElement, "the add to points is recorded");
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.btrace.controller;
+
+import com.example.btrace.dto.TraceResponse;
+import com.example.btrace.executor.SingleFlight;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Identical /execute requests sharing one run through {@link SingleFlight}, and which finished
+ * results the controller lets later requests reuse
+ */
+class ExecutionReuseTest {
+
+    private static final String LOOP = String.join("\n",
+        "public class Main {",
+        "    public static void main(String[] args) {",
+        "        int sum = 0;",
+        "        for (int i = 0; i < 3; i++) {",
+        "            sum += i;",
+        "        }",
+        "        System.out.println(sum);",
+        "    }",
+        "}");
+
+    private static final String MATH_RANDOM = LOOP.replace("sum += i;", "sum += (int) (Math.random() * 10);");
+
+    private final SingleFlight<TraceResponse> executions = new SingleFlight<>(60_000, 16);
+    private final AtomicInteger started = new AtomicInteger();
+
+    @Test
+    void sourcesWithRandomnessAreNotDeterministic() {
+        assertTrue(BTraceController.isDeterministic(LOOP));
+        assertFalse(BTraceController.isDeterministic(MATH_RANDOM));
+        assertFalse(BTraceController.isDeterministic(LOOP.replace("int sum = 0;", "int sum = new Random().nextInt();")));
+        assertFalse(BTraceController.isDeterministic(LOOP.replace("int sum = 0;",
+            "int sum = ThreadLocalRandom.current().nextInt(5);")));
+        assertFalse(BTraceController.isDeterministic(LOOP.replace("int sum = 0;",
+            "int sum = 0; Collections.shuffle(list);")));
+        assertFalse(BTraceController.isDeterministic(LOOP.replace("int sum = 0;",
+            "long sum = System.nanoTime();")));
+    }
+
+    @Test
+    void concurrentIdenticalRequestsShareOneRun() {
+        CompletableFuture<TraceResponse> job = new CompletableFuture<>();
+        CompletableFuture<TraceResponse> first = executions.run("k", () -> start(job), reuse(LOOP));
+        CompletableFuture<TraceResponse> second = executions.run("k", () -> start(new CompletableFuture<>()), reuse(LOOP));
+
+        assertSame(first, second);
+        assertEquals(1, started.get());
+        assertEquals(1, executions.getCoalesced());
+        TraceResponse response = success();
+        job.complete(response);
+        assertSame(response, second.join());
+    }
+
+    @Test
+    void aDeterministicResultIsReused() {
+        TraceResponse response = success();
+        executions.run("k", () -> start(CompletableFuture.completedFuture(response)), reuse(LOOP)).join();
+
+        assertSame(response, executions.run("k", () -> start(CompletableFuture.completedFuture(success())),
+                                            reuse(LOOP)).join());
+        assertEquals(1, started.get());
+        assertEquals(1, executions.getCacheHits());
+    }
+
+    @Test
+    void aMathRandomResultIsNotReused() {
+        TraceResponse response = success();
+        executions.run("k", () -> start(CompletableFuture.completedFuture(response)), reuse(MATH_RANDOM)).join();
+
+        TraceResponse again = executions.run("k", () -> start(CompletableFuture.completedFuture(success())),
+                                             reuse(MATH_RANDOM)).join();
+        assertNotSame(response, again);
+        assertEquals(2, started.get());
+        assertEquals(0, executions.getCacheHits());
+    }
+
+    @Test
+    void aTimedOutResultIsNotReused() {
+        TraceResponse timedOut = success();
+        timedOut.setTruncated(true);
+        assertFalse(BTraceController.isRepeatable(timedOut));
+
+        executions.run("k", () -> start(CompletableFuture.completedFuture(timedOut)), reuse(LOOP)).join();
+        assertNotSame(timedOut, executions.run("k", () -> start(CompletableFuture.completedFuture(success())),
+                                               reuse(LOOP)).join());
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    void aResultCutByABudgetIsReused() {
+        TraceResponse cut = success();
+        cut.setTruncated(true);
+        cut.setBudget(Collections.singletonMap("budget", "events"));
+        assertTrue(BTraceController.isRepeatable(cut));
+
+        executions.run("k", () -> start(CompletableFuture.completedFuture(cut)), reuse(LOOP)).join();
+        assertSame(cut, executions.run("k", () -> start(CompletableFuture.completedFuture(success())),
+                                       reuse(LOOP)).join());
+    }
+
+    @Test
+    void failuresAreNotReused() {
+        TraceResponse failed = new TraceResponse(false, "Compilation failed", new ArrayList<>(), null);
+        assertFalse(BTraceController.isRepeatable(failed));
+
+        CompletableFuture<TraceResponse> error = new CompletableFuture<>();
+        error.completeExceptionally(new IllegalStateException("worker died"));
+        executions.run("k", () -> start(error), reuse(LOOP)).handle((r, e) -> r);
+        TraceResponse response = success();
+        assertSame(response, executions.run("k", () -> start(CompletableFuture.completedFuture(response)),
+                                            reuse(LOOP)).join());
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    void resultsExpireAfterTheirTtl() throws InterruptedException {
+        SingleFlight<TraceResponse> shortLived = new SingleFlight<>(1, 16);
+        shortLived.run("k", () -> start(CompletableFuture.completedFuture(success())), reuse(LOOP)).join();
+        Thread.sleep(20);
+        shortLived.run("k", () -> start(CompletableFuture.completedFuture(success())), reuse(LOOP)).join();
+        assertEquals(2, started.get());
+        assertEquals(0, shortLived.getCacheHits());
+    }
+
+    /**
+     * The reuse predicate /execute passes to {@link SingleFlight#run}
+     */
+    private static Predicate<TraceResponse> reuse(String sourceCode) {
+        boolean deterministic = BTraceController.isDeterministic(sourceCode);
+        return response -> deterministic && BTraceController.isRepeatable(response);
+    }
+
+    private CompletableFuture<TraceResponse> start(CompletableFuture<TraceResponse> job) {
+        started.incrementAndGet();
+        return job;
+    }
+
+    private static TraceResponse success() {
+        return new TraceResponse(true, "Trace completed successfully", new ArrayList<>(), "3\n");
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.btrace.trace;
+
+import com.example.btrace.runtime.TraceChannel;
+import com.example.btrace.runtime.TraceOptions;
+import com.example.btrace.runtime.Tracer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Records written through {@link Tracer} and read back by {@link TraceDecoder}, one sink write at a time
+ */
+class TraceProtocolTest {
+
+    private final TraceSymbols symbols = new TraceSymbols();
+
+    @Test
+    void variablesRoundTrip() throws IOException {
+        int i = symbols.define(TraceSymbols.VARIABLE, "i", 3);
+        int l = symbols.define(TraceSymbols.VARIABLE, "l", 4);
+        int d = symbols.define(TraceSymbols.VARIABLE, "d", 5);
+        int f = symbols.define(TraceSymbols.VARIABLE, "f", 6);
+        int b = symbols.define(TraceSymbols.VARIABLE, "b", 7);
+        int c = symbols.define(TraceSymbols.VARIABLE, "c", 8);
+        int s = symbols.define(TraceSymbols.VARIABLE, "s", 9);
+        int n = symbols.define(TraceSymbols.VARIABLE, "n", 10);
+
+        TraceData events = trace(TraceOptions.defaults(), () -> {
+            Tracer.var(i, -5);
+            Tracer.var(i, Integer.MAX_VALUE);
+            Tracer.var(l, Long.MIN_VALUE);
+            Tracer.var(d, 2.5);
+            Tracer.var(d, Double.NaN);
+            Tracer.var(f, 1.5f);
+            Tracer.var(b, true);
+            Tracer.var(c, 'x');
+            Tracer.var(s, (Object) "héllo \"world\"");
+            Tracer.var(n, (Object) null);
+        });
+
+        assertEquals(10, events.size());
+        Object[] expected = {-5, Integer.MAX_VALUE, Long.MIN_VALUE, 2.5, Double.NaN, 1.5f, true, 'x',
+                             "héllo \"world\"", null};
+        String[] names = {"i", "i", "l", "d", "d", "f", "b", "c", "s", "n"};
+        int[] lines = {3, 3, 4, 5, 5, 6, 7, 8, 9, 10};
+        for (int e = 0; e < events.size(); e++) {
+            assertEquals("variable_update", events.getEventType(e));
+            assertEquals(e + 1, events.getStep(e));
+            assertEquals(lines[e], events.getLine(e));
+            assertEquals(expected[e], events.getVars(e).get(names[e]), "value of event " + e);
+        }
+        assertEquals("Variable s = héllo \"world\"", events.getAction(8));
+    }
+
+    @Test
+    void callsCarryFramesDepthsArgumentsAndReturnValues() throws IOException {
+        int outer = symbols.define(TraceSymbols.METHOD, "outer", 2);
+        int n = symbols.define(TraceSymbols.ARGUMENT, "n", 2);
+        int inner = symbols.define(TraceSymbols.METHOD, "inner", 7);
+        int x = symbols.define(TraceSymbols.ARGUMENT, "x", 7);
+        int label = symbols.define(TraceSymbols.ARGUMENT, "label", 7);
+
+        TraceData events = trace(TraceOptions.defaults(), () -> {
+            int outerCaller = Tracer.enter(outer);
+            Tracer.arg(n, 3);
+            try {
+                int innerCaller = Tracer.enter(inner);
+                Tracer.arg(x, 4L);
+                Tracer.arg(label, (Object) "sq");
+                try {
+                    Tracer.ret(16, inner);
+                } finally {
+                    Tracer.unwind(inner, innerCaller);
+                }
+            } finally {
+                Tracer.unwind(outer, outerCaller);
+            }
+        });
+
+        assertEquals(4, events.size());
+        assertEquals("method_entry", events.getEventType(0));
+        assertEquals("Entering method outer(n=3)", events.getAction(0));
+        assertEquals(1, events.getField(0, "frame"));
+        assertEquals(1, events.getField(0, "depth"));
+        assertEquals(0, events.getField(0, "parent_frame"));
+        assertEquals(3, events.getVars(0).get("n"));
+
+        assertEquals("Entering method inner(x=4, label=sq)", events.getAction(1));
+        assertEquals(2, events.getField(1, "frame"));
+        assertEquals(2, events.getField(1, "depth"));
+        assertEquals(1, events.getField(1, "parent_frame"));
+        assertEquals(4L, events.getVars(1).get("x"));
+
+        assertEquals("method_exit", events.getEventType(2));
+        assertEquals("Returning 16 from inner", events.getAction(2));
+        assertEquals(16, events.getVars(2).get("return"));
+        assertEquals(2, events.getField(2, "frame"));
+
+        assertEquals("Leaving method outer", events.getAction(3));
+        assertNull(events.getVars(3).get("return"));
+        assertEquals(1, events.getField(3, "frame"));
+        assertEquals(1, events.getField(3, "depth"));
+    }
+
+    @Test
+    void containersSendTheirContentsOnceThenDeltas() throws IOException {
+        int arr = symbols.define(TraceSymbols.VARIABLE, "arr", 3);
+        int store = symbols.define(TraceSymbols.ELEMENT, "arr[]", 4);
+        int names = symbols.define(TraceSymbols.VARIABLE, "names", 5);
+        int add = symbols.define(TraceSymbols.ELEMENT, "names.add", 6);
+        int ages = symbols.define(TraceSymbols.VARIABLE, "ages", 7);
+        int put = symbols.define(TraceSymbols.ELEMENT, "ages.put", 8);
+
+        TraceData events = trace(TraceOptions.defaults(), () -> {
+            int[] values = {1, 2, 3};
+            Tracer.var(arr, (Object) values);
+            values[1] = 7;
+            Tracer.element(values, 1, store);
+            Tracer.var(arr, (Object) values);
+
+            List<String> list = new ArrayList<>(Collections.singletonList("a"));
+            Tracer.var(names, list);
+            list.add("b");
+            Tracer.appended(list, add);
+
+            Map<String, Integer> map = new HashMap<>();
+            Tracer.var(ages, map);
+            map.put("ann", 31);
+            Tracer.put(map, "ann", put);
+        });
+
+        assertEquals(7, events.size());
+        assertEquals("int[3]", events.getVars(0).get("arr"));
+        assertEquals(Collections.singletonMap("arr", Arrays.asList(1, 2, 3)), events.getField(0, "arrays"));
+
+        assertEquals("array_update", events.getEventType(1));
+        assertEquals("arr[1] = 7", events.getAction(1));
+        assertEquals("arr", events.getField(1, "array"));
+        assertEquals(1, events.getField(1, "index"));
+        assertEquals(4, events.getLine(1));
+        // Seen before and the same length: a reference only
+        assertNull(events.getField(2, "arrays"));
+
+        assertEquals("List(1)", events.getVars(3).get("names"));
+        assertEquals(Collections.singletonMap("names", Collections.singletonList("a")), events.getField(3, "arrays"));
+        assertEquals("names[1] = b", events.getAction(4));
+
+        assertEquals("Map(0)", events.getVars(5).get("ages"));
+        assertEquals("map_update", events.getEventType(6));
+        assertEquals("ages[ann] = 31", events.getAction(6));
+        assertEquals("ann", events.getField(6, "key"));
+    }
+
+    @Test
+    void iterationsOverTheLoopBudgetAreCounted() throws IOException {
+        int loop = symbols.define(TraceSymbols.LOOP, "for", 4);
+        int i = symbols.define(TraceSymbols.VARIABLE, "i", 5);
+
+        TraceData events = trace(new TraceOptions(0, 0, 0, 2), () -> {
+            Tracer.loopEnter(loop);
+            try {
+                for (int k = 0; k < 5; k++) {
+                    Tracer.loopIteration(loop);
+                    Tracer.var(i, k);
+                }
+            } finally {
+                Tracer.loopExit(loop);
+            }
+        });
+
+        assertEquals(3, events.size());
+        assertEquals(0, events.getVars(0).get("i"));
+        assertEquals(1, events.getVars(1).get("i"));
+        assertEquals("loop_skip", events.getEventType(2));
+        assertEquals("Iterations 3..5 of for loop not traced", events.getAction(2));
+        assertEquals(3, events.getField(2, "from"));
+        assertEquals(5, events.getField(2, "to"));
+        assertEquals(4, events.getLine(2));
+    }
+
+    @Test
+    void anExhaustedEventBudgetEndsTheTrace() throws IOException {
+        int i = symbols.define(TraceSymbols.VARIABLE, "i", 5);
+        TraceDecoder decoder = new TraceDecoder(symbols);
+
+        TraceData events = trace(new TraceOptions(0, 3, 0, 0), decoder, () -> {
+            for (int k = 0; k < 10; k++) {
+                Tracer.var(i, k);
+            }
+        });
+
+        assertEquals(3, events.size());
+        Map<String, Object> budget = decoder.getBudget();
+        assertEquals("events", budget.get("budget"));
+        assertEquals(3L, budget.get("limit"));
+        assertEquals(4, budget.get("step"));
+        assertEquals(5, budget.get("line"));
+    }
+
+    @Test
+    void actionsAreDerivedFromTheVarsInsteadOfStored() throws IOException {
+        int i = symbols.define(TraceSymbols.VARIABLE, "i", 5);
+        TraceData events = trace(TraceOptions.defaults(), () -> {
+            for (int k = 0; k < 50; k++) {
+                Tracer.var(i, k);
+            }
+        });
+
+        assertEquals(50, events.size());
+        long memory = events.getMemoryBytes();
+        for (int e = 0; e < events.size(); e++) {
+            assertNull(events.getOwnAction(e));
+            assertEquals("Variable i = " + e, events.getAction(e));
+            assertEquals("Variable i = " + e, events.get(e).get("action"));
+        }
+        assertEquals(memory, events.getMemoryBytes(), "reading actions stores nothing");
+
+        StringBuilder json = new StringBuilder();
+        events.writeJson(7, json);
+        assertTrue(json.toString().contains("\"action\":\"Variable i = 7\""), json.toString());
+
+        // Projections keep the action only when asked for, even without the vars it comes from
+        Set<String> withAction = new HashSet<>(Arrays.asList("step", "action"));
+        assertEquals("Variable i = 3", events.copy(3, 4, withAction).get(0).get("action"));
+        Set<String> withoutAction = new HashSet<>(Arrays.asList("step", "event_type", "vars"));
+        assertFalse(events.copy(3, 4, withoutAction).get(0).containsKey("action"));
+        TraceData appended = new TraceData();
+        appended.append(events, 9);
+        assertEquals("Variable i = 9", appended.getAction(0));
+        assertNull(appended.getOwnAction(0));
+    }
+
+    private TraceData trace(TraceOptions options, Runnable program) throws IOException {
+        return trace(options, new TraceDecoder(symbols), program);
+    }
+
+    /**
+     * Runs {@code program} against an open channel and decodes every write to the sink on its own,
+     * as the server does with the frames of a worker
+     */
+    private static TraceData trace(TraceOptions options, TraceDecoder decoder, Runnable program) throws IOException {
+        List<byte[]> writes = new ArrayList<>();
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes.add(new byte[] {(byte) b});
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.add(Arrays.copyOfRange(b, off, off + len));
+            }
+        };
+        TraceChannel.open(sink, options);
+        try {
+            program.run();
+        } finally {
+            TraceChannel.close();
+        }
+        assertTrue(!writes.isEmpty(), "records were written");
+        TraceData events = new TraceData();
+        for (byte[] chunk : writes) {
+            decoder.decode(chunk, 0, chunk.length, events, Integer.MAX_VALUE);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.btrace.trace;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Appending to, reopening and paging the segment store
+ */
+class TraceStoreTest {
+
+    private static final long SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    private final List<TraceStore> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeStores() {
+        opened.forEach(TraceStore::close);
+    }
+
+    @Test
+    void pagesEndOnStepBoundaries() {
+        TraceStore store = open(1 << 20, 0);
+        TraceData trace = trace(20, 0);
+        assertTrue(store.append("t1", builder(store, trace)));
+
+        Map<String, Object> info = store.info("t1");
+        assertEquals(trace.size(), info.get("eventCount"));
+        assertEquals(1, info.get("firstStep"));
+        assertEquals(20, info.get("lastStep"));
+
+        // Pages of about 5 events; every step has two, and a page never splits one
+        List<Map<String, Object>> read = new ArrayList<>();
+        Integer from = 1;
+        int pages = 0;
+        while (from != null) {
+            TraceStore.Page page = store.read("t1", from, Integer.MAX_VALUE, 5);
+            TraceData events = page.getEvents();
+            assertTrue(events.size() >= 5 || page.getNextStep() == null, "page " + pages + " is full");
+            assertEquals(trace.size(), page.getEventCount());
+            if (page.getNextStep() != null) {
+                assertTrue(events.getStep(events.size() - 1) < page.getNextStep(), "page ends on a step boundary");
+            }
+            read.addAll(events);
+            from = page.getNextStep();
+            pages++;
+        }
+        assertEquals(new ArrayList<>(trace), read);
+        assertEquals(7, pages);
+
+        TraceStore.Page range = store.read("t1", 4, 6, 100);
+        assertEquals(6, range.getEvents().size());
+        assertEquals(4, range.getEvents().getStep(0));
+        assertEquals(6, range.getEvents().getStep(5));
+        assertNull(range.getNextStep());
+
+        assertNull(store.read("missing", 1, 10, 10));
+    }
+
+    @Test
+    void tracesSurviveReopening() {
+        TraceStore store = open(1 << 20, 0);
+        TraceData first = trace(30, 0);
+        TraceData second = trace(5, 1000);
+        store.append("first", builder(store, first));
+        store.append("second", builder(store, second));
+        store.close();
+
+        TraceStore reopened = open(1 << 20, 0);
+        assertEquals(2, reopened.getTraceCount());
+        assertEquals(new ArrayList<>(first), new ArrayList<>(reopened.read("first", 1, Integer.MAX_VALUE, 1000).getEvents()));
+        assertEquals(new ArrayList<>(second), new ArrayList<>(reopened.read("second", 1, Integer.MAX_VALUE, 1000).getEvents()));
+
+        // Appends continue after the recovered records
+        TraceData third = trace(3, 2000);
+        reopened.append("third", builder(reopened, third));
+        reopened.close();
+        TraceStore again = open(1 << 20, 0);
+        assertEquals(3, again.getTraceCount());
+        assertEquals(new ArrayList<>(third), new ArrayList<>(again.read("third", 1, Integer.MAX_VALUE, 1000).getEvents()));
+    }
+
+    @Test
+    void aRecordCutShortIsDroppedOnReopening() throws IOException {
+        TraceStore store = open(1 << 20, 0);
+        TraceData kept = trace(10, 0);
+        store.append("kept", builder(store, kept));
+        store.append("cut", builder(store, trace(10, 0)));
+        int cutAt = (Integer) store.info("kept").get("bytes");
+        int cutLength = (Integer) store.info("cut").get("bytes");
+        store.close();
+
+        // Everything after the magic, length and creation time of the second record is lost
+        try (FileChannel segment = FileChannel.open(dir.resolve("segment-000001.seg"), StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.allocate(cutLength - 16), cutAt + 16);
+        }
+
+        TraceStore reopened = open(1 << 20, 0);
+        assertEquals(1, reopened.getTraceCount());
+        assertNull(reopened.info("cut"));
+        assertEquals(new ArrayList<>(kept), new ArrayList<>(reopened.read("kept", 1, 100, 1000).getEvents()));
+
+        // The next append takes the place of the damaged record
+        TraceData replacement = trace(4, 0);
+        reopened.append("replacement", builder(reopened, replacement));
+        reopened.close();
+        TraceStore again = open(1 << 20, 0);
+        assertEquals(2, again.getTraceCount());
+        assertEquals(new ArrayList<>(replacement),
+                     new ArrayList<>(again.read("replacement", 1, 100, 1000).getEvents()));
+    }
+
+    @Test
+    void oldestSegmentsAreDroppedOverTheSizeLimit() {
+        TraceStore store = open(2 * SEGMENT_BYTES, 0);
+        int traces = 12;
+        for (int i = 0; i < traces; i++) {
+            assertTrue(store.append("t" + i, builder(store, trace(15, i))));
+            assertTrue(store.getBytes() <= 2 * SEGMENT_BYTES, "size after trace " + i);
+        }
+        assertNull(store.info("t0"));
+        assertNotNull(store.info("t" + (traces - 1)));
+        assertTrue(store.getTraceCount() < traces);
+    }
+
+    @Test
+    void expiredTracesAreNotReturned() throws InterruptedException {
+        TraceStore store = open(1 << 20, 1);
+        store.append("old", builder(store, trace(3, 0)));
+        Thread.sleep(20);
+        assertNull(store.info("old"));
+        assertNull(store.read("old", 1, 10, 10));
+    }
+
+    @Test
+    void derivedActionsAreNotStoredButReadBack() {
+        TraceStore store = open(1 << 20, 0);
+        TraceData trace = new TraceData();
+        for (int step = 1; step <= 3; step++) {
+            trace.startEvent(step, 4, "variable_update", null, 1000L + step, true);
+            trace.var("x", step * 10);
+        }
+        store.append("derived", builder(store, trace));
+
+        TraceData read = store.read("derived", 1, 10, 10).getEvents();
+        assertEquals(new ArrayList<>(trace), new ArrayList<>(read));
+        assertEquals("Variable x = 20", read.getAction(1));
+        assertNull(read.getOwnAction(1));
+    }
+
+    @Test
+    void aStoreWithoutDirectoryKeepsNothing() {
+        TraceStore store = new TraceStore(null, SEGMENT_BYTES, SEGMENT_BYTES, 0);
+        assertFalse(store.isEnabled());
+        assertFalse(store.append("t", builder(store, trace(3, 0))));
+        assertNull(store.info("t"));
+    }
+
+    private TraceStore open(long maxBytes, long maxAgeMillis) {
+        TraceStore store = new TraceStore(dir, SEGMENT_BYTES, maxBytes, maxAgeMillis);
+        opened.add(store);
+        return store;
+    }
+
+    private static TraceStore.Builder builder(TraceStore store, TraceData trace) {
+        TraceStore.Builder builder = store.builder();
+        builder.addAll(trace);
+        return builder;
+    }
+
+    /**
+     * A trace of {@code steps} steps of two events each: a method entry with an argument and an
+     * array snapshot, and a variable update with a value of another type every time
+     */
+    private static TraceData trace(int steps, int seed) {
+        TraceData trace = new TraceData();
+        for (int step = 1; step <= steps; step++) {
+            trace.startEvent(step, step + 2, "method_entry", "Entering method f(n=" + step + ")", 1000L + step, true);
+            trace.var("method", "f");
+            trace.var("n", step + seed);
+            trace.field("frame", step);
+            trace.field("arrays", Collections.singletonMap("a", Arrays.asList(step, seed, null)));
+
+            trace.startEvent(step, step + 3, "variable_update", "x", 1000L + step, true);
+            switch (step % 4) {
+                case 0: trace.var("x", (long) step << 33); break;
+                case 1: trace.var("x", step / 3.0); break;
+                case 2: trace.var("x", step % 3 == 0); break;
+                default: trace.var("x", "s" + seed + "é"); break;
+            }
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.btrace.trace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * State rebuilt from a keyframe plus the changes after it, checked against a replay of every
+ * event from the start
+ */
+class TraceTimelineTest {
+
+    @Test
+    void everyStepMatchesAReplayFromTheStart() {
+        List<Map<String, Object>> events = program();
+        // Every interval up to 8 moves the keyframes to other offsets, so boundaries fall at the
+        // end of an event, inside a multi-change event (arguments, several vars, vars plus arrays)
+        // and between the steps of the trace
+        for (int interval = 1; interval <= 8; interval++) {
+            TraceTimeline timeline = new TraceTimeline(interval);
+            timeline.appendAll(events);
+            assertEquals(timeline.getChangeCount() / interval + 1, timeline.getKeyframeCount());
+
+            int last = timeline.getLastStep();
+            for (int step = 0; step <= last + 1; step++) {
+                assertEquals(replay(events, step), timeline.stateAt(step), "interval " + interval + ", step " + step);
+            }
+        }
+    }
+
+    @Test
+    void stepsWithoutChangesKeepThePreviousState() {
+        List<Map<String, Object>> events = new ArrayList<>();
+        events.add(variable(2, 3, "x", 1));
+        events.add(variable(5, 4, "x", 2));
+        TraceTimeline timeline = new TraceTimeline(1);
+        timeline.appendAll(events);
+
+        assertEquals(replay(events, 0), timeline.stateAt(0));
+        assertEquals(timeline.stateAt(2).get("stack"), timeline.stateAt(4).get("stack"));
+        assertEquals(3, timeline.stateAt(4).get("line"));
+        assertEquals(replay(events, 5), timeline.stateAt(5));
+        assertTrue(((Map<?, ?>) timeline.stateAt(0).get("arrays")).isEmpty());
+    }
+
+    /**
+     * A main that fills an array and a map and recurses into a helper, with every event type the
+     * timeline turns into state changes
+     */
+    private static List<Map<String, Object>> program() {
+        List<Map<String, Object>> events = new ArrayList<>();
+        int step = 1;
+        events.add(entry(step++, 1, 1, "main", new LinkedHashMap<>()));
+        events.add(variable(step++, 2, "n", 3));
+        Map<String, Object> created = variable(step++, 3, "a", "int[3]");
+        created.put("arrays", singleton("a", Arrays.asList(0, 0, 0)));
+        events.add(created);
+        events.add(event(step++, 4, "loop_enter")); // no state change
+        for (int i = 0; i < 3; i++) {
+            events.add(variable(step++, 4, "i", i));
+            events.add(element(step++, 5, "a", i, i * i));
+        }
+        Map<String, Object> totals = singleton("sum", 5);
+        totals.put("count", 3);
+        Map<String, Object> both = event(step++, 6, "variable_update");
+        both.put("vars", totals);
+        events.add(both);
+
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("x", 1);
+        Map<String, Object> map = variable(step++, 7, "m", "HashMap");
+        map.put("arrays", singleton("m", counts));
+        events.add(map);
+        events.add(put(step++, 8, "m", "y", 2));
+        events.add(put(step++, 8, "m", "x", 4));
+
+        for (int depth = 0; depth < 3; depth++) {
+            Map<String, Object> arguments = new LinkedHashMap<>();
+            arguments.put("k", depth);
+            arguments.put("acc", depth * 10);
+            events.add(entry(step++, 11, 2 + depth, "helper", arguments));
+            events.add(variable(step++, 12, "t", depth + 1));
+        }
+        for (int depth = 2; depth >= 0; depth--) {
+            events.add(exit(step++, 13, "helper"));
+            events.add(variable(step++, 9, "r", depth));
+        }
+        // Snapshot again after element writes, replacing the contents
+        Map<String, Object> resized = variable(step++, 10, "a", "int[2]");
+        resized.put("arrays", singleton("a", Arrays.asList(7, 8)));
+        events.add(resized);
+        events.add(element(step++, 10, "a", 1, 9));
+        events.add(exit(step, 14, "main"));
+        return events;
+    }
+
+    /**
+     * The state after every event up to {@code step}, applied one by one from an empty state
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> replay(List<Map<String, Object>> events, int step) {
+        List<Map<String, Object>> stack = new ArrayList<>();
+        Map<String, Map<Object, Object>> arrays = new LinkedHashMap<>();
+        int line = 0;
+        for (Map<String, Object> event : events) {
+            if ((Integer) event.get("step") > step) {
+                break;
+            }
+            Map<String, Object> vars = (Map<String, Object>) event.get("vars");
+            boolean changed = true;
+            switch ((String) event.get("event_type")) {
+                case "method_entry":
+                    Map<String, Object> frame = frame(event.get("frame"), vars.get("method"));
+                    stack.add(frame);
+                    for (Map.Entry<String, Object> argument : vars.entrySet()) {
+                        if (!argument.getKey().equals("method")) {
+                            ((Map<String, Object>) frame.get("vars")).put(argument.getKey(), argument.getValue());
+                        }
+                    }
+                    break;
+                case "method_exit":
+                    stack.remove(stack.size() - 1);
+                    break;
+                case "variable_update":
+                    if (stack.isEmpty()) {
+                        stack.add(frame(0, null));
+                    }
+                    ((Map<String, Object>) stack.get(stack.size() - 1).get("vars")).putAll(vars);
+                    break;
+                case "array_update":
+                    arrays.computeIfAbsent((String) event.get("array"), k -> new TreeMap<>())
+                        .put(event.get("index"), vars.values().iterator().next());
+                    break;
+                case "map_update":
+                    arrays.computeIfAbsent((String) event.get("array"), k -> new LinkedHashMap<>())
+                        .put(event.get("key"), vars.values().iterator().next());
+                    break;
+                default:
+                    changed = false;
+                    break;
+            }
+            Map<String, Object> snapshots = (Map<String, Object>) event.get("arrays");
+            if (snapshots != null) {
+                for (Map.Entry<String, Object> snapshot : snapshots.entrySet()) {
+                    Map<Object, Object> contents;
+                    if (snapshot.getValue() instanceof List) {
+                        contents = new TreeMap<>();
+                        List<Object> elements = (List<Object>) snapshot.getValue();
+                        for (int i = 0; i < elements.size(); i++) {
+                            contents.put(i, elements.get(i));
+                        }
+                    } else {
+                        contents = new LinkedHashMap<>((Map<Object, Object>) snapshot.getValue());
+                    }
+                    arrays.put(snapshot.getKey(), contents);
+                }
+                changed = true;
+            }
+            if (changed) {
+                line = (Integer) event.get("line");
+            }
+        }
+        for (int depth = 0; depth < stack.size(); depth++) {
+            stack.get(depth).put("depth", depth + 1);
+        }
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("stack", stack);
+        state.put("arrays", arrays);
+        state.put("step", step);
+        state.put("line", line);
+        return state;
+    }
+
+    private static Map<String, Object> frame(Object id, Object method) {
+        Map<String, Object> frame = new LinkedHashMap<>();
+        frame.put("frame", id);
+        frame.put("method", method);
+        frame.put("vars", new LinkedHashMap<String, Object>());
+        return frame;
+    }
+
+    private static Map<String, Object> event(int step, int line, String type) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("step", step);
+        event.put("line", line);
+        event.put("event_type", type);
+        return event;
+    }
+
+    private static Map<String, Object> entry(int step, int line, int frame, String method, Map<String, Object> arguments) {
+        Map<String, Object> event = event(step, line, "method_entry");
+        Map<String, Object> vars = new LinkedHashMap<>();
+        vars.put("method", method);
+        vars.putAll(arguments);
+        event.put("vars", vars);
+        event.put("frame", frame);
+        return event;
+    }
+
+    private static Map<String, Object> exit(int step, int line, String method) {
+        Map<String, Object> event = event(step, line, "method_exit");
+        event.put("vars", singleton("method", method));
+        return event;
+    }
+
+    private static Map<String, Object> variable(int step, int line, String name, Object value) {
+        Map<String, Object> event = event(step, line, "variable_update");
+        event.put("vars", singleton(name, value));
+        return event;
+    }
+
+    private static Map<String, Object> element(int step, int line, String array, int index, Object value) {
+        Map<String, Object> event = event(step, line, "array_update");
+        event.put("array", array);
+        event.put("index", index);
+        event.put("vars", singleton(array + "[" + index + "]", value));
+        return event;
+    }
+
+    private static Map<String, Object> put(int step, int line, String map, String key, Object value) {
+        Map<String, Object> event = event(step, line, "map_update");
+        event.put("array", map);
+        event.put("key", key);
+        event.put("vars", singleton(map + "[" + key + "]", value));
+        return event;
+    }
+
+    private static Map<String, Object> singleton(String key, Object value) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put(key, value);
+        return map;
+    }
+}